@@ -120,7 +120,40 @@ public interface RepositoryStatistics {
          * This is the sum of all observation durations divided by the number
          * of observation events in the respective time period.
          */
-        OBSERVATION_EVENT_AVERAGE(true);
+        OBSERVATION_EVENT_AVERAGE(true),
+
+        /**
+         * Number of JDBC batches executed to store bundles and references.
+         */
+        BUNDLE_WRITE_BATCH_COUNTER(true),
+
+        /**
+         * Number of statements executed as part of JDBC batches.
+         */
+        BUNDLE_WRITE_BATCH_STATEMENT_COUNTER(true),
+
+        /**
+         * Average number of statements per JDBC batch.
+         */
+        BUNDLE_WRITE_BATCH_AVERAGE(false),
+
+        /**
+         * Number of bundles that were found in the off-heap bundle cache
+         * after a bundle cache miss.
+         */
+        BUNDLE_OFF_HEAP_CACHE_HIT_COUNTER(true),
+
+        /**
+         * Number of bundles that were not found in the off-heap bundle
+         * cache after a bundle cache miss, and had to be read from the
+         * persistent storage.
+         */
+        BUNDLE_OFF_HEAP_CACHE_MISS_COUNTER(true),
+
+        /**
+         * Off-heap memory allocated by the off-heap bundle cache in bytes.
+         */
+        BUNDLE_OFF_HEAP_CACHE_SIZE_COUNTER(false);
 
         private final boolean resetValueEachSecond;
 
@@ -19,14 +19,16 @@ package org.apache.jackrabbit.core;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.jcr.ItemNotFoundException;
 import javax.jcr.PathNotFoundException;
 import javax.jcr.RepositoryException;
 
-import org.apache.commons.collections.map.ReferenceMap;
 import org.apache.jackrabbit.core.id.ItemId;
 import org.apache.jackrabbit.core.id.NodeId;
 import org.apache.jackrabbit.core.state.ChildNodeEntry;
@@ -35,6 +37,7 @@ import org.apache.jackrabbit.core.state.ItemStateException;
 import org.apache.jackrabbit.core.state.ItemStateManager;
 import org.apache.jackrabbit.core.state.NodeState;
 import org.apache.jackrabbit.core.state.NodeStateListener;
+import org.apache.jackrabbit.core.state.SessionItemStateManager;
 import org.apache.jackrabbit.spi.Name;
 import org.apache.jackrabbit.spi.Path;
 import org.apache.jackrabbit.spi.commons.conversion.MalformedPathException;
@@ -47,6 +50,27 @@ import org.slf4j.LoggerFactory;
 /**
  * Implementation of a <code>HierarchyManager</code> that caches paths of
  * items.
+ * <p>
+ * Lookups never block: they read the cache while holding the read lock of
+ * the cache, and resolve the item from the item states instead if the read
+ * lock is not available immediately or invalidations are pending. The
+ * notifications about changed, added and removed nodes are queued as
+ * invalidations. The thread that acquires the write lock applies all queued
+ * invalidations in one batch, so concurrent notifications do not wait for
+ * each other either. Hit ratio and size limit of the caches are available
+ * from the {@link #getStatistics() statistics}.
+ * <p>
+ * The hierarchy manager of a session can be backed by a shared instance
+ * caching the paths of the persisted items of the workspace, see
+ * {@link org.apache.jackrabbit.core.state.SharedItemStateManager#getHierarchyMgr()}.
+ * As long as the session has no transient or otherwise unsaved changes, it
+ * sees the same items as the shared instance, and paths missing in its own
+ * cache are resolved by the shared instance, so that the sessions of a
+ * workspace do not each walk down the same paths. Moved, renamed or
+ * reordered nodes are evicted from both caches by the notifications of the
+ * respective item state managers. Access control does not apply at this
+ * level: the ids returned are the ones the session would have resolved
+ * itself, and read access is checked by the callers.
  */
 public class CachingHierarchyManager extends HierarchyManagerImpl
         implements NodeStateListener {
@@ -56,7 +80,7 @@ public class CachingHierarchyManager extends HierarchyManagerImpl
      */
     public static final int DEFAULT_UPPER_LIMIT = 10000;
 
-    private static final int MAX_UPPER_LIMIT =
+    static final int MAX_UPPER_LIMIT =
             Integer.getInteger("org.apache.jackrabbit.core.CachingHierarchyManager.cacheSize", DEFAULT_UPPER_LIMIT);
 
     private static final int CACHE_STATISTICS_LOG_INTERVAL_MILLIS =
@@ -72,15 +96,28 @@ public class CachingHierarchyManager extends HierarchyManagerImpl
      */
     private final PathMap<LRUEntry> pathCache = new PathMap<LRUEntry>();
 
+    /**
+     * Path cache statistics, usually shared by all instances of a repository
+     */
+    private final HierarchyCacheStatistics statistics;
+
     /**
      * Mapping of item ids to <code>LRUEntry</code> in the path map
      */
-    private final ReferenceMap idCache = new ReferenceMap(ReferenceMap.HARD, ReferenceMap.HARD);
+    private final Map<NodeId, LRUEntry> idCache = new HashMap<NodeId, LRUEntry>();
+
+    /**
+     * Cache lock. Readers only ever try to acquire the read lock, writers
+     * only ever try to acquire the write lock, so no thread waits for it.
+     */
+    private final ReentrantReadWriteLock cacheLock = new ReentrantReadWriteLock();
 
     /**
-     * Cache monitor object
+     * Invalidations waiting to be applied by the next holder of the write
+     * lock of the cache
      */
-    private final Object cacheMonitor = new Object();
+    private final Queue<Invalidation> invalidations =
+            new ConcurrentLinkedQueue<Invalidation>();
 
     /**
      * Upper limit
@@ -93,7 +130,7 @@ public class CachingHierarchyManager extends HierarchyManagerImpl
     private final CacheStatistics idCacheStatistics;
 
     /**
-     * Head of LRU
+     * Head of LRU, the entry that is checked first for eviction
      */
     private LRUEntry head;
 
@@ -102,6 +139,18 @@ public class CachingHierarchyManager extends HierarchyManagerImpl
      */
     private LRUEntry tail;
 
+    /**
+     * Session item state manager, if this instance is backed by a shared
+     * cache
+     */
+    private final SessionItemStateManager session;
+
+    /**
+     * Shared cache of the persisted items of the workspace, or
+     * <code>null</code>
+     */
+    private final CachingHierarchyManager sharedCache;
+
     /**
      * Flag indicating whether consistency checking is enabled.
      */
@@ -125,7 +174,48 @@ public class CachingHierarchyManager extends HierarchyManagerImpl
      */
     public CachingHierarchyManager(NodeId rootNodeId,
                                    ItemStateManager provider) {
+        this(rootNodeId, provider, new HierarchyCacheStatistics());
+    }
+
+    /**
+     * Create a new instance of this class that records its path cache
+     * statistics in the given instance.
+     *
+     * @param rootNodeId   root node id
+     * @param provider     item state manager
+     * @param statistics   path cache statistics
+     */
+    public CachingHierarchyManager(NodeId rootNodeId,
+                                   ItemStateManager provider,
+                                   HierarchyCacheStatistics statistics) {
+        this(rootNodeId, provider, null, null, statistics);
+    }
+
+    /**
+     * Create a new instance of this class for a session, backed by the given
+     * shared cache. The path cache statistics are recorded in the statistics
+     * of the shared cache.
+     *
+     * @param rootNodeId   root node id
+     * @param provider     session item state manager
+     * @param sharedCache  shared cache of the persisted items of the workspace
+     */
+    public CachingHierarchyManager(NodeId rootNodeId,
+                                   SessionItemStateManager provider,
+                                   CachingHierarchyManager sharedCache) {
+        this(rootNodeId, provider, provider, sharedCache,
+                sharedCache.getStatistics());
+    }
+
+    private CachingHierarchyManager(NodeId rootNodeId,
+                                    ItemStateManager provider,
+                                    SessionItemStateManager session,
+                                    CachingHierarchyManager sharedCache,
+                                    HierarchyCacheStatistics statistics) {
         super(rootNodeId, provider);
+        this.session = session;
+        this.sharedCache = sharedCache;
+        this.statistics = statistics;
         upperLimit = MAX_UPPER_LIMIT;
         idCacheStatistics = new CacheStatistics();
         if (log.isTraceEnabled()) {
@@ -145,6 +235,27 @@ public class CachingHierarchyManager extends HierarchyManagerImpl
         this.consistencyCheckEnabled = enable;
     }
 
+    /**
+     * Returns whether paths can currently be resolved by the shared cache,
+     * i.e. whether this instance is backed by one and the session has no
+     * unsaved changes.
+     *
+     * @return <code>true</code> if the shared cache can be used
+     */
+    private boolean isSharedCacheUsable() {
+        return sharedCache != null && !session.hasLocalChanges();
+    }
+
+    /**
+     * Returns the path cache statistics of this instance, usually shared by
+     * all instances of a repository.
+     *
+     * @return path cache statistics
+     */
+    public HierarchyCacheStatistics getStatistics() {
+        return statistics;
+    }
+
     //-------------------------------------------------< base class overrides >
 
     /**
@@ -160,30 +271,52 @@ public class CachingHierarchyManager extends HierarchyManagerImpl
             pathToNode = path.getAncestor(1);
         }
 
-        PathMap.Element<LRUEntry> element = map(pathToNode);
-        if (element == null) {
+        NodeId id = null;
+        int depth = 0;
+        boolean exact = false;
+        if (tryReadLock()) {
+            try {
+                PathMap.Element<LRUEntry> element = map(pathToNode);
+                if (element != null) {
+                    id = element.get().getId();
+                    depth = element.getDepth();
+                    exact = element.hasPath(path);
+                }
+                if (exact) {
+                    statistics.hit();
+                } else {
+                    statistics.miss();
+                }
+            } finally {
+                cacheLock.readLock().unlock();
+            }
+        }
+        if (!exact && isSharedCacheUsable()) {
+            ItemId resolved = sharedCache.resolvePath(path, typesAllowed);
+            if (resolved != null && resolved.denotesNode()) {
+                cache((NodeId) resolved, path);
+            }
+            return resolved;
+        }
+        if (id == null) {
             // not even intermediate match: call base class
             return super.resolvePath(path, typesAllowed);
         }
 
-        LRUEntry entry = element.get();
-        if (element.hasPath(path)) {
+        if (exact) {
             // exact match: return answer
-            synchronized (cacheMonitor) {
-                entry.touch();
-            }
-            return entry.getId();
+            return id;
         }
         Path.Element[] elements = path.getElements();
         try {
-            return resolvePath(elements, element.getDepth() + 1, entry.getId(), typesAllowed);
+            return resolvePath(elements, depth + 1, id, typesAllowed);
         } catch (ItemStateException e) {
             String msg = "failed to retrieve state of intermediary node for entry: " 
-                    + entry.getId() + ", path: " + path.getString();
+                    + id + ", path: " + path.getString();
             logItemStateException(msg, e);
             log.debug(msg);
             // probably stale cache entry -> evict
-            evictAll(entry.getId(), true);
+            invalidateAll(id, true);
         }
         // JCR-3617: fall back to super class in case of ItemStateException
         return super.resolvePath(path, typesAllowed);
@@ -212,20 +345,25 @@ public class CachingHierarchyManager extends HierarchyManagerImpl
             PathBuilder builder, ItemState state, CycleDetector detector)
             throws ItemStateException, RepositoryException {
 
-        if (state.isNode()) {
-            PathMap.Element<LRUEntry> element = get(state.getId());
-            if (element != null) {
-                try {
-                    Path.Element[] elements = element.getPath().getElements();
-                    for (int i = elements.length - 1; i >= 0; i--) {
-                        builder.addFirst(elements[i]);
-                    }
-                    return;
-                } catch (MalformedPathException mpe) {
-                    String msg = "Failed to build path of " + state.getId();
-                    log.debug(msg);
-                    throw new RepositoryException(msg, mpe);
+        if (state.isNode() && tryReadLock()) {
+            Path.Element[] elements = null;
+            try {
+                PathMap.Element<LRUEntry> element = get(state.getId());
+                if (element != null) {
+                    elements = element.getPath().getElements();
+                }
+            } catch (MalformedPathException mpe) {
+                String msg = "Failed to build path of " + state.getId();
+                log.debug(msg);
+                throw new RepositoryException(msg, mpe);
+            } finally {
+                cacheLock.readLock().unlock();
+            }
+            if (elements != null) {
+                for (int i = elements.length - 1; i >= 0; i--) {
+                    builder.addFirst(elements[i]);
                 }
+                return;
             }
         }
 
@@ -251,18 +389,25 @@ public class CachingHierarchyManager extends HierarchyManagerImpl
     public Path getPath(ItemId id)
             throws ItemNotFoundException, RepositoryException {
 
-        if (id.denotesNode()) {
-            PathMap.Element<LRUEntry> element = get(id);
-            if (element != null) {
-                try {
+        if (id.denotesNode() && tryReadLock()) {
+            try {
+                PathMap.Element<LRUEntry> element = get(id);
+                if (element != null) {
                     return element.getPath();
-                } catch (MalformedPathException mpe) {
-                    String msg = "Failed to build path of " + id;
-                    log.debug(msg);
-                    throw new RepositoryException(msg, mpe);
                 }
+            } catch (MalformedPathException mpe) {
+                String msg = "Failed to build path of " + id;
+                log.debug(msg);
+                throw new RepositoryException(msg, mpe);
+            } finally {
+                cacheLock.readLock().unlock();
             }
         }
+        if (id.denotesNode() && isSharedCacheUsable()) {
+            Path path = sharedCache.getPath(id);
+            cache((NodeId) id, path);
+            return path;
+        }
         return super.getPath(id);
     }
 
@@ -272,10 +417,14 @@ public class CachingHierarchyManager extends HierarchyManagerImpl
     public Name getName(ItemId id)
             throws ItemNotFoundException, RepositoryException {
 
-        if (id.denotesNode()) {
-            PathMap.Element<LRUEntry> element = get(id);
-            if (element != null) {
-                return element.getName();
+        if (id.denotesNode() && tryReadLock()) {
+            try {
+                PathMap.Element<LRUEntry> element = get(id);
+                if (element != null) {
+                    return element.getName();
+                }
+            } finally {
+                cacheLock.readLock().unlock();
             }
         }
         return super.getName(id);
@@ -287,10 +436,14 @@ public class CachingHierarchyManager extends HierarchyManagerImpl
     public int getDepth(ItemId id)
             throws ItemNotFoundException, RepositoryException {
 
-        if (id.denotesNode()) {
-            PathMap.Element<LRUEntry> element = get(id);
-            if (element != null) {
-                return element.getDepth();
+        if (id.denotesNode() && tryReadLock()) {
+            try {
+                PathMap.Element<LRUEntry> element = get(id);
+                if (element != null) {
+                    return element.getDepth();
+                }
+            } finally {
+                cacheLock.readLock().unlock();
             }
         }
         return super.getDepth(id);
@@ -302,13 +455,17 @@ public class CachingHierarchyManager extends HierarchyManagerImpl
     public boolean isAncestor(NodeId nodeId, ItemId itemId)
             throws ItemNotFoundException, RepositoryException {
 
-        if (itemId.denotesNode()) {
-            PathMap.Element<LRUEntry> element = get(nodeId);
-            if (element != null) {
-                PathMap.Element<LRUEntry> child = get(itemId);
-                if (child != null) {
-                    return element.isAncestorOf(child);
+        if (itemId.denotesNode() && tryReadLock()) {
+            try {
+                PathMap.Element<LRUEntry> element = get(nodeId);
+                if (element != null) {
+                    PathMap.Element<LRUEntry> child = get(itemId);
+                    if (child != null) {
+                        return element.isAncestorOf(child);
+                    }
                 }
+            } finally {
+                cacheLock.readLock().unlock();
             }
         }
         return super.isAncestor(nodeId, itemId);
@@ -338,28 +495,35 @@ public class CachingHierarchyManager extends HierarchyManagerImpl
      * over all child nodes in the path map, evicting the ones that do not
      * (longer) exist in the underlying <code>NodeState</code>.
      */
-    public void nodeModified(NodeState modified) {
-        synchronized (cacheMonitor) {
-            for (PathMap.Element<LRUEntry> element
-                    : getCachedPaths(modified.getNodeId())) {
-                for (PathMap.Element<LRUEntry> child : element.getChildren()) {
-                    ChildNodeEntry cne = modified.getChildNodeEntry(
-                            child.getName(), child.getNormalizedIndex());
-                    if (cne == null) {
-                        // Item does not exist, remove
+    public void nodeModified(final NodeState modified) {
+        invalidate(new Invalidation() {
+            public void apply() {
+                applyNodeModified(modified);
+            }
+        });
+    }
+
+    private void applyNodeModified(NodeState modified) {
+        // assert: cacheLock.isWriteLockedByCurrentThread()
+        for (PathMap.Element<LRUEntry> element
+                : getCachedPaths(modified.getNodeId())) {
+            for (PathMap.Element<LRUEntry> child : element.getChildren()) {
+                ChildNodeEntry cne = modified.getChildNodeEntry(
+                        child.getName(), child.getNormalizedIndex());
+                if (cne == null) {
+                    // Item does not exist, remove
+                    evict(child, true);
+                } else {
+                    LRUEntry childEntry = child.get();
+                    if (childEntry != null
+                            && !cne.getId().equals(childEntry.getId())) {
+                        // Different child item, remove
                         evict(child, true);
-                    } else {
-                        LRUEntry childEntry = child.get();
-                        if (childEntry != null
-                                && !cne.getId().equals(childEntry.getId())) {
-                            // Different child item, remove
-                            evict(child, true);
-                        }
                     }
                 }
             }
-            checkConsistency();
         }
+        checkConsistency();
     }
 
     private List<PathMap.Element<LRUEntry>> getCachedPaths(NodeId id) {
@@ -369,7 +533,7 @@ public class CachingHierarchyManager extends HierarchyManagerImpl
                     PathFactoryImpl.getInstance().getRootPath(), true));
         }
 
-        LRUEntry entry = (LRUEntry) idCache.get(id);
+        LRUEntry entry = idCache.get(id);
         if (entry != null) {
             return Arrays.asList(entry.getElements());
         } else {
@@ -381,7 +545,7 @@ public class CachingHierarchyManager extends HierarchyManagerImpl
      * {@inheritDoc}
      */
     public void stateDestroyed(ItemState destroyed) {
-        evictAll(destroyed.getId(), true);
+        invalidateAll(destroyed.getId(), true);
     }
 
     /**
@@ -391,41 +555,49 @@ public class CachingHierarchyManager extends HierarchyManagerImpl
         if (discarded.isTransient() && !discarded.hasOverlayedState()
                 && discarded.getStatus() == ItemState.STATUS_NEW) {
             // a new node has been discarded -> remove from cache
-            evictAll(discarded.getId(), true);
+            invalidateAll(discarded.getId(), true);
         } else if (provider.hasItemState(discarded.getId())) {
-            evictAll(discarded.getId(), false);
+            invalidateAll(discarded.getId(), false);
         } else {
-            evictAll(discarded.getId(), true);
+            invalidateAll(discarded.getId(), true);
         }
     }
 
     /**
      * {@inheritDoc}
      */
-    public void nodeAdded(NodeState state, Name name, int index, NodeId id) {
-        synchronized (cacheMonitor) {
-            if (idCache.containsKey(state.getNodeId())) {
-                // Optimization: ignore notifications for nodes that are not in the cache
-                try {
-                    Path path = PathFactoryImpl.getInstance().create(getPath(state.getNodeId()), name, index, true);
-                    nodeAdded(state, path, id);
-                    checkConsistency();
-                } catch (PathNotFoundException e) {
-                    log.warn("Unable to get path of node " + state.getNodeId()
-                            + ", event ignored.");
-                } catch (MalformedPathException e) {
-                    log.warn("Unable to create path of " + id, e);
-                } catch (ItemNotFoundException e) {
-                    log.warn("Unable to find item " + state.getNodeId(), e);
-                } catch (ItemStateException e) {
-                    log.warn("Unable to find item " + id, e);
-                } catch (RepositoryException e) {
-                    log.warn("Unable to get path of " + state.getNodeId(), e);
-                }
-            } else if (state.getParentId() == null && idCache.containsKey(id)) {
-                // A top level node was added
-                evictAll(id, true);
+    public void nodeAdded(final NodeState state, final Name name,
+                          final int index, final NodeId id) {
+        invalidate(new Invalidation() {
+            public void apply() {
+                applyNodeAdded(state, name, index, id);
+            }
+        });
+    }
+
+    private void applyNodeAdded(NodeState state, Name name, int index, NodeId id) {
+        // assert: cacheLock.isWriteLockedByCurrentThread()
+        if (idCache.containsKey(state.getNodeId())) {
+            // Optimization: ignore notifications for nodes that are not in the cache
+            try {
+                Path path = PathFactoryImpl.getInstance().create(getPath(state.getNodeId()), name, index, true);
+                nodeAdded(state, path, id);
+                checkConsistency();
+            } catch (PathNotFoundException e) {
+                log.warn("Unable to get path of node " + state.getNodeId()
+                        + ", event ignored.");
+            } catch (MalformedPathException e) {
+                log.warn("Unable to create path of " + id, e);
+            } catch (ItemNotFoundException e) {
+                log.warn("Unable to find item " + state.getNodeId(), e);
+            } catch (ItemStateException e) {
+                log.warn("Unable to find item " + id, e);
+            } catch (RepositoryException e) {
+                log.warn("Unable to get path of " + state.getNodeId(), e);
             }
+        } else if (state.getParentId() == null && idCache.containsKey(id)) {
+            // A top level node was added
+            evictAll(id, true);
         }
     }
 
@@ -435,88 +607,196 @@ public class CachingHierarchyManager extends HierarchyManagerImpl
      * Iterate over all cached children of this state and verify each
      * child's position.
      */
-    public void nodesReplaced(NodeState state) {
-        synchronized (cacheMonitor) {
-            LRUEntry entry = (LRUEntry) idCache.get(state.getNodeId());
-            if (entry == null) {
-                return;
+    public void nodesReplaced(final NodeState state) {
+        invalidate(new Invalidation() {
+            public void apply() {
+                applyNodesReplaced(state);
             }
-            for (PathMap.Element<LRUEntry> parent : entry.getElements()) {
-                HashMap<Path.Element, PathMap.Element<LRUEntry>> newChildrenOrder =
-                    new HashMap<Path.Element, PathMap.Element<LRUEntry>>();
-                boolean orderChanged = false;
-
-                for (PathMap.Element<LRUEntry> child : parent.getChildren()) {
-                    LRUEntry childEntry = (LRUEntry) child.get();
-                    if (childEntry == null) {
-                        // Child has no associated UUID information: we're
-                        // therefore unable to determine if this child's
-                        // position is still accurate and have to assume
-                        // the worst and remove it.
+        });
+    }
+
+    private void applyNodesReplaced(NodeState state) {
+        // assert: cacheLock.isWriteLockedByCurrentThread()
+        LRUEntry entry = idCache.get(state.getNodeId());
+        if (entry == null) {
+            return;
+        }
+        for (PathMap.Element<LRUEntry> parent : entry.getElements()) {
+            HashMap<Path.Element, PathMap.Element<LRUEntry>> newChildrenOrder =
+                new HashMap<Path.Element, PathMap.Element<LRUEntry>>();
+            boolean orderChanged = false;
+
+            for (PathMap.Element<LRUEntry> child : parent.getChildren()) {
+                LRUEntry childEntry = child.get();
+                if (childEntry == null) {
+                    // Child has no associated UUID information: we're
+                    // therefore unable to determine if this child's
+                    // position is still accurate and have to assume
+                    // the worst and remove it.
+                    evict(child, false);
+                } else {
+                    NodeId childId = childEntry.getId();
+                    ChildNodeEntry cne = state.getChildNodeEntry(childId);
+                    if (cne == null) {
+                        // Child no longer in parent node, so remove it
                         evict(child, false);
                     } else {
-                        NodeId childId = childEntry.getId();
-                        ChildNodeEntry cne = state.getChildNodeEntry(childId);
-                        if (cne == null) {
-                            // Child no longer in parent node, so remove it
-                            evict(child, false);
-                        } else {
-                            // Put all children into map of new children order
-                            // - regardless whether their position changed or
-                            // not - as we might need to reorder them later on.
-                            Path.Element newNameIndex =
-                                PathFactoryImpl.getInstance().createElement(
-                                        cne.getName(), cne.getIndex());
-                            newChildrenOrder.put(newNameIndex, child);
-
-                            if (!newNameIndex.equals(child.getPathElement())) {
-                                orderChanged = true;
-                            }
+                        // Put all children into map of new children order
+                        // - regardless whether their position changed or
+                        // not - as we might need to reorder them later on.
+                        Path.Element newNameIndex =
+                            PathFactoryImpl.getInstance().createElement(
+                                    cne.getName(), cne.getIndex());
+                        newChildrenOrder.put(newNameIndex, child);
+
+                        if (!newNameIndex.equals(child.getPathElement())) {
+                            orderChanged = true;
                         }
                     }
                 }
+            }
 
-                if (orderChanged) {
-                    /* If at least one child changed its position, reorder */
-                    parent.setChildren(newChildrenOrder);
-                }
+            if (orderChanged) {
+                /* If at least one child changed its position, reorder */
+                parent.setChildren(newChildrenOrder);
             }
-            checkConsistency();
         }
+        checkConsistency();
     }
 
     /**
      * {@inheritDoc}
      */
-    public void nodeRemoved(NodeState state, Name name, int index, NodeId id) {
-        synchronized (cacheMonitor) {
-            if (idCache.containsKey(state.getNodeId())) {
-                // Optimization: ignore notifications for nodes that are not in the cache
-                try {
-                    Path path = PathFactoryImpl.getInstance().create(getPath(state.getNodeId()), name, index, true);
-                    nodeRemoved(state, path, id);
-                    checkConsistency();
-                } catch (PathNotFoundException e) {
-                    log.warn("Unable to get path of node " + state.getNodeId()
-                            + ", event ignored.");
-                } catch (MalformedPathException e) {
-                    log.warn("Unable to create path of " + id, e);
-                } catch (ItemStateException e) {
-                    log.warn("Unable to find item " + id, e);
-                } catch (ItemNotFoundException e) {
-                    log.warn("Unable to get path of " + state.getNodeId(), e);
-                } catch (RepositoryException e) {
-                    log.warn("Unable to get path of " + state.getNodeId(), e);
-                }
-            } else if (state.getParentId() == null && idCache.containsKey(id)) {
-                // A top level node was removed
-                evictAll(id, true);
+    public void nodeRemoved(final NodeState state, final Name name,
+                            final int index, final NodeId id) {
+        invalidate(new Invalidation() {
+            public void apply() {
+                applyNodeRemoved(state, name, index, id);
+            }
+        });
+    }
+
+    private void applyNodeRemoved(NodeState state, Name name, int index, NodeId id) {
+        // assert: cacheLock.isWriteLockedByCurrentThread()
+        if (idCache.containsKey(state.getNodeId())) {
+            // Optimization: ignore notifications for nodes that are not in the cache
+            try {
+                Path path = PathFactoryImpl.getInstance().create(getPath(state.getNodeId()), name, index, true);
+                nodeRemoved(state, path, id);
+                checkConsistency();
+            } catch (PathNotFoundException e) {
+                log.warn("Unable to get path of node " + state.getNodeId()
+                        + ", event ignored.");
+            } catch (MalformedPathException e) {
+                log.warn("Unable to create path of " + id, e);
+            } catch (ItemStateException e) {
+                log.warn("Unable to find item " + id, e);
+            } catch (ItemNotFoundException e) {
+                log.warn("Unable to get path of " + state.getNodeId(), e);
+            } catch (RepositoryException e) {
+                log.warn("Unable to get path of " + state.getNodeId(), e);
             }
+        } else if (state.getParentId() == null && idCache.containsKey(id)) {
+            // A top level node was removed
+            evictAll(id, true);
         }
     }
 
     //------------------------------------------------------< private methods >
 
+    /**
+     * Tries to acquire the read lock of the cache without waiting. Fails if
+     * another thread is updating the cache or invalidations are pending
+     * that cannot be applied immediately. A thread that holds the write
+     * lock always gets the read lock, and sees the pending invalidations
+     * in the order they are applied.
+     *
+     * @return <code>true</code> if the read lock has been acquired, in which
+     *         case the caller must release it; <code>false</code> if the
+     *         cache must be bypassed
+     */
+    private boolean tryReadLock() {
+        if (!cacheLock.isWriteLockedByCurrentThread()) {
+            applyInvalidations();
+            if (!invalidations.isEmpty()) {
+                statistics.bypass();
+                return false;
+            }
+        }
+        if (cacheLock.readLock().tryLock()) {
+            return true;
+        }
+        statistics.bypass();
+        return false;
+    }
+
+    /**
+     * Queues an invalidation and applies it together with any other pending
+     * invalidations, unless another thread holds the lock of the cache. In
+     * that case the other thread or the next thread accessing the cache
+     * applies it.
+     *
+     * @param invalidation the invalidation
+     */
+    private void invalidate(Invalidation invalidation) {
+        invalidations.add(invalidation);
+        applyInvalidations();
+    }
+
+    /**
+     * Queues the removal of all path mappings for a given item id.
+     *
+     * @param id item id
+     * @param shift whether to shift the indexes of same name siblings
+     * @see #evictAll(ItemId, boolean)
+     */
+    private void invalidateAll(final ItemId id, final boolean shift) {
+        invalidate(new Invalidation() {
+            public void apply() {
+                evictAll(id, shift);
+            }
+        });
+    }
+
+    /**
+     * Applies the pending invalidations if the write lock of the cache can be
+     * acquired without waiting. Invalidations queued while this thread holds
+     * the write lock are applied by the loop that is already draining the
+     * queue.
+     */
+    private void applyInvalidations() {
+        if (cacheLock.isWriteLockedByCurrentThread()) {
+            return;
+        }
+        // re-check after unlocking: an invalidation may have been queued
+        // by a thread that failed to acquire the lock we were holding
+        while (!invalidations.isEmpty() && cacheLock.writeLock().tryLock()) {
+            try {
+                drainInvalidations();
+            } finally {
+                cacheLock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Applies all pending invalidations in one batch.
+     */
+    private void drainInvalidations() {
+        // assert: cacheLock.isWriteLockedByCurrentThread()
+        int count = 0;
+        Invalidation invalidation = invalidations.poll();
+        while (invalidation != null) {
+            invalidation.apply();
+            count++;
+            invalidation = invalidations.poll();
+        }
+        if (count > 0) {
+            statistics.invalidated(count);
+            checkConsistency();
+        }
+    }
+
     /**
      * Return the first cached path that is mapped to given id.
      *
@@ -524,14 +804,15 @@ public class CachingHierarchyManager extends HierarchyManagerImpl
      * @return cached element, <code>null</code> if not found
      */
     private PathMap.Element<LRUEntry> get(ItemId id) {
-        synchronized (cacheMonitor) {
-            LRUEntry entry = (LRUEntry) idCache.get(id);
-            if (entry != null) {
-                entry.touch();
-                return entry.getElements()[0];
-            }
-            return null;
+        // assert: cacheLock.getReadHoldCount() > 0
+        LRUEntry entry = idCache.get(id);
+        if (entry != null) {
+            entry.touch();
+            statistics.hit();
+            return entry.getElements()[0];
         }
+        statistics.miss();
+        return null;
     }
 
     /**
@@ -543,28 +824,35 @@ public class CachingHierarchyManager extends HierarchyManagerImpl
      * @return cached element, <code>null</code> if not found
      */
     private PathMap.Element<LRUEntry> map(Path path) {
-        synchronized (cacheMonitor) {
-            PathMap.Element<LRUEntry> element = pathCache.map(path, false);
-            while (element != null) {
-                LRUEntry entry = element.get();
-                if (entry != null) {
-                    entry.touch();
-                    return element;
-                }
-                element = element.getParent();
+        // assert: cacheLock.getReadHoldCount() > 0
+        PathMap.Element<LRUEntry> element = pathCache.map(path, false);
+        while (element != null) {
+            LRUEntry entry = element.get();
+            if (entry != null) {
+                entry.touch();
+                return element;
             }
-            return null;
+            element = element.getParent();
         }
+        return null;
     }
 
     /**
-     * Cache an item in the hierarchy given its id and path.
+     * Cache an item in the hierarchy given its id and path. The item is not
+     * cached if another thread is currently updating the cache.
      *
      * @param id   node id
      * @param path path to item
      */
     private void cache(NodeId id, Path path) {
-        synchronized (cacheMonitor) {
+        if (!cacheLock.writeLock().tryLock()) {
+            return;
+        }
+        try {
+            if (cacheLock.getWriteHoldCount() == 1) {
+                // not called while applying invalidations
+                drainInvalidations();
+            }
             if (isCached(id, path)) {
                 return;
             }
@@ -573,30 +861,40 @@ public class CachingHierarchyManager extends HierarchyManagerImpl
                 idCacheStatistics.log();
 
                 /**
-                 * Remove least recently used item. Scans the LRU list from
-                 * head to tail and removes the first item that has no children.
+                 * Remove an item that has not been used recently. Scans the
+                 * list from head to tail and removes the first item that has
+                 * no children and has not been used since the last scan.
+                 * Items that have been used are given a second chance and
+                 * moved to the tail.
                  */
                 LRUEntry entry = head;
-                while (entry != null) {
-                    PathMap.Element<LRUEntry>[] elements = entry.getElements();
-                    int childrenCount = 0;
-                    for (int i = 0; i < elements.length; i++) {
-                        childrenCount += elements[i].getChildrenCount();
-                    }
-                    if (childrenCount == 0) {
-                        evictAll(entry.getId(), false);
-                        return;
+                int remaining = 2 * idCache.size();
+                while (entry != null && remaining-- > 0) {
+                    LRUEntry next = entry.getNext();
+                    if (entry.clearUsed()) {
+                        entry.moveToTail();
+                    } else {
+                        PathMap.Element<LRUEntry>[] elements = entry.getElements();
+                        int childrenCount = 0;
+                        for (int i = 0; i < elements.length; i++) {
+                            childrenCount += elements[i].getChildrenCount();
+                        }
+                        if (childrenCount == 0) {
+                            evictAll(entry.getId(), false);
+                            statistics.evicted();
+                            return;
+                        }
                     }
-                    entry = entry.getNext();
+                    entry = next;
                 }
             }
             PathMap.Element<LRUEntry> element = pathCache.put(path);
             if (element.get() != null) {
-                if (!id.equals(((LRUEntry) element.get()).getId())) {
+                if (!id.equals(element.get().getId())) {
                     log.debug("overwriting PathMap.Element");
                 }
             }
-            LRUEntry entry = (LRUEntry) idCache.get(id);
+            LRUEntry entry = idCache.get(id);
             if (entry == null) {
                 entry = new LRUEntry(id, element);
                 idCache.put(id, entry);
@@ -606,6 +904,8 @@ public class CachingHierarchyManager extends HierarchyManagerImpl
             element.set(entry);
 
             checkConsistency();
+        } finally {
+            cacheLock.writeLock().unlock();
         }
     }
 
@@ -621,8 +921,10 @@ public class CachingHierarchyManager extends HierarchyManagerImpl
      *         <code>false</code> otherwise
      */
     boolean isCached(NodeId id, Path path) {
-        synchronized (cacheMonitor) {
-            LRUEntry entry = (LRUEntry) idCache.get(id);
+        applyInvalidations();
+        cacheLock.readLock().lock();
+        try {
+            LRUEntry entry = idCache.get(id);
             if (entry == null) {
                 return false;
             }
@@ -636,9 +938,21 @@ public class CachingHierarchyManager extends HierarchyManagerImpl
                 }
             }
             return false;
+        } finally {
+            cacheLock.readLock().unlock();
         }
     }
 
+    /**
+     * Returns the lock of the cache, so that tests can simulate another
+     * thread updating the cache.
+     *
+     * @return cache lock
+     */
+    ReentrantReadWriteLock getCacheLock() {
+        return cacheLock;
+    }
+
     /**
      * Return a flag indicating whether a certain path is cached.
      *
@@ -647,12 +961,16 @@ public class CachingHierarchyManager extends HierarchyManagerImpl
      *         <code>false</code> otherwise
      */
     boolean isCached(Path path) {
-        synchronized (cacheMonitor) {
+        applyInvalidations();
+        cacheLock.readLock().lock();
+        try {
             PathMap.Element<LRUEntry> element = pathCache.map(path, true);
             if (element != null) {
                 return element.get() != null;
             }
             return false;
+        } finally {
+            cacheLock.readLock().unlock();
         }
     }
 
@@ -664,16 +982,15 @@ public class CachingHierarchyManager extends HierarchyManagerImpl
      * @param id item id
      */
     private void evictAll(ItemId id, boolean shift) {
-        synchronized (cacheMonitor) {
-            LRUEntry entry = (LRUEntry) idCache.get(id);
-            if (entry != null) {
-                PathMap.Element<LRUEntry>[] elements = entry.getElements();
-                for (int i = 0; i < elements.length; i++) {
-                    evict(elements[i], shift);
-                }
+        // assert: cacheLock.isWriteLockedByCurrentThread()
+        LRUEntry entry = idCache.get(id);
+        if (entry != null) {
+            PathMap.Element<LRUEntry>[] elements = entry.getElements();
+            for (int i = 0; i < elements.length; i++) {
+                evict(elements[i], shift);
             }
-            checkConsistency();
         }
+        checkConsistency();
     }
 
     /**
@@ -684,10 +1001,10 @@ public class CachingHierarchyManager extends HierarchyManagerImpl
      * @param element path map element
      */
     private void evict(PathMap.Element<LRUEntry> element, boolean shift) {
-        // assert: synchronized (cacheMonitor)
+        // assert: cacheLock.isWriteLockedByCurrentThread()
         element.traverse(new PathMap.ElementVisitor<LRUEntry>() {
             public void elementVisited(PathMap.Element<LRUEntry> element) {
-                LRUEntry entry = (LRUEntry) element.get();
+                LRUEntry entry = element.get();
                 if (entry.removeElement(element) == 0) {
                     idCache.remove(entry.getId());
                     entry.remove();
@@ -711,10 +1028,10 @@ public class CachingHierarchyManager extends HierarchyManagerImpl
     private void nodeAdded(NodeState state, Path path, NodeId id)
             throws RepositoryException, ItemStateException {
 
-        // assert: synchronized (cacheMonitor)
+        // assert: cacheLock.isWriteLockedByCurrentThread()
         PathMap.Element<LRUEntry> element = null;
 
-        LRUEntry entry = (LRUEntry) idCache.get(id);
+        LRUEntry entry = idCache.get(id);
         if (entry != null) {
             // child node already cached: this can have the following
             // reasons:
@@ -756,7 +1073,7 @@ public class CachingHierarchyManager extends HierarchyManagerImpl
     private void nodeRemoved(NodeState state, Path path, NodeId id)
             throws RepositoryException, ItemStateException {
 
-        // assert: synchronized (cacheMonitor)
+        // assert: cacheLock.isWriteLockedByCurrentThread()
         PathMap.Element<LRUEntry> parent =
             pathCache.map(path.getAncestor(1), true);
         if (parent == null) {
@@ -768,7 +1085,7 @@ public class CachingHierarchyManager extends HierarchyManagerImpl
             // with SNS, this might evict a child that is NOT the one
             // having <code>id</code>, check first whether item has
             // the id passed as argument
-            LRUEntry entry = (LRUEntry) element.get();
+            LRUEntry entry = element.get();
             if (entry != null && !entry.getId().equals(id)) {
                 return;
             }
@@ -795,7 +1112,9 @@ public class CachingHierarchyManager extends HierarchyManagerImpl
      */
     public String toString() {
         final StringBuilder builder = new StringBuilder();
-        synchronized (cacheMonitor) {
+        applyInvalidations();
+        cacheLock.readLock().lock();
+        try {
             pathCache.traverse(new PathMap.ElementVisitor<LRUEntry>() {
                 public void elementVisited(PathMap.Element<LRUEntry> element) {
                     for (int i = 0; i < element.getDepth(); i++) {
@@ -813,6 +1132,8 @@ public class CachingHierarchyManager extends HierarchyManagerImpl
                     builder.append("\n");
                 }
             }, true);
+        } finally {
+            cacheLock.readLock().unlock();
         }
         return builder.toString();
     }
@@ -821,24 +1142,22 @@ public class CachingHierarchyManager extends HierarchyManagerImpl
      * Check consistency.
      */
     private void checkConsistency() throws IllegalStateException {
-        // assert: synchronized (cacheMonitor)
+        // assert: cacheLock.isWriteLockedByCurrentThread()
         if (!consistencyCheckEnabled) {
             return;
         }
 
         int elementsInCache = 0;
 
-        Iterator iter = idCache.values().iterator();
-        while (iter.hasNext()) {
-            LRUEntry entry = (LRUEntry) iter.next();
+        for (LRUEntry entry : idCache.values()) {
             elementsInCache += entry.getElements().length;
         }
 
         class PathMapElementCounter implements PathMap.ElementVisitor<LRUEntry> {
             int count;
             public void elementVisited(PathMap.Element<LRUEntry> element) {
-                LRUEntry mappedEntry = (LRUEntry) element.get();
-                LRUEntry cachedEntry = (LRUEntry) idCache.get(mappedEntry.getId());
+                LRUEntry mappedEntry = element.get();
+                LRUEntry cachedEntry = idCache.get(mappedEntry.getId());
                 if (cachedEntry == null) {
                     String msg = "Path element (" + element +
                         " ) cached in path map, associated id (" +
@@ -910,6 +1229,12 @@ public class CachingHierarchyManager extends HierarchyManagerImpl
          */
         private final NodeId id;
 
+        /**
+         * Flag indicating whether the entry has been used since the last
+         * scan of the LRU list
+         */
+        private volatile boolean used;
+
         /**
          * Elements in path map
          */
@@ -963,10 +1288,32 @@ public class CachingHierarchyManager extends HierarchyManagerImpl
         }
 
         /**
-         * Touch entry. Removes it from its current position in the LRU list
-         * and moves it to the end.
+         * Touch entry. Marks it as used, so that it is not evicted by the
+         * next scan of the LRU list. Called while holding the read lock
+         * of the cache.
          */
         public void touch() {
+            if (!used) {
+                used = true;
+            }
+        }
+
+        /**
+         * Clears the used flag of this entry.
+         *
+         * @return whether the entry had been used since the last scan
+         */
+        public boolean clearUsed() {
+            boolean wasUsed = used;
+            used = false;
+            return wasUsed;
+        }
+
+        /**
+         * Removes this entry from its current position in the LRU list and
+         * moves it to the end.
+         */
+        public void moveToTail() {
             remove();
             append();
         }
@@ -1042,16 +1389,27 @@ public class CachingHierarchyManager extends HierarchyManagerImpl
         }
     }
 
+    /**
+     * A queued change of the cached paths, applied while holding the write
+     * lock of the cache.
+     */
+    private interface Invalidation {
+
+        void apply();
+
+    }
+
     private final class CacheStatistics {
 
         private final String id;
 
-        private final ReferenceMap cache;
+        private final Map<NodeId, LRUEntry> cache;
 
         private long timeStamp = 0;
 
         public CacheStatistics() {
-            this.id = cacheMonitor.toString();
+            this.id = Integer.toHexString(
+                    System.identityHashCode(CachingHierarchyManager.this));
             this.cache = idCache;
         }
 
@@ -0,0 +1,149 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Path cache statistics of the {@link CachingHierarchyManager}s of a
+ * repository, see {@link RepositoryContext#getHierarchyCacheStatistics()}. The
+ * counters are striped by thread, so that the readers of the caches do not
+ * all update the same memory location.
+ */
+public class HierarchyCacheStatistics implements HierarchyCacheStatisticsMBean {
+
+    private static final int HIT = 0;
+
+    private static final int MISS = 1;
+
+    private static final int BYPASS = 2;
+
+    private static final int INVALIDATION = 3;
+
+    private static final int INVALIDATION_BATCH = 4;
+
+    private static final int EVICTION = 5;
+
+    /**
+     * Number of counter stripes, must be a power of two.
+     */
+    private static final int STRIPES = 16;
+
+    /**
+     * Distance between the counters of two stripes, so that each stripe
+     * uses its own cache line.
+     */
+    private static final int STRIPE_SIZE = 8;
+
+    private final AtomicLongArray counters =
+        new AtomicLongArray(STRIPES * STRIPE_SIZE);
+
+    private final int sizeLimit;
+
+    /**
+     * Creates statistics for hierarchy managers with the configured cache
+     * size limit.
+     */
+    public HierarchyCacheStatistics() {
+        this(CachingHierarchyManager.MAX_UPPER_LIMIT);
+    }
+
+    HierarchyCacheStatistics(int sizeLimit) {
+        this.sizeLimit = sizeLimit;
+    }
+
+    void hit() {
+        increment(HIT, 1);
+    }
+
+    void miss() {
+        increment(MISS, 1);
+    }
+
+    void bypass() {
+        increment(MISS, 1);
+        increment(BYPASS, 1);
+    }
+
+    void invalidated(int count) {
+        increment(INVALIDATION, count);
+        increment(INVALIDATION_BATCH, 1);
+    }
+
+    void evicted() {
+        increment(EVICTION, 1);
+    }
+
+    private void increment(int counter, int delta) {
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        counters.addAndGet(stripe * STRIPE_SIZE + counter, delta);
+    }
+
+    private long get(int counter) {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += counters.get(i * STRIPE_SIZE + counter);
+        }
+        return sum;
+    }
+
+    //------------------------------------< HierarchyCacheStatisticsMBean >--
+
+    public int getSizeLimit() {
+        return sizeLimit;
+    }
+
+    public long getHitCount() {
+        return get(HIT);
+    }
+
+    public long getMissCount() {
+        return get(MISS);
+    }
+
+    public long getBypassCount() {
+        return get(BYPASS);
+    }
+
+    public double getHitRatio() {
+        long hits = get(HIT);
+        long total = hits + get(MISS);
+        if (total == 0) {
+            return 0;
+        }
+        return (double) hits / total;
+    }
+
+    public long getInvalidationCount() {
+        return get(INVALIDATION);
+    }
+
+    public long getInvalidationBatchCount() {
+        return get(INVALIDATION_BATCH);
+    }
+
+    public long getEvictionCount() {
+        return get(EVICTION);
+    }
+
+    public void reset() {
+        for (int i = 0; i < counters.length(); i++) {
+            counters.set(i, 0);
+        }
+    }
+
+}
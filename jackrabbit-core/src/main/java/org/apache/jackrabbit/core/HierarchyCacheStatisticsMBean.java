@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core;
+
+/**
+ * JMX bindings for the path cache statistics of the
+ * {@link CachingHierarchyManager}s. The statistics cover all hierarchy
+ * managers of a repository.
+ */
+public interface HierarchyCacheStatisticsMBean {
+
+    String NAME = "org.apache.jackrabbit:type=HierarchyCache";
+
+    /**
+     * @return maximum number of node ids cached by each hierarchy manager
+     */
+    int getSizeLimit();
+
+    /**
+     * @return number of lookups answered from the path cache
+     */
+    long getHitCount();
+
+    /**
+     * @return number of lookups not answered from the path cache, including
+     *         the bypassed ones
+     */
+    long getMissCount();
+
+    /**
+     * @return number of lookups that bypassed the path cache because it was
+     *         being updated or invalidations were pending
+     */
+    long getBypassCount();
+
+    /**
+     * @return ratio of hits to all lookups, between 0 and 1
+     */
+    double getHitRatio();
+
+    /**
+     * @return number of invalidation events applied to the path caches
+     */
+    long getInvalidationCount();
+
+    /**
+     * @return number of invalidation batches, each applied while holding
+     *         the lock of a path cache once
+     */
+    long getInvalidationBatchCount();
+
+    /**
+     * @return number of cache entries evicted because a cache was full
+     */
+    long getEvictionCount();
+
+    /**
+     * Resets all counters.
+     */
+    void reset();
+
+}
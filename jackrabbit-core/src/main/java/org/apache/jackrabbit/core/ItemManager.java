@@ -18,7 +18,8 @@ package org.apache.jackrabbit.core;
 
 import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.jcr.AccessDeniedException;
 import javax.jcr.InvalidItemStateException;
@@ -50,6 +51,7 @@ import org.apache.jackrabbit.core.version.VersionHistoryImpl;
 import org.apache.jackrabbit.core.version.VersionImpl;
 import org.apache.jackrabbit.core.security.AccessManager;
 import org.apache.jackrabbit.core.session.SessionContext;
+import org.apache.jackrabbit.core.util.ConcurrentWeakValueMap;
 import org.apache.jackrabbit.spi.Name;
 import org.apache.jackrabbit.spi.Path;
 import org.apache.jackrabbit.spi.QPropertyDefinition;
@@ -82,6 +84,11 @@ import org.slf4j.LoggerFactory;
  * <p>
  * If the parent <code>Session</code> is an <code>XASession</code>, there is
  * one <code>ItemManager</code> instance per started global transaction.
+ * <p>
+ * The item manager can be used by several threads at once. Lookups of cached
+ * items do not lock. When an item that is not cached is requested by more
+ * than one thread at the same time, all of them get the instance that was
+ * cached first.
  */
 public class ItemManager implements ItemStateListener {
 
@@ -102,7 +109,7 @@ public class ItemManager implements ItemStateListener {
     /**
      * A cache for item instances created by this <code>ItemManager</code>
      */
-    private final Map<ItemId, ItemData> itemCache;
+    private final ConcurrentWeakValueMap<ItemId, ItemData> itemCache;
 
     /**
      * Shareable node cache.
@@ -114,7 +121,6 @@ public class ItemManager implements ItemStateListener {
      *
      * @param sessionContext component context of the associated session
      */
-    @SuppressWarnings("unchecked")
     protected ItemManager(SessionContext sessionContext) {
         this.sism = sessionContext.getItemStateManager();
         this.hierMgr = sessionContext.getHierarchyManager();
@@ -123,7 +129,7 @@ public class ItemManager implements ItemStateListener {
         this.rootNodeDef = sessionContext.getNodeTypeManager().getRootNodeDefinition();
 
         // setup item cache with weak references to items
-        itemCache = new ReferenceMap(ReferenceMap.HARD, ReferenceMap.WEAK);
+        itemCache = new ConcurrentWeakValueMap<ItemId, ItemData>();
 
         // setup shareable nodes cache
         shareableNodesCache = new ShareableNodesCache();
@@ -142,9 +148,7 @@ public class ItemManager implements ItemStateListener {
      * Disposes this <code>ItemManager</code> and frees resources.
      */
     void dispose() {
-        synchronized (itemCache) {
-            itemCache.clear();
-        }
+        itemCache.clear();
         shareableNodesCache.clear();
     }
 
@@ -387,8 +391,9 @@ public class ItemManager implements ItemStateListener {
                 log.error(msg, ise);
                 throw new RepositoryException(msg, ise);
             }
-            // create item data including: perm check and caching.
-            data = createItemData(state, path, permissionCheck);
+            // create item data including perm check, unless another thread
+            // has cached an instance in the mean time
+            data = cacheItemIfAbsent(newItemData(state, path, permissionCheck));
         } else {
             // already cached: if 'permissionCheck' is true, make sure read
             // permission is granted.
@@ -617,7 +622,7 @@ public class ItemManager implements ItemStateListener {
      * @return
      * @throws RepositoryException
      */
-    public synchronized ItemImpl getItem(ItemId id)
+    public ItemImpl getItem(ItemId id)
             throws ItemNotFoundException, AccessDeniedException, RepositoryException {
         return getItem(id, null, true);
     }
@@ -627,7 +632,7 @@ public class ItemManager implements ItemStateListener {
      * @return
      * @throws RepositoryException
      */
-    synchronized ItemImpl getItem(ItemId id, boolean permissionCheck)
+    ItemImpl getItem(ItemId id, boolean permissionCheck)
             throws ItemNotFoundException, AccessDeniedException, RepositoryException {
         return getItem(id, null, permissionCheck);
     }
@@ -642,7 +647,7 @@ public class ItemManager implements ItemStateListener {
      * @return node
      * @throws RepositoryException if an error occurs
      */
-    public synchronized NodeImpl getNode(NodeId id, NodeId parentId)
+    public NodeImpl getNode(NodeId id, NodeId parentId)
             throws ItemNotFoundException, AccessDeniedException, RepositoryException {
         return getNode(id, parentId, true);
     }
@@ -659,7 +664,7 @@ public class ItemManager implements ItemStateListener {
      * @return node
      * @throws RepositoryException if an error occurs
      */
-    synchronized NodeImpl getNode(NodeId id, NodeId parentId, boolean permissionCheck)
+    NodeImpl getNode(NodeId id, NodeId parentId, boolean permissionCheck)
             throws ItemNotFoundException, AccessDeniedException, RepositoryException {
         if (parentId == null) {
             return (NodeImpl) getItem(id);
@@ -681,8 +686,8 @@ public class ItemManager implements ItemStateListener {
                 throw new ItemNotFoundException(msg);
             }
             // TODO: ev. need to check if read perm. is granted.
-            data = new NodeDataRef(data, parentId);
-            cacheItem(data);
+            data = (AbstractNodeData) cacheItemIfAbsent(
+                    new NodeDataRef(data, parentId));
         }
         return createNodeInstance(data);
     }
@@ -696,7 +701,7 @@ public class ItemManager implements ItemStateListener {
      * @return item instance
      * @throws RepositoryException if an error occurs
      */
-    synchronized ItemImpl createItemInstance(ItemState state)
+    ItemImpl createItemInstance(ItemState state)
             throws RepositoryException {
         ItemData data = createItemData(state, null, false);
         return createItemInstance(data);
@@ -709,7 +714,7 @@ public class ItemManager implements ItemStateListener {
      * @throws AccessDeniedException
      * @throws RepositoryException
      */
-    synchronized boolean hasChildNodes(NodeId parentId)
+    boolean hasChildNodes(NodeId parentId)
             throws ItemNotFoundException, AccessDeniedException, RepositoryException {
         sanityCheck();
 
@@ -737,7 +742,7 @@ public class ItemManager implements ItemStateListener {
      * @throws AccessDeniedException
      * @throws RepositoryException
      */
-    synchronized NodeIterator getChildNodes(NodeId parentId)
+    NodeIterator getChildNodes(NodeId parentId)
             throws ItemNotFoundException, AccessDeniedException, RepositoryException {
         sanityCheck();
 
@@ -767,7 +772,7 @@ public class ItemManager implements ItemStateListener {
      * @throws AccessDeniedException
      * @throws RepositoryException
      */
-    synchronized boolean hasChildProperties(NodeId parentId)
+    boolean hasChildProperties(NodeId parentId)
             throws ItemNotFoundException, AccessDeniedException, RepositoryException {
         sanityCheck();
 
@@ -797,7 +802,7 @@ public class ItemManager implements ItemStateListener {
      * @throws AccessDeniedException
      * @throws RepositoryException
      */
-    synchronized PropertyIterator getChildProperties(NodeId parentId)
+    PropertyIterator getChildProperties(NodeId parentId)
             throws ItemNotFoundException, AccessDeniedException, RepositoryException {
         sanityCheck();
 
@@ -836,6 +841,22 @@ public class ItemManager implements ItemStateListener {
      * @throws RepositoryException
      */
     private ItemData createItemData(ItemState state, Path path, boolean permissionCheck) throws RepositoryException {
+        ItemData data = newItemData(state, path, permissionCheck);
+        // before returning the data: put them into the cache.
+        cacheItem(data);
+        return data;
+    }
+
+    /**
+     * Builds the <code>ItemData</code> for the specified <code>state</code>
+     * like {@link #createItemData(ItemState, Path, boolean)}, but does not
+     * put it into the cache.
+     *
+     * @param state
+     * @return
+     * @throws RepositoryException
+     */
+    private ItemData newItemData(ItemState state, Path path, boolean permissionCheck) throws RepositoryException {
         ItemData data;
         if (state.isNode()) {
             NodeState nodeState = (NodeState) state;
@@ -848,8 +869,6 @@ public class ItemManager implements ItemStateListener {
         if (permissionCheck && !canRead(data, path)) {
             throw new AccessDeniedException("cannot read item " + state.getId());
         }
-        // before returning the data: put them into the cache.
-        cacheItem(data);
         return data;
     }
 
@@ -889,13 +908,11 @@ public class ItemManager implements ItemStateListener {
      *         or <code>null</code> if there's no corresponding cache entry.
      */
     private ItemData retrieveItem(ItemId id) {
-        synchronized (itemCache) {
-            ItemData data = itemCache.get(id);
-            if (data == null && id.denotesNode()) {
-                data = shareableNodesCache.retrieveFirst((NodeId) id);
-            }
-            return data;
+        ItemData data = itemCache.get(id);
+        if (data == null && id.denotesNode()) {
+            data = shareableNodesCache.retrieveFirst((NodeId) id);
         }
+        return data;
     }
 
     /**
@@ -907,13 +924,11 @@ public class ItemManager implements ItemStateListener {
      *         or <code>null</code> if there's no corresponding cache entry.
      */
     private AbstractNodeData retrieveItem(NodeId id, NodeId parentId) {
-        synchronized (itemCache) {
-            AbstractNodeData data = shareableNodesCache.retrieve(id, parentId);
-            if (data == null) {
-                data = (AbstractNodeData) itemCache.get(id);
-            }
-            return data;
+        AbstractNodeData data = shareableNodesCache.retrieve(id, parentId);
+        if (data == null) {
+            data = (AbstractNodeData) itemCache.get(id);
         }
+        return data;
     }
 
     /**
@@ -923,22 +938,46 @@ public class ItemManager implements ItemStateListener {
      * @param data the item data to cache
      */
     private void cacheItem(ItemData data) {
-        synchronized (itemCache) {
-            if (data.isNode()) {
-                AbstractNodeData nd = (AbstractNodeData) data;
-                if (nd.getPrimaryParentId() != null) {
-                    shareableNodesCache.cache(nd);
-                    return;
-                }
-            }
-            ItemId id = data.getId();
-            if (itemCache.containsKey(id)) {
-                log.debug("overwriting cached item " + id);
+        if (data.isNode()) {
+            AbstractNodeData nd = (AbstractNodeData) data;
+            if (nd.getPrimaryParentId() != null) {
+                shareableNodesCache.cache(nd);
+                return;
             }
+        }
+        ItemId id = data.getId();
+        if (log.isDebugEnabled()) {
+            log.debug("caching item " + id);
+        }
+        if (itemCache.put(id, data) != null) {
+            log.debug("overwriting cached item " + id);
+        }
+    }
+
+    /**
+     * Puts the reference of an item in the cache unless another instance
+     * of the item has been cached in the mean time, for example by another
+     * thread of the same session.
+     *
+     * @param data the item data to cache
+     * @return the cached item data, either <code>data</code> or the
+     *         instance that was cached before
+     */
+    private ItemData cacheItemIfAbsent(ItemData data) {
+        ItemData cached;
+        if (data.isNode()
+                && ((AbstractNodeData) data).getPrimaryParentId() != null) {
+            cached = shareableNodesCache.cacheIfAbsent((AbstractNodeData) data);
+        } else {
             if (log.isDebugEnabled()) {
-                log.debug("caching item " + id);
+                log.debug("caching item " + data.getId());
             }
-            itemCache.put(id, data);
+            cached = itemCache.putIfAbsent(data.getId(), data);
+        }
+        if (cached != null) {
+            return cached;
+        } else {
+            return data;
         }
     }
 
@@ -952,11 +991,9 @@ public class ItemManager implements ItemStateListener {
         if (log.isDebugEnabled()) {
             log.debug("removing items " + id + " from cache");
         }
-        synchronized (itemCache) {
-            itemCache.remove(id);
-            if (id.denotesNode()) {
-                shareableNodesCache.evictAll((NodeId) id);
-            }
+        itemCache.remove(id);
+        if (id.denotesNode()) {
+            shareableNodesCache.evictAll((NodeId) id);
         }
     }
 
@@ -969,15 +1006,10 @@ public class ItemManager implements ItemStateListener {
         if (log.isDebugEnabled()) {
             log.debug("removing item " + data.getId() + " from cache");
         }
-        synchronized (itemCache) {
-            if (data.isNode()) {
-                shareableNodesCache.evict((AbstractNodeData) data);
-            }
-            ItemData cached = itemCache.get(data.getId());
-            if (cached == data) {
-                itemCache.remove(data.getId());
-            }
+        if (data.isNode()) {
+            shareableNodesCache.evict((AbstractNodeData) data);
         }
+        itemCache.remove(data.getId(), data);
     }
 
 
@@ -1035,35 +1067,31 @@ public class ItemManager implements ItemStateListener {
         if (log.isDebugEnabled()) {
             log.debug("destroyed item " + id);
         }
-        synchronized (itemCache) {
-            // remove instance from cache
-            evictItems(id);
-        }
+        // remove instance from cache
+        evictItems(id);
     }
 
     //--------------------------------------------------------------< Object >
     /**
      * {@inheritDoc}
      */
-    public synchronized String toString() {
+    public String toString() {
         StringBuilder builder = new StringBuilder();
         builder.append("ItemManager (" + super.toString() + ")\n");
         builder.append("Items in cache:\n");
-        synchronized (itemCache) {
-            for (ItemId id : itemCache.keySet()) {
-                ItemData item = itemCache.get(id);
-                if (item.isNode()) {
-                    builder.append("Node: ");
-                } else {
-                    builder.append("Property: ");
-                }
-                if (item.getState().isTransient()) {
-                    builder.append("transient ");
-                } else {
-                    builder.append("          ");
-                }
-                builder.append(id + "\t" + safeGetJCRPath(id) + " (" + item + ")\n");
+        for (ItemData item : itemCache.values()) {
+            ItemId id = item.getId();
+            if (item.isNode()) {
+                builder.append("Node: ");
+            } else {
+                builder.append("Property: ");
+            }
+            if (item.getState().isTransient()) {
+                builder.append("transient ");
+            } else {
+                builder.append("          ");
             }
+            builder.append(id + "\t" + safeGetJCRPath(id) + " (" + item + ")\n");
         }
         return builder.toString();
     }
@@ -1181,22 +1209,23 @@ public class ItemManager implements ItemStateListener {
     }
 
     /**
-     * Cache of shareable nodes. For performance reasons, methods are not
-     * synchronized and thread-safety must be guaranteed by caller.
+     * Cache of shareable nodes. Lookups of nodes that are not shareable do
+     * not lock, the per node maps of shareable nodes are synchronized.
      */
     static class ShareableNodesCache {
 
         /**
-         * This cache is based on a reference map, that maps an item id to a map,
-         * which again maps a (hard-ref) parent id to a (weak-ref) shareable node.
+         * This cache is based on a concurrent map, that maps an item id to a
+         * map, which again maps a (hard-ref) parent id to a (weak-ref)
+         * shareable node.
          */
-        private final ReferenceMap cache;
+        private final ConcurrentMap<NodeId, ReferenceMap> cache;
 
         /**
          * Create a new instance of this class.
          */
         public ShareableNodesCache() {
-            cache = new ReferenceMap(ReferenceMap.HARD, ReferenceMap.HARD);
+            cache = new ConcurrentHashMap<NodeId, ReferenceMap>();
         }
 
         /**
@@ -1215,18 +1244,16 @@ public class ItemManager implements ItemStateListener {
          * @return node or <code>null</code>
          */
         public AbstractNodeData retrieveFirst(NodeId id) {
-            ReferenceMap map = (ReferenceMap) cache.get(id);
+            ReferenceMap map = cache.get(id);
             if (map != null) {
-                Iterator<AbstractNodeData> iter = map.values().iterator();
-                try {
+                synchronized (map) {
+                    Iterator<AbstractNodeData> iter = map.values().iterator();
                     while (iter.hasNext()) {
                         AbstractNodeData data = iter.next();
                         if (data != null) {
                             return data;
                         }
                     }
-                } finally {
-                    iter = null;
                 }
             }
             return null;
@@ -1240,9 +1267,11 @@ public class ItemManager implements ItemStateListener {
          * @return node or <code>null</code>
          */
         public AbstractNodeData retrieve(NodeId id, NodeId parentId) {
-            ReferenceMap map = (ReferenceMap) cache.get(id);
+            ReferenceMap map = cache.get(id);
             if (map != null) {
-                return (AbstractNodeData) map.get(parentId);
+                synchronized (map) {
+                    return (AbstractNodeData) map.get(parentId);
+                }
             }
             return null;
         }
@@ -1253,15 +1282,31 @@ public class ItemManager implements ItemStateListener {
          * @param data data to cache
          */
         public void cache(AbstractNodeData data) {
-            NodeId id = data.getNodeState().getNodeId();
-            ReferenceMap map = (ReferenceMap) cache.get(id);
-            if (map == null) {
-                map = new ReferenceMap(ReferenceMap.HARD, ReferenceMap.WEAK);
-                cache.put(id, map);
+            ReferenceMap map = getMap(data.getNodeState().getNodeId());
+            synchronized (map) {
+                Object old = map.put(data.getPrimaryParentId(), data);
+                if (old != null) {
+                    log.debug("overwriting cached item: " + old);
+                }
             }
-            Object old = map.put(data.getPrimaryParentId(), data);
-            if (old != null) {
-                log.debug("overwriting cached item: " + old);
+        }
+
+        /**
+         * Cache some node unless a node with the same id and parent id has
+         * already been cached.
+         *
+         * @param data data to cache
+         * @return the node that was cached before, or <code>null</code>
+         */
+        public AbstractNodeData cacheIfAbsent(AbstractNodeData data) {
+            ReferenceMap map = getMap(data.getNodeState().getNodeId());
+            synchronized (map) {
+                AbstractNodeData old =
+                    (AbstractNodeData) map.get(data.getPrimaryParentId());
+                if (old == null) {
+                    map.put(data.getPrimaryParentId(), data);
+                }
+                return old;
             }
         }
 
@@ -1271,9 +1316,11 @@ public class ItemManager implements ItemStateListener {
          * @param data data to evict
          */
         public void evict(AbstractNodeData data) {
-            ReferenceMap map = (ReferenceMap) cache.get(data.getId());
+            ReferenceMap map = cache.get(data.getId());
             if (map != null) {
-                map.remove(data.getPrimaryParentId());
+                synchronized (map) {
+                    map.remove(data.getPrimaryParentId());
+                }
             }
         }
 
@@ -1282,8 +1329,20 @@ public class ItemManager implements ItemStateListener {
          *
          * @param id node id to evict
          */
-        public synchronized void evictAll(NodeId id) {
+        public void evictAll(NodeId id) {
             cache.remove(id);
         }
+
+        private ReferenceMap getMap(NodeId id) {
+            ReferenceMap map = cache.get(id);
+            if (map == null) {
+                map = new ReferenceMap(ReferenceMap.HARD, ReferenceMap.WEAK);
+                ReferenceMap existing = cache.putIfAbsent(id, map);
+                if (existing != null) {
+                    map = existing;
+                }
+            }
+            return map;
+        }
     }
 }
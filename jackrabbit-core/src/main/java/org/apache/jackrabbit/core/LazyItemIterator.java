@@ -55,6 +55,13 @@ public class LazyItemIterator implements NodeIterator, PropertyIterator {
     /** Logger instance for this class */
     private static Logger log = LoggerFactory.getLogger(LazyItemIterator.class);
 
+    /**
+     * The number of node states that are loaded from the persistence
+     * manager at once when the iterator reaches nodes that have not been
+     * prefetched yet.
+     */
+    private static final int PREFETCH_SIZE = 100;
+
     /**
      * The session context used to access the repository.
      */
@@ -75,6 +82,9 @@ public class LazyItemIterator implements NodeIterator, PropertyIterator {
     /** prefetched item to be returned on <code>{@link #next()}</code> */
     private Item next;
 
+    /** the position up to which the node states have been prefetched */
+    private int prefetched;
+
     /**
      * Creates a new <code>LazyItemIterator</code> instance.
      *
@@ -114,6 +124,9 @@ public class LazyItemIterator implements NodeIterator, PropertyIterator {
         // reset
         next = null;
         while (next == null && pos < idList.size()) {
+            if (pos >= prefetched) {
+                prefetchStates();
+            }
             ItemId id = idList.get(pos);
             try {
                 if (parentId != null) {
@@ -158,6 +171,24 @@ public class LazyItemIterator implements NodeIterator, PropertyIterator {
         }
     }
 
+    /**
+     * Prefetches the node states of the next {@link #PREFETCH_SIZE} items,
+     * so that they can be loaded from the persistence manager with a few
+     * bulk reads instead of one read per node.
+     */
+    private void prefetchStates() {
+        prefetched = Math.min(pos + PREFETCH_SIZE, idList.size());
+        List<NodeId> ids = new ArrayList<NodeId>(prefetched - pos);
+        for (ItemId id : idList.subList(pos, prefetched)) {
+            if (id.denotesNode()) {
+                ids.add((NodeId) id);
+            }
+        }
+        if (ids.size() > 1) {
+            sessionContext.getWorkspace().getItemStateManager().prefetch(ids);
+        }
+    }
+
     //---------------------------------------------------------< NodeIterator >
     /**
      * {@inheritDoc}
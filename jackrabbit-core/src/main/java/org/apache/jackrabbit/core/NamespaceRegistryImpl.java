@@ -23,6 +23,16 @@ import org.apache.jackrabbit.core.fs.FileSystem;
 import org.apache.jackrabbit.core.fs.FileSystemResource;
 import org.apache.jackrabbit.core.util.StringIndex;
 import org.apache.jackrabbit.spi.Name;
+import org.apache.jackrabbit.spi.commons.conversion.CachingNameResolver;
+import org.apache.jackrabbit.spi.commons.conversion.CachingPathResolver;
+import org.apache.jackrabbit.spi.commons.conversion.DefaultNamePathResolver;
+import org.apache.jackrabbit.spi.commons.conversion.NamePathResolver;
+import org.apache.jackrabbit.spi.commons.conversion.NameResolver;
+import org.apache.jackrabbit.spi.commons.conversion.ParsingNameResolver;
+import org.apache.jackrabbit.spi.commons.conversion.ParsingPathResolver;
+import org.apache.jackrabbit.spi.commons.name.NameFactoryImpl;
+import org.apache.jackrabbit.spi.commons.name.PathFactoryImpl;
+import org.apache.jackrabbit.spi.commons.namespace.RegistryNamespaceResolver;
 import org.apache.jackrabbit.util.XMLChar;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -58,6 +68,14 @@ public class NamespaceRegistryImpl implements
      */
     private static final String EMPTY_KEY = ".empty.key";
 
+    /**
+     * Maximum number of names and paths in the caches of the shared
+     * {@link #getNamePathResolver() name and path resolver}.
+     */
+    private static final int RESOLVER_CACHE_SIZE = Integer.getInteger(
+            "org.apache.jackrabbit.core.NamespaceRegistryImpl.resolverCacheSize",
+            10000);
+
     private static final String NS_REG_RESOURCE = "ns_reg.properties";
     private static final String NS_IDX_RESOURCE = "ns_idx.properties";
 
@@ -98,6 +116,12 @@ public class NamespaceRegistryImpl implements
      */
     private NamespaceEventChannel eventChannel;
 
+    /**
+     * Caching name and path resolver for the current mappings, replaced
+     * whenever a namespace is remapped.
+     */
+    private volatile NamePathResolver resolver = createNamePathResolver();
+
     /**
      * Protected constructor: Constructs a new instance of this class.
      *
@@ -109,6 +133,30 @@ public class NamespaceRegistryImpl implements
         load();
     }
 
+    /**
+     * Returns a name and path resolver for the current mappings of this
+     * registry. Its caches of parsed names and paths are shared by all
+     * sessions that use the global mappings. A new instance is returned
+     * after a namespace has been remapped, so callers can compare the
+     * instances to detect such changes.
+     *
+     * @return the shared name and path resolver
+     */
+    public NamePathResolver getNamePathResolver() {
+        return resolver;
+    }
+
+    private NamePathResolver createNamePathResolver() {
+        NameResolver nr = new ParsingNameResolver(
+                NameFactoryImpl.getInstance(),
+                new RegistryNamespaceResolver(this));
+        return new DefaultNamePathResolver(
+                new CachingNameResolver(nr, RESOLVER_CACHE_SIZE),
+                new CachingPathResolver(
+                        new ParsingPathResolver(PathFactoryImpl.getInstance(), nr),
+                        RESOLVER_CACHE_SIZE));
+    }
+
     /**
      * Clears all mappings.
      */
@@ -427,6 +475,11 @@ public class NamespaceRegistryImpl implements
         // add new prefix mapping
         map(prefix, uri);
 
+        if (oldPrefix != null) {
+            // names and paths with the old prefix are no longer valid
+            resolver = createNamePathResolver();
+        }
+
         if (eventChannel != null) {
             eventChannel.remapped(oldPrefix, prefix, uri);
         }
@@ -519,6 +572,11 @@ public class NamespaceRegistryImpl implements
         // add new prefix mapping
         map(newPrefix, uri);
 
+        if (oldPrefix != null) {
+            // names and paths with the old prefix are no longer valid
+            resolver = createNamePathResolver();
+        }
+
         // persist mappings
         store();
     }
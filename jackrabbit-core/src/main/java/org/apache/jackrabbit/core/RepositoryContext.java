@@ -120,6 +120,12 @@ public class RepositoryContext {
      */
     private final RepositoryStatisticsImpl statistics;
 
+    /**
+     * Path cache statistics of the hierarchy managers.
+     */
+    private final HierarchyCacheStatistics hierarchyCacheStatistics =
+            new HierarchyCacheStatistics();
+
     /**
      * The Statistics manager, handles statistics
      */
@@ -449,6 +455,16 @@ public class RepositoryContext {
         return statistics;
     }
 
+    /**
+     * Returns the path cache statistics of the hierarchy managers of this
+     * repository.
+     *
+     * @return path cache statistics
+     */
+    public HierarchyCacheStatistics getHierarchyCacheStatistics() {
+        return hierarchyCacheStatistics;
+    }
+
     /**
      * @return the statistics manager object
      */
@@ -21,6 +21,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.StringReader;
+import java.lang.management.ManagementFactory;
 import java.security.AccessControlContext;
 import java.security.AccessController;
 import java.util.ArrayList;
@@ -47,6 +48,9 @@ import javax.jcr.Value;
 import javax.jcr.ValueFactory;
 import javax.jcr.observation.Event;
 import javax.jcr.observation.ObservationManager;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 import javax.security.auth.Subject;
 
 import org.apache.commons.collections.map.ReferenceMap;
@@ -56,6 +60,7 @@ import org.apache.jackrabbit.api.management.RepositoryManager;
 import org.apache.jackrabbit.api.security.authentication.token.TokenCredentials;
 import org.apache.jackrabbit.commons.AbstractRepository;
 import org.apache.jackrabbit.core.cache.CacheManager;
+import org.apache.jackrabbit.core.cache.CacheManagerMBean;
 import org.apache.jackrabbit.core.cluster.ClusterContext;
 import org.apache.jackrabbit.core.cluster.ClusterException;
 import org.apache.jackrabbit.core.cluster.ClusterNode;
@@ -99,8 +104,13 @@ import org.apache.jackrabbit.core.security.authorization.PrivilegeRegistry;
 import org.apache.jackrabbit.core.security.simple.SimpleSecurityManager;
 import org.apache.jackrabbit.core.state.ChangeLog;
 import org.apache.jackrabbit.core.state.ISMLocking;
+import org.apache.jackrabbit.core.state.ISMLockingStatisticsMBean;
+import org.apache.jackrabbit.core.state.ItemStateCacheFactory;
+import org.apache.jackrabbit.core.state.ItemStateCacheStatistics;
+import org.apache.jackrabbit.core.state.ItemStateCacheStatisticsMBean;
 import org.apache.jackrabbit.core.state.ItemStateException;
 import org.apache.jackrabbit.core.state.ManagedMLRUItemStateCacheFactory;
+import org.apache.jackrabbit.core.state.ShardedISMLocking;
 import org.apache.jackrabbit.core.state.SharedItemStateManager;
 import org.apache.jackrabbit.core.util.RepositoryLockMechanism;
 import org.apache.jackrabbit.core.version.InternalVersionManager;
@@ -235,6 +245,12 @@ public class RepositoryImpl extends AbstractRepository
      */
     private final CacheManager cacheMgr = new CacheManager();
 
+    /**
+     * The names under which the statistics of this repository and of its
+     * workspaces are registered with the platform MBean server.
+     */
+    private final List<ObjectName> mbeanNames = new ArrayList<ObjectName>();
+
     /**
      * Chanel for posting create workspace messages.
      */
@@ -362,6 +378,12 @@ public class RepositoryImpl extends AbstractRepository
                 wspJanitor.start();
             }
 
+            registerMBean(CacheManagerMBean.NAME,
+                    cacheMgr, CacheManagerMBean.class);
+            registerMBean(HierarchyCacheStatisticsMBean.NAME,
+                    context.getHierarchyCacheStatistics(),
+                    HierarchyCacheStatisticsMBean.class);
+
             succeeded = true;
             log.info("Repository started (" + (System.currentTimeMillis() - t0) + "ms)");
         } catch (RepositoryException e) {
@@ -1135,6 +1157,8 @@ public class RepositoryImpl extends AbstractRepository
 
         repDescriptors.clear();
 
+        unregisterMBeans();
+
         DataStore dataStore = context.getDataStore();
         if (dataStore != null) {
             try {
@@ -1191,6 +1215,70 @@ public class RepositoryImpl extends AbstractRepository
         log.info("Repository has been shutdown");
     }
 
+    /**
+     * Registers statistics with the platform MBean server, so that they can
+     * be monitored (and the cache budgets tuned) over JMX. The name is
+     * qualified with the home directory of this repository.
+     *
+     * @param name the object name, such as {@link CacheManagerMBean#NAME},
+     *             possibly followed by further key properties
+     * @param bean the statistics
+     * @param type the MBean interface
+     * @return the object name, or <code>null</code> if the statistics
+     *         could not be registered
+     */
+    private <T> ObjectName registerMBean(String name, T bean, Class<T> type) {
+        try {
+            ObjectName objectName = new ObjectName(
+                    name + ",home=" + ObjectName.quote(repConfig.getHomeDir()));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new StandardMBean(bean, type), objectName);
+            synchronized (mbeanNames) {
+                mbeanNames.add(objectName);
+            }
+            return objectName;
+        } catch (JMException e) {
+            log.warn("Unable to register the MBean " + name, e);
+            return null;
+        }
+    }
+
+    /**
+     * Unregisters statistics from the platform MBean server.
+     *
+     * @param name the object name returned by
+     *             {@link #registerMBean(String, Object, Class)}, or
+     *             <code>null</code>
+     */
+    private void unregisterMBean(ObjectName name) {
+        if (name != null) {
+            synchronized (mbeanNames) {
+                if (!mbeanNames.remove(name)) {
+                    return;
+                }
+            }
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (JMException e) {
+                log.warn("Unable to unregister the MBean " + name, e);
+            }
+        }
+    }
+
+    /**
+     * Unregisters all statistics that are still registered with the
+     * platform MBean server.
+     */
+    private void unregisterMBeans() {
+        List<ObjectName> names;
+        synchronized (mbeanNames) {
+            names = new ArrayList<ObjectName>(mbeanNames);
+        }
+        for (ObjectName name : names) {
+            unregisterMBean(name);
+        }
+    }
+
     /**
      * Returns the configuration of this repository.
      * @return repository configuration
@@ -1398,11 +1486,25 @@ public class RepositoryImpl extends AbstractRepository
                 context.getRootNodeId(),
                 context.getNodeTypeRegistry(),
                 true,
-                context.getItemStateCacheFactory(),
+                createItemStateCacheFactory(),
                 locking,
                 context.getNodeIdFactory());
     }
 
+    /**
+     * Creates the factory of the item state caches of the shared item state
+     * manager of a workspace. The caches of the default factory are managed
+     * by the cache manager of this repository, and record the sizes of the
+     * cached states in statistics of their own, that are registered with
+     * the platform MBean server for the workspace.
+     *
+     * @return item state cache factory
+     */
+    protected ItemStateCacheFactory createItemStateCacheFactory() {
+        return new ManagedMLRUItemStateCacheFactory(
+                cacheMgr, new ItemStateCacheStatistics());
+    }
+
     /**
      * Creates a data store garbage collector for this repository.
      * <p>
@@ -1516,6 +1618,7 @@ public class RepositoryImpl extends AbstractRepository
                     }
                 }
             }
+            session.openReadSnapshot();
 
             log.debug("User {} logged in to workspace {}",
                     session.getUserID(), workspaceName);
@@ -1733,6 +1836,20 @@ public class RepositoryImpl extends AbstractRepository
          */
         private LockEventChannel lockChannel;
 
+        /**
+         * The name under which the lock wait statistics of this workspace
+         * are registered with the platform MBean server, or
+         * <code>null</code> if they are not registered.
+         */
+        private ObjectName ismLockingStatsName;
+
+        /**
+         * The name under which the size statistics of the item state caches
+         * of this workspace are registered with the platform MBean server,
+         * or <code>null</code> if they are not registered.
+         */
+        private ObjectName cacheStatsName;
+
         /**
          * Creates a new <code>WorkspaceInfo</code> based on the given
          * <code>config</code>.
@@ -2061,6 +2178,8 @@ public class RepositoryImpl extends AbstractRepository
             try {
                 itemStateMgr =
                     createItemStateManager(persistMgr, true, ismLocking);
+                itemStateMgr.setHierarchyCacheStatistics(
+                        context.getHierarchyCacheStatistics());
                 try {
                     itemStateMgr.addVirtualItemStateProvider(
                             context.getInternalVersionManager().getVirtualItemStateProvider());
@@ -2084,6 +2203,26 @@ public class RepositoryImpl extends AbstractRepository
                 throw new RepositoryException(msg, ise);
             }
 
+            if (ismLocking instanceof ShardedISMLocking) {
+                ismLockingStatsName = registerMBean(
+                        ISMLockingStatisticsMBean.NAME + ",workspace="
+                        + ObjectName.quote(getName()),
+                        ((ShardedISMLocking) ismLocking).getStatistics(),
+                        ISMLockingStatisticsMBean.class);
+            }
+            ItemStateCacheFactory cacheFactory =
+                itemStateMgr.getItemStateCacheFactory();
+            if (cacheFactory instanceof ManagedMLRUItemStateCacheFactory) {
+                ItemStateCacheStatistics cacheStats =
+                    ((ManagedMLRUItemStateCacheFactory) cacheFactory).getStatistics();
+                if (cacheStats != null) {
+                    cacheStatsName = registerMBean(
+                            ItemStateCacheStatisticsMBean.NAME + ",workspace="
+                            + ObjectName.quote(getName()),
+                            cacheStats, ItemStateCacheStatisticsMBean.class);
+                }
+            }
+
             dispatcher = new ObservationDispatcher();
 
             // register the observation factory of that workspace
@@ -2246,6 +2385,10 @@ public class RepositoryImpl extends AbstractRepository
             // dispose shared item state manager
             itemStateMgr.dispose();
             itemStateMgr = null;
+            unregisterMBean(ismLockingStatsName);
+            ismLockingStatsName = null;
+            unregisterMBean(cacheStatsName);
+            cacheStatsName = null;
 
             // close persistence manager
             try {
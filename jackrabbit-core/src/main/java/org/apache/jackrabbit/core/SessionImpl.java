@@ -88,6 +88,7 @@ import org.apache.jackrabbit.core.session.SessionItemOperation;
 import org.apache.jackrabbit.core.session.SessionOperation;
 import org.apache.jackrabbit.core.session.SessionRefreshOperation;
 import org.apache.jackrabbit.core.session.SessionSaveOperation;
+import org.apache.jackrabbit.core.state.ItemStateException;
 import org.apache.jackrabbit.core.state.SessionItemStateManager;
 import org.apache.jackrabbit.core.version.InternalVersionManager;
 import org.apache.jackrabbit.core.xml.ImportHandler;
@@ -138,6 +139,21 @@ public class SessionImpl extends AbstractSession
     public static final String AUTO_FIX_CORRUPTIONS =
         "org.apache.jackrabbit.autoFixCorruptions";
 
+    /**
+     * Name of the session attribute that makes a session see the persisted
+     * items as they were when it logged in. Changes saved later on, by any
+     * session, are not visible to a session with this attribute set (any
+     * non-null value), not even after a {@link #refresh(boolean) refresh},
+     * and the session itself can not save changes. Such sessions are meant
+     * for long-running readers that need a consistent view of the workspace
+     * without blocking writers. Queries, references and versions are not
+     * isolated.
+     *
+     * @see org.apache.jackrabbit.core.state.SharedItemStateManager#openSnapshot()
+     */
+    public static final String READ_SNAPSHOT =
+        "org.apache.jackrabbit.readSnapshot";
+
     private static Logger log = LoggerFactory.getLogger(SessionImpl.class);
 
     /**
@@ -188,6 +204,14 @@ public class SessionImpl extends AbstractSession
      */
     protected NamePathResolver namePathResolver;
 
+    /**
+     * Name and path resolver of the namespace registry, shared by all
+     * sessions that use the global namespace mappings. Set to
+     * <code>null</code> once this session defines local namespace mappings
+     * or the global mappings change.
+     */
+    private NamePathResolver sharedNamePathResolver;
+
     /**
      * The version manager for this session
      */
@@ -268,6 +292,8 @@ public class SessionImpl extends AbstractSession
         }
 
         namePathResolver = new DefaultNamePathResolver(this, this, true);
+        sharedNamePathResolver =
+            repositoryContext.getNamespaceRegistry().getNamePathResolver();
         context.setItemStateManager(createSessionItemStateManager());
         context.setItemManager(createItemManager());
         context.setAccessManager(createAccessManager(subject));
@@ -631,25 +657,47 @@ public class SessionImpl extends AbstractSession
     //--------------------------------------------------------< NameResolver >
 
     public String getJCRName(Name name) throws NamespaceException {
-        return namePathResolver.getJCRName(name);
+        return getNamePathResolver(null).getJCRName(name);
     }
 
     public Name getQName(String name) throws IllegalNameException, NamespaceException {
-        return namePathResolver.getQName(name);
+        return getNamePathResolver(null).getQName(name);
     }
 
     //--------------------------------------------------------< PathResolver >
 
     public String getJCRPath(Path path) throws NamespaceException {
-        return namePathResolver.getJCRPath(path);
+        return getNamePathResolver(null).getJCRPath(path);
     }
 
     public Path getQPath(String path) throws MalformedPathException, IllegalNameException, NamespaceException {
-        return namePathResolver.getQPath(path);
+        return getNamePathResolver(path).getQPath(path);
     }
 
     public Path getQPath(String path, boolean normalizeIdentifier) throws MalformedPathException, IllegalNameException, NamespaceException {
-        return namePathResolver.getQPath(path, normalizeIdentifier);
+        return getNamePathResolver(path).getQPath(path, normalizeIdentifier);
+    }
+
+    /**
+     * Returns the shared name and path resolver of the namespace registry
+     * as long as this session uses the global namespace mappings, and the
+     * resolver of this session otherwise. Identifier-based paths are always
+     * resolved by the resolver of this session.
+     *
+     * @param path the JCR path to be parsed, or <code>null</code>
+     * @return name and path resolver
+     */
+    private NamePathResolver getNamePathResolver(String path) {
+        NamePathResolver shared = sharedNamePathResolver;
+        if (shared == null || (path != null && path.startsWith("["))) {
+            return namePathResolver;
+        } else if (shared != repositoryContext.getNamespaceRegistry().getNamePathResolver()) {
+            // the global mappings have changed since this session was started
+            sharedNamePathResolver = null;
+            return namePathResolver;
+        } else {
+            return shared;
+        }
     }
 
     //---------------------------------------------------< IdentifierResolver >
@@ -889,6 +937,24 @@ public class SessionImpl extends AbstractSession
         return getAttribute(AUTO_FIX_CORRUPTIONS) != null;
     }
 
+    /**
+     * Makes this session see the persisted items as they are now, if the
+     * {@link #READ_SNAPSHOT} attribute is set. Called once the attributes
+     * of the credentials have been set on login.
+     *
+     * @throws RepositoryException if the snapshot could not be opened
+     */
+    protected void openReadSnapshot() throws RepositoryException {
+        if (getAttribute(READ_SNAPSHOT) != null) {
+            try {
+                context.getWorkspace().getItemStateManager().openSnapshot();
+            } catch (ItemStateException e) {
+                throw new RepositoryException(
+                        "Unable to open read snapshot", e);
+            }
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -1064,7 +1130,8 @@ public class SessionImpl extends AbstractSession
             throws NamespaceException, RepositoryException {
         super.setNamespacePrefix(prefix, uri);
         // Clear name and path caches
-        namePathResolver = new DefaultNamePathResolver(this, true);
+        sharedNamePathResolver = null;
+        namePathResolver = new DefaultNamePathResolver(this, this, true);
     }
 
 
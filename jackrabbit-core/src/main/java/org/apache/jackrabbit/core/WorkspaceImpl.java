@@ -153,7 +153,8 @@ public class WorkspaceImpl extends AbstractWorkspace
         this.wspConfig = wspConfig;
         this.stateMgr = createItemStateManager();
         this.hierMgr = new CachingHierarchyManager(
-                context.getRootNodeId(), this.stateMgr);
+                context.getRootNodeId(), this.stateMgr,
+                context.getRepositoryContext().getHierarchyCacheStatistics());
         this.stateMgr.addListener(hierMgr);
         this.session = context.getSessionImpl();
     }
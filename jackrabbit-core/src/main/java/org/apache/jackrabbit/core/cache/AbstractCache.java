@@ -80,6 +80,13 @@ public abstract class AbstractCache implements Cache {
      */
     private final AtomicLong missCount = new AtomicLong();
 
+    /**
+     * Total time spent loading missed entries, in nanoseconds. Updated by
+     * the user of the cache through {@link #recordMissDuration(long)}, as
+     * only the user knows how expensive a cache miss is.
+     */
+    private final AtomicLong missDuration = new AtomicLong();
+
     /**
      * Cache access listener. Set in the
      * {@link #setAccessListener(CacheAccessListener)} method and accessed
@@ -128,6 +135,15 @@ public abstract class AbstractCache implements Cache {
         missCount.incrementAndGet();
     }
 
+    /**
+     * Records the time it took to load an entry that was not cached.
+     *
+     * @param nanos the load duration in nanoseconds
+     */
+    public void recordMissDuration(long nanos) {
+        missDuration.addAndGet(nanos);
+    }
+
     public long getAccessCount() {
         return accessCount.get();
     }
@@ -148,6 +164,10 @@ public abstract class AbstractCache implements Cache {
         missCount.set(0);
     }
 
+    public long getMissDuration() {
+        return missDuration.get();
+    }
+
     public long getMemoryUsed() {
         return memoryUsed.get();
     }
@@ -198,6 +218,8 @@ public abstract class AbstractCache implements Cache {
         c.append(getTotalAccessCount());
         c.append(", miss=");
         c.append(getMissCount());
+        c.append(", missdurationms=");
+        c.append(getMissDuration() / 1000000);
         return c.toString();
     }
 }
@@ -0,0 +1,149 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.cache;
+
+import java.util.List;
+
+/**
+ * Abstract base class for managed caches of key-value pairs whose size is
+ * estimated by the caller. The {@link ConcurrentCache} and the
+ * {@link ClockCache} implement different eviction policies for the same
+ * contract, and {@link #newInstance(String, String)} selects one of them
+ * by name.
+ */
+public abstract class AbstractMapCache<K, V> extends AbstractCache {
+
+    /**
+     * Cache type of the {@link ConcurrentCache}, which evicts the least
+     * recently used entries of each cache segment.
+     */
+    public static final String LRU = "lru";
+
+    /**
+     * Cache type of the {@link ClockCache}, which does not lock on reads and
+     * uses the CLOCK algorithm with a frequency based admission policy.
+     */
+    public static final String CLOCK = "clock";
+
+    /**
+     * Whether the sizes of the entries are taken into account when
+     * choosing the entries to evict, see {@link #setSizeAware(boolean)}.
+     */
+    private volatile boolean sizeAware = false;
+
+    /**
+     * Creates a new cache of the given type.
+     *
+     * @param name the name of the cache
+     * @param type the cache type, {@link #LRU} or {@link #CLOCK}; if
+     *             <code>null</code>, a {@link #LRU} cache is created
+     * @return the new cache
+     * @throws IllegalArgumentException if the cache type is unknown
+     */
+    public static <K, V> AbstractMapCache<K, V> newInstance(
+            String name, String type) throws IllegalArgumentException {
+        if (type == null || LRU.equalsIgnoreCase(type)) {
+            return new ConcurrentCache<K, V>(name);
+        } else if (CLOCK.equalsIgnoreCase(type)) {
+            return new ClockCache<K, V>(name);
+        } else {
+            throw new IllegalArgumentException("Unknown cache type: " + type);
+        }
+    }
+
+    /**
+     * Checks if the identified entry is cached.
+     *
+     * @param key entry key
+     * @return <code>true</code> if the entry is cached,
+     *         <code>false</code> otherwise
+     */
+    public abstract boolean containsKey(K key);
+
+    /**
+     * Returns the identified cache entry.
+     *
+     * @param key entry key
+     * @return entry value, or <code>null</code> if not found
+     */
+    public abstract V get(K key);
+
+    /**
+     * Returns all values in the cache. This method is not synchronized over
+     * the entire cache, so it is only guaranteed to return accurate results
+     * when there are no concurrent threads modifying the cache.
+     *
+     * @return cached values
+     */
+    public abstract List<V> values();
+
+    /**
+     * Adds the given entry to the cache.
+     *
+     * @param key entry key
+     * @param value entry value
+     * @param size entry size
+     * @return the previous value, or <code>null</code>
+     */
+    public abstract V put(K key, V value, long size);
+
+    /**
+     * Removes the identified entry from the cache.
+     *
+     * @param key entry key
+     * @return removed entry, or <code>null</code> if not found
+     */
+    public abstract V remove(K key);
+
+    /**
+     * Removes all entries from the cache.
+     */
+    public abstract void clear();
+
+    /**
+     * Returns whether the sizes of the entries are taken into account when
+     * choosing the entries to evict.
+     *
+     * @return <code>true</code> if the eviction is size-aware
+     */
+    public boolean isSizeAware() {
+        return sizeAware;
+    }
+
+    /**
+     * Sets whether the sizes of the entries are taken into account when
+     * choosing the entries to evict. A size-aware cache prefers to evict
+     * the entries that save the fewest accesses per byte of memory they
+     * use, so that a few large entries that are used about as often as
+     * many small ones do not flush them from the cache.
+     *
+     * @param sizeAware whether the eviction should be size-aware
+     */
+    public void setSizeAware(boolean sizeAware) {
+        this.sizeAware = sizeAware;
+    }
+
+    /**
+     * Checks if the cache size is zero.
+     *
+     * @return <code>true</code> if the cache is empty
+     */
+    public boolean isEmpty() {
+        return getMemoryUsed() == 0;
+    }
+
+}
@@ -70,6 +70,14 @@ public interface Cache {
      */
     void resetMissCount();
 
+    /**
+     * Get the total time spent loading entries that were not found in
+     * the cache, as reported by the user of the cache.
+     *
+     * @return the duration in nanoseconds, or 0 if not measured
+     */
+    long getMissDuration();
+
     /**
      * Get the number of elements/objects in the cache.
      * @return the number of elements
@@ -18,8 +18,18 @@ package org.apache.jackrabbit.core.cache;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.WeakHashMap;
 
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -34,8 +44,36 @@ import org.slf4j.LoggerFactory;
  * distributing the memory in this way, there might be some unused memory (if
  * one or more caches did not use some of the allocated memory). This unused
  * memory is distributed evenly across the full caches.
+ * <p>
+ * Alternatively, the memory can be distributed according to the time the
+ * caches save ({@link #RESIZE_BY_COST}). The cost of a cache is the time
+ * spent loading missed entries, as reported by the users of the cache, or
+ * the number of misses times a default miss cost for caches that do not
+ * report it. Assuming that the miss time of a cache is inversely
+ * proportional to its size, the total miss time is minimal when the
+ * marginal utility (the miss time saved by one more byte) is the same for
+ * all caches, which is the case if the size of each full cache is
+ * proportional to the square root of its miss time times its current
+ * size. Caches that are not full keep the memory they use. In this mode the
+ * maximum memory per cache is not enforced, and a cache shrinks by at most
+ * half of its size per resize interval.
+ * <p>
+ * The amount of memory to distribute can be defined in bytes, or as a
+ * percentage of the maximum heap size.
  */
-public class CacheManager implements CacheAccessListener {
+public class CacheManager implements CacheAccessListener, CacheManagerMBean {
+
+    /**
+     * Resize strategy that distributes the memory according to the access
+     * counts and memory use of the caches. This is the default.
+     */
+    public static final String RESIZE_BY_ACCESS = "access";
+
+    /**
+     * Resize strategy that distributes the memory according to the time
+     * spent on cache misses.
+     */
+    public static final String RESIZE_BY_COST = "cost";
 
     /** The logger instance. */
     private static Logger log = LoggerFactory.getLogger(CacheManager.class);
@@ -49,8 +87,12 @@ public class CacheManager implements CacheAccessListener {
     /** The default maximum memory per cache. */
     private static final long DEFAULT_MAX_MEMORY_PER_CACHE = 4 * 1024 * 1024;
 
-    /** The set of caches (weakly referenced). */
-    private WeakHashMap<Cache, Object> caches = new WeakHashMap<Cache, Object>();
+    /** The default cost of a cache miss (in ns), if not reported by a cache. */
+    private static final long DEFAULT_MISS_COST = 10 * 1000;
+
+    /** The set of caches (weakly referenced), with their recent history. */
+    private WeakHashMap<Cache, CacheHistory> caches =
+        new WeakHashMap<Cache, CacheHistory>();
 
     /** The default minimum resize interval (in ms). */
     private static final int DEFAULT_MIN_RESIZE_INTERVAL = 1000;
@@ -66,6 +108,22 @@ public class CacheManager implements CacheAccessListener {
             "org.apache.jackrabbit.maxCacheMemory",
             DEFAULT_MAX_MEMORY);
 
+    /**
+     * The percentage of the maximum heap size to distribute across the
+     * caches, or 0 to use {@link #maxMemory}.
+     */
+    private int maxMemoryPercent = Integer.getInteger(
+            "org.apache.jackrabbit.maxCacheMemoryPercent", 0);
+
+    /** The strategy used to distribute the memory. */
+    private volatile String resizeStrategy = System.getProperty(
+            "org.apache.jackrabbit.cacheResizeStrategy", RESIZE_BY_ACCESS);
+
+    /** The cost of a cache miss (in ns), if not reported by a cache. */
+    private long missCost = Long.getLong(
+            "org.apache.jackrabbit.cacheMissCost",
+            DEFAULT_MISS_COST);
+
     /** The minimum size of a cache. */
     private long minMemoryPerCache = Long.getLong(
             "org.apache.jackrabbit.minMemoryPerCache",
@@ -104,6 +162,47 @@ public class CacheManager implements CacheAccessListener {
         this.maxMemory = maxMemory;
     }
 
+    public int getMaxMemoryPercent() {
+        return maxMemoryPercent;
+    }
+
+    public void setMaxMemoryPercent(int maxMemoryPercent) {
+        if (maxMemoryPercent < 0 || maxMemoryPercent > 100) {
+            throw new IllegalArgumentException(
+                    "Invalid percentage: " + maxMemoryPercent);
+        }
+        this.maxMemoryPercent = maxMemoryPercent;
+    }
+
+    public long getMemoryBudget() {
+        if (maxMemoryPercent > 0) {
+            return Runtime.getRuntime().maxMemory() / 100 * maxMemoryPercent;
+        } else {
+            return maxMemory;
+        }
+    }
+
+    public String getResizeStrategy() {
+        return resizeStrategy;
+    }
+
+    public void setResizeStrategy(String resizeStrategy) {
+        if (!RESIZE_BY_ACCESS.equals(resizeStrategy)
+                && !RESIZE_BY_COST.equals(resizeStrategy)) {
+            throw new IllegalArgumentException(
+                    "Unknown resize strategy: " + resizeStrategy);
+        }
+        this.resizeStrategy = resizeStrategy;
+    }
+
+    public long getMissCost() {
+        return missCost;
+    }
+
+    public void setMissCost(long missCost) {
+        this.missCost = missCost;
+    }
+
     public long getMaxMemoryPerCache() {
         return maxMemoryPerCache;
     }
@@ -185,17 +284,48 @@ public class CacheManager implements CacheAccessListener {
         // so can't use size() / keySet() directly
         // only using the iterator guarantees that we don't get null references
         List<Cache> list = new ArrayList<Cache>();
+        List<CacheHistory> histories = new ArrayList<CacheHistory>();
         synchronized (caches) {
-            list.addAll(caches.keySet());
+            for (Map.Entry<Cache, CacheHistory> entry : caches.entrySet()) {
+                list.add(entry.getKey());
+                histories.add(entry.getValue());
+            }
         }
         if (list.size() == 0) {
             // nothing to do
             return;
         }
+        long now = System.currentTimeMillis();
         CacheInfo[] infos = new CacheInfo[list.size()];
         for (int i = 0; i < list.size(); i++) {
-            infos[i] = new CacheInfo((Cache) list.get(i));
+            infos[i] = new CacheInfo(list.get(i), histories.get(i), now, missCost);
+        }
+        long budget = getMemoryBudget();
+        if (RESIZE_BY_COST.equals(resizeStrategy)) {
+            resizeByCost(infos, budget);
+        } else {
+            resizeByAccess(infos, budget);
         }
+        // set the new limit
+        for (CacheInfo info : infos) {
+            Cache cache = info.getCache();
+            if (log.isTraceEnabled()) {
+                log.trace(cache + " now:" + cache.getMaxMemorySize() + " used:"
+                        + info.getMemoryUsed() + " access:" + info.getAccessCount()
+                        + " missTime:" + info.getMissTime()
+                        + " new:" + info.getMemory());
+            }
+            cache.setMaxMemorySize(info.getMemory());
+        }
+    }
+
+    /**
+     * Distributes the memory based on the access counts and memory used.
+     *
+     * @param infos the caches
+     * @param budget the memory to distribute
+     */
+    private void resizeByAccess(CacheInfo[] infos, long budget) {
         // calculate the total access count and memory used
         long totalAccessCount = 0;
         long totalMemoryUsed = 0;
@@ -208,9 +338,9 @@ public class CacheManager implements CacheAccessListener {
         // and find out how many caches are full
         // 50% is distributed according to access count,
         // and 50% according to memory used
-        double memoryPerAccess = (double) maxMemory / 2.
+        double memoryPerAccess = (double) budget / 2.
                 / Math.max(1., (double) totalAccessCount);
-        double memoryPerUsed = (double) maxMemory / 2.
+        double memoryPerUsed = (double) budget / 2.
                 / Math.max(1., (double) totalMemoryUsed);
         int fullCacheCount = 0;
         for (CacheInfo info : infos) {
@@ -227,7 +357,7 @@ public class CacheManager implements CacheAccessListener {
             info.setMemory(mem);
         }
         // calculate the unused memory
-        long unusedMemory = maxMemory;
+        long unusedMemory = budget;
         for (CacheInfo info : infos) {
             unusedMemory -= info.getMemory();
         }
@@ -240,15 +370,53 @@ public class CacheManager implements CacheAccessListener {
                 }
             }
         }
-        // set the new limit
+    }
+
+    /**
+     * Distributes the memory based on the time spent on cache misses, such
+     * that the marginal utility of all full caches is about the same.
+     *
+     * @param infos the caches
+     * @param budget the memory to distribute
+     */
+    private void resizeByCost(CacheInfo[] infos, long budget) {
+        // caches that are not full keep the memory they use,
+        // full caches get at least the minimum
+        long reserved = 0;
+        int fullCacheCount = 0;
+        double totalWeight = 0;
         for (CacheInfo info : infos) {
-            Cache cache = info.getCache();
-            if (log.isTraceEnabled()) {
-                log.trace(cache + " now:" + cache.getMaxMemorySize() + " used:"
-                        + info.getMemoryUsed() + " access:" + info.getAccessCount()
-                        + " new:" + info.getMemory());
+            if (info.wasFull()) {
+                fullCacheCount++;
+                reserved += minMemoryPerCache;
+                totalWeight += info.getWeight(minMemoryPerCache);
+            } else {
+                reserved += Math.max(info.getMemoryUsed(), minMemoryPerCache);
+            }
+        }
+        long available = Math.max(0, budget - reserved);
+        long total = 0;
+        for (CacheInfo info : infos) {
+            long mem;
+            if (!info.wasFull()) {
+                mem = Math.max(info.getMemoryUsed(), minMemoryPerCache);
+            } else if (totalWeight > 0) {
+                mem = minMemoryPerCache + (long) (available
+                        * info.getWeight(minMemoryPerCache) / totalWeight);
+            } else {
+                mem = minMemoryPerCache + available / fullCacheCount;
+            }
+            // don't shrink too quickly
+            mem = Math.max(mem, info.getMemory() / 2);
+            info.setMemory(mem);
+            total += mem;
+        }
+        // the floors above may exceed the budget, scale all caches down
+        if (total > budget) {
+            double scale = (double) budget / total;
+            for (CacheInfo info : infos) {
+                info.setMemory((long) (info.getMemory() * scale));
             }
-            cache.setMaxMemorySize(info.getMemory());
         }
     }
 
@@ -260,7 +428,7 @@ public class CacheManager implements CacheAccessListener {
      */
     public void add(Cache cache) {
         synchronized (caches) {
-            caches.put(cache, null);
+            caches.put(cache, new CacheHistory(cache));
         }
     }
 
@@ -292,8 +460,11 @@ public class CacheManager implements CacheAccessListener {
 
         private boolean wasFull;
 
-        CacheInfo(Cache cache) {
+        private CacheHistory history;
+
+        CacheInfo(Cache cache, CacheHistory history, long now, long missCost) {
             this.cache = cache;
+            this.history = history;
             // copy the data as this runs in a different thread
             // the exact values are not important, but it is important that the
             // values don't change
@@ -306,6 +477,7 @@ public class CacheManager implements CacheAccessListener {
             // allocated memory,
             // then the memory was not fully used
             wasFull = (memoryUsed + BIG_OBJECT_SIZE) >= memory;
+            history.update(cache, now, missCost, wasFull, memory);
         }
 
         boolean wasFull() {
@@ -320,6 +492,18 @@ public class CacheManager implements CacheAccessListener {
             return memoryUsed;
         }
 
+        double getMissTime() {
+            return history.missTime;
+        }
+
+        /**
+         * Returns the weight of a full cache: its optimal size is
+         * proportional to the square root of its miss time times its size.
+         */
+        double getWeight(long minMemory) {
+            return Math.sqrt(history.missTime * Math.max(memory, minMemory));
+        }
+
         void setMemory(long mem) {
             this.memory = mem;
         }
@@ -334,8 +518,131 @@ public class CacheManager implements CacheAccessListener {
 
     }
 
+    /**
+     * Recent miss statistics of a cache. Does not reference the cache, so
+     * that it can be used as a value in the weak hash map.
+     */
+    private static class CacheHistory {
+
+        /** the miss count of the cache at the last resize */
+        private long missCount;
+
+        /** the miss duration of the cache at the last resize */
+        private long missDuration;
+
+        /** the time of the last resize */
+        private long time;
+
+        /** the misses per second in the last interval */
+        private double missRate;
+
+        /** the average miss duration in the last interval (in ns) */
+        private double missLatency;
+
+        /** the smoothed time spent on misses per second (in ns) */
+        private double missTime = -1;
+
+        /** the miss time saved per second by one more megabyte (in ns) */
+        private double marginalUtility;
+
+        CacheHistory(Cache cache) {
+            missCount = cache.getMissCount();
+            missDuration = cache.getMissDuration();
+            time = System.currentTimeMillis();
+        }
+
+        synchronized void update(
+                Cache cache, long now, long missCost,
+                boolean wasFull, long memory) {
+            long count = cache.getMissCount();
+            long duration = cache.getMissDuration();
+            long misses = Math.max(0, count - missCount);
+            long nanos;
+            if (duration == 0) {
+                // the cost is not reported by the users of this cache
+                nanos = misses * missCost;
+            } else {
+                nanos = Math.max(0, duration - missDuration);
+            }
+            double seconds = Math.max(1, now - time) / 1000.;
+            missRate = misses / seconds;
+            missLatency = misses > 0 ? (double) nanos / misses : 0;
+            if (missTime < 0) {
+                missTime = nanos / seconds;
+            } else {
+                missTime = (missTime + nanos / seconds) / 2;
+            }
+            if (wasFull) {
+                marginalUtility = missTime / Math.max(1, memory) * 1024 * 1024;
+            } else {
+                // more memory would not reduce the misses
+                marginalUtility = 0;
+            }
+            missCount = count;
+            missDuration = duration;
+            time = now;
+        }
+
+    }
+
     public void disposeCache(Cache cache) {
         remove(cache);
     }
 
+    //-------------------------------------------------< CacheManagerMBean >
+
+    private static final String[] CACHE_ITEM_NAMES = {
+        "name", "budget", "memoryUsed", "missRate", "missLatency",
+        "marginalUtility" };
+
+    private static final String[] CACHE_ITEM_DESCRIPTIONS = {
+        "Cache name",
+        "Maximum memory size (bytes)",
+        "Used memory (bytes)",
+        "Misses per second",
+        "Average time to load a missed entry (ns)",
+        "Miss time saved per second by one more megabyte (ns)" };
+
+    private static final OpenType[] CACHE_ITEM_TYPES = {
+        SimpleType.STRING, SimpleType.LONG, SimpleType.LONG,
+        SimpleType.DOUBLE, SimpleType.DOUBLE, SimpleType.DOUBLE };
+
+    public TabularData getCaches() {
+        try {
+            CompositeType ct = new CompositeType(
+                    Cache.class.getName(), "Cache statistics",
+                    CACHE_ITEM_NAMES, CACHE_ITEM_DESCRIPTIONS,
+                    CACHE_ITEM_TYPES);
+            TabularDataSupport tds = new TabularDataSupport(new TabularType(
+                    CacheManager.class.getName(), "Caches",
+                    ct, new String[] { "name" }));
+            List<Cache> list = new ArrayList<Cache>();
+            List<CacheHistory> histories = new ArrayList<CacheHistory>();
+            synchronized (caches) {
+                for (Map.Entry<Cache, CacheHistory> entry : caches.entrySet()) {
+                    list.add(entry.getKey());
+                    histories.add(entry.getValue());
+                }
+            }
+            for (int i = 0; i < list.size(); i++) {
+                Cache cache = list.get(i);
+                CacheHistory history = histories.get(i);
+                synchronized (history) {
+                    tds.put(new CompositeDataSupport(ct, CACHE_ITEM_NAMES,
+                            new Object[] {
+                                cache.toString(),
+                                cache.getMaxMemorySize(),
+                                cache.getMemoryUsed(),
+                                history.missRate,
+                                history.missLatency,
+                                history.marginalUtility }));
+                }
+            }
+            return tds;
+        } catch (OpenDataException e) {
+            log.warn("Failed to collect cache statistics", e);
+            return null;
+        }
+    }
+
 }
@@ -0,0 +1,83 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.cache;
+
+import javax.management.openmbean.TabularData;
+
+/**
+ * JMX bindings for the {@link CacheManager}.
+ */
+public interface CacheManagerMBean {
+
+    String NAME = "org.apache.jackrabbit:type=CacheManager";
+
+    /**
+     * @return the strategy used to distribute the memory across the caches,
+     *         {@link CacheManager#RESIZE_BY_ACCESS} or
+     *         {@link CacheManager#RESIZE_BY_COST}
+     */
+    String getResizeStrategy();
+
+    /**
+     * Changes the strategy used to distribute the memory across the caches.
+     *
+     * @param strategy {@link CacheManager#RESIZE_BY_ACCESS} or
+     *                 {@link CacheManager#RESIZE_BY_COST}
+     */
+    void setResizeStrategy(String strategy);
+
+    /**
+     * @return the amount of memory to distribute across the caches, in bytes,
+     *         unless a percentage of the maximum heap size is configured
+     */
+    long getMaxMemory();
+
+    /**
+     * Changes the amount of memory to distribute across the caches.
+     *
+     * @param maxMemory the amount of memory in bytes
+     */
+    void setMaxMemory(long maxMemory);
+
+    /**
+     * @return the percentage of the maximum heap size to distribute across
+     *         the caches, or 0 if {@link #getMaxMemory()} is used
+     */
+    int getMaxMemoryPercent();
+
+    /**
+     * Changes the percentage of the maximum heap size to distribute across
+     * the caches.
+     *
+     * @param percent the percentage, or 0 to use {@link #getMaxMemory()}
+     */
+    void setMaxMemoryPercent(int percent);
+
+    /**
+     * @return the amount of memory currently distributed across the caches,
+     *         in bytes
+     */
+    long getMemoryBudget();
+
+    /**
+     * @return the budget, memory used, miss rate, average miss latency and
+     *         marginal utility of each cache, as measured in the last
+     *         resize interval
+     */
+    TabularData getCaches();
+
+}
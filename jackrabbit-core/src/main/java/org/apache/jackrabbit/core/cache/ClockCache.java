@@ -0,0 +1,278 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.cache;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Concurrent cache implementation whose read operations do not take any
+ * locks. Entries are kept in a {@link ConcurrentHashMap}, and a cache hit
+ * only sets the reference bit of the entry.
+ * <p>
+ * Excess entries are evicted with the CLOCK algorithm: the eviction hand
+ * walks the entries in insertion order, gives referenced entries a second
+ * chance and evicts the first unreferenced entry. In addition, a new entry
+ * is only admitted to a full cache if it was accessed at least as often as
+ * the entry that would be evicted for it (TinyLFU), as estimated by a
+ * {@link FrequencySketch}. This prevents a large traversal of entries that
+ * are only accessed once from flushing the frequently used entries. If the
+ * cache is {@link #isSizeAware() size-aware}, the frequencies are compared
+ * per byte, so a large new entry needs to be accessed more often than the
+ * small entries it would displace.
+ * <p>
+ * Eviction is done by the thread that adds an entry to a full cache, while
+ * holding a lock that only other evicting threads wait for.
+ */
+public class ClockCache<K, V> extends AbstractMapCache<K, V> {
+
+    private static class E<K, V> {
+
+        private final K key;
+
+        private final V value;
+
+        private final long size;
+
+        private volatile boolean referenced;
+
+        public E(K key, V value, long size) {
+            this.key = key;
+            this.value = value;
+            this.size = size;
+        }
+
+    }
+
+    private final String name;
+
+    private final ConcurrentHashMap<K, E<K, V>> map =
+        new ConcurrentHashMap<K, E<K, V>>();
+
+    /**
+     * The CLOCK: entries in insertion order. Replaced and removed entries
+     * stay in the queue until the eviction hand or a compaction finds them.
+     */
+    private final ConcurrentLinkedQueue<E<K, V>> clock =
+        new ConcurrentLinkedQueue<E<K, V>>();
+
+    /** the number of replaced or removed entries that are still in the clock */
+    private final AtomicInteger stale = new AtomicInteger();
+
+    private final FrequencySketch sketch = new FrequencySketch();
+
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    public ClockCache(String name) {
+        this.name = name;
+    }
+
+    public boolean containsKey(K key) {
+        return map.containsKey(key);
+    }
+
+    public V get(K key) {
+        recordCacheAccess();
+        sketch.increment(key);
+
+        E<K, V> entry = map.get(key);
+        if (entry != null) {
+            if (!entry.referenced) {
+                entry.referenced = true;
+            }
+            return entry.value;
+        }
+        recordCacheMiss();
+        return null;
+    }
+
+    public List<V> values() {
+        List<V> values = new ArrayList<V>();
+        for (E<K, V> entry : map.values()) {
+            values.add(entry.value);
+        }
+        return values;
+    }
+
+    public V put(K key, V value, long size) {
+        sketch.increment(key);
+        sketch.ensureCapacity(map.size() + 1);
+
+        E<K, V> entry = new E<K, V>(key, value, size);
+        recordSizeChange(size);
+        E<K, V> previous = map.put(key, entry);
+        clock.offer(entry);
+
+        if (previous != null) {
+            recordSizeChange(-previous.size);
+            stale.incrementAndGet();
+            shrinkIfNeeded(null);
+            return previous.value;
+        } else {
+            shrinkIfNeeded(entry);
+            return null;
+        }
+    }
+
+    public V remove(K key) {
+        E<K, V> entry = map.remove(key);
+        if (entry != null) {
+            recordSizeChange(-entry.size);
+            if (stale.incrementAndGet() > map.size() + 16
+                    && evictionLock.tryLock()) {
+                try {
+                    compact();
+                } finally {
+                    evictionLock.unlock();
+                }
+            }
+            return entry.value;
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Removes all entries. This method is not atomic, so it may return with
+     * a non-empty cache if other threads have concurrently been adding new
+     * entries.
+     */
+    public void clear() {
+        for (E<K, V> entry : map.values()) {
+            if (map.remove(entry.key, entry)) {
+                recordSizeChange(-entry.size);
+            }
+        }
+        evictionLock.lock();
+        try {
+            compact();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Sets the maximum size of the cache and evicts any excess items until
+     * the current size falls within the given limit.
+     */
+    @Override
+    public void setMaxMemorySize(long size) {
+        super.setMaxMemorySize(size);
+        shrinkIfNeeded(null);
+    }
+
+    /**
+     * Evicts entries until the cache is small enough.
+     *
+     * @param candidate the entry that was just added, and may be rejected
+     *                  instead of evicting a more frequently used entry,
+     *                  or <code>null</code>
+     */
+    private void shrinkIfNeeded(E<K, V> candidate) {
+        if (!isTooBig()) {
+            return;
+        }
+        evictionLock.lock();
+        try {
+            if (stale.get() > map.size()) {
+                compact();
+            }
+            int skipped = 0;
+            while (isTooBig()) {
+                E<K, V> victim = clock.poll();
+                if (victim == null) {
+                    break;
+                } else if (map.get(victim.key) != victim) {
+                    // replaced or removed
+                    stale.decrementAndGet();
+                    continue;
+                }
+                if (victim.referenced && skipped++ <= map.size()) {
+                    // second chance
+                    victim.referenced = false;
+                    clock.offer(victim);
+                    continue;
+                }
+                if (candidate != null && candidate != victim
+                        && map.get(candidate.key) == candidate
+                        && isLessValuable(candidate, victim)) {
+                    // the new entry is used less often than the victim,
+                    // so reject the new entry instead
+                    clock.offer(victim);
+                    victim = candidate;
+                    stale.incrementAndGet();
+                }
+                candidate = null;
+                if (map.remove(victim.key, victim)) {
+                    recordSizeChange(-victim.size);
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Checks whether a new entry is used less often than the entry that
+     * would be evicted for it. If the cache is {@link #isSizeAware()
+     * size-aware}, the access frequencies are compared per byte.
+     *
+     * @param candidate the new entry
+     * @param victim the entry to evict
+     * @return <code>true</code> if the new entry should be rejected
+     */
+    private boolean isLessValuable(E<K, V> candidate, E<K, V> victim) {
+        long candidateFrequency = sketch.frequency(candidate.key);
+        long victimFrequency = sketch.frequency(victim.key);
+        if (isSizeAware()) {
+            return candidateFrequency * victim.size
+                < victimFrequency * candidate.size;
+        } else {
+            return candidateFrequency < victimFrequency;
+        }
+    }
+
+    /**
+     * Removes replaced and removed entries from the clock.
+     */
+    private void compact() {
+        Iterator<E<K, V>> iterator = clock.iterator();
+        while (iterator.hasNext()) {
+            E<K, V> entry = iterator.next();
+            if (map.get(entry.key) != entry) {
+                iterator.remove();
+            }
+        }
+        stale.set(0);
+    }
+
+    public long getElementCount() {
+        return map.size();
+    }
+
+    @Override
+    public String toString() {
+        return name + "[" + getClass().getSimpleName() + "@"
+                + Integer.toHexString(hashCode()) + "]";
+    }
+
+}
@@ -26,10 +26,13 @@ import java.util.Map;
  * Concurrent cache implementation that uses cache segments to minimize
  * the chance of lock contention. The LRU algorithm is used to evict excess
  * entries from each cache segment separately, which makes the combined
- * eviction algorithm similar but not exactly the same as LRU. None of the
- * methods of this class are synchronized, but they are all thread-safe.
+ * eviction algorithm similar but not exactly the same as LRU. If the cache
+ * is {@link #isSizeAware() size-aware}, the largest of the few least recently
+ * used entries of a segment is evicted instead of the least recently used
+ * one. None of the methods of this class are synchronized, but they are all
+ * thread-safe.
  */
-public class ConcurrentCache<K, V> extends AbstractCache {
+public class ConcurrentCache<K, V> extends AbstractMapCache<K, V> {
 
     /**
      * Default number of cache segments to use. Use the number of available
@@ -44,6 +47,13 @@ public class ConcurrentCache<K, V> extends AbstractCache {
     private static int DEFAULT_NUMBER_OF_SEGMENTS =
         Runtime.getRuntime().availableProcessors();
 
+    /**
+     * Number of least recently used entries of a segment among which the
+     * largest one is evicted when the cache is {@link #isSizeAware()
+     * size-aware}.
+     */
+    private static final int SIZE_AWARE_SAMPLES = 4;
+
     private static class E<V> {
 
         private final V value;
@@ -68,11 +78,14 @@ public class ConcurrentCache<K, V> extends AbstractCache {
             segments[i] = new LinkedHashMap<K, E<V>>(16, 0.75f, true) {
                 @Override
                 protected boolean removeEldestEntry(Map.Entry<K, E<V>> eldest) {
-                    if (isTooBig()) {
+                    if (!isTooBig()) {
+                        return false;
+                    } else if (isSizeAware()) {
+                        evictLargest(this);
+                        return false;
+                    } else {
                         recordSizeChange(-eldest.getValue().size);
                         return true;
-                    } else {
-                        return false;
                     }
                 }
             };
@@ -98,6 +111,31 @@ public class ConcurrentCache<K, V> extends AbstractCache {
         return segments[(key.hashCode() >>> 1) % segments.length];
     }
 
+    /**
+     * Evicts the largest of the least recently used entries of the given
+     * segment. As all entries are assumed to be equally expensive to load,
+     * this frees the most memory for the least expected loss of cache hits.
+     * The caller must hold the lock of the segment.
+     *
+     * @param segment cache segment
+     */
+    private void evictLargest(Map<K, E<V>> segment) {
+        K victim = null;
+        long victimSize = -1;
+        Iterator<Map.Entry<K, E<V>>> iterator = segment.entrySet().iterator();
+        for (int i = 0; i < SIZE_AWARE_SAMPLES && iterator.hasNext(); i++) {
+            Map.Entry<K, E<V>> entry = iterator.next();
+            if (entry.getValue().size > victimSize) {
+                victim = entry.getKey();
+                victimSize = entry.getValue().size;
+            }
+        }
+        if (victim != null) {
+            segment.remove(victim);
+            recordSizeChange(-victimSize);
+        }
+    }
+
     /**
      * Checks if the identified entry is cached.
      *
@@ -215,13 +253,6 @@ public class ConcurrentCache<K, V> extends AbstractCache {
         }
     }
 
-    /**
-     * Checks if the cache size is zero.
-     */
-    public boolean isEmpty() {
-        return getMemoryUsed() == 0;
-    }
-
     /**
      * Sets the maximum size of the cache and evicts any excess items until
      * the current size falls within the given limit.
@@ -0,0 +1,165 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.cache;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Approximate access frequency counter used by the admission policy of the
+ * {@link ClockCache} (TinyLFU). Each key is counted in four 4-bit counters
+ * of a count-min sketch, and its frequency is estimated as the minimum of
+ * them. Eight counters are packed into each integer, and the sketch keeps
+ * about sixteen counters per cached key. Counters saturate at 15, and all
+ * counters are halved periodically so that the sketch forgets old
+ * accesses. Updates are lock-free; lost updates caused by concurrent
+ * resets are harmless for an estimate.
+ */
+class FrequencySketch {
+
+    /** the maximum value of a counter */
+    private static final int MAX_COUNT = 15;
+
+    /** the number of counters that are updated per key */
+    private static final int DEPTH = 4;
+
+    /** the number of counters per cached key */
+    private static final int COUNTERS_PER_KEY = 16;
+
+    /** the minimum number of counters */
+    private static final int MIN_SIZE = 1024;
+
+    /** the maximum number of counters */
+    private static final int MAX_SIZE = 1 << 24;
+
+    /** the packed counters; replaced with a larger array when the cache grows */
+    private volatile AtomicIntegerArray table =
+        new AtomicIntegerArray(MIN_SIZE / 8);
+
+    /** the number of increments since the counters were last halved */
+    private final AtomicInteger additions = new AtomicInteger();
+
+    /**
+     * Makes sure that the sketch is large enough to tell apart the given
+     * number of keys. When the sketch grows, each new counter starts with
+     * the value of the old counter at the same index modulo the old size,
+     * so the existing estimates are kept.
+     *
+     * @param keys the number of keys in the cache
+     */
+    public void ensureCapacity(long keys) {
+        if (keys * COUNTERS_PER_KEY > table.length() * 8) {
+            grow(keys * COUNTERS_PER_KEY);
+        }
+    }
+
+    private synchronized void grow(long required) {
+        AtomicIntegerArray table = this.table;
+        int length = table.length();
+        int size = length;
+        while (size * 8L < required && size * 8 < MAX_SIZE) {
+            size <<= 1;
+        }
+        if (size > length) {
+            AtomicIntegerArray larger = new AtomicIntegerArray(size);
+            for (int i = 0; i < size; i++) {
+                larger.set(i, table.get(i & (length - 1)));
+            }
+            this.table = larger;
+        }
+    }
+
+    /**
+     * Returns the estimated number of recent accesses to the given key.
+     *
+     * @param key the key
+     * @return the estimated frequency, between 0 and 15
+     */
+    public int frequency(Object key) {
+        AtomicIntegerArray table = this.table;
+        int hash = spread(key.hashCode());
+        int step = rehash(hash);
+        int mask = table.length() * 8 - 1;
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < DEPTH; i++) {
+            int index = (hash + i * step) & mask;
+            int shift = (index & 7) << 2;
+            frequency = Math.min(
+                    frequency, (table.get(index >>> 3) >>> shift) & MAX_COUNT);
+        }
+        return frequency;
+    }
+
+    /**
+     * Records an access to the given key.
+     *
+     * @param key the key
+     */
+    public void increment(Object key) {
+        AtomicIntegerArray table = this.table;
+        int hash = spread(key.hashCode());
+        int step = rehash(hash);
+        int mask = table.length() * 8 - 1;
+        for (int i = 0; i < DEPTH; i++) {
+            int index = (hash + i * step) & mask;
+            int shift = (index & 7) << 2;
+            int slot = index >>> 3;
+            int value = table.get(slot);
+            while (((value >>> shift) & MAX_COUNT) < MAX_COUNT
+                    && !table.compareAndSet(slot, value, value + (1 << shift))) {
+                value = table.get(slot);
+            }
+        }
+        // halve the counters after about eight accesses per cached key
+        if (additions.incrementAndGet() >= table.length() * 4) {
+            reset(table);
+        }
+    }
+
+    /**
+     * Halves all counters, so that the sketch adapts to changes in the
+     * access pattern.
+     *
+     * @param table the counters to halve
+     */
+    private void reset(AtomicIntegerArray table) {
+        additions.set(0);
+        for (int i = 0; i < table.length(); i++) {
+            int value = table.get(i);
+            while (!table.compareAndSet(i, value, (value >>> 1) & 0x77777777)) {
+                value = table.get(i);
+            }
+        }
+    }
+
+    private static int spread(int hash) {
+        hash ^= (hash >>> 17);
+        hash *= 0xed5ad4bb;
+        hash ^= (hash >>> 11);
+        hash *= 0xac4c1b51;
+        hash ^= (hash >>> 15);
+        return hash;
+    }
+
+    private static int rehash(int hash) {
+        hash *= 0x31848bab;
+        hash ^= (hash >>> 14);
+        // an odd step visits distinct counters within the power of two table
+        return hash | 1;
+    }
+
+}
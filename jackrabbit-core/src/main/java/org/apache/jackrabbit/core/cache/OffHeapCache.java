@@ -0,0 +1,345 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.cache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of byte arrays that are stored outside of the Java heap, in slabs
+ * of direct {@link ByteBuffer}s. This allows to cache large amounts of
+ * serialized data without increasing the garbage collection overhead.
+ * <p>
+ * Like the {@link ConcurrentCache}, the cache is split into segments to
+ * minimize lock contention. Each segment appends entries to its current
+ * slab. When all slabs of a segment are full, a CLOCK hand selects the
+ * slab to reuse: slabs whose entries were read since the hand last passed
+ * them get a second chance, and all entries of the selected slab are
+ * evicted. Space of removed or replaced entries is reclaimed when their
+ * slab is reused. Slabs are allocated lazily, so the configured memory
+ * is only used once the cache is filled. None of the methods of this
+ * class are synchronized, but they are all thread-safe.
+ */
+public class OffHeapCache<K> {
+
+    /**
+     * Default number of cache segments to use.
+     */
+    private static final int DEFAULT_NUMBER_OF_SEGMENTS = 16;
+
+    /**
+     * Number of slabs in each cache segment.
+     */
+    private static final int SLABS_PER_SEGMENT = 8;
+
+    /**
+     * Location of a cached byte array.
+     */
+    private static class E {
+
+        private final Slab slab;
+
+        private final int offset;
+
+        private final int length;
+
+        public E(Slab slab, int offset, int length) {
+            this.slab = slab;
+            this.offset = offset;
+            this.length = length;
+        }
+
+    }
+
+    /**
+     * Direct buffer to which the entries of a segment are appended.
+     */
+    private static class Slab {
+
+        private final int capacity;
+
+        /** the buffer, or <code>null</code> if not allocated yet */
+        private ByteBuffer buffer;
+
+        /** the keys of the entries stored in this slab */
+        private final List<Object> keys = new ArrayList<Object>();
+
+        /** the position where the next entry is appended */
+        private int position;
+
+        /** whether an entry of this slab was read since the CLOCK hand passed */
+        private boolean referenced;
+
+        public Slab(int capacity) {
+            this.capacity = capacity;
+        }
+
+    }
+
+    /**
+     * Cache segment with its own slabs and CLOCK hand.
+     */
+    private class Segment {
+
+        private final Map<K, E> entries = new HashMap<K, E>();
+
+        private final Slab[] slabs;
+
+        /** the slab to which entries are appended */
+        private int current;
+
+        public Segment(int slabSize) {
+            slabs = new Slab[SLABS_PER_SEGMENT];
+            for (int i = 0; i < slabs.length; i++) {
+                slabs[i] = new Slab(slabSize);
+            }
+        }
+
+        public synchronized byte[] get(K key) {
+            E entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            entry.slab.referenced = true;
+            byte[] data = new byte[entry.length];
+            ByteBuffer buffer = entry.slab.buffer.duplicate();
+            buffer.position(entry.offset);
+            buffer.get(data);
+            return data;
+        }
+
+        public synchronized void put(K key, byte[] data) {
+            entries.remove(key);
+            Slab slab = slabs[current];
+            if (slab.buffer == null) {
+                slab.buffer = ByteBuffer.allocateDirect(slab.capacity);
+                memoryAllocated.addAndGet(slab.capacity);
+            }
+            if (slab.position + data.length > slab.capacity) {
+                slab = nextSlab();
+            }
+            ByteBuffer buffer = slab.buffer.duplicate();
+            buffer.position(slab.position);
+            buffer.put(data);
+            entries.put(key, new E(slab, slab.position, data.length));
+            slab.keys.add(key);
+            slab.position += data.length;
+        }
+
+        public synchronized boolean remove(K key) {
+            return entries.remove(key) != null;
+        }
+
+        public synchronized void clear() {
+            entries.clear();
+            for (Slab slab : slabs) {
+                if (slab.buffer != null) {
+                    memoryAllocated.addAndGet(-slab.capacity);
+                    slab.buffer = null;
+                }
+                slab.keys.clear();
+                slab.position = 0;
+                slab.referenced = false;
+            }
+            current = 0;
+        }
+
+        public synchronized int size() {
+            return entries.size();
+        }
+
+        /**
+         * Moves the CLOCK hand to the next slab that has not been read from
+         * since the hand last passed it, and evicts all of its entries.
+         * Slabs that have not been allocated yet are used first.
+         *
+         * @return the empty slab, which is now the current one
+         */
+        private Slab nextSlab() {
+            while (true) {
+                current = (current + 1) % slabs.length;
+                Slab slab = slabs[current];
+                if (slab.buffer == null) {
+                    slab.buffer = ByteBuffer.allocateDirect(slab.capacity);
+                    memoryAllocated.addAndGet(slab.capacity);
+                    return slab;
+                } else if (slab.referenced) {
+                    slab.referenced = false;
+                } else {
+                    for (Object key : slab.keys) {
+                        E entry = entries.get(key);
+                        if (entry != null && entry.slab == slab) {
+                            entries.remove(key);
+                            evictionCount.incrementAndGet();
+                        }
+                    }
+                    slab.keys.clear();
+                    slab.position = 0;
+                    return slab;
+                }
+            }
+        }
+
+    }
+
+    private final String name;
+
+    private final Segment[] segments;
+
+    private final int maxEntrySize;
+
+    private final AtomicLong memoryAllocated = new AtomicLong();
+
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    /**
+     * Creates an off-heap cache of the given size.
+     *
+     * @param name the name of the cache
+     * @param maxMemorySize the maximum amount of memory to allocate
+     * @param numberOfSegments the number of cache segments
+     */
+    public OffHeapCache(String name, long maxMemorySize, int numberOfSegments) {
+        this.name = name;
+        this.maxEntrySize = (int) Math.min(
+                Integer.MAX_VALUE,
+                maxMemorySize / numberOfSegments / SLABS_PER_SEGMENT);
+        this.segments = new OffHeapCache.Segment[numberOfSegments];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment(maxEntrySize);
+        }
+    }
+
+    /**
+     * Creates an off-heap cache of the given size.
+     *
+     * @param name the name of the cache
+     * @param maxMemorySize the maximum amount of memory to allocate
+     */
+    public OffHeapCache(String name, long maxMemorySize) {
+        this(name, maxMemorySize, DEFAULT_NUMBER_OF_SEGMENTS);
+    }
+
+    /**
+     * Returns the cache segment for the given entry key.
+     *
+     * @param key entry key
+     * @return cache segment
+     */
+    private Segment getSegment(K key) {
+        return segments[(key.hashCode() >>> 1) % segments.length];
+    }
+
+    /**
+     * Returns a copy of the identified cache entry.
+     *
+     * @param key entry key
+     * @return entry data, or <code>null</code> if not found
+     */
+    public byte[] get(K key) {
+        return getSegment(key).get(key);
+    }
+
+    /**
+     * Adds the given entry to the cache, replacing an existing entry with
+     * the same key. Entries that are larger than {@link #getMaxEntrySize()}
+     * are not cached, and an existing entry with the same key is removed.
+     *
+     * @param key entry key
+     * @param data entry data
+     * @return <code>true</code> if the entry was cached
+     */
+    public boolean put(K key, byte[] data) {
+        Segment segment = getSegment(key);
+        if (data.length > maxEntrySize) {
+            segment.remove(key);
+            return false;
+        }
+        segment.put(key, data);
+        return true;
+    }
+
+    /**
+     * Removes the identified entry from the cache.
+     *
+     * @param key entry key
+     * @return <code>true</code> if the entry was cached
+     */
+    public boolean remove(K key) {
+        return getSegment(key).remove(key);
+    }
+
+    /**
+     * Removes all entries from the cache and releases the slabs.
+     */
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * Returns the number of cached entries.
+     *
+     * @return number of entries
+     */
+    public long getElementCount() {
+        long count = 0;
+        for (Segment segment : segments) {
+            count += segment.size();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the amount of off-heap memory currently allocated.
+     *
+     * @return allocated memory in bytes
+     */
+    public long getMemoryAllocated() {
+        return memoryAllocated.get();
+    }
+
+    /**
+     * Returns the number of entries evicted so far.
+     *
+     * @return number of evicted entries
+     */
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * Returns the size of the largest entry that can be cached.
+     *
+     * @return maximum entry size in bytes
+     */
+    public int getMaxEntrySize() {
+        return maxEntrySize;
+    }
+
+    @Override
+    public String toString() {
+        return name + "[" + getClass().getSimpleName() + "@"
+            + Integer.toHexString(hashCode()) + "]";
+    }
+
+}
@@ -20,12 +20,20 @@ import static org.apache.jackrabbit.spi.commons.name.NameConstants.JCR_MIXINTYPE
 import static org.apache.jackrabbit.spi.commons.name.NameConstants.JCR_PRIMARYTYPE;
 import static org.apache.jackrabbit.spi.commons.name.NameConstants.JCR_UUID;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.jcr.PropertyType;
 import javax.jcr.RepositoryException;
@@ -33,7 +41,8 @@ import javax.jcr.RepositoryException;
 import org.apache.jackrabbit.api.stats.RepositoryStatistics;
 import org.apache.jackrabbit.core.cache.Cache;
 import org.apache.jackrabbit.core.cache.CacheAccessListener;
-import org.apache.jackrabbit.core.cache.ConcurrentCache;
+import org.apache.jackrabbit.core.cache.AbstractMapCache;
+import org.apache.jackrabbit.core.cache.OffHeapCache;
 import org.apache.jackrabbit.core.cluster.UpdateEventChannel;
 import org.apache.jackrabbit.core.fs.FileSystem;
 import org.apache.jackrabbit.core.fs.FileSystemResource;
@@ -44,10 +53,13 @@ import org.apache.jackrabbit.core.persistence.CachingPersistenceManager;
 import org.apache.jackrabbit.core.persistence.IterablePersistenceManager;
 import org.apache.jackrabbit.core.persistence.PMContext;
 import org.apache.jackrabbit.core.persistence.PersistenceManager;
+import org.apache.jackrabbit.core.persistence.PrefetchingPersistenceManager;
 import org.apache.jackrabbit.core.persistence.check.ConsistencyCheckListener;
 import org.apache.jackrabbit.core.persistence.check.ConsistencyChecker;
 import org.apache.jackrabbit.core.persistence.check.ConsistencyReport;
 import org.apache.jackrabbit.core.persistence.util.BLOBStore;
+import org.apache.jackrabbit.core.persistence.util.BundleBinding;
+import org.apache.jackrabbit.core.persistence.util.ChildPageStore;
 import org.apache.jackrabbit.core.persistence.util.FileBasedIndex;
 import org.apache.jackrabbit.core.persistence.util.NodeInfo;
 import org.apache.jackrabbit.core.persistence.util.NodePropBundle;
@@ -89,13 +101,40 @@ import org.slf4j.LoggerFactory;
  * because a lot of {@link #exists(NodeId)} calls are issued that would result
  * in a useless persistence lookup if the desired bundle does not exist.
  * <p>
+ * Optionally, an {@link OffHeapCache} keeps the serialized form of loaded
+ * bundles outside of the Java heap. It is consulted on a bundle cache miss
+ * before the bundle is loaded from the persistent storage, which allows
+ * large caches without increasing the garbage collection overhead.
+ * <p>
+ * The eviction policy of the bundle cache is selected with the
+ * <code>bundleCacheType</code> parameter: <code>lru</code> (the default)
+ * uses a segmented {@link org.apache.jackrabbit.core.cache.ConcurrentCache},
+ * <code>clock</code> uses a {@link org.apache.jackrabbit.core.cache.ClockCache}
+ * whose reads do not take any locks and that is not flushed by large
+ * traversals.
+ * <p>
+ * The child node lists of nodes with more than <code>childNodePageSize</code>
+ * child nodes can be split into pages that are stored separately from the
+ * bundle, in the same storage. Adding or removing a child node then only
+ * rewrites a single page instead of the whole list, and the pages are only
+ * read when the child nodes are accessed. This is only supported by
+ * subclasses that provide a {@link ChildPageStore}. Pages that are no
+ * longer used are removed after the change that superseded them has been
+ * committed; pages left behind when the persistence manager was not closed
+ * properly are removed by a consistency fix of all bundles.
+ * <p>
  * Configuration:<br>
  * <ul>
  * <li>&lt;param name="{@link #setBundleCacheSize(String) bundleCacheSize}" value="8"/>
+ * <li>&lt;param name="{@link #setBundleCacheType(String) bundleCacheType}" value="lru"/>
+ * <li>&lt;param name="{@link #setOffHeapBundleCacheSize(String) offHeapBundleCacheSize}" value="0"/>
+ * <li>&lt;param name="{@link #setConcurrentStore(String) concurrentStore}" value="false"/>
+ * <li>&lt;param name="{@link #setChildNodePageSize(String) childNodePageSize}" value="0"/>
  * </ul>
  */
 public abstract class AbstractBundlePersistenceManager implements
-    PersistenceManager, CachingPersistenceManager, IterablePersistenceManager, CacheAccessListener, ConsistencyChecker {
+    PersistenceManager, CachingPersistenceManager, IterablePersistenceManager,
+    PrefetchingPersistenceManager, CacheAccessListener, ConsistencyChecker {
 
     /** the audit logger */
     private static Logger auditLogger = LoggerFactory.getLogger("org.apache.jackrabbit.core.audit");
@@ -127,6 +166,9 @@ public abstract class AbstractBundlePersistenceManager implements
      */
     private static final long MISSING_SIZE_ESTIMATE = 128;
 
+    /** the number of lock stripes used when storing change logs concurrently */
+    private static final int STORE_LOCK_STRIPES = 64;
+
     /** the index for namespaces */
     private StringIndex nsIndex;
 
@@ -134,7 +176,13 @@ public abstract class AbstractBundlePersistenceManager implements
     private StringIndex nameIndex;
 
     /** the cache of loaded bundles */
-    private ConcurrentCache<NodeId, NodePropBundle> bundles;
+    private AbstractMapCache<NodeId, NodePropBundle> bundles;
+
+    /**
+     * the off-heap cache of serialized bundles, or <code>null</code> if
+     * the off-heap bundle cache is disabled
+     */
+    private OffHeapCache<NodeId> offHeapBundles;
 
     /** The default minimum stats logging interval (in ms). */
     private static final int DEFAULT_LOG_STATS_INTERVAL = 60 * 1000;
@@ -154,6 +202,15 @@ public abstract class AbstractBundlePersistenceManager implements
     /** default size of the bundle cache */
     private long bundleCacheSize = 8 * 1024 * 1024;
 
+    /** eviction policy of the bundle cache */
+    private String bundleCacheType = AbstractMapCache.LRU;
+
+    /** size of the off-heap bundle cache, disabled by default */
+    private long offHeapBundleCacheSize = 0;
+
+    /** maximum number of child node entries per page, disabled by default */
+    private int childNodePageSize = 0;
+
     /** Counter of read operations. */
     private AtomicLong readCounter;
 
@@ -175,9 +232,39 @@ public abstract class AbstractBundlePersistenceManager implements
     /** Counter of bundle cache size. */
     private AtomicLong cacheSizeCounter;
 
+    /** Counter of off-heap bundle cache hits. */
+    private AtomicLong offHeapHitCounter;
+
+    /** Counter of off-heap bundle cache misses. */
+    private AtomicLong offHeapMissCounter;
+
+    /** Counter of off-heap bundle cache size. */
+    private AtomicLong offHeapSizeCounter;
+
     /** The update event channel to use by the consistency checker when fixing inconsistencies */
     private UpdateEventChannel eventChannel;
 
+    /** flag indicating if change logs touching distinct bundles may be stored concurrently */
+    private boolean concurrentStore;
+
+    /** the lock stripes held while a change log is stored in concurrent mode */
+    private final ReentrantLock[] storeLocks = new ReentrantLock[STORE_LOCK_STRIPES];
+
+    /**
+     * The write generation of each lock stripe. A generation is odd while a
+     * change log touching the stripe is being stored, and a bundle loaded
+     * by another thread is only cached if the generation of its stripe was
+     * even and did not change during the load.
+     */
+    private final AtomicLongArray storeGenerations =
+        new AtomicLongArray(STORE_LOCK_STRIPES);
+
+    {
+        for (int i = 0; i < storeLocks.length; i++) {
+            storeLocks[i] = new ReentrantLock();
+        }
+    }
+
     /**
      * Returns the size of the bundle cache in megabytes.
      * @return the size of the bundle cache in megabytes.
@@ -196,6 +283,102 @@ public abstract class AbstractBundlePersistenceManager implements
         this.bundleCacheSize = Long.parseLong(bundleCacheSize) * 1024 * 1024;
     }
 
+    /**
+     * Returns the eviction policy of the bundle cache.
+     * @return the eviction policy of the bundle cache.
+     */
+    public String getBundleCacheType() {
+        return bundleCacheType;
+    }
+
+    /**
+     * Sets the eviction policy of the bundle cache, either
+     * <code>lru</code> (the default) or <code>clock</code>.
+     *
+     * @param bundleCacheType the bundle cache type.
+     */
+    public void setBundleCacheType(String bundleCacheType) {
+        this.bundleCacheType = bundleCacheType;
+    }
+
+    /**
+     * Returns the size of the off-heap bundle cache in megabytes.
+     * @return the size of the off-heap bundle cache in megabytes.
+     */
+    public String getOffHeapBundleCacheSize() {
+        return String.valueOf(offHeapBundleCacheSize / (1024 * 1024));
+    }
+
+    /**
+     * Sets the size of the off-heap bundle cache in megabytes. The off-heap
+     * cache keeps serialized bundles in direct memory and is consulted
+     * when a bundle is not found in the bundle cache. The JVM must allow
+     * enough direct memory (see <code>-XX:MaxDirectMemorySize</code>). The
+     * default is 0, which disables the off-heap bundle cache. It is only
+     * used by subclasses that provide a {@link #getBundleBinding() binding}.
+     *
+     * @param offHeapBundleCacheSize the off-heap bundle cache size in megabytes.
+     */
+    public void setOffHeapBundleCacheSize(String offHeapBundleCacheSize) {
+        this.offHeapBundleCacheSize =
+            Long.parseLong(offHeapBundleCacheSize) * 1024 * 1024;
+    }
+
+    /**
+     * Returns the maximum number of child node entries per page.
+     * @return the maximum number of child node entries per page.
+     */
+    public String getChildNodePageSize() {
+        return String.valueOf(childNodePageSize);
+    }
+
+    /**
+     * Sets the maximum number of child node entries per page. The child
+     * node list of a node with more child nodes is split into pages of
+     * about half this size that are stored separately. The default is 0,
+     * which stores all child node lists inline. Bundles with child node
+     * pages are written using bundle format version 4, which can not be
+     * read by older versions of Jackrabbit. It is only used by subclasses
+     * that provide a {@link ChildPageStore}.
+     *
+     * @param childNodePageSize the maximum number of entries per page.
+     */
+    public void setChildNodePageSize(String childNodePageSize) {
+        this.childNodePageSize = Integer.parseInt(childNodePageSize);
+    }
+
+    /**
+     * Checks if change logs are stored concurrently.
+     * @return <code>true</code> if change logs are stored concurrently.
+     */
+    public String getConcurrentStore() {
+        return Boolean.toString(concurrentStore);
+    }
+
+    /**
+     * Defines if change logs that touch distinct bundles may be stored
+     * concurrently. By default all change logs are stored sequentially by
+     * synchronizing on the persistence manager instance. In concurrent mode
+     * only the bundles of a change log are locked (in hash stripes), and
+     * readers never wait for writers. Concurrent mode must only be enabled
+     * for subclasses whose storage methods are thread-safe, like the
+     * {@link org.apache.jackrabbit.core.persistence.pool.BundleDbPersistenceManager}.
+     *
+     * @param concurrentStore the concurrent store flag.
+     */
+    public void setConcurrentStore(String concurrentStore) {
+        this.concurrentStore = Boolean.valueOf(concurrentStore).booleanValue();
+    }
+
+    /**
+     * Returns <code>true</code> if change logs are stored concurrently.
+     *
+     * @return <code>true</code> if change logs are stored concurrently.
+     */
+    protected boolean isConcurrentStore() {
+        return concurrentStore;
+    }
+
     /**
      * Creates the folder path for the given node id that is suitable for
      * storing states in a filesystem.
@@ -350,15 +533,25 @@ public abstract class AbstractBundlePersistenceManager implements
      * {@inheritDoc}
      */
     public synchronized void onExternalUpdate(ChangeLog changes) {
+        evictBundles(changes);
+    }
+
+    /**
+     * Evicts the bundles of all items in the given change log from the
+     * bundle caches.
+     *
+     * @param changes the change log
+     */
+    protected void evictBundles(ChangeLog changes) {
         for (ItemState state : changes.modifiedStates()) {
-            bundles.remove(getBundleId(state));
+            evictBundle(getBundleId(state));
         }
         for (ItemState state : changes.deletedStates()) {
-            bundles.remove(getBundleId(state));
+            evictBundle(getBundleId(state));
         }
         for (ItemState state : changes.addedStates()) {
             // There may have been a cache miss entry
-            bundles.remove(getBundleId(state));
+            evictBundle(getBundleId(state));
         }
     }
 
@@ -382,6 +575,48 @@ public abstract class AbstractBundlePersistenceManager implements
         return infos;
     }
 
+    //---------------------------------------< PrefetchingPersistenceManager >--
+
+    /**
+     * {@inheritDoc}
+     *
+     * Loads the bundles that are not in the bundle cache with a single call
+     * to {@link #loadBundles(Collection)} and puts them into the cache.
+     */
+    public void prefetch(Collection<NodeId> ids) throws ItemStateException {
+        List<NodeId> missing = new ArrayList<NodeId>();
+        for (NodeId id : ids) {
+            if (!bundles.containsKey(id)) {
+                long generation = storeGenerations.get(getStoreStripe(id));
+                NodePropBundle bundle = getOffHeapBundle(id);
+                if (bundle != null) {
+                    cacheLoadedBundle(id, bundle, generation, false);
+                } else {
+                    missing.add(id);
+                }
+            }
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+
+        long[] generations = new long[missing.size()];
+        for (int i = 0; i < generations.length; i++) {
+            generations[i] = storeGenerations.get(getStoreStripe(missing.get(i)));
+        }
+        long time = System.nanoTime();
+        log.debug("Prefetching {} bundles", missing.size());
+        Map<NodeId, NodePropBundle> loaded = loadBundles(missing);
+        time = System.nanoTime() - time;
+        cacheMissDuration.addAndGet(time);
+        bundles.recordMissDuration(time);
+        cacheMissCounter.addAndGet(missing.size());
+        for (int i = 0; i < generations.length; i++) {
+            NodeId id = missing.get(i);
+            cacheLoadedBundle(id, loaded.get(id), generations[i], true);
+        }
+    }
+
     //----------------------------------------------------------------< spi >---
 
     /**
@@ -395,6 +630,30 @@ public abstract class AbstractBundlePersistenceManager implements
     protected abstract NodePropBundle loadBundle(NodeId id)
             throws ItemStateException;
 
+    /**
+     * Loads the bundles with the given ids from the underlying system. This
+     * default implementation calls {@link #loadBundle(NodeId)} for each id.
+     * Subclasses should override it if they can read several bundles more
+     * efficiently at once.
+     *
+     * @param ids the node ids of the bundles
+     * @return the loaded bundles, keyed by node id. Bundles that do not
+     *         exist are not contained in the map.
+     * @throws ItemStateException if an error while loading occurs.
+     */
+    protected Map<NodeId, NodePropBundle> loadBundles(Collection<NodeId> ids)
+            throws ItemStateException {
+        Map<NodeId, NodePropBundle> result =
+            new HashMap<NodeId, NodePropBundle>(ids.size());
+        for (NodeId id : ids) {
+            NodePropBundle bundle = loadBundle(id);
+            if (bundle != null) {
+                result.put(id, bundle);
+            }
+        }
+        return result;
+    }
+
     /**
      * Stores a bundle to the underlying system.
      *
@@ -432,6 +691,17 @@ public abstract class AbstractBundlePersistenceManager implements
     protected abstract void store(NodeReferences refs)
             throws ItemStateException;
 
+    /**
+     * Returns the binding that is used to serialize bundles for the off-heap
+     * bundle cache. This default implementation returns <code>null</code>,
+     * which disables the off-heap bundle cache.
+     *
+     * @return the bundle binding, or <code>null</code>
+     */
+    protected BundleBinding getBundleBinding() {
+        return null;
+    }
+
     /**
      * Returns the BLOB store used by this persistence manager.
      *
@@ -439,6 +709,157 @@ public abstract class AbstractBundlePersistenceManager implements
      */
     protected abstract BLOBStore getBlobStore();
 
+    /**
+     * Configures the given binding to read and write child node pages from
+     * and to the given store. Child node lists are only split into pages
+     * if the {@link #setChildNodePageSize(String) childNodePageSize} is set,
+     * but existing pages can always be read. Subclasses that support child
+     * node pages call this method when they create their binding.
+     *
+     * @param binding the bundle binding
+     * @param store the child page store
+     */
+    protected void initChildPageStore(
+            BundleBinding binding, ChildPageStore store) {
+        binding.setChildPageStore(store, childNodePageSize);
+    }
+
+    /**
+     * Starts collecting the child node page changes of a store transaction
+     * in the current thread. The bundles written until the transaction is
+     * ended keep their previous pages, and the pages they no longer use are
+     * not removed, until {@link #endChildPageChanges(boolean, boolean)}
+     * reports that the transaction was committed. Subclasses that wrap the
+     * storage of change logs in a transaction call this method before the
+     * transaction is started.
+     *
+     * @return <code>true</code> if a transaction was started, or
+     *         <code>false</code> if the current thread already has one
+     */
+    protected boolean beginChildPageChanges() {
+        BundleBinding binding = getBundleBinding();
+        return binding != null && binding.beginChildPageChanges();
+    }
+
+    /**
+     * Ends the store transaction started by {@link #beginChildPageChanges()}
+     * after the transaction was committed or rolled back.
+     *
+     * @param started the return value of {@link #beginChildPageChanges()}
+     * @param committed whether the transaction was committed
+     */
+    protected void endChildPageChanges(boolean started, boolean committed) {
+        if (started) {
+            try {
+                getBundleBinding().endChildPageChanges(committed);
+            } catch (IOException e) {
+                log.warn("Unable to remove unused child node pages", e);
+            }
+        }
+    }
+
+    /**
+     * Removes the child node pages that are not used by any bundle and can
+     * not be read anymore, for example pages whose removal was deferred
+     * when the persistence manager was not closed properly. All stores are
+     * blocked while the bundles are scanned. Called by a consistency fix of
+     * all bundles.
+     *
+     * @return the number of removed pages
+     * @throws ItemStateException if the pages or bundles can not be read
+     */
+    protected int removeUnusedChildPages() throws ItemStateException {
+        BundleBinding binding = getBundleBinding();
+        ChildPageStore store =
+            binding != null ? binding.getChildPageStore() : null;
+        if (store == null) {
+            return 0;
+        }
+        if (concurrentStore) {
+            for (ReentrantLock lock : storeLocks) {
+                lock.lock();
+            }
+            try {
+                return removeUnusedChildPages(binding, store);
+            } finally {
+                for (int i = storeLocks.length - 1; i >= 0; i--) {
+                    storeLocks[i].unlock();
+                }
+            }
+        } else {
+            synchronized (this) {
+                return removeUnusedChildPages(binding, store);
+            }
+        }
+    }
+
+    private int removeUnusedChildPages(
+            BundleBinding binding, ChildPageStore store)
+            throws ItemStateException {
+        Set<NodeId> unused;
+        try {
+            unused = new HashSet<NodeId>(store.getAllPageIds());
+        } catch (Exception e) {
+            throw new ItemStateException("Failed to list child node pages", e);
+        }
+        NodeId after = null;
+        while (!unused.isEmpty()) {
+            List<NodeId> ids = getAllNodeIdsUnchecked(after, 1000);
+            if (ids.isEmpty()) {
+                break;
+            }
+            for (NodeId id : ids) {
+                NodePropBundle bundle = loadBundle(id);
+                if (bundle != null) {
+                    unused.removeAll(bundle.getChildPageIds());
+                }
+                after = id;
+            }
+        }
+        int count = 0;
+        for (NodeId pageId : unused) {
+            if (!binding.isChildPageInUse(pageId)) {
+                try {
+                    store.remove(pageId);
+                    count++;
+                } catch (Exception e) {
+                    throw new ItemStateException(
+                            "Failed to remove child node page " + pageId, e);
+                }
+            }
+        }
+        if (count > 0) {
+            log.info("Removed {} unused child node pages", count);
+        }
+        return count;
+    }
+
+    private List<NodeId> getAllNodeIdsUnchecked(NodeId after, int maxCount)
+            throws ItemStateException {
+        try {
+            return getAllNodeIds(after, maxCount);
+        } catch (RepositoryException e) {
+            throw new ItemStateException("Failed to list node ids", e);
+        }
+    }
+
+    /**
+     * Removes the child node pages that are no longer used, but whose
+     * removal was deferred because node states could still read them.
+     * Subclasses that support child node pages call this method when they
+     * are closed, before they close the storage of the pages.
+     */
+    protected void closeChildPageStore() {
+        BundleBinding binding = getBundleBinding();
+        if (binding != null) {
+            try {
+                binding.reclaimChildPages();
+            } catch (IOException e) {
+                log.warn("Unable to remove unused child node pages", e);
+            }
+        }
+    }
+
     //-------------------------------------------------< PersistenceManager >---
 
     /**
@@ -449,9 +870,15 @@ public abstract class AbstractBundlePersistenceManager implements
     public void init(PMContext context) throws Exception {
         this.context = context;
         // init bundle cache
-        bundles = new ConcurrentCache<NodeId, NodePropBundle>(context.getHomeDir().getName() + "BundleCache");
+        bundles = AbstractMapCache.newInstance(
+                context.getHomeDir().getName() + "BundleCache", bundleCacheType);
         bundles.setMaxMemorySize(bundleCacheSize);
         bundles.setAccessListener(this);
+        if (offHeapBundleCacheSize > 0) {
+            offHeapBundles = new OffHeapCache<NodeId>(
+                    context.getHomeDir().getName() + "OffHeapBundleCache",
+                    offHeapBundleCacheSize);
+        }
 
         // statistics
         RepositoryStatisticsImpl stats = context.getRepositoryStatistics();
@@ -469,6 +896,12 @@ public abstract class AbstractBundlePersistenceManager implements
                 RepositoryStatistics.Type.BUNDLE_CACHE_MISS_COUNTER);
         cacheMissDuration = stats.getCounter(
                 RepositoryStatistics.Type.BUNDLE_CACHE_MISS_DURATION);
+        offHeapHitCounter = stats.getCounter(
+                RepositoryStatistics.Type.BUNDLE_OFF_HEAP_CACHE_HIT_COUNTER);
+        offHeapMissCounter = stats.getCounter(
+                RepositoryStatistics.Type.BUNDLE_OFF_HEAP_CACHE_MISS_COUNTER);
+        offHeapSizeCounter = stats.getCounter(
+                RepositoryStatistics.Type.BUNDLE_OFF_HEAP_CACHE_SIZE_COUNTER);
     }
 
     /**
@@ -479,6 +912,9 @@ public abstract class AbstractBundlePersistenceManager implements
     public void close() throws Exception {
         // clear caches
         bundles.clear();
+        if (offHeapBundles != null) {
+            offHeapBundles.clear();
+        }
     }
 
     /**
@@ -583,11 +1019,66 @@ public abstract class AbstractBundlePersistenceManager implements
      * or node references objects. Properly implemented, this method
      * should ensure that changes are either written completely to
      * the underlying persistence layer, or not at all.
+     * <p>
+     * Unless {@link #setConcurrentStore(String) concurrentStore} is
+     * enabled, this method synchronizes on the persistence manager
+     * instance. Otherwise only the lock stripes of the bundles and
+     * references in the change log are held while it is stored.
      *
      * {@inheritDoc}
      */
-    public synchronized void store(ChangeLog changeLog)
+    public void store(ChangeLog changeLog) throws ItemStateException {
+        int[] stripes = getStoreStripes(changeLog);
+        if (concurrentStore) {
+            for (int stripe : stripes) {
+                storeLocks[stripe].lock();
+            }
+            try {
+                storeChangeLog(changeLog, stripes);
+            } finally {
+                for (int i = stripes.length - 1; i >= 0; i--) {
+                    storeLocks[stripes[i]].unlock();
+                }
+            }
+        } else {
+            synchronized (this) {
+                storeChangeLog(changeLog, stripes);
+            }
+        }
+    }
+
+    /**
+     * Stores the given changelog while its write generations are odd.
+     *
+     * @param changeLog the changelog to store
+     * @param stripes the lock stripes of the changelog
+     * @throws ItemStateException on failure
+     */
+    private void storeChangeLog(ChangeLog changeLog, int[] stripes)
+            throws ItemStateException {
+        for (int stripe : stripes) {
+            storeGenerations.incrementAndGet(stripe);
+        }
+        try {
+            storeChangeLog(changeLog);
+        } finally {
+            for (int stripe : stripes) {
+                storeGenerations.incrementAndGet(stripe);
+            }
+        }
+    }
+
+    /**
+     * Stores the given changelog while the locks guarding it are held.
+     * Subclasses may override this method to wrap the storage of the
+     * change log in a transaction of the underlying system.
+     *
+     * @param changeLog the changelog to store
+     * @throws ItemStateException on failure
+     */
+    protected void storeChangeLog(ChangeLog changeLog)
             throws ItemStateException {
+        boolean started = beginChildPageChanges();
         boolean success = false;
         try {
             storeInternal(changeLog);
@@ -595,8 +1086,57 @@ public abstract class AbstractBundlePersistenceManager implements
         } finally {
             if (!success) {
                 bundles.clear();
+                if (offHeapBundles != null) {
+                    offHeapBundles.clear();
+                }
+            }
+            endChildPageChanges(started, success);
+        }
+    }
+
+    /**
+     * Returns the lock stripes of all bundles and node references that
+     * are affected by the given change log, in ascending order so that
+     * concurrent writers always acquire them in the same order.
+     *
+     * @param changeLog the change log
+     * @return the sorted lock stripes
+     */
+    private int[] getStoreStripes(ChangeLog changeLog) {
+        boolean[] used = new boolean[STORE_LOCK_STRIPES];
+        int count = 0;
+        for (ItemState state : changeLog.addedStates()) {
+            count += markStripe(used, getBundleId(state));
+        }
+        for (ItemState state : changeLog.modifiedStates()) {
+            count += markStripe(used, getBundleId(state));
+        }
+        for (ItemState state : changeLog.deletedStates()) {
+            count += markStripe(used, getBundleId(state));
+        }
+        for (NodeReferences refs : changeLog.modifiedRefs()) {
+            count += markStripe(used, refs.getTargetId());
+        }
+        int[] stripes = new int[count];
+        for (int i = 0, j = 0; i < used.length; i++) {
+            if (used[i]) {
+                stripes[j++] = i;
             }
         }
+        return stripes;
+    }
+
+    private static int markStripe(boolean[] used, NodeId id) {
+        int stripe = getStoreStripe(id);
+        if (used[stripe]) {
+            return 0;
+        }
+        used[stripe] = true;
+        return 1;
+    }
+
+    private static int getStoreStripe(NodeId id) {
+        return (id.hashCode() & 0x7fffffff) % STORE_LOCK_STRIPES;
     }
 
     /**
@@ -762,18 +1302,121 @@ public abstract class AbstractBundlePersistenceManager implements
      */
     private NodePropBundle getBundleCacheMiss(NodeId id)
             throws ItemStateException {
+        long generation = storeGenerations.get(getStoreStripe(id));
+        NodePropBundle bundle = getOffHeapBundle(id);
+        if (bundle != null) {
+            cacheLoadedBundle(id, bundle, generation, false);
+            return bundle;
+        }
         long time = System.nanoTime();
         log.debug("Loading bundle {}", id);
-        NodePropBundle bundle = loadBundle(id);
-        cacheMissDuration.addAndGet(System.nanoTime() - time);
+        bundle = loadBundle(id);
+        time = System.nanoTime() - time;
+        cacheMissDuration.addAndGet(time);
+        bundles.recordMissDuration(time);
         cacheMissCounter.incrementAndGet();
+        cacheLoadedBundle(id, bundle, generation, true);
+        return bundle;
+    }
+
+    /**
+     * Returns the bundle with the given id from the off-heap bundle cache.
+     *
+     * @param id the id of the bundle
+     * @return the bundle, or <code>null</code> if the off-heap bundle cache
+     *         is disabled or does not contain the bundle
+     */
+    private NodePropBundle getOffHeapBundle(NodeId id) {
+        BundleBinding binding = getBundleBinding();
+        if (offHeapBundles == null || binding == null) {
+            return null;
+        }
+        byte[] data = offHeapBundles.get(id);
+        if (data != null) {
+            try {
+                NodePropBundle bundle =
+                    binding.readBundle(ByteBuffer.wrap(data), id);
+                offHeapHitCounter.incrementAndGet();
+                return bundle;
+            } catch (IOException e) {
+                log.warn("Unable to read bundle " + id
+                        + " from the off-heap bundle cache", e);
+                offHeapBundles.remove(id);
+            }
+        }
+        offHeapMissCounter.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Serializes the given bundle for the off-heap bundle cache, without
+     * writing or releasing any of its child node pages.
+     *
+     * @param bundle the bundle
+     * @return the serialized bundle, or <code>null</code> if the off-heap
+     *         bundle cache is disabled or the bundle can not be serialized
+     */
+    private byte[] getOffHeapData(NodePropBundle bundle) {
+        BundleBinding binding = getBundleBinding();
+        if (offHeapBundles == null || binding == null) {
+            return null;
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(
+                    (int) Math.min(bundle.getSize(), offHeapBundles.getMaxEntrySize()));
+            binding.writeBundleAsIs(out, bundle);
+            return out.toByteArray();
+        } catch (IOException e) {
+            log.warn("Unable to put bundle " + bundle.getId()
+                    + " into the off-heap bundle cache", e);
+            return null;
+        }
+    }
+
+    /**
+     * Puts a bundle that was loaded from the PM impl into the cache, unless
+     * a change log touching the lock stripe of the bundle was stored by
+     * another thread while the bundle was loaded.
+     *
+     * @param id the id of the bundle
+     * @param bundle the loaded bundle, or <code>null</code> if it does not exist
+     * @param generation the write generation of the lock stripe of the
+     *                   bundle before it was loaded
+     * @param offHeap whether the bundle should also be put into the
+     *                off-heap bundle cache
+     */
+    private void cacheLoadedBundle(
+            NodeId id, NodePropBundle bundle, long generation, boolean offHeap) {
         if (bundle != null) {
             bundle.markOld();
+        }
+        int stripe = getStoreStripe(id);
+        boolean writer = concurrentStore
+            ? storeLocks[stripe].isHeldByCurrentThread()
+            : Thread.holdsLock(this);
+        if (!writer && (generation & 1) != 0) {
+            // a concurrent writer is storing a bundle of the same lock
+            // stripe, so the loaded bundle may be outdated soon
+            return;
+        }
+        // serialize before the bundle is visible to other threads
+        byte[] data = null;
+        if (offHeap && bundle != null) {
+            data = getOffHeapData(bundle);
+        }
+        if (bundle != null) {
             bundles.put(id, bundle, bundle.getSize());
         } else {
             bundles.put(id, MISSING, MISSING_SIZE_ESTIMATE);
         }
-        return bundle;
+        if (data != null) {
+            offHeapBundles.put(id, data);
+        }
+        if (!writer && generation != storeGenerations.get(stripe)) {
+            // a concurrent writer touched the lock stripe while the bundle
+            // was loaded, so the cached bundle may be outdated
+            evictBundle(id);
+        }
     }
 
     /**
@@ -783,9 +1426,23 @@ public abstract class AbstractBundlePersistenceManager implements
      * @throws ItemStateException if an error occurs
      */
     private void deleteBundle(NodePropBundle bundle) throws ItemStateException {
+        BundleBinding binding = getBundleBinding();
+        if (binding != null) {
+            try {
+                binding.removeChildPages(bundle);
+            } catch (IOException e) {
+                String msg = "failed to delete child node pages of bundle: "
+                    + bundle.getId();
+                log.error(msg, e);
+                throw new ItemStateException(msg, e);
+            }
+        }
         destroyBundle(bundle);
         bundle.removeAllProperties(getBlobStore());
         bundles.put(bundle.getId(), MISSING, MISSING_SIZE_ESTIMATE);
+        if (offHeapBundles != null) {
+            offHeapBundles.remove(bundle.getId());
+        }
     }
 
     /**
@@ -811,6 +1468,9 @@ public abstract class AbstractBundlePersistenceManager implements
         if (bundles.containsKey(bundle.getId())) {
             bundles.put(bundle.getId(), bundle, bundle.getSize());
         }
+        if (offHeapBundles != null) {
+            offHeapBundles.remove(bundle.getId());
+        }
     }
 
     /**
@@ -823,9 +1483,14 @@ public abstract class AbstractBundlePersistenceManager implements
             checker.doubleCheckErrors();
             if (fix) {
                 checker.repair();
+                if (uuids == null) {
+                    removeUnusedChildPages();
+                }
             }
         } catch (RepositoryException ex) {
             log.error("While running consistency check.", ex);
+        } catch (ItemStateException ex) {
+            log.error("While removing unused child node pages.", ex);
         }
     }
 
@@ -844,23 +1509,37 @@ public abstract class AbstractBundlePersistenceManager implements
         checker.doubleCheckErrors();
         if (fix) {
             checker.repair();
+            if (uuids == null) {
+                try {
+                    removeUnusedChildPages();
+                } catch (ItemStateException e) {
+                    throw new RepositoryException(e);
+                }
+            }
         }
         return checker.getReport();
     }
 
     /**
-     * Evicts the bundle with <code>id</code> from the bundle cache.
+     * Evicts the bundle with <code>id</code> from the bundle cache and
+     * the off-heap bundle cache.
      *
      * @param id the id of the bundle.
      */
     protected void evictBundle(NodeId id) {
         bundles.remove(id);
+        if (offHeapBundles != null) {
+            offHeapBundles.remove(id);
+        }
     }
 
     public void cacheAccessed(long accessCount) {
         logCacheStats();
         cacheAccessCounter.addAndGet(accessCount);
         cacheSizeCounter.set(bundles.getMemoryUsed());
+        if (offHeapBundles != null) {
+            offHeapSizeCounter.set(offHeapBundles.getMemoryAllocated());
+        }
     }
 
     private void logCacheStats() {
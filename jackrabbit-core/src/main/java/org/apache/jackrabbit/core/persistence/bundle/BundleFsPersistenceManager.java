@@ -26,6 +26,7 @@ import org.apache.jackrabbit.core.fs.local.LocalFileSystem;
 import org.apache.jackrabbit.core.persistence.PMContext;
 import org.apache.jackrabbit.core.persistence.util.BLOBStore;
 import org.apache.jackrabbit.core.persistence.util.BundleBinding;
+import org.apache.jackrabbit.core.persistence.util.ChildPageStore;
 import org.apache.jackrabbit.core.persistence.util.ErrorHandling;
 import org.apache.jackrabbit.core.persistence.util.FileSystemBLOBStore;
 import org.apache.jackrabbit.core.persistence.util.NodePropBundle;
@@ -37,12 +38,23 @@ import org.apache.jackrabbit.core.state.NoSuchItemStateException;
 import org.apache.jackrabbit.core.state.NodeReferences;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * This is a generic persistence manager that stores the {@link NodePropBundle}s
@@ -53,6 +65,7 @@ import java.util.List;
  * <li>&lt;param name="{@link #setBlobFSBlockSize(String) blobFSBlockSize}" value="0"/>
  * <li>&lt;param name="{@link #setMinBlobSize(String) minBlobSize}" value="4096"/>
  * <li>&lt;param name="{@link #setErrorHandling(String) errorHandling}" value=""/>
+ * <li>&lt;param name="{@link #setPrefetchThreads(String) prefetchThreads}" value="0"/>
  * </ul>
  */
 public class BundleFsPersistenceManager extends AbstractBundlePersistenceManager {
@@ -60,6 +73,9 @@ public class BundleFsPersistenceManager extends AbstractBundlePersistenceManager
     /** the default logger */
     private static Logger log = LoggerFactory.getLogger(BundleFsPersistenceManager.class);
 
+    /** the prefix of a child node page file */
+    private static final String CHILDPAGEFILENAME = "c";
+
     /** flag indicating if this manager was initialized */
     protected boolean initialized;
 
@@ -98,6 +114,19 @@ public class BundleFsPersistenceManager extends AbstractBundlePersistenceManager
      */
     private String name = super.toString();
 
+    /**
+     * the number of threads that read bundles in parallel when several
+     * bundles are prefetched
+     * @see #setPrefetchThreads(String)
+     */
+    private int prefetchThreads = 0;
+
+    /**
+     * the executor that reads prefetched bundles, or <code>null</code>
+     * if bundles are read sequentially
+     */
+    private ExecutorService prefetchExecutor;
+
 
     /**
      * Returns the configured block size of the blob cqfs
@@ -169,6 +198,26 @@ public class BundleFsPersistenceManager extends AbstractBundlePersistenceManager
         return errorHandling.toString();
     }
 
+    /**
+     * Returns the number of threads that read prefetched bundles.
+     * @return the number of prefetch threads.
+     */
+    public String getPrefetchThreads() {
+        return String.valueOf(prefetchThreads);
+    }
+
+    /**
+     * Sets the number of threads that read bundles in parallel when the
+     * bundles of several nodes are prefetched, for example while iterating
+     * over child nodes or query results. If 0 (the default), the bundles
+     * are read sequentially by the calling thread.
+     *
+     * @param prefetchThreads the number of prefetch threads
+     */
+    public void setPrefetchThreads(String prefetchThreads) {
+        this.prefetchThreads = Integer.decode(prefetchThreads).intValue();
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -196,6 +245,18 @@ public class BundleFsPersistenceManager extends AbstractBundlePersistenceManager
         // load namespaces
         binding = new BundleBinding(errorHandling, blobStore, getNsIndex(), getNameIndex(), context.getDataStore());
         binding.setMinBlobSize(minBlobSize);
+        initChildPageStore(binding, new FsChildPageStore());
+
+        if (prefetchThreads > 0) {
+            prefetchExecutor = Executors.newFixedThreadPool(
+                    prefetchThreads, new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "BundleFsPersistenceManager-prefetch-" + name);
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+        }
 
         initialized = true;
     }
@@ -208,6 +269,14 @@ public class BundleFsPersistenceManager extends AbstractBundlePersistenceManager
         return blobStore;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected BundleBinding getBundleBinding() {
+        return binding;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -217,6 +286,11 @@ public class BundleFsPersistenceManager extends AbstractBundlePersistenceManager
         }
 
         try {
+            if (prefetchExecutor != null) {
+                prefetchExecutor.shutdown();
+                prefetchExecutor = null;
+            }
+            closeChildPageStore();
             // close blob store
             blobStore.close();
             blobStore = null;
@@ -237,12 +311,16 @@ public class BundleFsPersistenceManager extends AbstractBundlePersistenceManager
             if (!itemFs.exists(path)) {
                 return null;
             }
+            byte[] data = new byte[(int) itemFs.length(path)];
             InputStream in = itemFs.getInputStream(path);
             try {
-                return binding.readBundle(in, id);
+                if (IOUtils.read(in, data) != data.length) {
+                    throw new IOException("Truncated bundle file " + path);
+                }
             } finally {
                 IOUtils.closeQuietly(in);
             }
+            return binding.readBundle(ByteBuffer.wrap(data), id);
         } catch (Exception e) {
             String msg = "failed to read bundle: " + id + ": " + e;
             log.error(msg);
@@ -250,6 +328,55 @@ public class BundleFsPersistenceManager extends AbstractBundlePersistenceManager
         }
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * If {@link #setPrefetchThreads(String) prefetchThreads} is set, the
+     * bundle files are read in parallel by the prefetch threads.
+     */
+    @Override
+    protected Map<NodeId, NodePropBundle> loadBundles(Collection<NodeId> ids)
+            throws ItemStateException {
+        ExecutorService executor = prefetchExecutor;
+        if (executor == null || ids.size() < 2) {
+            return super.loadBundles(ids);
+        }
+
+        Map<NodeId, Future<NodePropBundle>> futures =
+            new HashMap<NodeId, Future<NodePropBundle>>(ids.size());
+        for (final NodeId id : ids) {
+            futures.put(id, executor.submit(new Callable<NodePropBundle>() {
+                public NodePropBundle call() throws ItemStateException {
+                    return loadBundle(id);
+                }
+            }));
+        }
+
+        Map<NodeId, NodePropBundle> result =
+            new HashMap<NodeId, NodePropBundle>(ids.size());
+        try {
+            for (Map.Entry<NodeId, Future<NodePropBundle>> entry : futures.entrySet()) {
+                NodePropBundle bundle = entry.getValue().get();
+                if (bundle != null) {
+                    result.put(entry.getKey(), bundle);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ItemStateException("interrupted while reading bundles", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ItemStateException) {
+                throw (ItemStateException) e.getCause();
+            }
+            throw new ItemStateException("failed to read bundles", e.getCause());
+        } finally {
+            for (Future<NodePropBundle> future : futures.values()) {
+                future.cancel(false);
+            }
+        }
+        return result;
+    }
+
     /**
      * Creates the file path for the given node id that is
      * suitable for storing node states in a filesystem.
@@ -268,6 +395,19 @@ public class BundleFsPersistenceManager extends AbstractBundlePersistenceManager
         return buf;
     }
 
+    /**
+     * Creates the file path for the given child node page id.
+     *
+     * @param pageId the id of the page
+     * @return the file path
+     */
+    private String buildChildPageFilePath(NodeId pageId) {
+        StringBuffer buf = buildNodeFolderPath(null, pageId);
+        buf.append('.');
+        buf.append(CHILDPAGEFILENAME);
+        return buf.toString();
+    }
+
     /**
      * Creates the file path for the given references id that is
      * suitable for storing reference states in a filesystem.
@@ -487,7 +627,8 @@ public class BundleFsPersistenceManager extends AbstractBundlePersistenceManager
             throws ItemStateException {
         ArrayList<NodeId> list = new ArrayList<NodeId>();
         try {
-            getListRecursive(list, "", bigger == null ? null : bigger, maxCount);
+            getListRecursive(list, "", NODEFILENAME,
+                    bigger == null ? null : bigger, maxCount);
             return list;
         } catch (FileSystemException e) {
             String msg = "failed to read node list: " + bigger + ": " + e;
@@ -500,8 +641,20 @@ public class BundleFsPersistenceManager extends AbstractBundlePersistenceManager
      * {@inheritDoc}
      */
     protected NodeId getIdFromFileName(String fileName) {
+        return getIdFromFileName(fileName, NODEFILENAME);
+    }
+
+    /**
+     * Returns the id of the bundle or child node page stored in the given
+     * file.
+     *
+     * @param fileName the file name
+     * @param suffix the suffix of the files of bundles or pages
+     * @return the id, or <code>null</code> if the file has another suffix
+     */
+    private NodeId getIdFromFileName(String fileName, String suffix) {
         StringBuffer buff = new StringBuffer(35);
-        if (!fileName.endsWith("." + NODEFILENAME)) {
+        if (!fileName.endsWith("." + suffix)) {
             return null;
         }
         for (int i = 0; i < fileName.length(); i++) {
@@ -521,8 +674,8 @@ public class BundleFsPersistenceManager extends AbstractBundlePersistenceManager
     }
 
     private void getListRecursive(
-            ArrayList<NodeId> list, String path, NodeId bigger, int maxCount)
-            throws FileSystemException {
+            ArrayList<NodeId> list, String path, String suffix,
+            NodeId bigger, int maxCount) throws FileSystemException {
         if (maxCount > 0 && list.size() >= maxCount) {
             return;
         }
@@ -530,7 +683,7 @@ public class BundleFsPersistenceManager extends AbstractBundlePersistenceManager
         Arrays.sort(files);
         for (int i = 0; i < files.length; i++) {
             String f = files[i];
-            NodeId n = getIdFromFileName(path + FileSystem.SEPARATOR + f);
+            NodeId n = getIdFromFileName(path + FileSystem.SEPARATOR + f, suffix);
             if (n == null) {
                 continue;
             }
@@ -546,8 +699,68 @@ public class BundleFsPersistenceManager extends AbstractBundlePersistenceManager
         Arrays.sort(dirs);
         for (int i = 0; i < dirs.length; i++) {
             getListRecursive(list, path + FileSystem.SEPARATOR + dirs[i],
-                    bigger, maxCount);
+                    suffix, bigger, maxCount);
         }
     }
 
+    /**
+     * Store of the child node pages, that keeps the pages in files next
+     * to the bundle files.
+     */
+    private class FsChildPageStore implements ChildPageStore {
+
+        /**
+         * {@inheritDoc}
+         */
+        public byte[] get(NodeId pageId) throws Exception {
+            String path = buildChildPageFilePath(pageId);
+            if (!itemFs.exists(path)) {
+                return null;
+            }
+            InputStream in = itemFs.getInputStream(path);
+            try {
+                return IOUtils.toByteArray(in);
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void put(NodeId pageId, byte[] data) throws Exception {
+            String path = buildChildPageFilePath(pageId);
+            String dir = path.substring(0, path.lastIndexOf(FileSystem.SEPARATOR_CHAR));
+            if (!itemFs.exists(dir)) {
+                itemFs.createFolder(dir);
+            }
+            OutputStream out = itemFs.getOutputStream(path);
+            try {
+                out.write(data);
+            } finally {
+                out.close();
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void remove(NodeId pageId) throws Exception {
+            String path = buildChildPageFilePath(pageId);
+            if (itemFs.exists(path)) {
+                itemFs.deleteFile(path);
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public List<NodeId> getAllPageIds() throws Exception {
+            ArrayList<NodeId> list = new ArrayList<NodeId>();
+            getListRecursive(list, "", CHILDPAGEFILENAME, null, 0);
+            return list;
+        }
+
+    }
+
 }
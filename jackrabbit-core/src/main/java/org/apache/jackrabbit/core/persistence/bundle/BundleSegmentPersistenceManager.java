@@ -0,0 +1,555 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.persistence.bundle;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jackrabbit.core.fs.local.LocalFileSystem;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.persistence.PMContext;
+import org.apache.jackrabbit.core.persistence.util.BLOBStore;
+import org.apache.jackrabbit.core.persistence.util.BundleBinding;
+import org.apache.jackrabbit.core.persistence.util.ChildPageStore;
+import org.apache.jackrabbit.core.persistence.util.ErrorHandling;
+import org.apache.jackrabbit.core.persistence.util.FileSystemBLOBStore;
+import org.apache.jackrabbit.core.persistence.util.NodeInfo;
+import org.apache.jackrabbit.core.persistence.util.NodePropBundle;
+import org.apache.jackrabbit.core.persistence.util.SegmentStore;
+import org.apache.jackrabbit.core.persistence.util.Serializer;
+import org.apache.jackrabbit.core.state.ItemStateException;
+import org.apache.jackrabbit.core.state.NoSuchItemStateException;
+import org.apache.jackrabbit.core.state.NodeReferences;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persistence manager that appends the {@link NodePropBundle}s and node
+ * references to a few large, memory mapped segment files instead of
+ * storing each of them in a file of its own. An in-memory index maps the
+ * node ids to the records in the segments, so loading a bundle is an
+ * index lookup and a read from mapped memory without any system call.
+ * <p>
+ * Replaced and deleted records are reclaimed by a background thread
+ * that periodically compacts the segments with little live data, see
+ * {@link SegmentStore}. Like the {@link BundleFsPersistenceManager}, the
+ * changes are not explicitly synced to disk before a save completes.
+ * <p>
+ * The segments are stored in the <code>segments</code> directory and the
+ * large binaries in the <code>blobs</code> directory of the workspace or
+ * version home directory.
+ * <p>
+ * Configuration:<br>
+ * <ul>
+ * <li>&lt;param name="{@link #setSegmentSize(String) segmentSize}" value="67108864"/>
+ * <li>&lt;param name="{@link #setCompactionInterval(String) compactionInterval}" value="60"/>
+ * <li>&lt;param name="{@link #setCompactionThreshold(String) compactionThreshold}" value="50"/>
+ * <li>&lt;param name="{@link #setMinBlobSize(String) minBlobSize}" value="4096"/>
+ * <li>&lt;param name="{@link #setErrorHandling(String) errorHandling}" value=""/>
+ * </ul>
+ */
+public class BundleSegmentPersistenceManager
+        extends AbstractBundlePersistenceManager {
+
+    /** the default logger */
+    private static Logger log =
+        LoggerFactory.getLogger(BundleSegmentPersistenceManager.class);
+
+    /** the record type of bundles and child node pages */
+    private static final int BUNDLE = 0;
+
+    /** the record type of node references */
+    private static final int REFERENCES = 1;
+
+    /** flag indicating if this manager was initialized */
+    protected boolean initialized;
+
+    /**
+     * the size of new segment files
+     * @see #setSegmentSize(String)
+     */
+    private int segmentSize = 64 * 1024 * 1024;
+
+    /**
+     * the number of seconds between two compactions
+     * @see #setCompactionInterval(String)
+     */
+    private int compactionInterval = 60;
+
+    /**
+     * the live data percentage below which a segment is compacted
+     * @see #setCompactionThreshold(String)
+     */
+    private int compactionThreshold = 50;
+
+    /**
+     * the minimum size of a property until it gets written to the blob store
+     * @see #setMinBlobSize(String)
+     */
+    private int minBlobSize = 0x1000;
+
+    /**
+     * flag for error handling
+     */
+    protected ErrorHandling errorHandling = new ErrorHandling();
+
+    /**
+     * the bundle binding
+     */
+    protected BundleBinding binding;
+
+    /**
+     * the store of the bundle and reference records
+     */
+    private SegmentStore store;
+
+    /**
+     * the file system where BLOB data is stored
+     */
+    private LocalFileSystem blobFs;
+
+    /**
+     * the BLOB store
+     */
+    private BLOBStore blobStore;
+
+    /**
+     * the executor that compacts the segments in the background, or
+     * <code>null</code> if compaction is disabled
+     */
+    private ScheduledExecutorService compactionExecutor;
+
+    /**
+     * the name of this persistence manager
+     */
+    private String name = super.toString();
+
+    /**
+     * Returns the size of new segment files.
+     * @return the segment size in bytes.
+     */
+    public String getSegmentSize() {
+        return String.valueOf(segmentSize);
+    }
+
+    /**
+     * Sets the size of new segment files. Bundles that are larger are
+     * stored in a segment of their own. Defaults to 64MB.
+     *
+     * @param segmentSize the segment size in bytes
+     */
+    public void setSegmentSize(String segmentSize) {
+        this.segmentSize = Integer.decode(segmentSize).intValue();
+    }
+
+    /**
+     * Returns the interval between two compactions.
+     * @return the compaction interval in seconds.
+     */
+    public String getCompactionInterval() {
+        return String.valueOf(compactionInterval);
+    }
+
+    /**
+     * Sets the number of seconds between two runs of the background
+     * compaction. If 0, the segments are only compacted when
+     * {@link #compact()} is called. Defaults to 60 seconds.
+     *
+     * @param compactionInterval the compaction interval in seconds
+     */
+    public void setCompactionInterval(String compactionInterval) {
+        this.compactionInterval = Integer.decode(compactionInterval).intValue();
+    }
+
+    /**
+     * Returns the live data percentage below which a segment is compacted.
+     * @return the compaction threshold.
+     */
+    public String getCompactionThreshold() {
+        return String.valueOf(compactionThreshold);
+    }
+
+    /**
+     * Sets the percentage of live data below which a segment is compacted.
+     * Higher values reclaim more disk space, but copy more data. Defaults
+     * to 50.
+     *
+     * @param compactionThreshold the compaction threshold in percent
+     */
+    public void setCompactionThreshold(String compactionThreshold) {
+        this.compactionThreshold = Integer.decode(compactionThreshold).intValue();
+    }
+
+    /**
+     * Returns the mininum blob size.
+     * @return the mininum blob size.
+     */
+    public String getMinBlobSize() {
+        return String.valueOf(minBlobSize);
+    }
+
+    /**
+     * Sets the minimum blob size. This size defines the threshold of which
+     * size a property is included in the bundle or is stored in the blob store.
+     *
+     * @param minBlobSize
+     */
+    public void setMinBlobSize(String minBlobSize) {
+        this.minBlobSize = Integer.decode(minBlobSize).intValue();
+    }
+
+    /**
+     * Sets the error handling behaviour of this manager. See {@link ErrorHandling}
+     * for details about the flags.
+     *
+     * @param errorHandling
+     */
+    public void setErrorHandling(String errorHandling) {
+        this.errorHandling = new ErrorHandling(errorHandling);
+    }
+
+    /**
+     * Returns the error handling configuration of this manager
+     * @return the error handling configuration of this manager
+     */
+    public String getErrorHandling() {
+        return errorHandling.toString();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void init(PMContext context) throws Exception {
+        if (initialized) {
+            throw new IllegalStateException("already initialized");
+        }
+        super.init(context);
+
+        this.name = context.getHomeDir().getName();
+
+        store = new SegmentStore(
+                new File(context.getHomeDir(), "segments"), segmentSize, 2);
+        store.open();
+
+        blobFs = new LocalFileSystem();
+        blobFs.setRoot(new File(context.getHomeDir(), "blobs"));
+        blobFs.init();
+        blobStore = new FileSystemBLOBStore(blobFs);
+
+        binding = new BundleBinding(errorHandling, blobStore, getNsIndex(), getNameIndex(), context.getDataStore());
+        binding.setMinBlobSize(minBlobSize);
+        initChildPageStore(binding, new SegmentChildPageStore());
+
+        if (compactionInterval > 0) {
+            compactionExecutor = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "BundleSegmentPersistenceManager-compaction-" + name);
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            compactionExecutor.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        compact();
+                    } catch (Exception e) {
+                        log.warn("Failed to compact the segments of " + name, e);
+                    }
+                }
+            }, compactionInterval, compactionInterval, TimeUnit.SECONDS);
+        }
+
+        initialized = true;
+    }
+
+    /**
+     * Compacts the segments whose live data is below the
+     * {@link #setCompactionThreshold(String) compaction threshold}.
+     *
+     * @return the number of compacted segments
+     * @throws Exception if the segments can not be compacted
+     */
+    public int compact() throws Exception {
+        int count = store.compact(compactionThreshold);
+        if (count > 0) {
+            log.info("Compacted {} segments of {}", count, name);
+        }
+        return count;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected BLOBStore getBlobStore() {
+        return blobStore;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected BundleBinding getBundleBinding() {
+        return binding;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized void close() throws Exception {
+        if (!initialized) {
+            throw new IllegalStateException("not initialized");
+        }
+
+        try {
+            if (compactionExecutor != null) {
+                compactionExecutor.shutdown();
+                compactionExecutor.awaitTermination(1, TimeUnit.MINUTES);
+                compactionExecutor = null;
+            }
+            closeChildPageStore();
+            store.close();
+            store = null;
+            blobFs.close();
+            blobFs = null;
+            super.close();
+        } finally {
+            initialized = false;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    protected NodePropBundle loadBundle(NodeId id) throws ItemStateException {
+        ByteBuffer buffer = store.get(BUNDLE, id);
+        if (buffer == null) {
+            return null;
+        }
+        try {
+            return binding.readBundle(buffer, id);
+        } catch (Exception e) {
+            String msg = "failed to read bundle: " + id + ": " + e;
+            log.error(msg);
+            throw new ItemStateException(msg, e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    protected void storeBundle(NodePropBundle bundle) throws ItemStateException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            binding.writeBundle(out, bundle);
+            store.put(BUNDLE, bundle.getId(), out.toByteArray());
+        } catch (Exception e) {
+            String msg = "failed to write bundle: " + bundle.getId();
+            log.error(msg, e);
+            throw new ItemStateException(msg, e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    protected void destroyBundle(NodePropBundle bundle) throws ItemStateException {
+        try {
+            store.remove(BUNDLE, bundle.getId());
+        } catch (Exception e) {
+            String msg = "failed to delete bundle: " + bundle.getId();
+            log.error(msg, e);
+            throw new ItemStateException(msg, e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public NodeReferences loadReferencesTo(NodeId targetId)
+            throws NoSuchItemStateException, ItemStateException {
+        if (!initialized) {
+            throw new IllegalStateException("not initialized");
+        }
+        ByteBuffer buffer = store.get(REFERENCES, targetId);
+        if (buffer == null) {
+            throw new NoSuchItemStateException(targetId.toString());
+        }
+        try {
+            byte[] data = new byte[buffer.remaining()];
+            buffer.get(data);
+            NodeReferences refs = new NodeReferences(targetId);
+            Serializer.deserialize(refs, new ByteArrayInputStream(data));
+            return refs;
+        } catch (Exception e) {
+            String msg = "failed to read references: " + targetId;
+            log.error(msg, e);
+            throw new ItemStateException(msg, e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void store(NodeReferences refs) throws ItemStateException {
+        if (!initialized) {
+            throw new IllegalStateException("not initialized");
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Serializer.serialize(refs, out);
+            store.put(REFERENCES, refs.getTargetId(), out.toByteArray());
+        } catch (Exception e) {
+            String msg = "failed to write " + refs;
+            log.error(msg, e);
+            throw new ItemStateException(msg, e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void destroy(NodeReferences refs) throws ItemStateException {
+        if (!initialized) {
+            throw new IllegalStateException("not initialized");
+        }
+        try {
+            store.remove(REFERENCES, refs.getTargetId());
+        } catch (Exception e) {
+            String msg = "failed to delete " + refs;
+            log.error(msg, e);
+            throw new ItemStateException(msg, e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean existsReferencesTo(NodeId targetId) {
+        if (!initialized) {
+            throw new IllegalStateException("not initialized");
+        }
+        return store.contains(REFERENCES, targetId);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<NodeId> getAllNodeIds(NodeId after, int maxCount) {
+        List<NodeId> ids = new ArrayList<NodeId>();
+        for (NodeId id : store.getIds(BUNDLE, after)) {
+            if (!BundleBinding.isChildPageId(id)) {
+                ids.add(id);
+                if (maxCount > 0 && ids.size() >= maxCount) {
+                    break;
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Reads the bundles directly from the segments in node id order,
+     * without going through the bundle cache.
+     */
+    @Override
+    public Map<NodeId, NodeInfo> getAllNodeInfos(NodeId after, int maxCount)
+            throws ItemStateException {
+        Map<NodeId, NodeInfo> infos = new LinkedHashMap<NodeId, NodeInfo>();
+        for (NodeId id : store.getIds(BUNDLE, after)) {
+            if (!BundleBinding.isChildPageId(id)) {
+                NodePropBundle bundle = loadBundle(id);
+                if (bundle != null) {
+                    infos.put(id, new NodeInfo(bundle));
+                    if (maxCount > 0 && infos.size() >= maxCount) {
+                        break;
+                    }
+                }
+            }
+        }
+        return infos;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    public String toString() {
+        return name;
+    }
+
+    /**
+     * Store of the child node pages, that keeps the pages as bundle
+     * records.
+     */
+    private class SegmentChildPageStore implements ChildPageStore {
+
+        /**
+         * {@inheritDoc}
+         */
+        public byte[] get(NodeId pageId) {
+            ByteBuffer buffer = store.get(BUNDLE, pageId);
+            if (buffer == null) {
+                return null;
+            }
+            byte[] data = new byte[buffer.remaining()];
+            buffer.get(data);
+            return data;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void put(NodeId pageId, byte[] data) throws Exception {
+            store.put(BUNDLE, pageId, data);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void remove(NodeId pageId) throws Exception {
+            store.remove(BUNDLE, pageId);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public List<NodeId> getAllPageIds() {
+            List<NodeId> ids = new ArrayList<NodeId>();
+            for (NodeId id : store.getIds(BUNDLE, null)) {
+                if (BundleBinding.isChildPageId(id)) {
+                    ids.add(id);
+                }
+            }
+            return ids;
+        }
+
+    }
+
+}
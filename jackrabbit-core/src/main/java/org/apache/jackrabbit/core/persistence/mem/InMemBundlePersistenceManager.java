@@ -25,6 +25,7 @@ import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
@@ -43,6 +44,7 @@ import org.apache.jackrabbit.core.persistence.PMContext;
 import org.apache.jackrabbit.core.persistence.bundle.AbstractBundlePersistenceManager;
 import org.apache.jackrabbit.core.persistence.util.BLOBStore;
 import org.apache.jackrabbit.core.persistence.util.BundleBinding;
+import org.apache.jackrabbit.core.persistence.util.ChildPageStore;
 import org.apache.jackrabbit.core.persistence.util.ErrorHandling;
 import org.apache.jackrabbit.core.persistence.util.FileSystemBLOBStore;
 import org.apache.jackrabbit.core.persistence.util.NodeInfo;
@@ -402,6 +404,7 @@ public class InMemBundlePersistenceManager extends AbstractBundlePersistenceMana
         // load namespaces
         binding = new BundleBinding(errorHandling, blobStore, getNsIndex(), getNameIndex(), context.getDataStore());
         binding.setMinBlobSize(minBlobSize);
+        initChildPageStore(binding, new InMemChildPageStore());
 
         if (persistent) {
             // deserialize contents of the stores
@@ -419,6 +422,7 @@ public class InMemBundlePersistenceManager extends AbstractBundlePersistenceMana
         }
 
         try {
+            closeChildPageStore();
             if (persistent) {
                 // serialize contents of state and refs stores
                 storeContents();
@@ -498,6 +502,10 @@ public class InMemBundlePersistenceManager extends AbstractBundlePersistenceMana
         boolean add = after == null;
         int count = 0;
         for (NodeId nodeId : bundleStore.keySet()) {
+            if (BundleBinding.isChildPageId(nodeId)) {
+                // child node pages are kept in the bundle store
+                continue;
+            }
             if (add) {
                 result.add(nodeId);
                 if (++count == maxCount) {
@@ -519,7 +527,7 @@ public class InMemBundlePersistenceManager extends AbstractBundlePersistenceMana
             return null;
         }
         try {
-            return binding.readBundle(new ByteArrayInputStream(bundleStore.get(id)), id);
+            return binding.readBundle(ByteBuffer.wrap(bundleStore.get(id)), id);
         } catch (Exception e) {
             String msg = "failed to read bundle: " + id + ": " + e;
             log.error(msg);
@@ -559,6 +567,56 @@ public class InMemBundlePersistenceManager extends AbstractBundlePersistenceMana
         return blobStore;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected BundleBinding getBundleBinding() {
+        return binding;
+    }
+
+    /**
+     * {@link ChildPageStore} implementation that keeps the pages in the
+     * bundle store.
+     */
+    protected class InMemChildPageStore implements ChildPageStore {
+
+        /**
+         * {@inheritDoc}
+         */
+        public byte[] get(NodeId pageId) {
+            return bundleStore.get(pageId);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void put(NodeId pageId, byte[] data) {
+            bundleStore.put(pageId, data);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void remove(NodeId pageId) {
+            bundleStore.remove(pageId);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public List<NodeId> getAllPageIds() {
+            List<NodeId> ids = new ArrayList<NodeId>();
+            for (NodeId id : bundleStore.keySet()) {
+                if (BundleBinding.isChildPageId(id)) {
+                    ids.add(id);
+                }
+            }
+            return ids;
+        }
+
+    }
+
     /**
      * Helper interface for closeable stores
      */
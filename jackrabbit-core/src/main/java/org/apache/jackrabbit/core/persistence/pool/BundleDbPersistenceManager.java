@@ -22,18 +22,28 @@ import java.io.File;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.sql.Blob;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.jcr.RepositoryException;
 import javax.sql.DataSource;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.jackrabbit.api.stats.RepositoryStatistics;
 import org.apache.jackrabbit.core.fs.FileSystem;
 import org.apache.jackrabbit.core.fs.FileSystemResource;
 import org.apache.jackrabbit.core.fs.local.LocalFileSystem;
@@ -43,6 +53,7 @@ import org.apache.jackrabbit.core.persistence.PMContext;
 import org.apache.jackrabbit.core.persistence.bundle.AbstractBundlePersistenceManager;
 import org.apache.jackrabbit.core.persistence.util.BLOBStore;
 import org.apache.jackrabbit.core.persistence.util.BundleBinding;
+import org.apache.jackrabbit.core.persistence.util.ChildPageStore;
 import org.apache.jackrabbit.core.persistence.util.ErrorHandling;
 import org.apache.jackrabbit.core.persistence.util.FileSystemBLOBStore;
 import org.apache.jackrabbit.core.persistence.util.NodeInfo;
@@ -81,7 +92,28 @@ import org.slf4j.LoggerFactory;
  * <li>&lt;param name="{@link #setErrorHandling(String) errorHandling}" value=""/>
  * <li>&lt;param name="{@link #setBlockOnConnectionLoss(String) blockOnConnectionLoss}" value="false"/>
  * <li>&lt;param name="{@link #setSchemaCheckEnabled(String) schemaCheckEnabled}" value="true"/>
+ * <li>&lt;param name="{@link #setConcurrentStore(String) concurrentStore}" value="false"/>
+ * <li>&lt;param name="{@link #setWriteBatchSize(String) writeBatchSize}" value="0"/>
+ * <li>&lt;param name="{@link #setGroupCommit(String) groupCommit}" value="false"/>
+ * <li>&lt;param name="{@link #setGroupCommitWindow(String) groupCommitWindow}" value="0"/>
  * </ul>
+ * <p>
+ * If <code>concurrentStore</code> is enabled, change logs that touch distinct
+ * bundles are stored in parallel, each in a JDBC transaction on its own
+ * connection, and the read methods of this class no longer synchronize on
+ * the persistence manager instance.
+ * <p>
+ * If <code>writeBatchSize</code> is greater than zero, the bundle and
+ * reference rows of a change log are not written one statement at a time
+ * but collected per SQL statement and sent with JDBC batch updates inside
+ * the transaction of the change log.
+ * <p>
+ * If both <code>concurrentStore</code> and <code>groupCommit</code> are
+ * enabled, change logs that are stored concurrently are written together
+ * in a single JDBC transaction by one of the storing threads, the leader of
+ * the group, while the others wait for it to commit. Each change log still
+ * succeeds or fails on its own: if the transaction of a group fails, the
+ * change logs of the group are stored again one by one.
  */
 public class BundleDbPersistenceManager
         extends AbstractBundlePersistenceManager implements DatabaseAware {
@@ -131,6 +163,9 @@ public class BundleDbPersistenceManager
     /** initial size of buffer used to serialize objects */
     protected static final int INITIAL_BUFFER_SIZE = 1024;
 
+    /** maximum number of bundles that are read with a single select statement */
+    protected static final int BUNDLE_SELECT_BATCH_SIZE = 100;
+
     /** indicates if uses (filesystem) blob store */
     protected boolean externalBLOBs;
 
@@ -190,6 +225,51 @@ public class BundleDbPersistenceManager
      */
     private ConnectionFactory connectionFactory;
 
+    /**
+     * the maximum number of statements sent in one JDBC batch, or zero if
+     * statements are executed one at a time
+     * @see #setWriteBatchSize(String)
+     */
+    private int writeBatchSize = 0;
+
+    /**
+     * the batched writes of the change log that is being stored by the
+     * current thread, or <code>null</code> if writes are not batched
+     */
+    private final ThreadLocal<WriteBatch> writeBatch = new ThreadLocal<WriteBatch>();
+
+    /**
+     * whether concurrently stored change logs are written in a shared
+     * transaction
+     * @see #setGroupCommit(String)
+     */
+    private boolean groupCommit = false;
+
+    /**
+     * the time in milliseconds the leader of a group commit waits for
+     * further change logs to join the group
+     * @see #setGroupCommitWindow(String)
+     */
+    private long groupCommitWindow = 0;
+
+    /**
+     * the change logs waiting to be written by the next group commit,
+     * also used as the monitor of the group commit
+     */
+    private final List<PendingStore> pendingStores = new ArrayList<PendingStore>();
+
+    /**
+     * whether a leader thread is currently writing a group of change logs,
+     * guarded by {@link #pendingStores}
+     */
+    private boolean groupCommitLeader = false;
+
+    /** Counter of executed JDBC batches. */
+    private AtomicLong batchCounter;
+
+    /** Counter of statements executed in JDBC batches. */
+    private AtomicLong batchStatementCounter;
+
     /**
      * {@inheritDoc}
      */
@@ -427,6 +507,69 @@ public class BundleDbPersistenceManager
         return errorHandling.toString();
     }
 
+    /**
+     * Returns the maximum number of statements per JDBC batch.
+     * @return the maximum number of statements per JDBC batch.
+     */
+    public String getWriteBatchSize() {
+        return String.valueOf(writeBatchSize);
+    }
+
+    /**
+     * Sets the maximum number of statements that are sent to the database
+     * in one JDBC batch while a change log is stored. The inserts, updates
+     * and deletes of bundles and references are grouped per statement kind.
+     * The default is zero, which disables batching.
+     *
+     * @param writeBatchSize the maximum number of statements per batch
+     */
+    public void setWriteBatchSize(String writeBatchSize) {
+        this.writeBatchSize = Integer.decode(writeBatchSize).intValue();
+    }
+
+    /**
+     * Returns whether concurrently stored change logs are written in a
+     * shared transaction.
+     * @return whether group commit is enabled.
+     */
+    public String getGroupCommit() {
+        return Boolean.toString(groupCommit);
+    }
+
+    /**
+     * Sets whether change logs that are stored concurrently by different
+     * threads are written in a single JDBC transaction. Group commit is
+     * only effective if {@link #setConcurrentStore(String) concurrentStore}
+     * is enabled as well, as otherwise there is never more than one change
+     * log being stored at a time. The default is <code>false</code>.
+     *
+     * @param groupCommit whether group commit is enabled
+     */
+    public void setGroupCommit(String groupCommit) {
+        this.groupCommit = Boolean.valueOf(groupCommit).booleanValue();
+    }
+
+    /**
+     * Returns the time the leader of a group commit waits for further
+     * change logs.
+     * @return the group commit window in milliseconds.
+     */
+    public String getGroupCommitWindow() {
+        return String.valueOf(groupCommitWindow);
+    }
+
+    /**
+     * Sets the time in milliseconds the leader of a group commit waits for
+     * further change logs before it writes the group. The default is zero:
+     * the leader then writes the change logs that have queued up while the
+     * previous group was written, which adds no latency to a single writer.
+     *
+     * @param groupCommitWindow the group commit window in milliseconds
+     */
+    public void setGroupCommitWindow(String groupCommitWindow) {
+        this.groupCommitWindow = Long.decode(groupCommitWindow).longValue();
+    }
+
     public void setBlockOnConnectionLoss(String block) {
         this.blockOnConnectionLoss = Boolean.valueOf(block).booleanValue();
     }
@@ -468,24 +611,157 @@ public class BundleDbPersistenceManager
     /**
      * {@inheritDoc}
      *
-     * Basically wraps a JDBC transaction around super.store().
+     * Basically wraps a JDBC transaction around super.storeChangeLog().
+     * The batch connection of the {@link ConnectionHelper} is bound to the
+     * current thread (or transaction), so concurrent writers each use their
+     * own connection. If {@link #setGroupCommit(String) groupCommit} is
+     * enabled, the change log may be written in the transaction of another
+     * thread, together with the change logs stored concurrently.
+     */
+    @Override
+    protected void storeChangeLog(final ChangeLog changeLog) throws ItemStateException {
+        if (groupCommit && isConcurrentStore()) {
+            groupCommit(new PendingStore(changeLog));
+        } else {
+            storeTransaction(Collections.singletonList(changeLog));
+        }
+    }
+
+    /**
+     * Queues the given change log for the next group commit and waits until
+     * it has been stored. If no other thread is currently writing a group,
+     * the calling thread becomes the leader and writes all the queued change
+     * logs. The callers of the group hold the store locks of their own change
+     * logs while they wait, so the leader can safely write them.
+     *
+     * @param store the change log to store
+     * @throws ItemStateException if the change log could not be stored
+     */
+    private void groupCommit(PendingStore store) throws ItemStateException {
+        List<PendingStore> group;
+        boolean interrupted = false;
+        synchronized (pendingStores) {
+            pendingStores.add(store);
+            pendingStores.notifyAll();
+            while (groupCommitLeader && !store.done) {
+                try {
+                    pendingStores.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (!store.done) {
+                // become the leader of the next group
+                groupCommitLeader = true;
+                long deadline = System.currentTimeMillis() + groupCommitWindow;
+                long remaining = groupCommitWindow;
+                while (remaining > 0) {
+                    try {
+                        pendingStores.wait(remaining);
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                    remaining = deadline - System.currentTimeMillis();
+                }
+                group = new ArrayList<PendingStore>(pendingStores);
+                pendingStores.clear();
+            } else {
+                group = null;
+            }
+        }
+
+        if (group != null) {
+            try {
+                storeGroup(group);
+            } finally {
+                synchronized (pendingStores) {
+                    groupCommitLeader = false;
+                    for (PendingStore pending : group) {
+                        if (!pending.stored && pending.exception == null) {
+                            pending.exception = new ItemStateException(
+                                    "Group commit failed");
+                        }
+                        pending.done = true;
+                    }
+                    pendingStores.notifyAll();
+                }
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (store.exception != null) {
+            throw store.exception;
+        }
+    }
+
+    /**
+     * Writes the given group of change logs in a single transaction. If that
+     * fails, the change logs are written again one by one, so that only the
+     * callers of the failing change logs see the failure.
+     *
+     * @param group the change logs to store
+     */
+    private void storeGroup(List<PendingStore> group) {
+        if (group.size() > 1) {
+            List<ChangeLog> changeLogs = new ArrayList<ChangeLog>(group.size());
+            for (PendingStore pending : group) {
+                changeLogs.add(pending.changeLog);
+            }
+            try {
+                storeTransaction(changeLogs);
+                for (PendingStore pending : group) {
+                    pending.stored = true;
+                }
+                return;
+            } catch (ItemStateException e) {
+                log.warn("Failed to persist a group of " + group.size()
+                        + " change logs, storing them one by one: " + e);
+            }
+        }
+        for (PendingStore pending : group) {
+            try {
+                storeTransaction(Collections.singletonList(pending.changeLog));
+                pending.stored = true;
+            } catch (ItemStateException e) {
+                pending.exception = e;
+            }
+        }
+    }
+
+    /**
+     * Stores the given change logs in one JDBC transaction, which is retried
+     * if it fails. The child node pages of the written bundles are only
+     * updated once the transaction is committed.
      * 
      * FIXME: the retry logic is almost a duplicate of {@code ConnectionHelper.RetryManager}.
+     *
+     * @param changeLogs the change logs to store
+     * @throws ItemStateException if the change logs could not be stored
      */
-    public synchronized void store(final ChangeLog changeLog) throws ItemStateException {
+    private void storeTransaction(List<ChangeLog> changeLogs)
+            throws ItemStateException {
         int failures = 0;
         ItemStateException lastException = null;
         boolean sleepInterrupted = false;
         while (!sleepInterrupted && (blockOnConnectionLoss || failures <= 1)) {
+            boolean started = beginChildPageChanges();
+            boolean committed = false;
             try {
                 conHelper.startBatch();
-                super.store(changeLog);
+                storeBatched(changeLogs);
                 conHelper.endBatch(true);
+                committed = true;
                 return;
             } catch (SQLException e) {
                 // Either startBatch or stopBatch threw it: either way the
-                // transaction was not persisted and no action needs to be taken.
+                // transaction was not persisted. The cached bundles may
+                // already contain the changes, so they are read again.
                 lastException = new ItemStateException(e.getMessage(), e);
+                for (ChangeLog changeLog : changeLogs) {
+                    evictBundles(changeLog);
+                }
             } catch (ItemStateException e) {
                 // store call threw it: we need to cancel the transaction
                 lastException = e;
@@ -498,6 +774,8 @@ public class BundleDbPersistenceManager
                 // if we got here due to a constraint violation and we
                 // are running in test mode, we really want to stop
                 assert !isIntegrityConstraintViolation(e.getCause());
+            } finally {
+                endChildPageChanges(started, committed);
             }
             failures++;
             log.error("Failed to persist ChangeLog (stacktrace on DEBUG log level), blockOnConnectionLoss = "
@@ -516,6 +794,64 @@ public class BundleDbPersistenceManager
         throw lastException;
     }
 
+    /**
+     * Stores the change logs within the current JDBC transaction. If
+     * batching is enabled, the pending statements are flushed before
+     * this method returns.
+     *
+     * @param changeLogs the change logs to store
+     * @throws ItemStateException if a change log could not be stored
+     */
+    private void storeBatched(List<ChangeLog> changeLogs)
+            throws ItemStateException {
+        if (writeBatchSize <= 0) {
+            for (ChangeLog changeLog : changeLogs) {
+                super.storeChangeLog(changeLog);
+            }
+            return;
+        }
+        WriteBatch batch = new WriteBatch();
+        writeBatch.set(batch);
+        try {
+            for (ChangeLog changeLog : changeLogs) {
+                super.storeChangeLog(changeLog);
+            }
+            batch.flush();
+        } catch (SQLException e) {
+            // the cached bundles may not match the rolled back state
+            for (NodeId id : batch.ids) {
+                evictBundle(id);
+            }
+            String msg = "failed to write batched bundles";
+            if (isIntegrityConstraintViolation(e)) {
+                msg = "FATAL error while writing batched bundles";
+            }
+            log.error(msg, e);
+            throw new ItemStateException(msg, e);
+        } finally {
+            writeBatch.remove();
+        }
+    }
+
+    /**
+     * Executes the given update statement, or adds it to the batch of the
+     * current change log if batching is enabled.
+     *
+     * @param sql the SQL statement
+     * @param params the parameters of the statement
+     * @param id the id of the affected bundle or reference target
+     * @throws SQLException if the statement could not be executed
+     */
+    private void update(String sql, Object[] params, NodeId id)
+            throws SQLException {
+        WriteBatch batch = writeBatch.get();
+        if (batch != null) {
+            batch.add(sql, params, id);
+        } else {
+            conHelper.update(sql, params);
+        }
+    }
+
     private boolean isIntegrityConstraintViolation(Throwable t) {
         if (t instanceof SQLException) {
             String state = ((SQLException) t).getSQLState();
@@ -535,6 +871,11 @@ public class BundleDbPersistenceManager
         super.init(context);
 
         conHelper = createConnectionHelper(getDataSource());
+
+        batchCounter = context.getRepositoryStatistics().getCounter(
+                RepositoryStatistics.Type.BUNDLE_WRITE_BATCH_COUNTER);
+        batchStatementCounter = context.getRepositoryStatistics().getCounter(
+                RepositoryStatistics.Type.BUNDLE_WRITE_BATCH_STATEMENT_COUNTER);
         
         this.name = context.getHomeDir().getName();        
 
@@ -554,6 +895,7 @@ public class BundleDbPersistenceManager
         // load namespaces
         binding = new BundleBinding(errorHandling, blobStore, getNsIndex(), getNameIndex(), context.getDataStore());
         binding.setMinBlobSize(minBlobSize);
+        initChildPageStore(binding, new DbChildPageStore());
 
         initialized = true;
 
@@ -612,6 +954,14 @@ public class BundleDbPersistenceManager
         return blobStore;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected BundleBinding getBundleBinding() {
+        return binding;
+    }
+
     /**
      * Creates a suitable blobstore
      * @return a blobstore
@@ -710,6 +1060,7 @@ public class BundleDbPersistenceManager
         }
 
         try {
+            closeChildPageStore();
             if (nameIndex instanceof DbNameIndex) {
                 ((DbNameIndex) nameIndex).close();
             }            
@@ -774,8 +1125,34 @@ public class BundleDbPersistenceManager
     /**
      * {@inheritDoc}
      */
-    public synchronized List<NodeId> getAllNodeIds(NodeId bigger, int maxCount)
+    public List<NodeId> getAllNodeIds(NodeId bigger, int maxCount)
             throws ItemStateException, RepositoryException {
+        if (isConcurrentStore()) {
+            return readAllNodeIds(bigger, maxCount);
+        }
+        synchronized (this) {
+            return readAllNodeIds(bigger, maxCount);
+        }
+    }
+
+    private List<NodeId> readAllNodeIds(NodeId bigger, int maxCount)
+            throws ItemStateException {
+        return readAllIds(bigger, maxCount, false);
+    }
+
+    /**
+     * Reads the ids of the bundles or of the child node pages in the bundle
+     * table.
+     *
+     * @param bigger the id after which to start, or <code>null</code>
+     * @param maxCount the maximum number of ids, or 0 for all
+     * @param pages whether the ids of the child node pages are read instead
+     *              of the ids of the bundles
+     * @return the ids
+     * @throws ItemStateException if the ids can not be read
+     */
+    private List<NodeId> readAllIds(NodeId bigger, int maxCount, boolean pages)
+            throws ItemStateException {
         ResultSet rs = null;
         try {
             String sql = bundleSelectAllIdsSQL;
@@ -811,6 +1188,10 @@ public class BundleDbPersistenceManager
                         }
                     }
                 }
+                if (BundleBinding.isChildPageId(current) != pages) {
+                    // child node pages are stored in the bundle table
+                    continue;
+                }
                 result.add(current);
             }
             return result;
@@ -827,7 +1208,17 @@ public class BundleDbPersistenceManager
      * {@inheritDoc}
      */
     @Override
-    public synchronized Map<NodeId, NodeInfo> getAllNodeInfos(NodeId bigger, int maxCount) throws ItemStateException {
+    public Map<NodeId, NodeInfo> getAllNodeInfos(NodeId bigger, int maxCount) throws ItemStateException {
+        if (isConcurrentStore()) {
+            return readAllNodeInfos(bigger, maxCount);
+        }
+        synchronized (this) {
+            return readAllNodeInfos(bigger, maxCount);
+        }
+    }
+
+    private Map<NodeId, NodeInfo> readAllNodeInfos(NodeId bigger, int maxCount)
+            throws ItemStateException {
         ResultSet rs = null;
         try {
             String sql = bundleSelectAllBundlesSQL;
@@ -862,6 +1253,10 @@ public class BundleDbPersistenceManager
                         continue;
                     }
                 }
+                if (BundleBinding.isChildPageId(current)) {
+                    // child node pages are stored in the bundle table
+                    continue;
+                }
                 NodePropBundle bundle = readBundle(current, rs, getStorageModel() == SM_LONGLONG_KEYS ? 3 : 2);
                 NodeInfo nodeInfo = new NodeInfo(bundle);
                 result.put(nodeInfo.getId(), nodeInfo);
@@ -903,6 +1298,110 @@ public class BundleDbPersistenceManager
         }
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * The bundles are read with one select statement per
+     * {@link #BUNDLE_SELECT_BATCH_SIZE} node ids.
+     */
+    @Override
+    protected Map<NodeId, NodePropBundle> loadBundles(Collection<NodeId> ids)
+            throws ItemStateException {
+        Map<NodeId, NodePropBundle> result =
+            new HashMap<NodeId, NodePropBundle>(ids.size());
+        Iterator<NodeId> iterator = ids.iterator();
+        while (iterator.hasNext()) {
+            List<NodeId> batch = new ArrayList<NodeId>();
+            while (iterator.hasNext() && batch.size() < BUNDLE_SELECT_BATCH_SIZE) {
+                batch.add(iterator.next());
+            }
+            if (batch.size() == 1) {
+                NodeId id = batch.get(0);
+                NodePropBundle bundle = loadBundle(id);
+                if (bundle != null) {
+                    result.put(id, bundle);
+                }
+            } else {
+                loadBundles(batch, result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads the bundles with the given ids with a single select statement.
+     *
+     * @param ids the node ids of the bundles
+     * @param result the map to which the loaded bundles are added
+     * @throws ItemStateException if the bundles can not be read
+     */
+    private void loadBundles(List<NodeId> ids, Map<NodeId, NodePropBundle> result)
+            throws ItemStateException {
+        List<Object> params = new ArrayList<Object>();
+        for (NodeId id : ids) {
+            for (Object key : getKey(id)) {
+                params.add(key);
+            }
+        }
+        try {
+            ResultSet rs = conHelper.exec(
+                    getBundleSelectSQL(ids.size()), params.toArray(), false, 0);
+            try {
+                while (rs != null && rs.next()) {
+                    NodeId id;
+                    int column;
+                    if (getStorageModel() == SM_BINARY_KEYS) {
+                        id = new NodeId(rs.getBytes(1));
+                        column = 2;
+                    } else {
+                        id = new NodeId(rs.getLong(1), rs.getLong(2));
+                        column = 3;
+                    }
+                    result.put(id, readBundle(id, rs, column));
+                }
+            } finally {
+                if (rs != null) {
+                    rs.close();
+                }
+            }
+        } catch (SQLException e) {
+            String msg = "failed to read " + ids.size()
+                + " bundles (stacktrace on DEBUG log level): " + e;
+            log.error(msg);
+            log.debug("failed to read bundles: " + ids, e);
+            throw new ItemStateException(msg, e);
+        }
+    }
+
+    /**
+     * Returns the statement that selects the ids and data of the given
+     * number of bundles.
+     *
+     * @param count number of bundles
+     * @return select statement
+     */
+    protected String getBundleSelectSQL(int count) {
+        StringBuilder sql = new StringBuilder();
+        if (getStorageModel() == SM_BINARY_KEYS) {
+            sql.append("select NODE_ID, BUNDLE_DATA from ");
+            sql.append(schemaObjectPrefix).append("BUNDLE where NODE_ID in (");
+            for (int i = 0; i < count; i++) {
+                sql.append(i == 0 ? "?" : ", ?");
+            }
+            sql.append(")");
+        } else {
+            sql.append("select NODE_ID_HI, NODE_ID_LO, BUNDLE_DATA from ");
+            sql.append(schemaObjectPrefix).append("BUNDLE where ");
+            for (int i = 0; i < count; i++) {
+                if (i > 0) {
+                    sql.append(" or ");
+                }
+                sql.append("(NODE_ID_HI = ? and NODE_ID_LO = ?)");
+            }
+        }
+        return sql.toString();
+    }
+
     /**
      * Reads and parses a bundle from the BLOB in the given column of the
      * current row of the given result set. This is a helper method to
@@ -917,17 +1416,14 @@ public class BundleDbPersistenceManager
     private NodePropBundle readBundle(NodeId id, ResultSet rs, int column)
             throws SQLException {
         try {
-            InputStream in;
+            byte[] data;
             if (rs.getMetaData().getColumnType(column) == Types.BLOB) {
-                in = rs.getBlob(column).getBinaryStream();
+                Blob blob = rs.getBlob(column);
+                data = blob.getBytes(1, (int) blob.length());
             } else {
-                in = rs.getBinaryStream(column);
-            }
-            try {
-                return binding.readBundle(in, id);
-            } finally {
-                in.close();
+                data = rs.getBytes(column);
             }
+            return binding.readBundle(ByteBuffer.wrap(data), id);
         } catch (IOException e) {
             SQLException exception =
                 new SQLException("Failed to parse bundle " + id);
@@ -939,7 +1435,7 @@ public class BundleDbPersistenceManager
     /**
      * {@inheritDoc}
      */
-    protected synchronized void storeBundle(NodePropBundle bundle) throws ItemStateException {
+    protected void storeBundle(NodePropBundle bundle) throws ItemStateException {
         try {
             ByteArrayOutputStream out =
                 new ByteArrayOutputStream(INITIAL_BUFFER_SIZE);
@@ -947,7 +1443,7 @@ public class BundleDbPersistenceManager
 
             String sql = bundle.isNew() ? bundleInsertSQL : bundleUpdateSQL;
             Object[] params = createParams(bundle.getId(), out.toByteArray(), true);
-            conHelper.update(sql, params);
+            update(sql, params, bundle.getId());
         } catch (Exception e) {
             String msg;
 
@@ -968,9 +1464,9 @@ public class BundleDbPersistenceManager
     /**
      * {@inheritDoc}
      */
-    protected synchronized void destroyBundle(NodePropBundle bundle) throws ItemStateException {
+    protected void destroyBundle(NodePropBundle bundle) throws ItemStateException {
         try {
-            conHelper.update(bundleDeleteSQL, getKey(bundle.getId()));
+            update(bundleDeleteSQL, getKey(bundle.getId()), bundle.getId());
         } catch (Exception e) {
             if (e instanceof NoSuchItemStateException) {
                 throw (NoSuchItemStateException) e;
@@ -984,12 +1480,21 @@ public class BundleDbPersistenceManager
     /**
      * {@inheritDoc}
      */
-    public synchronized NodeReferences loadReferencesTo(NodeId targetId)
+    public NodeReferences loadReferencesTo(NodeId targetId)
             throws NoSuchItemStateException, ItemStateException {
         if (!initialized) {
             throw new IllegalStateException("not initialized");
         }
+        if (isConcurrentStore()) {
+            return readReferencesTo(targetId);
+        }
+        synchronized (this) {
+            return readReferencesTo(targetId);
+        }
+    }
 
+    private NodeReferences readReferencesTo(NodeId targetId)
+            throws NoSuchItemStateException, ItemStateException {
         ResultSet rs = null;
         InputStream in = null;
         try {
@@ -1019,13 +1524,10 @@ public class BundleDbPersistenceManager
     /**
      * {@inheritDoc}
      *
-     * This method uses shared <code>PreparedStatements</code>, which must
-     * be used strictly sequentially. Because this method synchronizes on the
-     * persistence manager instance, there is no need to synchronize on the
-     * shared statement. If the method would not be synchronized, the shared
-     * statement must be synchronized.
+     * This method is only called while the change log containing the
+     * references is stored, so it is guarded by the store locks.
      */
-    public synchronized void store(NodeReferences refs) throws ItemStateException {
+    public void store(NodeReferences refs) throws ItemStateException {
         if (!initialized) {
             throw new IllegalStateException("not initialized");
         }
@@ -1041,7 +1543,7 @@ public class BundleDbPersistenceManager
             Serializer.serialize(refs, out);
 
             Object[] params = createParams(refs.getTargetId(), out.toByteArray(), true);
-            conHelper.exec(sql, params);
+            update(sql, params, refs.getTargetId());
             
             // there's no need to close a ByteArrayOutputStream
             //out.close();
@@ -1055,13 +1557,13 @@ public class BundleDbPersistenceManager
     /**
      * {@inheritDoc}
      */
-    public synchronized void destroy(NodeReferences refs) throws ItemStateException {
+    public void destroy(NodeReferences refs) throws ItemStateException {
         if (!initialized) {
             throw new IllegalStateException("not initialized");
         }
 
         try {
-            conHelper.exec(nodeReferenceDeleteSQL, getKey(refs.getTargetId()));
+            update(nodeReferenceDeleteSQL, getKey(refs.getTargetId()), refs.getTargetId());
         } catch (Exception e) {
             if (e instanceof NoSuchItemStateException) {
                 throw (NoSuchItemStateException) e;
@@ -1075,11 +1577,19 @@ public class BundleDbPersistenceManager
     /**
      * {@inheritDoc}
      */
-    public synchronized boolean existsReferencesTo(NodeId targetId) throws ItemStateException {
+    public boolean existsReferencesTo(NodeId targetId) throws ItemStateException {
         if (!initialized) {
             throw new IllegalStateException("not initialized");
         }
+        if (isConcurrentStore()) {
+            return hasReferencesTo(targetId);
+        }
+        synchronized (this) {
+            return hasReferencesTo(targetId);
+        }
+    }
 
+    private boolean hasReferencesTo(NodeId targetId) throws ItemStateException {
         ResultSet rs = null;
         try {
             rs = conHelper.exec(nodeReferenceSelectSQL, getKey(targetId), false, 0);
@@ -1160,6 +1670,138 @@ public class BundleDbPersistenceManager
 
     }
 
+    /**
+     * The statements of a change log that are sent to the database in JDBC
+     * batches. Statements are grouped per SQL string and the groups are
+     * executed in the order bundle deletes, inserts and updates followed by
+     * reference deletes, inserts and updates. This matches the order in
+     * which {@link AbstractBundlePersistenceManager} writes a change log,
+     * where all bundle deletes precede the bundle writes, so a bundle that
+     * is removed and re-added within one change log is deleted first.
+     */
+    private class WriteBatch {
+
+        /** the pending parameter sets, per SQL statement */
+        private final Map<String, List<Object[]>> statements =
+            new LinkedHashMap<String, List<Object[]>>();
+
+        /** the ids of all bundles and references written in this batch */
+        private final Set<NodeId> ids = new HashSet<NodeId>();
+
+        /** the number of pending statements */
+        private int size;
+
+        public WriteBatch() {
+            String[] order = new String[] {
+                    bundleDeleteSQL, bundleInsertSQL, bundleUpdateSQL,
+                    nodeReferenceDeleteSQL, nodeReferenceInsertSQL,
+                    nodeReferenceUpdateSQL };
+            for (String sql : order) {
+                statements.put(sql, new ArrayList<Object[]>());
+            }
+        }
+
+        public void add(String sql, Object[] params, NodeId id)
+                throws SQLException {
+            statements.get(sql).add(params);
+            ids.add(id);
+            if (++size >= writeBatchSize) {
+                flush();
+            }
+        }
+
+        public void flush() throws SQLException {
+            for (Map.Entry<String, List<Object[]>> entry : statements.entrySet()) {
+                List<Object[]> params = entry.getValue();
+                if (!params.isEmpty()) {
+                    conHelper.updateBatch(entry.getKey(), params);
+                    batchCounter.incrementAndGet();
+                    batchStatementCounter.addAndGet(params.size());
+                    params.clear();
+                }
+            }
+            size = 0;
+        }
+    }
+
+    /**
+     * A change log waiting for a group commit, guarded by
+     * {@link BundleDbPersistenceManager#pendingStores}.
+     */
+    private static class PendingStore {
+
+        /** the change log to store */
+        private final ChangeLog changeLog;
+
+        /** whether the change log has been stored */
+        private boolean stored;
+
+        /** the failure to report to the caller, if any */
+        private ItemStateException exception;
+
+        /** whether the group commit of the change log has completed */
+        private boolean done;
+
+        public PendingStore(ChangeLog changeLog) {
+            this.changeLog = changeLog;
+        }
+    }
+
+    /**
+     * Store of the child node pages, that keeps the pages in the bundle
+     * table.
+     */
+    protected class DbChildPageStore implements ChildPageStore {
+
+        /**
+         * {@inheritDoc}
+         */
+        public byte[] get(NodeId pageId) throws Exception {
+            ResultSet rs =
+                conHelper.exec(bundleSelectSQL, getKey(pageId), false, 0);
+            try {
+                if (rs == null || !rs.next()) {
+                    return null;
+                }
+                InputStream in;
+                if (rs.getMetaData().getColumnType(1) == Types.BLOB) {
+                    in = rs.getBlob(1).getBinaryStream();
+                } else {
+                    in = rs.getBinaryStream(1);
+                }
+                try {
+                    return IOUtils.toByteArray(in);
+                } finally {
+                    in.close();
+                }
+            } finally {
+                DbUtility.close(rs);
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void put(NodeId pageId, byte[] data) throws Exception {
+            update(bundleInsertSQL, createParams(pageId, data, true), pageId);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void remove(NodeId pageId) throws Exception {
+            update(bundleDeleteSQL, getKey(pageId), pageId);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public List<NodeId> getAllPageIds() throws Exception {
+            return readAllIds(null, 0, true);
+        }
+
+    }
+
     /**
      * Helper interface for closeable stores
      */
@@ -18,7 +18,7 @@ package org.apache.jackrabbit.core.persistence.pool;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.jackrabbit.core.util.StringIndex;
 import org.apache.jackrabbit.core.util.db.ConnectionHelper;
@@ -28,8 +28,11 @@ import org.apache.jackrabbit.core.util.db.DbUtility;
  * Implements a {@link StringIndex} that stores and retrieves the names from a
  * table in a database.
  * <p>
- * Note that this class is not threadsafe by itself. it needs to be synchronized
- * by the using application.
+ * This class is threadsafe. Lookups are served from concurrent caches, and
+ * new strings are inserted while holding the lock of this index, so that
+ * concurrent stores of a persistence manager never insert the same string
+ * twice. Subclasses that override {@link #insertString(String)} inherit
+ * this guarantee.
  * <p>
  * Due to a bug with oracle that treats empty strings a null values
  * (see JCR-815), all empty strings are replaced by a ' '. since names never
@@ -45,8 +48,10 @@ public class DbNameIndex implements StringIndex {
     protected String nameInsertSQL;
 
     // caches
-    private final HashMap<String, Integer> string2Index = new HashMap<String, Integer>();
-    private final HashMap<Integer, String> index2String = new HashMap<Integer, String>();
+    private final ConcurrentHashMap<String, Integer> string2Index =
+        new ConcurrentHashMap<String, Integer>();
+    private final ConcurrentHashMap<Integer, String> index2String =
+        new ConcurrentHashMap<Integer, String>();
 
     /**
      * Creates a new index that is stored in a db.
@@ -88,20 +93,37 @@ public class DbNameIndex implements StringIndex {
         // check cache
         Integer index = string2Index.get(string);
         if (index == null) {
-            String dbString = string.length() == 0 ? " " : string;
-            int idx = getIndex(dbString);
-            if (idx == -1) {
-                idx = insertString(dbString);
-            }
-            index = Integer.valueOf(idx);
-            string2Index.put(string, index);
-            index2String.put(index, string);
-            return idx;
+            return getOrInsert(string);
         } else {
             return index.intValue();
         }
     }
 
+    /**
+     * Returns the index of the given string from the database, and inserts
+     * the string if it does not exist yet. The lock of this index is held
+     * so that two threads cannot insert the same string.
+     *
+     * @param string the string
+     * @return the index of the string
+     */
+    private synchronized int getOrInsert(String string) {
+        // check again, another thread might have inserted it meanwhile
+        Integer index = string2Index.get(string);
+        if (index != null) {
+            return index.intValue();
+        }
+        String dbString = string.length() == 0 ? " " : string;
+        int idx = getIndex(dbString);
+        if (idx == -1) {
+            idx = insertString(dbString);
+        }
+        index = Integer.valueOf(idx);
+        index2String.put(index, string);
+        string2Index.put(string, index);
+        return idx;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -114,6 +136,7 @@ public class DbNameIndex implements StringIndex {
             if (s.equals(" ")) {
                 s = "";
             }
+            // both threads of a race read the same committed mapping
             index2String.put(index, s);
             string2Index.put(s, index);
         }
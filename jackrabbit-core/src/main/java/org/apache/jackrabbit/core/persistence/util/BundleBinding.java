@@ -19,7 +19,15 @@ package org.apache.jackrabbit.core.persistence.util;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 
+import org.apache.commons.io.IOExceptionWithCause;
 import org.apache.jackrabbit.core.data.DataStore;
 import org.apache.jackrabbit.core.id.NodeId;
 import org.apache.jackrabbit.core.util.StringIndex;
@@ -57,10 +65,17 @@ public class BundleBinding {
      */
     static final int VERSION_3 = 3;
 
+    /**
+     * serialization version 4, in which the child node list is replaced
+     * by a list of separately stored child node pages. Bundles without
+     * child node pages are still written using version 3.
+     */
+    static final int VERSION_4 = 4;
+
     /**
      * current version
      */
-    static final int VERSION_CURRENT = VERSION_3;
+    static final int VERSION_CURRENT = VERSION_4;
 
     /**
      * the namespace index
@@ -92,6 +107,31 @@ public class BundleBinding {
      */
     protected final DataStore dataStore;
 
+    /**
+     * the store of the child node pages, or <code>null</code> if child
+     * node lists are never split into pages
+     */
+    protected ChildPageStore childPageStore;
+
+    /**
+     * the maximum number of child node entries per page
+     */
+    protected int childPageSize;
+
+    /**
+     * defers the removal of superseded child node pages until they can no
+     * longer be read
+     */
+    private final ChildPageReclaimer childPageReclaimer =
+        new ChildPageReclaimer();
+
+    /**
+     * the child node page changes of the store transaction of the current
+     * thread, if any
+     */
+    private final ThreadLocal<ChildPageChanges> childPageChanges =
+        new ThreadLocal<ChildPageChanges>();
+
     /**
      * Creates a new bundle binding
      *
@@ -139,6 +179,255 @@ public class BundleBinding {
         return blobStore;
     }
 
+    /**
+     * Returns the store of the child node pages.
+     * @return the child page store, or <code>null</code>
+     */
+    public ChildPageStore getChildPageStore() {
+        return childPageStore;
+    }
+
+    /**
+     * Returns the maximum number of child node entries per page.
+     * @return the child page size
+     */
+    public int getChildPageSize() {
+        return childPageSize;
+    }
+
+    /**
+     * Sets the store of the child node pages. The child node list of a
+     * bundle with more than <code>pageSize</code> child nodes is split into
+     * pages of at most <code>pageSize</code> entries, that are written to
+     * the given store. When the bundle is written again, only the pages
+     * that have changed are written. Page boundaries are chosen based on
+     * the ids of the child nodes, so that adding or removing a child node
+     * only changes the page that contains it. The default is
+     * <code>null</code>, which means child node lists are never split.
+     *
+     * @param childPageStore the child page store, or <code>null</code>
+     * @param pageSize the maximum number of child node entries per page
+     */
+    public void setChildPageStore(ChildPageStore childPageStore, int pageSize) {
+        this.childPageStore = childPageStore;
+        this.childPageSize = pageSize;
+    }
+
+    /**
+     * Creates a new random child node page id. The variant field of the id
+     * is set to the reserved value 7 and the version field to 15, so that
+     * page ids do not collide with the ids of nodes.
+     *
+     * @return new page id
+     */
+    public static NodeId createChildPageId() {
+        NodeId id = NodeId.randomId();
+        return new NodeId(
+                id.getMostSignificantBits() | 0x000000000000f000L,
+                id.getLeastSignificantBits() | 0xe000000000000000L);
+    }
+
+    /**
+     * Checks whether the given id is the id of a child node page.
+     *
+     * @param id the id
+     * @return <code>true</code> if the id was created by
+     *         {@link #createChildPageId()}
+     */
+    public static boolean isChildPageId(NodeId id) {
+        return (id.getMostSignificantBits() & 0x000000000000f000L) == 0x000000000000f000L
+            && (id.getLeastSignificantBits() & 0xe000000000000000L) == 0xe000000000000000L;
+    }
+
+    /**
+     * Reads the child node entries of the given page from the child page
+     * store.
+     *
+     * @param pageId the id of the page
+     * @return the child node entries
+     * @throws IOException if the page can not be read
+     */
+    List<NodePropBundle.ChildNodeEntry> readChildPage(NodeId pageId)
+            throws IOException {
+        byte[] data;
+        try {
+            data = childPageStore != null ? childPageStore.get(pageId) : null;
+        } catch (Exception e) {
+            throw new IOExceptionWithCause(
+                    "Failed to read child node page " + pageId, e);
+        }
+        if (data == null) {
+            throw new IOException("Child node page not found: " + pageId);
+        }
+        return new BundleReader(this, ByteBuffer.wrap(data))
+            .readChildPage();
+    }
+
+    /**
+     * Removes the child node pages of the given bundle from the child page
+     * store. Called when the bundle is destroyed. The pages are removed
+     * once the store transaction is committed and no node state or bundle
+     * that may still read them is reachable.
+     *
+     * @param bundle the bundle
+     * @throws IOException if a page can not be removed
+     */
+    public void removeChildPages(NodePropBundle bundle) throws IOException {
+        List<NodePropBundle.ChildPage> pages = getChildPages(bundle);
+        if (pages != null && childPageStore != null) {
+            List<NodeId> released = new ArrayList<NodeId>();
+            for (NodePropBundle.ChildPage page : pages) {
+                released.add(page.getId());
+            }
+            updateChildPages(bundle, null,
+                    Collections.<NodeId>emptyList(), released);
+        }
+    }
+
+    /**
+     * Starts a store transaction of the current thread. Until the
+     * transaction is ended, the new child node pages of the written bundles
+     * are written to the child page store, but the bundles keep their
+     * previous pages and the superseded pages are not released. A
+     * transaction that is started while the current thread already has one
+     * is part of that transaction.
+     *
+     * @return <code>true</code> if a transaction was started, or
+     *         <code>false</code> if the current thread already has one
+     */
+    public boolean beginChildPageChanges() {
+        if (childPageChanges.get() != null) {
+            return false;
+        }
+        childPageChanges.set(new ChildPageChanges());
+        return true;
+    }
+
+    /**
+     * Ends the store transaction of the current thread. If the transaction
+     * was committed, the written bundles use their new child node pages,
+     * and the pages they no longer use are released. Otherwise the pages
+     * written in the transaction are removed from the child page store, in
+     * case the store did not roll them back itself.
+     *
+     * @param committed whether the transaction was committed
+     * @throws IOException if a page can not be removed; the outcome of the
+     *                     transaction is not affected
+     */
+    public void endChildPageChanges(boolean committed) throws IOException {
+        ChildPageChanges changes = childPageChanges.get();
+        childPageChanges.remove();
+        if (changes == null) {
+            return;
+        }
+        if (committed) {
+            for (Map.Entry<NodePropBundle, List<NodePropBundle.ChildPage>> entry
+                    : changes.pages.entrySet()) {
+                entry.getKey().setChildPages(entry.getValue());
+            }
+            if (!changes.released.isEmpty()) {
+                childPageReclaimer.release(childPageStore, changes.released);
+            }
+        } else {
+            for (NodeId pageId : changes.written) {
+                try {
+                    childPageStore.remove(pageId);
+                } catch (Exception e) {
+                    throw new IOExceptionWithCause(
+                            "Failed to remove child node page " + pageId, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the child node pages of the given bundle, including the ones
+     * written in the store transaction of the current thread.
+     *
+     * @param bundle the bundle
+     * @return the child node pages, or <code>null</code>
+     */
+    List<NodePropBundle.ChildPage> getChildPages(NodePropBundle bundle) {
+        ChildPageChanges changes = childPageChanges.get();
+        if (changes != null && changes.pages.containsKey(bundle)) {
+            return changes.pages.get(bundle);
+        }
+        return bundle.getChildPages();
+    }
+
+    /**
+     * Sets the child node pages of the given bundle once the store
+     * transaction of the current thread is committed, or immediately if
+     * there is none.
+     *
+     * @param bundle the bundle
+     * @param pages the new child node pages, or <code>null</code>
+     * @param written the ids of the pages that were written to the store
+     * @param released the ids of the pages the bundle no longer uses
+     * @throws IOException if a page can not be removed
+     */
+    void updateChildPages(
+            NodePropBundle bundle, List<NodePropBundle.ChildPage> pages,
+            Collection<NodeId> written, Collection<NodeId> released)
+            throws IOException {
+        ChildPageChanges changes = childPageChanges.get();
+        if (changes != null) {
+            changes.pages.put(bundle, pages);
+            changes.written.addAll(written);
+            changes.released.addAll(released);
+        } else {
+            bundle.setChildPages(pages);
+            if (!released.isEmpty()) {
+                childPageReclaimer.release(childPageStore, released);
+            }
+        }
+    }
+
+    /**
+     * Checks whether the given child node page may still be read, although
+     * no bundle uses it anymore.
+     *
+     * @param pageId the id of the page
+     * @return <code>true</code> if the page is released but not removed
+     *         yet, or still reachable
+     */
+    public boolean isChildPageInUse(NodeId pageId) {
+        return childPageReclaimer.isInUse(pageId);
+    }
+
+    /**
+     * Removes the child node pages that are no longer used from the child
+     * page store, including the ones that may still be read. Called when
+     * the persistence manager is closed.
+     *
+     * @throws IOException if a page can not be removed
+     */
+    public void reclaimChildPages() throws IOException {
+        if (childPageStore != null) {
+            childPageReclaimer.reclaim(childPageStore, true);
+        }
+    }
+
+    /**
+     * Returns the number of child node pages that are no longer used, but
+     * may still be read and are therefore not removed yet.
+     *
+     * @return the number of pending child node pages
+     */
+    public int getPendingChildPageCount() {
+        return childPageReclaimer.getPendingCount();
+    }
+
+    /**
+     * Tracks a child node page whose entries are read lazily, so that it is
+     * not removed while it is reachable.
+     *
+     * @param page the page
+     */
+    void trackChildPage(NodePropBundle.ChildPage page) {
+        childPageReclaimer.track(page);
+    }
+
     /**
      * Deserializes a <code>NodePropBundle</code> from a data input stream.
      *
@@ -152,6 +441,22 @@ public class BundleBinding {
         return new BundleReader(this, in).readBundle(id);
     }
 
+    /**
+     * Deserializes a <code>NodePropBundle</code> from the current position
+     * of the given buffer, without copying the serialized data. Property
+     * values are decoded from the buffer when they are first accessed, so
+     * the contents of the buffer must not change afterwards.
+     *
+     * @param buffer the buffer
+     * @param id the node id for the new bundle
+     * @return the bundle
+     * @throws IOException if an I/O error occurs.
+     */
+    public NodePropBundle readBundle(ByteBuffer buffer, NodeId id)
+            throws IOException {
+        return new BundleReader(this, buffer.slice()).readBundle(id);
+    }
+
     /**
      * Serializes a <code>NodePropBundle</code> to a data output stream
      *
@@ -164,4 +469,36 @@ public class BundleBinding {
         new BundleWriter(this, out).writeBundle(bundle);
     }
 
+    /**
+     * Serializes a <code>NodePropBundle</code> to a data output stream as it
+     * is, without any side effects on the bundle or the child page store.
+     * Used to copy a bundle that was read, e.g. into a cache.
+     *
+     * @param out the output stream
+     * @param bundle the bundle to serialize
+     * @throws IOException if an I/O error occurs.
+     * @see BundleWriter#writeBundleAsIs(NodePropBundle)
+     */
+    public void writeBundleAsIs(OutputStream out, NodePropBundle bundle)
+            throws IOException {
+        new BundleWriter(this, out).writeBundleAsIs(bundle);
+    }
+
+    /**
+     * The child node page changes of a store transaction.
+     */
+    private static class ChildPageChanges {
+
+        /** the new pages of the written bundles */
+        private final Map<NodePropBundle, List<NodePropBundle.ChildPage>> pages =
+            new IdentityHashMap<NodePropBundle, List<NodePropBundle.ChildPage>>();
+
+        /** the ids of the pages written to the store */
+        private final List<NodeId> written = new ArrayList<NodeId>();
+
+        /** the ids of the pages no longer used by the written bundles */
+        private final List<NodeId> released = new ArrayList<NodeId>();
+
+    }
+
 }
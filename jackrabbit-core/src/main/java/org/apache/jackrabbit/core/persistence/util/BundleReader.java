@@ -19,7 +19,7 @@ package org.apache.jackrabbit.core.persistence.util;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.apache.commons.io.IOExceptionWithCause;
-import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.io.IOUtils;
 import org.apache.jackrabbit.core.id.NodeId;
 import org.apache.jackrabbit.core.id.PropertyId;
 import org.apache.jackrabbit.core.value.InternalValue;
@@ -27,13 +27,18 @@ import org.apache.jackrabbit.spi.Name;
 import org.apache.jackrabbit.spi.commons.name.NameFactoryImpl;
 import org.apache.jackrabbit.spi.commons.name.NameConstants;
 
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.GregorianCalendar;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.TimeZone;
 import java.math.BigDecimal;
@@ -43,6 +48,14 @@ import javax.jcr.PropertyType;
 /**
  * Bundle deserializer. See the {@link BundleWriter} class for details of
  * the serialization format.
+ * <p>
+ * Bundles are read directly from a {@link ByteBuffer}, which may wrap the
+ * bytes of a database record or a memory mapped file. Since version 3 of
+ * the format, the values of all but binary properties are only decoded
+ * from the buffer when they are first accessed, so reading a bundle
+ * whose node type or child nodes are needed does not create any value
+ * objects. The buffer must thus not be modified after a bundle has been
+ * read from it.
  *
  * @see BundleWriter
  */
@@ -97,14 +110,9 @@ class BundleReader {
     private final BundleBinding binding;
 
     /**
-     * Counter for the number of bytes read from the input stream.
+     * The buffer from which the serialized data is read.
      */
-    private final CountingInputStream cin;
-
-    /**
-     * Wrapper for reading structured data from the input stream.
-     */
-    private final DataInputStream in;
+    private final ByteBuffer buffer;
 
     private final int version;
 
@@ -113,9 +121,7 @@ class BundleReader {
      * bundle. Used by the {@link #readName()} method to keep track of
      * already seen namespaces.
      */
-    private final String[] namespaces =
-        // NOTE: The length of this array must be seven
-        { Name.NS_DEFAULT_URI, null, null, null, null, null, null };
+    private final String[] namespaces;
 
     /**
      * Creates a new bundle deserializer.
@@ -126,10 +132,47 @@ class BundleReader {
      */
     public BundleReader(BundleBinding binding, InputStream stream)
             throws IOException {
+        this(binding, ByteBuffer.wrap(IOUtils.toByteArray(stream)));
+    }
+
+    /**
+     * Creates a new bundle deserializer that reads from the current
+     * position of the given buffer.
+     *
+     * @param binding bundle binding
+     * @param buffer buffer from which the bundle is read
+     * @throws IOException if the buffer is empty
+     */
+    public BundleReader(BundleBinding binding, ByteBuffer buffer)
+            throws IOException {
         this.binding = binding;
-        this.cin = new CountingInputStream(stream);
-        this.in = new DataInputStream(cin);
-        this.version = in.readUnsignedByte();
+        this.buffer = buffer;
+        // NOTE: The length of this array must be seven
+        this.namespaces = new String[] {
+                Name.NS_DEFAULT_URI, null, null, null, null, null, null };
+        try {
+            this.version = buffer.get() & 0xff;
+        } catch (BufferUnderflowException e) {
+            throw new IOExceptionWithCause("Empty bundle", e);
+        }
+    }
+
+    /**
+     * Creates a deserializer that continues reading the given buffer with
+     * the version of another deserializer. Used to decode property values
+     * on demand.
+     *
+     * @param reader the deserializer that skipped the values
+     * @param buffer buffer positioned at the values
+     * @param namespaces namespaces seen before the values, or
+     *                   <code>null</code> if the values contain no names
+     */
+    private BundleReader(
+            BundleReader reader, ByteBuffer buffer, String[] namespaces) {
+        this.binding = reader.binding;
+        this.buffer = buffer;
+        this.version = reader.version;
+        this.namespaces = namespaces;
     }
 
     /**
@@ -140,14 +183,18 @@ class BundleReader {
      * @throws IOException if an I/O error occurs.
      */
     public NodePropBundle readBundle(NodeId id) throws IOException {
-        long start = cin.getByteCount();
+        int start = buffer.position();
         NodePropBundle bundle = new NodePropBundle(id);
-        if (version >= BundleBinding.VERSION_3) {
-            readBundleNew(bundle);
-        } else {
-            readBundleOld(bundle);
+        try {
+            if (version >= BundleBinding.VERSION_3) {
+                readBundleNew(bundle);
+            } else {
+                readBundleOld(bundle);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOExceptionWithCause("Truncated bundle " + id, e);
         }
-        bundle.setSize(cin.getByteCount() - start);
+        bundle.setSize(buffer.position() - start);
         return bundle;
     }
 
@@ -165,7 +212,7 @@ class BundleReader {
         // read modcount
         bundle.setModCount((short) readVarInt());
 
-        int b = in.readUnsignedByte();
+        int b = buffer.get() & 0xff;
         bundle.setReferenceable((b & 1) != 0);
 
         // mixin types
@@ -189,12 +236,26 @@ class BundleReader {
             bundle.addProperty(readPropertyEntry(id));
         }
 
-        // child nodes (list of name/uuid pairs)
         int nn = readVarInt((b >> 2) & 3, 3);
-        for (int i = 0; i < nn; i++) {
-            Name name = readQName();
-            NodeId id = readNodeId();
-            bundle.addChildNodeEntry(name, id);
+        if (version >= BundleBinding.VERSION_4) {
+            // child node pages (list of page id, entry count, first uuid)
+            List<NodePropBundle.ChildPage> pages =
+                new ArrayList<NodePropBundle.ChildPage>(nn);
+            for (int i = 0; i < nn; i++) {
+                NodeId pageId = readNodeId();
+                int count = readVarInt();
+                NodeId firstId = readNodeId();
+                pages.add(new NodePropBundle.ChildPage(
+                        pageId, count, firstId, binding));
+            }
+            bundle.setUnloadedChildPages(pages);
+        } else {
+            // child nodes (list of name/uuid pairs)
+            for (int i = 0; i < nn; i++) {
+                Name name = readQName();
+                NodeId id = readNodeId();
+                bundle.addChildNodeEntry(name, id);
+            }
         }
 
         // read shared set
@@ -214,11 +275,11 @@ class BundleReader {
 
     private void readBundleOld(NodePropBundle bundle) throws IOException {
         // read primary type...special handling
-        int a = in.readUnsignedByte();
-        int b = in.readUnsignedByte();
-        int c = in.readUnsignedByte();
+        int a = buffer.get() & 0xff;
+        int b = buffer.get() & 0xff;
+        int c = buffer.get() & 0xff;
         String uri = binding.nsIndex.indexToString(a << 16 | b << 8 | c);
-        String local = binding.nameIndex.indexToString(in.readInt());
+        String local = binding.nameIndex.indexToString(buffer.getInt());
         bundle.setNodeTypeName(
                 NameFactoryImpl.getInstance().create(uri, local));
 
@@ -226,7 +287,7 @@ class BundleReader {
         bundle.setParentId(readNodeId());
 
         // definitionId
-        in.readUTF();
+        readUTF();
 
         // mixin types
         Name name = readIndexedQName();
@@ -255,7 +316,7 @@ class BundleReader {
         }
 
         // set referenceable flag
-        bundle.setReferenceable(in.readBoolean());
+        bundle.setReferenceable(buffer.get() != 0);
 
         // child nodes (list of uuid/name pairs)
         NodeId childId = readNodeId();
@@ -266,7 +327,7 @@ class BundleReader {
 
         // read modcount, since version 1.0
         if (version >= BundleBinding.VERSION_1) {
-            bundle.setModCount(in.readShort());
+            bundle.setModCount(buffer.getShort());
         }
 
         // read shared set, since version 2.0
@@ -288,6 +349,33 @@ class BundleReader {
         }
     }
 
+    /**
+     * Deserializes the entries of a child node page.
+     *
+     * @return the child node entries
+     * @throws IOException if an I/O error occurs.
+     */
+    public List<NodePropBundle.ChildNodeEntry> readChildPage()
+            throws IOException {
+        if (version < BundleBinding.VERSION_4) {
+            throw new IOException(
+                    "Unsupported child node page version: " + version);
+        }
+        try {
+            int count = readVarInt();
+            List<NodePropBundle.ChildNodeEntry> entries =
+                new ArrayList<NodePropBundle.ChildNodeEntry>(count);
+            for (int i = 0; i < count; i++) {
+                Name name = readName();
+                NodeId id = readNodeId();
+                entries.add(new NodePropBundle.ChildNodeEntry(name, id));
+            }
+            return entries;
+        } catch (BufferUnderflowException e) {
+            throw new IOExceptionWithCause("Truncated child node page", e);
+        }
+    }
+
     /**
      * Deserializes a <code>PropertyState</code> from the data input stream.
      *
@@ -301,7 +389,7 @@ class BundleReader {
 
         int count = 1;
         if (version >= BundleBinding.VERSION_3) {
-            int b = in.readUnsignedByte();
+            int b = buffer.get() & 0xff;
 
             entry.setType(b & 0x0f);
 
@@ -318,30 +406,52 @@ class BundleReader {
             entry.setModCount((short) readVarInt());
         } else {
             // type and modcount
-            int type = in.readInt();
+            int type = buffer.getInt();
             entry.setModCount((short) ((type >> 16) & 0x0ffff));
             type &= 0x0ffff;
             entry.setType(type);
 
             // multiValued
-            entry.setMultiValued(in.readBoolean());
+            entry.setMultiValued(buffer.get() != 0);
 
             // definitionId
-            in.readUTF();
+            readUTF();
 
             // count
-            count = in.readInt();
+            count = buffer.getInt();
         }
 
         // values
-        InternalValue[] values = new InternalValue[count];
         String[] blobIds = new String[count];
+        if (version >= BundleBinding.VERSION_3
+                && entry.getType() != PropertyType.BINARY) {
+            // decode the values when they are first accessed
+            entry.setEncodedValues(new EncodedValues(entry.getType(), count));
+        } else {
+            entry.setValues(readValues(entry.getType(), count, blobIds));
+        }
+        entry.setBlobIds(blobIds);
+
+        return entry;
+    }
+
+    /**
+     * Deserializes the values of a property.
+     *
+     * @param type the property type
+     * @param count the number of values
+     * @param blobIds array for the ids of values kept in the blob store
+     * @return the values
+     * @throws IOException if an I/O error occurs.
+     */
+    private InternalValue[] readValues(int type, int count, String[] blobIds)
+            throws IOException {
+        InternalValue[] values = new InternalValue[count];
         for (int i = 0; i < count; i++) {
             InternalValue val;
-            int type = entry.getType();
             switch (type) {
                 case PropertyType.BINARY:
-                    int size = in.readInt();
+                    int size = buffer.getInt();
                     if (size == BundleBinding.BINARY_IN_DATA_STORE) {
                         val = InternalValue.create(binding.dataStore, readString());
                     } else if (size == BundleBinding.BINARY_IN_BLOB_STORE) {
@@ -366,12 +476,12 @@ class BundleReader {
                     } else {
                         // short values into memory
                         byte[] data = new byte[size];
-                        in.readFully(data);
+                        buffer.get(data);
                         val = InternalValue.create(data);
                     }
                     break;
                 case PropertyType.DOUBLE:
-                    val = InternalValue.create(in.readDouble());
+                    val = InternalValue.create(buffer.getDouble());
                     break;
                 case PropertyType.DECIMAL:
                     val = InternalValue.create(readDecimal());
@@ -380,11 +490,11 @@ class BundleReader {
                     if (version >= BundleBinding.VERSION_3) {
                         val = InternalValue.create(readVarLong());
                     } else {
-                        val = InternalValue.create(in.readLong());
+                        val = InternalValue.create(buffer.getLong());
                     }
                     break;
                 case PropertyType.BOOLEAN:
-                    val = InternalValue.create(in.readBoolean());
+                    val = InternalValue.create(buffer.get() != 0);
                     break;
                 case PropertyType.NAME:
                     val = InternalValue.create(readQName());
@@ -402,30 +512,112 @@ class BundleReader {
                     } // else fall through
                 default:
                     if (version >= BundleBinding.VERSION_3) {
-                        val = InternalValue.valueOf(
-                                readString(), entry.getType());
+                        val = InternalValue.valueOf(readString(), type);
                 } else {
                     // because writeUTF(String) has a size limit of 64k,
                     // Strings are serialized as <length><byte[]>
-                    int len = in.readInt();
+                    int len = buffer.getInt();
                     byte[] bytes = new byte[len];
-                    in.readFully(bytes);
+                    buffer.get(bytes);
                     String stringVal = new String(bytes, "UTF-8");
 
                     // https://issues.apache.org/jira/browse/JCR-3083
-                    if (PropertyType.DATE == entry.getType()) {
+                    if (PropertyType.DATE == type) {
                         val = InternalValue.createDate(stringVal);
                     } else {
-                        val = InternalValue.valueOf(stringVal, entry.getType());
+                        val = InternalValue.valueOf(stringVal, type);
                     }
                 }
             }
             values[i] = val;
         }
-        entry.setValues(values);
-        entry.setBlobIds(blobIds);
+        return values;
+    }
+
+    /**
+     * Skips the values of a property written using bundle serialization
+     * version 3, keeping track of the namespaces of skipped names.
+     *
+     * @param type the property type, other than binary
+     * @param count the number of values
+     * @throws IOException if an I/O error occurs.
+     */
+    private void skipValues(int type, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            switch (type) {
+                case PropertyType.DOUBLE:
+                    skip(8);
+                    break;
+                case PropertyType.DECIMAL:
+                    if (buffer.get() != 0) {
+                        skip(readVarInt());
+                    }
+                    break;
+                case PropertyType.LONG:
+                case PropertyType.DATE:
+                    while ((buffer.get() & 0x80) != 0) {
+                        // skip the bytes of the variable-length long
+                    }
+                    break;
+                case PropertyType.BOOLEAN:
+                    skip(1);
+                    break;
+                case PropertyType.NAME:
+                    skipName();
+                    break;
+                case PropertyType.WEAKREFERENCE:
+                case PropertyType.REFERENCE:
+                    skip(16);
+                    break;
+                default:
+                    skip(readVarInt());
+            }
+        }
+    }
+
+    private void skip(int n) {
+        buffer.position(buffer.position() + n);
+    }
+
+    /**
+     * Property values that are decoded from the buffer on demand.
+     */
+    private class EncodedValues implements NodePropBundle.ValueDecoder {
+
+        private final int type;
+
+        private final int count;
+
+        /** position of the encoded values in the buffer */
+        private final int position;
+
+        /** namespaces seen before the values, only needed for names */
+        private final String[] seen;
+
+        public EncodedValues(int type, int count) throws IOException {
+            this.type = type;
+            this.count = count;
+            this.position = buffer.position();
+            if (type == PropertyType.NAME) {
+                this.seen = namespaces.clone();
+            } else {
+                this.seen = null;
+            }
+            skipValues(type, count);
+        }
+
+        public InternalValue[] decode() throws IOException {
+            ByteBuffer values = buffer.duplicate();
+            values.position(position);
+            BundleReader reader =
+                new BundleReader(BundleReader.this, values, seen);
+            try {
+                return reader.readValues(type, count, null);
+            } catch (BufferUnderflowException e) {
+                throw new IOExceptionWithCause("Truncated property values", e);
+            }
+        }
 
-        return entry;
     }
 
     /**
@@ -435,9 +627,9 @@ class BundleReader {
      * @throws IOException in an I/O error occurs.
      */
     private NodeId readNodeId() throws IOException {
-        if (version >= BundleBinding.VERSION_3 || in.readBoolean()) {
-            long msb = in.readLong();
-            long lsb = in.readLong();
+        if (version >= BundleBinding.VERSION_3 || buffer.get() != 0) {
+            long msb = buffer.getLong();
+            long lsb = buffer.getLong();
             return new NodeId(msb, lsb);
         } else {
             return null;
@@ -451,7 +643,7 @@ class BundleReader {
      * @throws IOException in an I/O error occurs.
      */
     private BigDecimal readDecimal() throws IOException {
-        if (in.readBoolean()) {
+        if (buffer.get() != 0) {
             // TODO more efficient serialization format
             return new BigDecimal(readString());
         } else {
@@ -470,8 +662,8 @@ class BundleReader {
             return readName();
         }
 
-        String uri = binding.nsIndex.indexToString(in.readInt());
-        String local = in.readUTF();
+        String uri = binding.nsIndex.indexToString(buffer.getInt());
+        String local = readUTF();
         return NameFactoryImpl.getInstance().create(uri, local);
     }
 
@@ -486,12 +678,12 @@ class BundleReader {
             return readName();
         }
 
-        int index = in.readInt();
+        int index = buffer.getInt();
         if (index < 0) {
             return null;
         } else {
             String uri = binding.nsIndex.indexToString(index);
-            String local = binding.nameIndex.indexToString(in.readInt());
+            String local = binding.nameIndex.indexToString(buffer.getInt());
             return NameFactoryImpl.getInstance().create(uri, local);
         }
     }
@@ -503,7 +695,7 @@ class BundleReader {
      * @throws IOException if an I/O error occurs
      */
     private Name readName() throws IOException {
-        int b = in.readUnsignedByte();
+        int b = buffer.get() & 0xff;
         if ((b & 0x80) == 0) {
             return BundleNames.indexToName(b);
         } else {
@@ -524,6 +716,26 @@ class BundleReader {
         }
     }
 
+    /**
+     * Skips a name written using bundle serialization version 3, but
+     * remembers its namespace like {@link #readName()}.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    private void skipName() throws IOException {
+        int b = buffer.get() & 0xff;
+        if ((b & 0x80) != 0) {
+            int ns = (b >> 4) & 0x07;
+            if (ns >= namespaces.length || namespaces[ns] == null) {
+                String uri = readString();
+                if (ns < namespaces.length) {
+                    namespaces[ns] = uri;
+                }
+            }
+            skip(readVarInt((b & 0x0f) + 1, 0x10));
+        }
+    }
+
     /**
      * Deserializes a variable-length integer written using bundle
      * serialization version 3.
@@ -532,7 +744,7 @@ class BundleReader {
      * @throws IOException if an I/O error occurs
      */
     private int readVarInt() throws IOException {
-        int b = in.readUnsignedByte();
+        int b = buffer.get() & 0xff;
         if ((b & 0x80) == 0) {
             return b;
         } else {
@@ -560,7 +772,7 @@ class BundleReader {
         int bits = 0;
         long b;
         do {
-            b = in.readUnsignedByte();
+            b = buffer.get() & 0xff;
             if (bits < 57) {
                 value = (b & 0x7f) << 57 | value >>> 7;
                 bits += 7;
@@ -661,13 +873,26 @@ class BundleReader {
         if (version >= BundleBinding.VERSION_3) {
             return new String(readBytes(0, 0), "UTF-8");
         } else {
-            return in.readUTF();
+            return readUTF();
         }
     }
 
+    /**
+     * Deserializes a string written using {@link java.io.DataOutput#writeUTF}.
+     *
+     * @return deserialized string
+     * @throws IOException if an I/O error occurs
+     */
+    private String readUTF() throws IOException {
+        int length = buffer.getShort(buffer.position()) & 0xffff;
+        byte[] bytes = new byte[2 + length];
+        buffer.get(bytes);
+        return new DataInputStream(new ByteArrayInputStream(bytes)).readUTF();
+    }
+
     private byte[] readBytes(int len, int base) throws IOException {
         byte[] bytes = new byte[readVarInt(len, base)];
-        in.readFully(bytes);
+        buffer.get(bytes);
         return bytes;
     }
 
@@ -16,15 +16,23 @@
  */
 package org.apache.jackrabbit.core.persistence.util;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.math.BigDecimal;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.jcr.PropertyType;
 import javax.jcr.RepositoryException;
@@ -34,6 +42,7 @@ import org.apache.commons.io.IOUtils;
 import org.apache.jackrabbit.core.id.NodeId;
 import org.apache.jackrabbit.core.value.InternalValue;
 import org.apache.jackrabbit.core.persistence.util.NodePropBundle.ChildNodeEntry;
+import org.apache.jackrabbit.core.persistence.util.NodePropBundle.ChildPage;
 import org.apache.jackrabbit.core.persistence.util.NodePropBundle.PropertyEntry;
 import org.apache.jackrabbit.spi.Name;
 import org.slf4j.Logger;
@@ -62,6 +71,11 @@ class BundleWriter {
         // NOTE: The length of this array must be seven
         { Name.NS_DEFAULT_URI, null, null, null, null, null, null };
 
+    /**
+     * Whether a bundle is serialized as it is, without side effects.
+     */
+    private boolean asIs;
+
     /**
      * Creates a new bundle serializer.
      *
@@ -74,17 +88,60 @@ class BundleWriter {
         assert namespaces.length == 7;
         this.binding = binding;
         this.out = new DataOutputStream(stream);
-        this.out.writeByte(BundleBinding.VERSION_CURRENT);
     }
 
     /**
-     * Serializes a <code>NodePropBundle</code> to a data output stream
+     * Serializes a <code>NodePropBundle</code> to a data output stream.
+     * If the child node list of the bundle is split into pages, the changed
+     * pages are written to the child page store of the binding and the
+     * bundle is written using version 4, otherwise version 3 is used.
      *
      * @param bundle the bundle to serialize
      * @throws IOException if an I/O error occurs.
      */
     public void writeBundle(NodePropBundle bundle)
             throws IOException {
+        long size = writeBundle(bundle, writeChildPages(bundle));
+        // set size of bundle
+        bundle.setSize(size);
+    }
+
+    /**
+     * Serializes a <code>NodePropBundle</code> as it is, without writing or
+     * releasing child node pages and without changing the bundle. The
+     * current pages of the bundle are referenced if its child node entries
+     * have not been loaded, otherwise the child node list is written inline.
+     *
+     * @param bundle the bundle to serialize
+     * @throws IOException if an I/O error occurs.
+     */
+    public void writeBundleAsIs(NodePropBundle bundle) throws IOException {
+        asIs = true;
+        List<ChildPage> pages = null;
+        if (!bundle.isChildNodeEntriesLoaded()) {
+            pages = bundle.getChildPages();
+        }
+        writeBundle(bundle, pages);
+    }
+
+    /**
+     * Serializes a <code>NodePropBundle</code> with the given child node
+     * pages.
+     *
+     * @param bundle the bundle to serialize
+     * @param pages the child node pages, or <code>null</code> to write the
+     *              child node list inline
+     * @return the size of the serialized bundle
+     * @throws IOException if an I/O error occurs.
+     */
+    private long writeBundle(NodePropBundle bundle, List<ChildPage> pages)
+            throws IOException {
+        if (pages != null) {
+            out.writeByte(BundleBinding.VERSION_4);
+        } else {
+            out.writeByte(BundleBinding.VERSION_3);
+        }
+
         long size = out.size();
 
         // primaryType
@@ -102,12 +159,17 @@ class BundleWriter {
 
         Collection<Name> mixins = bundle.getMixinTypeNames();
         Collection<PropertyEntry> properties = bundle.getPropertyEntries();
-        Collection<ChildNodeEntry> nodes = bundle.getChildNodeEntries();
+        Collection<ChildNodeEntry> nodes;
+        if (pages != null) {
+            nodes = Collections.emptyList();
+        } else {
+            nodes = bundle.getChildNodeEntries();
+        }
         Collection<NodeId> shared = bundle.getSharedSet();
 
         int mn = mixins.size();
         int pn = properties.size();
-        int nn = nodes.size();
+        int nn = pages != null ? pages.size() : nodes.size();
         int sn = shared.size();
         int referenceable = 0;
         if (bundle.isReferenceable()) {
@@ -132,11 +194,20 @@ class BundleWriter {
             writeState(property);
         }
 
-        // child nodes (list of name/uuid pairs)
         writeVarInt(nn, 3);
-        for (ChildNodeEntry child : nodes) {
-            writeName(child.getName());   // name
-            writeNodeId(child.getId());   // uuid
+        if (pages != null) {
+            // child node pages (list of page id, entry count, first uuid)
+            for (ChildPage page : pages) {
+                writeNodeId(page.getId());
+                writeVarInt(page.getCount());
+                writeNodeId(page.getFirstId());
+            }
+        } else {
+            // child nodes (list of name/uuid pairs)
+            for (ChildNodeEntry child : nodes) {
+                writeName(child.getName());   // name
+                writeNodeId(child.getId());   // uuid
+            }
         }
 
         // write shared set
@@ -145,8 +216,142 @@ class BundleWriter {
             writeNodeId(nodeId);
         }
 
-        // set size of bundle
-        bundle.setSize(out.size() - size);
+        return out.size() - size;
+    }
+
+    /**
+     * Serializes the entries of a child node page.
+     *
+     * @param entries the child node entries of the page
+     * @throws IOException if an I/O error occurs.
+     */
+    public void writeChildPage(List<ChildNodeEntry> entries)
+            throws IOException {
+        out.writeByte(BundleBinding.VERSION_4);
+        writeVarInt(entries.size());
+        for (ChildNodeEntry child : entries) {
+            writeName(child.getName());
+            writeNodeId(child.getId());
+        }
+    }
+
+    /**
+     * Splits the child node list of the given bundle into pages if it is
+     * larger than the page size of the binding. A page is ended after a
+     * child node whose id hashes to a multiple of a quarter of the page
+     * size, so that the pages (except the one that contains a changed
+     * entry) stay the same when child nodes are added or removed. Pages
+     * whose entries did not change since the bundle was last read or
+     * written are reused, and new pages are written to the child page
+     * store. Once the store transaction is committed, the bundle uses the
+     * new pages and the pages that are no longer used are released, to be
+     * removed once they can no longer be read.
+     *
+     * @param bundle the bundle
+     * @return the pages, or <code>null</code> if the child node list is
+     *         written inline
+     * @throws IOException if a page can not be read, written or removed
+     */
+    private List<ChildPage> writeChildPages(NodePropBundle bundle)
+            throws IOException {
+        List<ChildPage> old = binding.getChildPages(bundle);
+        if (old != null && !bundle.isChildNodeEntriesLoaded()) {
+            // not changed since the bundle was read
+            return old;
+        }
+
+        List<ChildPage> pages = null;
+        List<ChildNodeEntry> nodes = bundle.getChildNodeEntries();
+        ChildPageStore store = binding.getChildPageStore();
+        int pageSize = binding.getChildPageSize();
+        Map<NodeId, ChildPage> candidates = new HashMap<NodeId, ChildPage>();
+        Set<ChildPage> reused =
+            Collections.newSetFromMap(new IdentityHashMap<ChildPage, Boolean>());
+        List<NodeId> written = new ArrayList<NodeId>();
+        if (old != null) {
+            for (ChildPage page : old) {
+                candidates.put(page.getFirstId(), page);
+            }
+        }
+        if (store != null && pageSize > 0 && nodes.size() > pageSize) {
+            pages = new ArrayList<ChildPage>();
+            int min = Math.max(1, pageSize / 4);
+            List<ChildNodeEntry> entries = new ArrayList<ChildNodeEntry>();
+            for (ChildNodeEntry child : nodes) {
+                entries.add(child);
+                if (entries.size() >= pageSize || (entries.size() >= min
+                        && isPageBoundary(child.getId(), min))) {
+                    pages.add(writeChildPage(
+                            store, entries, candidates, reused, written));
+                    entries = new ArrayList<ChildNodeEntry>();
+                }
+            }
+            if (!entries.isEmpty()) {
+                pages.add(writeChildPage(
+                        store, entries, candidates, reused, written));
+            }
+        }
+
+        List<NodeId> released = new ArrayList<NodeId>();
+        if (old != null && store != null) {
+            for (ChildPage page : old) {
+                if (!reused.contains(page)) {
+                    // removed once no state can read it anymore
+                    released.add(page.getId());
+                }
+            }
+        }
+        binding.updateChildPages(bundle, pages, written, released);
+        return pages;
+    }
+
+    /**
+     * Returns an existing page with the given entries, or writes a new one.
+     *
+     * @param store the child page store
+     * @param entries the entries of the page
+     * @param candidates existing pages, by the id of their first entry
+     * @param reused set to which reused existing pages are added
+     * @param written list to which the ids of written pages are added
+     * @return the page
+     * @throws IOException if a page can not be read or written
+     */
+    private ChildPage writeChildPage(
+            ChildPageStore store, List<ChildNodeEntry> entries,
+            Map<NodeId, ChildPage> candidates, Set<ChildPage> reused,
+            List<NodeId> written) throws IOException {
+        ChildPage page = candidates.remove(entries.get(0).getId());
+        if (page != null && page.getCount() == entries.size()
+                && page.getEntries().equals(entries)) {
+            reused.add(page);
+            return page;
+        }
+
+        page = new ChildPage(BundleBinding.createChildPageId(), entries);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        new BundleWriter(binding, buffer).writeChildPage(entries);
+        try {
+            store.put(page.getId(), buffer.toByteArray());
+            written.add(page.getId());
+        } catch (Exception e) {
+            throw new IOExceptionWithCause(
+                    "Failed to write child node page " + page.getId(), e);
+        }
+        return page;
+    }
+
+    /**
+     * Checks whether a child node page ends after the child node with the
+     * given id.
+     *
+     * @param id the id of the child node
+     * @param interval the average number of entries between boundaries
+     * @return <code>true</code> if a page ends after the child node
+     */
+    private static boolean isPageBoundary(NodeId id, int interval) {
+        long bits = id.getMostSignificantBits() ^ id.getLeastSignificantBits();
+        int hash = (int) (bits ^ (bits >>> 32)) * 0x9e3779b9;
+        return (hash >>> 1) % interval == 0;
     }
 
     /**
@@ -217,6 +422,8 @@ class BundleWriter {
                         if (val.isInDataStore()) {
                             out.writeInt(BundleBinding.BINARY_IN_DATA_STORE);
                             writeString(val.toString());
+                        } else if (asIs) {
+                            writeBinaryAsIs(val, state, i);
                         } else if (binding.dataStore != null) {
                             writeSmallBinary(val, state, i);
                         } else if (size < 0) {
@@ -343,6 +550,32 @@ class BundleWriter {
         return new IOExceptionWithCause(message, e);
     }
 
+    /**
+     * Write a binary value that is not in the data store where it is kept
+     * already: as a reference to the blob store if it was read from there,
+     * inline otherwise. Neither the value nor the blob store is changed.
+     *
+     * @param value the binary value
+     * @param state the property entry
+     * @param i the index of the value
+     * @throws IOException if the value can not be written
+     * @throws RepositoryException if the length of the value is unknown
+     */
+    private void writeBinaryAsIs(
+            InternalValue value, NodePropBundle.PropertyEntry state, int i)
+            throws IOException, RepositoryException {
+        String blobId = state.getBlobId(i);
+        if (blobId != null) {
+            out.writeInt(BundleBinding.BINARY_IN_BLOB_STORE);
+            writeString(blobId);
+        } else if (value.getLength() < 0) {
+            throw new IOException("Blob has negative size. id="
+                    + state.getId() + " idx=" + i);
+        } else {
+            writeSmallBinary(value, state, i);
+        }
+    }
+
     /**
      * Write a small binary value and return the data.
      *
@@ -0,0 +1,198 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.persistence.util;
+
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.IOExceptionWithCause;
+import org.apache.jackrabbit.core.id.NodeId;
+
+/**
+ * Defers the removal of child node pages that are no longer used by the
+ * current version of their bundle. Node states, cached bundles and copies
+ * of child node lists read their entries lazily from the pages of the
+ * bundle version they were created from, so a superseded page may only be
+ * removed from the {@link ChildPageStore} once no page object that can
+ * still load it is reachable.
+ * <p>
+ * Pages are only released once the change that superseded them has been
+ * committed, and they are removed outside of any store transaction, so
+ * the removal can not be rolled back or be part of the transaction of
+ * another change.
+ * <p>
+ * Every page object that is read lazily is tracked with a weak reference.
+ * A page that is released is removed from the store as soon as all of its
+ * page objects have been garbage collected. Pages that are still pending
+ * when the persistence manager is closed are removed then, as no reader
+ * can outlive it. A page whose removal fails stays pending. Pending pages
+ * of a persistence manager that was not closed properly are left in the
+ * store, until a consistency fix removes the pages that are not used by
+ * any bundle.
+ */
+class ChildPageReclaimer {
+
+    /**
+     * The queue of garbage collected page objects.
+     */
+    private final ReferenceQueue<NodePropBundle.ChildPage> queue =
+        new ReferenceQueue<NodePropBundle.ChildPage>();
+
+    /**
+     * The references of the tracked page objects. They must be reachable
+     * to be enqueued.
+     */
+    private final Set<PageReference> references = new HashSet<PageReference>();
+
+    /**
+     * The number of reachable page objects, by page id.
+     */
+    private final Map<NodeId, Integer> live = new HashMap<NodeId, Integer>();
+
+    /**
+     * The released pages that are not removed from the store yet.
+     */
+    private final Set<NodeId> pending = new HashSet<NodeId>();
+
+    /**
+     * Tracks a page object whose entries are read lazily.
+     *
+     * @param page the page
+     */
+    synchronized void track(NodePropBundle.ChildPage page) {
+        expunge();
+        references.add(new PageReference(page, queue));
+        Integer count = live.get(page.getId());
+        live.put(page.getId(), count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Releases pages that are no longer used by the committed version of
+     * their bundle, and removes all released pages that are no longer
+     * reachable from the store.
+     *
+     * @param store the child page store
+     * @param pageIds the ids of the pages
+     * @throws IOException if a page can not be removed
+     */
+    void release(ChildPageStore store, Collection<NodeId> pageIds)
+            throws IOException {
+        synchronized (this) {
+            pending.addAll(pageIds);
+        }
+        reclaim(store, false);
+    }
+
+    /**
+     * Removes the released pages from the store.
+     *
+     * @param store the child page store
+     * @param all whether also the pages that are still reachable are
+     *            removed, when the persistence manager is closed
+     * @throws IOException if a page can not be removed
+     */
+    void reclaim(ChildPageStore store, boolean all) throws IOException {
+        List<NodeId> removable = new ArrayList<NodeId>();
+        synchronized (this) {
+            expunge();
+            Iterator<NodeId> iterator = pending.iterator();
+            while (iterator.hasNext()) {
+                NodeId id = iterator.next();
+                if (all || !live.containsKey(id)) {
+                    removable.add(id);
+                    iterator.remove();
+                }
+            }
+        }
+        for (int i = 0; i < removable.size(); i++) {
+            NodeId id = removable.get(i);
+            try {
+                store.remove(id);
+            } catch (Exception e) {
+                // retried on the next release, or when closed
+                synchronized (this) {
+                    pending.addAll(removable.subList(i, removable.size()));
+                }
+                throw new IOExceptionWithCause(
+                        "Failed to remove child node page " + id, e);
+            }
+        }
+    }
+
+    /**
+     * @return the number of released pages that are not removed yet
+     */
+    synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Checks whether the given page has been released, but is not removed
+     * yet, or is still reachable.
+     *
+     * @param pageId the id of the page
+     * @return <code>true</code> if the page may still be read
+     */
+    synchronized boolean isInUse(NodeId pageId) {
+        expunge();
+        return pending.contains(pageId) || live.containsKey(pageId);
+    }
+
+    /**
+     * Forgets the page objects that have been garbage collected.
+     */
+    private void expunge() {
+        Reference<? extends NodePropBundle.ChildPage> reference;
+        while ((reference = queue.poll()) != null) {
+            PageReference page = (PageReference) reference;
+            references.remove(page);
+            Integer count = live.get(page.id);
+            if (count == null || count <= 1) {
+                live.remove(page.id);
+            } else {
+                live.put(page.id, count - 1);
+            }
+        }
+    }
+
+    /**
+     * Weak reference to a tracked page object, that keeps the page id.
+     */
+    private static class PageReference
+            extends WeakReference<NodePropBundle.ChildPage> {
+
+        private final NodeId id;
+
+        PageReference(NodePropBundle.ChildPage page,
+                ReferenceQueue<NodePropBundle.ChildPage> queue) {
+            super(page, queue);
+            this.id = page.getId();
+        }
+
+    }
+
+}
@@ -0,0 +1,68 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.persistence.util;
+
+import java.util.List;
+
+import org.apache.jackrabbit.core.id.NodeId;
+
+/**
+ * <code>ChildPageStore</code> represents the store of the pages into which
+ * the child node lists of nodes with many child nodes are split. The pages
+ * are kept in the same storage as the bundles, but are identified by
+ * special ids that are never used by nodes.
+ *
+ * @see BundleBinding#setChildPageStore(ChildPageStore, int)
+ */
+public interface ChildPageStore {
+
+    /**
+     * Retrieves the serialized page with the specified id.
+     *
+     * @param pageId id of the page
+     * @return the serialized page, or <code>null</code> if not found
+     * @throws Exception if an error occured
+     */
+    byte[] get(NodeId pageId) throws Exception;
+
+    /**
+     * Stores a new page. Pages are never modified; a changed page is
+     * stored under a new id.
+     *
+     * @param pageId id of the page
+     * @param data the serialized page
+     * @throws Exception if an error occured
+     */
+    void put(NodeId pageId, byte[] data) throws Exception;
+
+    /**
+     * Removes the page with the specified id.
+     *
+     * @param pageId id of the page
+     * @throws Exception if an error occured
+     */
+    void remove(NodeId pageId) throws Exception;
+
+    /**
+     * Returns the ids of all pages in the store.
+     *
+     * @return the page ids
+     * @throws Exception if an error occured
+     */
+    List<NodeId> getAllPageIds() throws Exception;
+
+}
@@ -16,6 +16,8 @@
  */
 package org.apache.jackrabbit.core.persistence.util;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
@@ -30,6 +32,7 @@ import org.apache.jackrabbit.core.id.NodeId;
 import org.apache.jackrabbit.core.id.PropertyId;
 import org.apache.jackrabbit.core.persistence.PersistenceManager;
 import org.apache.jackrabbit.core.value.InternalValue;
+import org.apache.jackrabbit.core.state.ChildNodeEntryLoader;
 import org.apache.jackrabbit.core.state.PropertyState;
 import org.apache.jackrabbit.core.state.NodeState;
 import org.apache.jackrabbit.spi.Name;
@@ -69,10 +72,17 @@ public class NodePropBundle {
     private Set<Name> mixinTypeNames;
 
     /**
-     * the child node entries
+     * the child node entries, or <code>null</code> if the child node pages
+     * have not been loaded yet
      */
     private LinkedList<NodePropBundle.ChildNodeEntry> childNodeEntries = new LinkedList<NodePropBundle.ChildNodeEntry>();
 
+    /**
+     * the pages into which the child node entries are split when the bundle
+     * is stored, or <code>null</code> if the entries are stored inline
+     */
+    private List<ChildPage> childPages;
+
     /**
      * the properties
      */
@@ -138,7 +148,8 @@ public class NodePropBundle {
         isReferenceable = state.hasPropertyName(NameConstants.JCR_UUID);
         modCount = state.getModCount();
         List<org.apache.jackrabbit.core.state.ChildNodeEntry> list = state.getChildNodeEntries();
-        childNodeEntries.clear();
+        // the child pages are kept, so that unchanged pages are not written again
+        childNodeEntries = new LinkedList<NodePropBundle.ChildNodeEntry>();
         for (org.apache.jackrabbit.core.state.ChildNodeEntry cne : list) {
             addChildNodeEntry(cne.getName(), cne.getId());
         }
@@ -156,8 +167,12 @@ public class NodePropBundle {
         state.setNodeTypeName(nodeTypeName);
         state.setMixinTypeNames(mixinTypeNames);
         state.setModCount(modCount);
-        for (ChildNodeEntry e : childNodeEntries) {
-            state.addChildNodeEntry(e.getName(), e.getId());
+        if (childNodeEntries != null) {
+            for (ChildNodeEntry e : childNodeEntries) {
+                state.addChildNodeEntry(e.getName(), e.getId());
+            }
+        } else {
+            state.setChildNodeEntryLoader(new ChildPageLoader(childPages));
         }
         state.setPropertyNames(properties.keySet());
 
@@ -284,20 +299,94 @@ public class NodePropBundle {
     }
 
     /**
-     * Returns the list of the child node entries.
+     * Returns the list of the child node entries. The child node pages of
+     * the bundle are loaded if needed.
      * @return the list of the child node entries.
+     * @throws IllegalStateException if a child node page can not be loaded
      */
     public List<NodePropBundle.ChildNodeEntry> getChildNodeEntries() {
+        if (childNodeEntries == null) {
+            LinkedList<ChildNodeEntry> entries = new LinkedList<ChildNodeEntry>();
+            for (ChildPage page : childPages) {
+                entries.addAll(page.getEntriesOrFail());
+            }
+            childNodeEntries = entries;
+        }
         return childNodeEntries;
     }
 
+    /**
+     * Returns the number of child node entries, without loading the child
+     * node pages.
+     * @return the number of child node entries.
+     */
+    public int getChildNodeEntryCount() {
+        if (childNodeEntries == null) {
+            return ChildPageLoader.getCount(childPages);
+        }
+        return childNodeEntries.size();
+    }
+
+    /**
+     * Checks whether the child node entries have been loaded, i.e. if they
+     * may have been changed since the bundle was read.
+     * @return <code>false</code> if the child node pages have not been loaded
+     */
+    boolean isChildNodeEntriesLoaded() {
+        return childNodeEntries != null;
+    }
+
     /**
      * Adds a child node entry.
      * @param name the name of the entry.
      * @param id the id of the entry
      */
     public void addChildNodeEntry(Name name, NodeId id) {
-        childNodeEntries.add(new ChildNodeEntry(name, id));
+        getChildNodeEntries().add(new ChildNodeEntry(name, id));
+    }
+
+    /**
+     * Returns the pages into which the child node entries are split, or
+     * <code>null</code> if the child node entries are stored inline.
+     * @return the child node pages.
+     */
+    List<ChildPage> getChildPages() {
+        return childPages;
+    }
+
+    /**
+     * Returns the ids of the pages into which the child node entries are
+     * split.
+     * @return the page ids, empty if the child node entries are stored
+     *         inline.
+     */
+    public List<NodeId> getChildPageIds() {
+        List<NodeId> ids = new ArrayList<NodeId>();
+        if (childPages != null) {
+            for (ChildPage page : childPages) {
+                ids.add(page.getId());
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Sets the pages into which the child node entries are split, after
+     * the store transaction that wrote them has been committed.
+     * @param childPages the child node pages, or <code>null</code>
+     */
+    void setChildPages(List<ChildPage> childPages) {
+        this.childPages = childPages;
+    }
+
+    /**
+     * Sets the pages of a bundle that was read. The child node entries are
+     * loaded from the pages when they are accessed for the first time.
+     * @param childPages the child node pages
+     */
+    void setUnloadedChildPages(List<ChildPage> childPages) {
+        this.childPages = childPages;
+        this.childNodeEntries = null;
     }
 
     /**
@@ -420,7 +509,7 @@ public class NodePropBundle {
         //      + string: 20 + length
         //  + parentId: 160
         //  + id: 160
-        return 500 + size + 300 * (childNodeEntries.size() + properties.size() + 3);
+        return 500 + size + 300 * (getChildNodeEntryCount() + properties.size() + 3);
     }
 
     /**
@@ -455,7 +544,11 @@ public class NodePropBundle {
         }
         builder.append(properties.values());
         builder.append(" ");
-        builder.append(childNodeEntries);
+        if (childNodeEntries != null) {
+            builder.append(childNodeEntries);
+        } else {
+            builder.append(childPages);
+        }
         return builder.toString();
     }
 
@@ -470,7 +563,7 @@ public class NodePropBundle {
                 && isReferenceable == that.isReferenceable
                 && equalNullSafe(sharedSet, that.sharedSet)
                 && equalNullSafe(properties, that.properties)
-                && equalNullSafe(childNodeEntries, that.childNodeEntries);
+                && equalNullSafe(getChildNodeEntries(), that.getChildNodeEntries());
         }
         return false;
     }
@@ -542,8 +635,169 @@ public class NodePropBundle {
 
     }
 
+    //----------------------------------------------------------< ChildPage >---
+
+    /**
+     * Helper class for a page of child node entries. The entries of a page
+     * never change, a changed page is stored as a new page.
+     */
+    static class ChildPage {
+
+        /**
+         * the id of the page
+         */
+        private final NodeId id;
+
+        /**
+         * the number of entries
+         */
+        private final int count;
+
+        /**
+         * the id of the first entry
+         */
+        private final NodeId firstId;
+
+        /**
+         * the binding used to read the entries, or <code>null</code>
+         */
+        private final BundleBinding binding;
+
+        /**
+         * the entries, or <code>null</code> if not loaded yet
+         */
+        private List<ChildNodeEntry> entries;
+
+        /**
+         * Creates a page whose entries are loaded on demand.
+         * @param id the id of the page
+         * @param count the number of entries
+         * @param firstId the id of the first entry
+         * @param binding the binding used to read the entries
+         */
+        ChildPage(NodeId id, int count, NodeId firstId, BundleBinding binding) {
+            this.id = id;
+            this.count = count;
+            this.firstId = firstId;
+            this.binding = binding;
+            binding.trackChildPage(this);
+        }
+
+        /**
+         * Creates a page with the given entries.
+         * @param id the id of the page
+         * @param entries the entries
+         */
+        ChildPage(NodeId id, List<ChildNodeEntry> entries) {
+            this.id = id;
+            this.count = entries.size();
+            this.firstId = entries.get(0).getId();
+            this.binding = null;
+            this.entries = entries;
+        }
+
+        NodeId getId() {
+            return id;
+        }
+
+        int getCount() {
+            return count;
+        }
+
+        NodeId getFirstId() {
+            return firstId;
+        }
+
+        /**
+         * Returns the entries, and reads them if needed.
+         * @return the entries
+         * @throws IOException if the entries can not be read
+         */
+        synchronized List<ChildNodeEntry> getEntries() throws IOException {
+            if (entries == null) {
+                List<ChildNodeEntry> list = binding.readChildPage(id);
+                if (list.size() != count) {
+                    throw new IOException("Child node page " + id + " contains "
+                            + list.size() + " instead of " + count + " entries");
+                }
+                entries = list;
+            }
+            return entries;
+        }
+
+        /**
+         * Returns the entries, and reads them if needed.
+         * @return the entries
+         * @throws IllegalStateException if the entries can not be read
+         */
+        List<ChildNodeEntry> getEntriesOrFail() throws IllegalStateException {
+            try {
+                return getEntries();
+            } catch (IOException e) {
+                String msg = "Unable to load child node page " + id;
+                log.error(msg, e);
+                throw new IllegalStateException(msg, e);
+            }
+        }
+
+        public String toString() {
+            return id + " (" + count + " entries)";
+        }
+
+    }
+
+    /**
+     * Loads the child node entries of a node state from the child node
+     * pages of a bundle.
+     */
+    private static class ChildPageLoader implements ChildNodeEntryLoader {
+
+        private final List<ChildPage> pages;
+
+        public ChildPageLoader(List<ChildPage> pages) {
+            this.pages = new ArrayList<ChildPage>(pages);
+        }
+
+        static int getCount(List<ChildPage> pages) {
+            int count = 0;
+            for (ChildPage page : pages) {
+                count += page.getCount();
+            }
+            return count;
+        }
+
+        public int getChildNodeEntryCount() {
+            return getCount(pages);
+        }
+
+        public void loadChildNodeEntries(List<Name> names, List<NodeId> ids) {
+            for (ChildPage page : pages) {
+                for (ChildNodeEntry entry : page.getEntriesOrFail()) {
+                    names.add(entry.getName());
+                    ids.add(entry.getId());
+                }
+            }
+        }
+
+    }
+
     //------------------------------------------------------< PropertyEntry >---
 
+    /**
+     * Decoder of property values that are deserialized on demand.
+     */
+    interface ValueDecoder {
+
+        /**
+         * Deserializes the property values.
+         *
+         * @return the values
+         * @throws IOException if the values can not be deserialized
+         */
+        InternalValue[] decode() throws IOException;
+
+    }
+
     /**
      * Helper class for a property enrty
      */
@@ -559,6 +813,11 @@ public class NodePropBundle {
          */
         private InternalValue[] values;
 
+        /**
+         * the decoder of the values, or <code>null</code> if decoded
+         */
+        private volatile ValueDecoder decoder;
+
         /**
          * the property type
          */
@@ -623,10 +882,14 @@ public class NodePropBundle {
         }
 
         /**
-         * Retruns the internal values
+         * Retruns the internal values, decoding them if needed.
          * @return the internal values
+         * @throws IllegalStateException if the values can not be decoded
          */
-        public InternalValue[] getValues() {
+        public InternalValue[] getValues() throws IllegalStateException {
+            if (decoder != null) {
+                decodeValues();
+            }
             return values;
         }
 
@@ -636,6 +899,39 @@ public class NodePropBundle {
          */
         public void setValues(InternalValue[] values) {
             this.values = values;
+            this.decoder = null;
+        }
+
+        /**
+         * Sets the decoder of the serialized values, which are then only
+         * decoded when they are first accessed.
+         * @param decoder the value decoder
+         */
+        void setEncodedValues(ValueDecoder decoder) {
+            this.values = null;
+            this.decoder = decoder;
+        }
+
+        /**
+         * Checks whether the values have been decoded.
+         * @return <code>false</code> if the values are still encoded
+         */
+        boolean isDecoded() {
+            return decoder == null;
+        }
+
+        private synchronized void decodeValues() throws IllegalStateException {
+            ValueDecoder decoder = this.decoder;
+            if (decoder != null) {
+                try {
+                    values = decoder.decode();
+                    this.decoder = null;
+                } catch (IOException e) {
+                    String msg = "Unable to decode the values of property " + id;
+                    log.error(msg, e);
+                    throw new IllegalStateException(msg, e);
+                }
+            }
         }
 
         /**
@@ -741,7 +1037,7 @@ public class NodePropBundle {
                 builder.append(",multiple");
             }
             builder.append(") = ");
-            builder.append(Arrays.toString(values));
+            builder.append(Arrays.toString(getValues()));
             return builder.toString();
         }
 
@@ -751,7 +1047,7 @@ public class NodePropBundle {
                 return id.equals(that.id)
                     && type == that.type
                     && multiValued == that.multiValued
-                    && Arrays.equals(values, that.values);
+                    && Arrays.equals(getValues(), that.getValues());
             } else {
                 return false;
             }
@@ -0,0 +1,506 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.persistence.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.CRC32;
+
+import org.apache.jackrabbit.core.id.NodeId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only store of records keyed by node id, kept in large segment
+ * files that are memory mapped. Records of different types (for example
+ * bundles and references) are kept in separate key spaces.
+ * <p>
+ * Each record is appended to the current segment, and an in-memory index
+ * maps the node ids to the location of their latest record. Removing a
+ * record appends a tombstone. The index is rebuilt by scanning all
+ * segments in order when the store is opened; records at the end of a
+ * segment that are incomplete or damaged are ignored. Records are read
+ * directly from the mapped segments without copying them, and as records
+ * are never overwritten, the returned buffers stay valid even after the
+ * segment was compacted.
+ * <p>
+ * Replaced and removed records leave dead space in their segments, which
+ * is reclaimed by {@link #compact(int)}. It copies the live records of
+ * segments with little live data to the current segment and deletes the
+ * old segment files. Tombstones are copied as well, as long as an older
+ * segment may still contain a record they hide.
+ * <p>
+ * Reads are not synchronized. Writes are synchronized on this store, and
+ * compaction only holds that lock while it copies a single record.
+ */
+public class SegmentStore {
+
+    /** Logger instance */
+    private static Logger log = LoggerFactory.getLogger(SegmentStore.class);
+
+    /**
+     * Record header: data length, checksum, type, node id.
+     */
+    private static final int HEADER_SIZE = 4 + 4 + 1 + 16;
+
+    /**
+     * Type flag of a tombstone record. Types are stored incremented by
+     * one, so that a zero type byte marks the end of the records.
+     */
+    private static final int TOMBSTONE = 0x80;
+
+    /**
+     * Suffix of the segment file names.
+     */
+    private static final String SUFFIX = ".seg";
+
+    /**
+     * A memory mapped segment file.
+     */
+    private static class Segment {
+
+        private final int number;
+
+        private final File file;
+
+        private final MappedByteBuffer buffer;
+
+        /** the number of bytes used by records */
+        private int size;
+
+        /** the number of bytes used by live records */
+        private long live;
+
+        public Segment(int number, File file, MappedByteBuffer buffer) {
+            this.number = number;
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        public int getFree() {
+            return buffer.capacity() - size;
+        }
+
+    }
+
+    private final File directory;
+
+    private final int segmentSize;
+
+    /**
+     * The index of each record type, mapping node ids to record locations.
+     * The location is the segment number in the upper and the offset in
+     * the lower 32 bits.
+     */
+    private final ConcurrentNavigableMap<NodeId, Long>[] indexes;
+
+    /**
+     * The segments, keyed by number.
+     */
+    private final ConcurrentNavigableMap<Integer, Segment> segments =
+        new ConcurrentSkipListMap<Integer, Segment>();
+
+    /**
+     * The segment to which records are appended.
+     */
+    private Segment current;
+
+    /**
+     * Lock that prevents concurrent compactions.
+     */
+    private final Object compactionLock = new Object();
+
+    /**
+     * Creates a store for the given number of record types. Call
+     * {@link #open()} before using it.
+     *
+     * @param directory the directory of the segment files
+     * @param segmentSize the size of new segment files
+     * @param types the number of record types
+     */
+    @SuppressWarnings("unchecked")
+    public SegmentStore(File directory, int segmentSize, int types) {
+        if (types < 1 || types >= TOMBSTONE - 1) {
+            throw new IllegalArgumentException("Invalid number of types: " + types);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.indexes = new ConcurrentNavigableMap[types];
+        for (int i = 0; i < types; i++) {
+            indexes[i] = new ConcurrentSkipListMap<NodeId, Long>();
+        }
+    }
+
+    /**
+     * Maps the existing segment files and builds the index.
+     *
+     * @throws IOException if a segment can not be read
+     */
+    public synchronized void open() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create directory " + directory);
+        }
+        List<Integer> numbers = new ArrayList<Integer>();
+        String[] names = directory.list();
+        for (String name : names) {
+            if (name.endsWith(SUFFIX)) {
+                try {
+                    numbers.add(Integer.valueOf(
+                            name.substring(0, name.length() - SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    log.warn("Ignoring unexpected file {} in {}", name, directory);
+                }
+            }
+        }
+        Collections.sort(numbers);
+        for (int number : numbers) {
+            File file = getFile(number);
+            Segment segment = new Segment(number, file, map(file, 0));
+            segments.put(number, segment);
+            scan(segment);
+            current = segment;
+        }
+        log.info("Opened {} segments in {}", segments.size(), directory);
+    }
+
+    /**
+     * Releases the segments. The mapped memory is released once the
+     * buffers returned by this store are no longer referenced.
+     */
+    public synchronized void close() {
+        for (Segment segment : segments.values()) {
+            segment.buffer.force();
+        }
+        segments.clear();
+        for (Map<NodeId, Long> index : indexes) {
+            index.clear();
+        }
+        current = null;
+    }
+
+    /**
+     * Returns the data of the identified record.
+     *
+     * @param type the record type
+     * @param id the node id
+     * @return read-only buffer with the record data, or <code>null</code>
+     *         if the record does not exist
+     */
+    public ByteBuffer get(int type, NodeId id) {
+        while (true) {
+            Long location = indexes[type].get(id);
+            if (location == null) {
+                return null;
+            }
+            Segment segment = segments.get((int) (location >>> 32));
+            if (segment != null) {
+                ByteBuffer buffer = segment.buffer.asReadOnlyBuffer();
+                int offset = (int) location.longValue();
+                int length = buffer.getInt(offset);
+                buffer.position(offset + HEADER_SIZE);
+                buffer.limit(offset + HEADER_SIZE + length);
+                return buffer.slice();
+            }
+            // the segment was just compacted, look up the new location
+        }
+    }
+
+    /**
+     * Checks whether the identified record exists.
+     *
+     * @param type the record type
+     * @param id the node id
+     * @return <code>true</code> if the record exists
+     */
+    public boolean contains(int type, NodeId id) {
+        return indexes[type].containsKey(id);
+    }
+
+    /**
+     * Returns the ids of the records of the given type, in ascending order.
+     * The returned set reflects concurrent changes.
+     *
+     * @param type the record type
+     * @param after the lower limit (exclusive), or <code>null</code>
+     * @return the node ids
+     */
+    public Iterable<NodeId> getIds(int type, NodeId after) {
+        if (after == null) {
+            return indexes[type].keySet();
+        } else {
+            return indexes[type].tailMap(after, false).keySet();
+        }
+    }
+
+    /**
+     * Appends a record, replacing an existing record with the same id.
+     *
+     * @param type the record type
+     * @param id the node id
+     * @param data the record data
+     * @throws IOException if a new segment can not be created
+     */
+    public synchronized void put(int type, NodeId id, byte[] data)
+            throws IOException {
+        long location = append(type, id, data);
+        Segment segment = segments.get((int) (location >>> 32));
+        segment.live += HEADER_SIZE + data.length;
+        release(indexes[type].put(id, location));
+    }
+
+    /**
+     * Removes a record by appending a tombstone.
+     *
+     * @param type the record type
+     * @param id the node id
+     * @return <code>true</code> if the record existed
+     * @throws IOException if a new segment can not be created
+     */
+    public synchronized boolean remove(int type, NodeId id)
+            throws IOException {
+        Long location = indexes[type].remove(id);
+        if (location == null) {
+            return false;
+        }
+        release(location);
+        append(type | TOMBSTONE, id, new byte[0]);
+        return true;
+    }
+
+    /**
+     * Compacts all but the current segment whose live records use less
+     * than the given percentage of the segment. Older segments are
+     * compacted first.
+     *
+     * @param threshold live data percentage below which a segment is
+     *                  compacted
+     * @return the number of compacted segments
+     * @throws IOException if a segment can not be compacted
+     */
+    public int compact(int threshold) throws IOException {
+        synchronized (compactionLock) {
+            int count = 0;
+            for (Segment segment : getSegmentsToCompact(threshold)) {
+                compact(segment);
+                count++;
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Returns the number of segments.
+     *
+     * @return number of segments
+     */
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Returns the number of bytes used by records that have been replaced
+     * or removed.
+     *
+     * @return number of dead bytes
+     */
+    public synchronized long getDeadBytes() {
+        long dead = 0;
+        for (Segment segment : segments.values()) {
+            dead += segment.size - segment.live;
+        }
+        return dead;
+    }
+
+    private synchronized List<Segment> getSegmentsToCompact(int threshold) {
+        List<Segment> list = new ArrayList<Segment>();
+        for (Segment segment : segments.values()) {
+            if (segment != current
+                    && segment.live * 100 < (long) segment.size * threshold) {
+                list.add(segment);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Copies the live records and required tombstones of the given segment
+     * to the current segment and deletes it. The store is only locked
+     * while a single record is copied.
+     */
+    private void compact(Segment segment) throws IOException {
+        log.debug("Compacting segment {}", segment.file);
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int offset = 0;
+        while (offset < segment.size) {
+            int length = buffer.getInt(offset);
+            int type = (buffer.get(offset + 8) & 0xff) - 1;
+            NodeId id = new NodeId(
+                    buffer.getLong(offset + 9), buffer.getLong(offset + 17));
+            synchronized (this) {
+                if ((type & TOMBSTONE) != 0) {
+                    // keep the tombstone if the record is still removed
+                    // and may exist in an older segment
+                    if (!indexes[type & ~TOMBSTONE].containsKey(id)
+                            && segments.firstKey() < segment.number) {
+                        append(type, id, new byte[0]);
+                    }
+                } else {
+                    Long location = (long) segment.number << 32 | offset;
+                    if (location.equals(indexes[type].get(id))) {
+                        byte[] data = new byte[length];
+                        ByteBuffer source = buffer.duplicate();
+                        source.position(offset + HEADER_SIZE);
+                        source.get(data);
+                        put(type, id, data);
+                    }
+                }
+            }
+            offset += HEADER_SIZE + length;
+        }
+        synchronized (this) {
+            segments.remove(segment.number);
+        }
+        if (!segment.file.delete()) {
+            log.warn("Unable to delete compacted segment {}", segment.file);
+            segment.file.deleteOnExit();
+        }
+    }
+
+    /**
+     * Appends a record to the current segment, creating a new segment if
+     * the record does not fit.
+     *
+     * @return the location of the record
+     */
+    private long append(int type, NodeId id, byte[] data) throws IOException {
+        int length = HEADER_SIZE + data.length;
+        if (current == null || current.getFree() < length) {
+            int number = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+            File file = getFile(number);
+            current = new Segment(
+                    number, file, map(file, Math.max(segmentSize, length)));
+            segments.put(number, current);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(data.length);
+        header.putInt(0);
+        header.put((byte) (type + 1));
+        header.putLong(id.getMostSignificantBits());
+        header.putLong(id.getLeastSignificantBits());
+        crc.update(header.array(), 9, 16);
+        crc.update(data);
+        header.putInt(4, (int) crc.getValue());
+
+        ByteBuffer buffer = current.buffer.duplicate();
+        buffer.position(current.size);
+        buffer.put(header.array());
+        buffer.put(data);
+        long location = (long) current.number << 32 | current.size;
+        current.size += length;
+        return location;
+    }
+
+    /**
+     * Marks the record at the given location as dead.
+     */
+    private void release(Long location) {
+        if (location != null) {
+            Segment segment = segments.get((int) (location >>> 32));
+            if (segment != null) {
+                int length = segment.buffer.getInt((int) location.longValue());
+                segment.live -= HEADER_SIZE + length;
+            }
+        }
+    }
+
+    /**
+     * Reads the records of a segment into the index, up to the first
+     * record that is incomplete or whose checksum does not match.
+     */
+    private void scan(Segment segment) {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int offset = 0;
+        while (offset + HEADER_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt(offset);
+            int type = (buffer.get(offset + 8) & 0xff) - 1;
+            int index = type & ~TOMBSTONE;
+            if (type == -1) {
+                break; // end of the records
+            } else if (index >= indexes.length || length < 0
+                    || offset + HEADER_SIZE + length > buffer.capacity()) {
+                log.warn("Invalid record at offset {} of {}", offset, segment.file);
+                break;
+            }
+            byte[] data = new byte[HEADER_SIZE + length];
+            buffer.position(offset);
+            buffer.get(data);
+            CRC32 crc = new CRC32();
+            crc.update(type);
+            crc.update(data, 9, 16 + length);
+            if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+                log.warn("Checksum mismatch at offset {} of {}", offset, segment.file);
+                break;
+            }
+
+            NodeId id = new NodeId(
+                    buffer.getLong(offset + 9), buffer.getLong(offset + 17));
+            segment.size = offset + HEADER_SIZE + length;
+            if ((type & TOMBSTONE) != 0) {
+                release(indexes[index].remove(id));
+            } else {
+                segment.live += HEADER_SIZE + length;
+                release(indexes[index].put(
+                        id, (long) segment.number << 32 | offset));
+            }
+            offset = segment.size;
+        }
+    }
+
+    private File getFile(int number) {
+        return new File(directory, String.format("%08d%s", number, SUFFIX));
+    }
+
+    /**
+     * Maps the given file, extending it to the given size if needed.
+     */
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() < size) {
+                raf.setLength(size);
+            }
+            return raf.getChannel().map(
+                    FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+    }
+
+}
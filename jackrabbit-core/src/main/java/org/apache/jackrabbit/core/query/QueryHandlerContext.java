@@ -106,7 +106,8 @@ public class QueryHandlerContext {
         this.workspace = workspace;
         this.repositoryContext = repositoryContext;
         this.stateMgr = stateMgr;
-        this.hmgr = new CachingHierarchyManager(rootId, stateMgr);
+        this.hmgr = new CachingHierarchyManager(rootId, stateMgr,
+                repositoryContext.getHierarchyCacheStatistics());
         this.stateMgr.addListener(hmgr);
         this.pm = pm;
         this.rootId = rootId;
@@ -34,6 +34,7 @@ import javax.jcr.query.QueryResult;
 import javax.jcr.version.VersionException;
 
 import org.apache.jackrabbit.api.stats.RepositoryStatistics.Type;
+import org.apache.jackrabbit.core.query.lucene.SearchIndex;
 import org.apache.jackrabbit.core.session.SessionContext;
 import org.apache.jackrabbit.core.session.SessionOperation;
 import org.apache.jackrabbit.stats.RepositoryStatisticsImpl;
@@ -98,6 +99,12 @@ public class QueryImpl extends AbstractQueryImpl {
      */
     protected long offset = 0;
 
+    /**
+     * The revision of the asynchronous indexing queue to wait for before
+     * the query is executed, or -1 to not wait.
+     */
+    protected long indexRevision = -1;
+
     /**
      * @inheritDoc
      */
@@ -124,6 +131,7 @@ public class QueryImpl extends AbstractQueryImpl {
      */
     public QueryResult execute() throws RepositoryException {
         checkInitialized();
+        waitForIndex();
         long time = System.nanoTime();
         QueryResult result = sessionContext.getSessionState().perform(
                 new SessionOperation<QueryResult>() {
@@ -251,8 +259,34 @@ public class QueryImpl extends AbstractQueryImpl {
         this.offset = offset;
     }
 
+    /**
+     * Sets the revision of the asynchronous indexing queue that must have
+     * been indexed before this query is executed. By default queries do not
+     * wait and only see changes that have already been indexed. Pass
+     * {@link Long#MAX_VALUE} to wait for all changes saved before the query
+     * is executed. Has no effect if the index is updated synchronously.
+     *
+     * @param revision the revision to wait for, or -1 to not wait
+     * @see org.apache.jackrabbit.core.query.lucene.SearchIndex#getIndexRevision()
+     */
+    public void setIndexRevision(long revision) {
+        this.indexRevision = revision;
+    }
+
     //-----------------------------< internal >---------------------------------
 
+    /**
+     * Waits until the revision set with {@link #setIndexRevision(long)}
+     * has been indexed.
+     *
+     * @throws RepositoryException if the revision is not indexed in time.
+     */
+    protected void waitForIndex() throws RepositoryException {
+        if (indexRevision >= 0 && handler instanceof SearchIndex) {
+            ((SearchIndex) handler).waitForIndexRevision(indexRevision);
+        }
+    }
+
     /**
      * Sets the initialized flag.
      */
@@ -37,6 +37,8 @@ import org.apache.jackrabbit.core.query.lucene.SearchIndex;
 import org.apache.jackrabbit.core.query.lucene.join.QueryEngine;
 import org.apache.jackrabbit.core.session.SessionContext;
 import org.apache.jackrabbit.core.session.SessionOperation;
+import org.apache.jackrabbit.stats.QueryStatCore;
+import org.apache.jackrabbit.stats.QueryStatImpl;
 import org.apache.jackrabbit.stats.RepositoryStatisticsImpl;
 import org.apache.jackrabbit.spi.commons.query.qom.BindVariableValueImpl;
 import org.apache.jackrabbit.spi.commons.query.qom.DefaultTraversingQOMTreeVisitor;
@@ -119,13 +121,15 @@ public class QueryObjectModelImpl extends QueryImpl implements QueryObjectModel
     }
 
     public QueryResult execute() throws RepositoryException {
+        waitForIndex();
         long time = System.nanoTime();
+        final QueryEngine engine = new QueryEngine(
+                sessionContext.getSessionImpl(), lqf, variables,
+                ((SearchIndex) handler).getJoinMemoryRows());
         final QueryResult result = sessionContext.getSessionState().perform(
                 new SessionOperation<QueryResult>() {
                     public QueryResult perform(SessionContext context)
                             throws RepositoryException {
-                        final QueryEngine engine = new QueryEngine(
-                                sessionContext.getSessionImpl(), lqf, variables);
                         return engine.execute(getColumns(), getSource(),
                                 getConstraint(), getOrderings(), offset, limit);
                     }
@@ -141,8 +145,14 @@ public class QueryObjectModelImpl extends QueryImpl implements QueryObjectModel
                 .getRepositoryContext().getRepositoryStatistics();
         statistics.getCounter(Type.QUERY_COUNT).incrementAndGet();
         statistics.getCounter(Type.QUERY_DURATION).addAndGet(timeMs);
-        sessionContext.getRepositoryContext().getStatManager().getQueryStat()
-                .logQuery(language, statement, timeMs);
+        QueryStatCore queryStat = sessionContext.getRepositoryContext()
+                .getStatManager().getQueryStat();
+        if (queryStat instanceof QueryStatImpl) {
+            ((QueryStatImpl) queryStat).logQuery(
+                    language, statement, timeMs, engine.getPlan());
+        } else {
+            queryStat.logQuery(language, statement, timeMs);
+        }
         return result;
     }
 
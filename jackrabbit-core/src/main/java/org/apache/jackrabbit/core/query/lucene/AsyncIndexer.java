@@ -0,0 +1,410 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.query.lucene;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.lucene.store.Directory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <code>AsyncIndexer</code> updates a {@link SearchIndex} in the background.
+ * Saves only queue the ids of the changed nodes, which are written to an
+ * {@link AsyncIndexingQueueStore} before {@link #enqueue} returns. A task on
+ * the repository executor then takes the queued nodes in batches and indexes
+ * their current state.
+ * <p>
+ * Every call to {@link #enqueue} increments the queue revision. The indexed
+ * revision is the highest revision up to which all queued nodes have been
+ * indexed, so a query can wait until the changes of a given save are
+ * visible. Nodes that were queued but not yet indexed when the repository
+ * stopped are indexed again after a restart.
+ * <p>
+ * A batch that fails to be indexed is put back at the head of the queue,
+ * and indexing is retried after a delay that doubles with every failure
+ * in a row. The indexed revision does not advance past the failed nodes
+ * meanwhile, and threads waiting for a revision that includes them are
+ * notified of the failure.
+ */
+class AsyncIndexer implements Runnable {
+
+    /**
+     * The logger instance for this class.
+     */
+    private static final Logger log = LoggerFactory.getLogger(AsyncIndexer.class);
+
+    /**
+     * The delay in milliseconds before indexing is retried after a failure.
+     */
+    private static final long RETRY_DELAY = 100;
+
+    /**
+     * The maximum delay in milliseconds before indexing is retried.
+     */
+    private static final long MAX_RETRY_DELAY = 60 * 1000;
+
+    /**
+     * The search index to update.
+     */
+    private final SearchIndex handler;
+
+    /**
+     * The executor that runs the indexing task.
+     */
+    private final ScheduledExecutorService executor;
+
+    /**
+     * The maximum number of nodes indexed in one update of the index.
+     */
+    private final int batchSize;
+
+    /**
+     * The persistent queue of node ids.
+     */
+    private final AsyncIndexingQueueStore store;
+
+    /**
+     * The queued node ids with the revision that first queued them, in
+     * queue order.
+     */
+    private final Map<NodeId, Long> queued = new LinkedHashMap<NodeId, Long>();
+
+    /**
+     * The revision of the last {@link #enqueue} call.
+     */
+    private long revision = 0;
+
+    /**
+     * The revision up to which all queued nodes have been indexed.
+     */
+    private long indexedRevision = 0;
+
+    /**
+     * Whether the indexing task has been handed to the executor.
+     */
+    private boolean scheduled = false;
+
+    /**
+     * Whether a thread is currently indexing queued nodes.
+     */
+    private boolean running = false;
+
+    /**
+     * Whether this indexer has been closed.
+     */
+    private boolean closed = false;
+
+    /**
+     * The number of batches in a row that failed to be indexed.
+     */
+    private int failures = 0;
+
+    /**
+     * The cause of the last failure, or <code>null</code> if the last batch
+     * has been indexed.
+     */
+    private Exception failure;
+
+    /**
+     * Creates a new asynchronous indexer. Nodes that are still pending in
+     * the queue store of the given directory are indexed again.
+     *
+     * @param handler   the search index to update.
+     * @param directory the directory of the queue store.
+     * @param executor  the executor that runs the indexing task.
+     * @param batchSize the maximum number of nodes per index update.
+     * @throws IOException if the queue store cannot be opened.
+     */
+    AsyncIndexer(SearchIndex handler, Directory directory,
+                 ScheduledExecutorService executor, int batchSize)
+            throws IOException {
+        this.handler = handler;
+        this.executor = executor;
+        this.batchSize = batchSize;
+        this.store = new AsyncIndexingQueueStore(directory);
+        String[] pending = store.getPending();
+        if (pending.length > 0) {
+            log.info("Indexing {} nodes queued before the last shutdown",
+                    pending.length);
+            revision = 1;
+            for (String uuid : pending) {
+                queued.put(new NodeId(uuid), revision);
+            }
+            schedule(0);
+        }
+    }
+
+    /**
+     * Queues the given nodes for indexing.
+     *
+     * @param ids the ids of the added, changed and removed nodes.
+     * @return the revision of the queue that contains these nodes.
+     * @throws IOException if the nodes cannot be written to the queue store.
+     */
+    synchronized long enqueue(Collection<NodeId> ids) throws IOException {
+        if (closed) {
+            throw new IOException("Asynchronous indexer is closed");
+        }
+        if (ids.isEmpty()) {
+            return revision;
+        }
+        List<String> uuids = new ArrayList<String>(ids.size());
+        for (NodeId id : ids) {
+            uuids.add(id.toString());
+        }
+        store.addUUIDs(uuids);
+        revision++;
+        for (NodeId id : ids) {
+            if (!queued.containsKey(id)) {
+                queued.put(id, revision);
+            }
+        }
+        schedule(0);
+        return revision;
+    }
+
+    /**
+     * @return the revision of the last {@link #enqueue} call.
+     */
+    synchronized long getRevision() {
+        return revision;
+    }
+
+    /**
+     * @return the revision up to which all queued nodes have been indexed.
+     */
+    synchronized long getIndexedRevision() {
+        return indexedRevision;
+    }
+
+    /**
+     * Waits until all nodes queued up to the given revision have been
+     * indexed. Revisions higher than the current revision are treated as
+     * the current revision.
+     *
+     * @param revision the revision to wait for.
+     * @param timeout  the maximum time to wait in milliseconds, or 0 to
+     *                 wait without a time limit.
+     * @return <code>true</code> if the revision has been indexed,
+     *         <code>false</code> if the timeout elapsed.
+     * @throws InterruptedException if the thread is interrupted.
+     * @throws IOException if queued nodes of the revision failed to be
+     *                     indexed, and have not been indexed since.
+     */
+    synchronized boolean waitForRevision(long revision, long timeout)
+            throws InterruptedException, IOException {
+        revision = Math.min(revision, this.revision);
+        long end = System.currentTimeMillis() + timeout;
+        while (indexedRevision < revision) {
+            if (failure != null) {
+                IOException e = new IOException(
+                        "Unable to index the nodes queued up to revision "
+                        + revision);
+                e.initCause(failure);
+                throw e;
+            }
+            if (timeout == 0) {
+                wait();
+            } else {
+                long remaining = end - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                wait(remaining);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Indexes the remaining queued nodes and closes the queue store. Nodes
+     * that fail to be indexed stay in the queue store and are indexed again
+     * after a restart.
+     */
+    void close() {
+        synchronized (this) {
+            closed = true;
+            boolean interrupted = false;
+            while (running) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            running = true;
+        }
+        try {
+            indexQueued();
+        } finally {
+            synchronized (this) {
+                running = false;
+                store.close();
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Indexes queued nodes in batches until the queue is empty or a batch
+     * fails to be indexed.
+     */
+    public void run() {
+        synchronized (this) {
+            if (running || closed) {
+                scheduled = false;
+                return;
+            }
+            running = true;
+        }
+        boolean success = false;
+        try {
+            success = indexQueued();
+        } finally {
+            synchronized (this) {
+                running = false;
+                scheduled = false;
+                if (!success) {
+                    failures++;
+                    schedule(Math.min(MAX_RETRY_DELAY,
+                            RETRY_DELAY << Math.min(failures - 1, 20)));
+                } else if (!queued.isEmpty()) {
+                    // queued after the last batch was taken
+                    schedule(0);
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    //----------------------------< internal >----------------------------------
+
+    /**
+     * Indexes queued nodes in batches until the queue is empty.
+     *
+     * @return <code>true</code> if the queue is empty, <code>false</code>
+     *         if a batch failed to be indexed.
+     */
+    private boolean indexQueued() {
+        while (true) {
+            Map<NodeId, Long> batch;
+            synchronized (this) {
+                if (queued.isEmpty()) {
+                    return true;
+                }
+                batch = new LinkedHashMap<NodeId, Long>();
+                Iterator<Map.Entry<NodeId, Long>> it =
+                    queued.entrySet().iterator();
+                while (it.hasNext() && batch.size() < batchSize) {
+                    Map.Entry<NodeId, Long> entry = it.next();
+                    batch.put(entry.getKey(), entry.getValue());
+                    it.remove();
+                }
+            }
+            if (!index(batch)) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Indexes the current state of the given nodes and removes them from
+     * the queue store. Nodes that fail to be indexed are put back at the
+     * head of the queue and stay in the queue store.
+     *
+     * @param batch the nodes to index with their revision.
+     * @return <code>true</code> if the nodes have been indexed.
+     */
+    private boolean index(Map<NodeId, Long> batch) {
+        Exception exception = null;
+        try {
+            handler.indexNodes(batch.keySet());
+        } catch (Exception e) {
+            exception = e;
+            log.error("Unable to index " + batch.size() + " queued nodes", e);
+        }
+        synchronized (this) {
+            if (exception == null) {
+                failures = 0;
+                failure = null;
+                List<String> uuids = new ArrayList<String>(batch.size());
+                for (NodeId id : batch.keySet()) {
+                    // nodes that were queued again must stay in the store
+                    if (!queued.containsKey(id)) {
+                        uuids.add(id.toString());
+                    }
+                }
+                try {
+                    store.removeUUIDs(uuids);
+                } catch (IOException e) {
+                    log.warn("Unable to update asynchronous indexing queue", e);
+                }
+            } else {
+                failure = exception;
+                // put the batch back in front of the nodes queued meanwhile
+                Map<NodeId, Long> remaining =
+                    new LinkedHashMap<NodeId, Long>(queued);
+                queued.clear();
+                queued.putAll(batch);
+                for (Map.Entry<NodeId, Long> entry : remaining.entrySet()) {
+                    if (!queued.containsKey(entry.getKey())) {
+                        queued.put(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+            long next = revision;
+            if (!queued.isEmpty()) {
+                next = Math.min(next, queued.values().iterator().next() - 1);
+            }
+            indexedRevision = next;
+            notifyAll();
+        }
+        return exception == null;
+    }
+
+    /**
+     * Hands the indexing task to the executor unless it is already
+     * scheduled. Must be called while holding the lock of this indexer.
+     *
+     * @param delay the delay in milliseconds before the task runs.
+     */
+    private void schedule(long delay) {
+        if (!scheduled && !closed) {
+            scheduled = true;
+            try {
+                executor.schedule(this, delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                log.warn("Unable to schedule asynchronous indexing", e);
+                scheduled = false;
+            }
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.query.lucene;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.jackrabbit.core.query.lucene.directory.IndexOutputStream;
+import org.apache.lucene.store.Directory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <code>AsyncIndexingQueueStore</code> persists the UUIDs of the nodes that
+ * are waiting to be indexed by the {@link AsyncIndexer}. Queued and indexed
+ * UUIDs are appended to a log file, which is flushed before a save returns.
+ * When the store is opened again after a crash, the UUIDs that were queued
+ * but not indexed are pending again.
+ * <p>
+ * Opening the store compacts the log into a new generation that only
+ * contains the pending UUIDs. The log files of the previous generations
+ * are deleted once the new one has been written and synced, so a crash
+ * while compacting at worst leaves UUIDs pending that have already been
+ * indexed.
+ * <p>
+ * This class is not thread-safe.
+ */
+class AsyncIndexingQueueStore extends IndexingQueueStore {
+
+    /**
+     * The logger instance for this class.
+     */
+    private static final Logger log =
+        LoggerFactory.getLogger(AsyncIndexingQueueStore.class);
+
+    /**
+     * Base name of the files that contain the asynchronous indexing queue
+     * log, which is also the name of the first generation.
+     */
+    static final String ASYNC_INDEXING_QUEUE_FILE = "async_indexing_queue.log";
+
+    /**
+     * Number of log entries after which the log file is rewritten, once
+     * the queue is empty.
+     */
+    private static final int COMPACT_THRESHOLD = 1000;
+
+    /**
+     * Writer to the log file, or <code>null</code> if not yet opened.
+     */
+    private Writer out;
+
+    /**
+     * Number of entries in the log file.
+     */
+    private int entryCount;
+
+    /**
+     * Creates a new store, which keeps its log in the given directory.
+     *
+     * @param directory the directory to use.
+     * @throws IOException if an error ocurrs while reading pending UUIDs.
+     */
+    AsyncIndexingQueueStore(Directory directory) throws IOException {
+        this(directory, getGenerations(directory));
+    }
+
+    /**
+     * Creates a new store that replays the logs of the given generations
+     * and compacts them into the log of the next generation.
+     *
+     * @param directory the directory to use.
+     * @param generations the existing generations, in ascending order.
+     * @throws IOException if an error ocurrs while reading pending UUIDs
+     *                     or writing the new log.
+     */
+    private AsyncIndexingQueueStore(Directory directory, long[] generations)
+            throws IOException {
+        super(directory, getFileName(generations.length == 0
+                ? 0 : generations[generations.length - 1] + 1));
+        for (long generation : generations) {
+            readStore(getFileName(generation));
+        }
+        initOut();
+        for (String uuid : pending) {
+            write(ADD, uuid);
+        }
+        out.flush();
+        dir.sync(Collections.singleton(fileName));
+        for (long generation : generations) {
+            dir.deleteFile(getFileName(generation));
+        }
+    }
+
+    /**
+     * Adds UUIDs to the store and flushes the log.
+     *
+     * @param uuids the UUIDs to add.
+     * @throws IOException if an error occurs while writing the log.
+     */
+    void addUUIDs(Collection<String> uuids) throws IOException {
+        initOut();
+        for (String uuid : uuids) {
+            write(ADD, uuid);
+            addUUID(uuid);
+        }
+        out.flush();
+    }
+
+    /**
+     * Removes UUIDs from the store and flushes the log. The log is
+     * truncated when the store becomes empty and the log has grown large,
+     * as it then holds no pending UUIDs that could be lost.
+     *
+     * @param uuids the UUIDs to remove.
+     * @throws IOException if an error occurs while writing the log.
+     */
+    void removeUUIDs(Collection<String> uuids) throws IOException {
+        initOut();
+        for (String uuid : uuids) {
+            write(REMOVE, uuid);
+            removeUUID(uuid);
+        }
+        out.flush();
+        if (pending.isEmpty() && entryCount >= COMPACT_THRESHOLD) {
+            out.close();
+            out = null;
+            initOut();
+        }
+    }
+
+    /**
+     * @return <code>true</code> if there are no pending UUIDs.
+     */
+    boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    /**
+     * Closes the log and deletes it if there are no pending UUIDs.
+     */
+    public void close() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                log.warn("unable to close " + fileName);
+            }
+            out = null;
+        }
+        super.close();
+    }
+
+    //----------------------------< internal >----------------------------------
+
+    /**
+     * Opens a new, empty log file if {@link #out} is not yet set.
+     *
+     * @throws IOException if the log file cannot be created.
+     */
+    private void initOut() throws IOException {
+        if (out == null) {
+            out = new BufferedWriter(new OutputStreamWriter(
+                    new IndexOutputStream(dir.createOutput(fileName)),
+                    ENCODING));
+            entryCount = 0;
+        }
+    }
+
+    private void write(String cmd, String uuid) throws IOException {
+        out.write(cmd);
+        out.write(' ');
+        out.write(uuid);
+        out.write('\n');
+        entryCount++;
+    }
+
+    /**
+     * Returns the name of the log file of the given generation.
+     *
+     * @param generation the generation of the log.
+     * @return the name of the log file.
+     */
+    private static String getFileName(long generation) {
+        if (generation == 0) {
+            return ASYNC_INDEXING_QUEUE_FILE;
+        } else {
+            return ASYNC_INDEXING_QUEUE_FILE + "_"
+                    + Long.toString(generation, Character.MAX_RADIX);
+        }
+    }
+
+    /**
+     * Returns the generations of the log files in the given directory.
+     *
+     * @param directory the directory to list.
+     * @return the generations in ascending order.
+     * @throws IOException if the directory cannot be listed.
+     */
+    private static long[] getGenerations(Directory directory)
+            throws IOException {
+        List<Long> generations = new ArrayList<Long>();
+        String[] names = directory.listAll();
+        if (names != null) {
+            for (String name : names) {
+                if (name.equals(ASYNC_INDEXING_QUEUE_FILE)) {
+                    generations.add(0L);
+                } else if (name.startsWith(ASYNC_INDEXING_QUEUE_FILE + "_")) {
+                    try {
+                        generations.add(Long.parseLong(name.substring(
+                                ASYNC_INDEXING_QUEUE_FILE.length() + 1),
+                                Character.MAX_RADIX));
+                    } catch (NumberFormatException e) {
+                        log.warn("ignoring invalid queue log file: " + name);
+                    }
+                }
+            }
+        }
+        Collections.sort(generations);
+        long[] result = new long[generations.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = generations.get(i);
+        }
+        return result;
+    }
+}
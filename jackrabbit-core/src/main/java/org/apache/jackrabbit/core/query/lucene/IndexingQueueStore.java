@@ -45,17 +45,17 @@ class IndexingQueueStore {
     /**
      * Encoding of the indexing queue store.
      */
-    private static final String ENCODING = "UTF-8";
+    static final String ENCODING = "UTF-8";
 
     /**
      * Operation identifier for an added node.
      */
-    private static final String ADD = "ADD";
+    static final String ADD = "ADD";
 
     /**
      * Operation identifier for an removed node.
      */
-    private static final String REMOVE = "REMOVE";
+    static final String REMOVE = "REMOVE";
 
     /**
      * Name of the file that contains the indexing queue log.
@@ -65,12 +65,17 @@ class IndexingQueueStore {
     /**
      * The UUID Strings of the pending documents.
      */
-    private final Set<String> pending = new HashSet<String>();
+    final Set<String> pending = new HashSet<String>();
 
     /**
      * The directory from where to read pending document UUIDs.
      */
-    private final Directory dir;
+    final Directory dir;
+
+    /**
+     * The name of the file that contains the pending document UUIDs.
+     */
+    final String fileName;
 
     /**
      * Creates a new <code>IndexingQueueStore</code> using the given directory.
@@ -79,7 +84,20 @@ class IndexingQueueStore {
      * @throws IOException if an error ocurrs while reading pending UUIDs.
      */
     IndexingQueueStore(Directory directory) throws IOException {
+        this(directory, INDEXING_QUEUE_FILE);
+    }
+
+    /**
+     * Creates a new <code>IndexingQueueStore</code> that reads the pending
+     * UUIDs from the given file in <code>directory</code>.
+     *
+     * @param directory the directory to use.
+     * @param fileName  the name of the file with the pending UUIDs.
+     * @throws IOException if an error ocurrs while reading pending UUIDs.
+     */
+    IndexingQueueStore(Directory directory, String fileName) throws IOException {
         this.dir = directory;
+        this.fileName = fileName;
         readStore();
     }
 
@@ -114,11 +132,11 @@ class IndexingQueueStore {
     public void close() {
         if (pending.isEmpty()) {
             try {
-                if (dir.fileExists(INDEXING_QUEUE_FILE)) {
-                    dir.deleteFile(INDEXING_QUEUE_FILE);
+                if (dir.fileExists(fileName)) {
+                    dir.deleteFile(fileName);
                 }
             } catch (IOException e) {
-                log.warn("unable to delete " + INDEXING_QUEUE_FILE);
+                log.warn("unable to delete " + fileName);
             }
         }
     }
@@ -132,8 +150,18 @@ class IndexingQueueStore {
      * @throws IOException if an error occurs while reading.
      */
     private void readStore() throws IOException {
-        if (dir.fileExists(INDEXING_QUEUE_FILE)) {
-            InputStream in = new IndexInputStream(dir.openInput(INDEXING_QUEUE_FILE));
+        readStore(fileName);
+    }
+
+    /**
+     * Applies the log entries of the given file to {@link #pending}.
+     *
+     * @param fileName the name of the file to read.
+     * @throws IOException if an error occurs while reading.
+     */
+    void readStore(String fileName) throws IOException {
+        if (dir.fileExists(fileName)) {
+            InputStream in = new IndexInputStream(dir.openInput(fileName));
             BufferedReader reader = new BufferedReader(
                     new InputStreamReader(in, ENCODING));
             try {
@@ -142,7 +170,7 @@ class IndexingQueueStore {
                     int idx = line.indexOf(' ');
                     if (idx == -1) {
                         // invalid line
-                        log.warn("invalid line in {}: {}", INDEXING_QUEUE_FILE, line);
+                        log.warn("invalid line in {}: {}", fileName, line);
                     } else {
                         String cmd = line.substring(0, idx);
                         String uuid = line.substring(idx + 1, line.length());
@@ -152,7 +180,7 @@ class IndexingQueueStore {
                             pending.remove(uuid);
                         } else {
                             // invalid line
-                            log.warn("invalid line in {}: {}", INDEXING_QUEUE_FILE, line);
+                            log.warn("invalid line in {}: {}", fileName, line);
                         }
                     }
                 }
@@ -102,12 +102,15 @@ import org.apache.jackrabbit.spi.commons.query.qom.FullTextSearchImpl;
 import org.apache.jackrabbit.spi.commons.query.qom.PropertyExistenceImpl;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
 import org.apache.lucene.queryParser.ParseException;
 import org.apache.lucene.queryParser.QueryParser;
+import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanClause.Occur;
 import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.TermQuery;
 
 /**
  * Factory that creates Lucene queries from QOM elements.
@@ -144,6 +147,17 @@ public class LuceneQueryFactory {
 
     protected final String primaryTypeField;
 
+    /**
+     * The number of documents sampled to estimate the size of a subtree.
+     */
+    private static final int SUBTREE_SAMPLES = 1000;
+
+    /**
+     * The number of ancestors of a sampled document that are checked when
+     * the size of a subtree is estimated.
+     */
+    private static final int MAX_SAMPLE_DEPTH = 64;
+
     private final PerQueryCache cache = new PerQueryCache();
 
     /**
@@ -216,7 +230,9 @@ public class LuceneQueryFactory {
 
             // TODO depending on the filters, we could push the offset info
             // into the searcher
-            hits = searcher.evaluate(qp.mainQuery, sort, offset + limit);
+            hits = searcher.evaluate(
+                    index.applyReadAccessFilter(session, qp.mainQuery),
+                    sort, offset + limit);
             int currentNode = 0;
             int addedNodes = 0;
 
@@ -260,6 +276,169 @@ public class LuceneQueryFactory {
         }
     }
 
+    /**
+     * Estimates the number of nodes that match the given selector and
+     * constraint without executing the query. The estimate is based on the
+     * document frequencies of the node type terms of the selector and of
+     * the terms of the constraint, and on the size of the subtree of a
+     * descendant node constraint, which is sampled from the hierarchy cache
+     * of the index. Parts of the constraint that cannot be estimated are
+     * assumed to match all nodes.
+     *
+     * @param selector the selector.
+     * @param constraint the constraint, or <code>null</code>.
+     * @return the estimated number of matching nodes.
+     * @throws RepositoryException if the node type of the selector or the
+     *                             node of a descendant node constraint
+     *                             cannot be read.
+     * @throws IOException if an error occurs while reading from the index.
+     */
+    public long estimate(Selector selector, Constraint constraint)
+            throws RepositoryException, IOException {
+        final IndexReader reader = index.getIndexReader(true);
+        try {
+            long estimate = estimate(create(selector), reader);
+            if (constraint != null) {
+                String name = selector.getSelectorName();
+                NodeType type =
+                    ntManager.getNodeType(selector.getNodeTypeName());
+                estimate = Math.min(estimate, estimate(constraint,
+                        Collections.singletonMap(name, type), reader));
+            }
+            return estimate;
+        } finally {
+            Util.closeOrRelease(reader);
+        }
+    }
+
+    /**
+     * Estimates the number of nodes that match the given constraint.
+     */
+    protected long estimate(
+            Constraint constraint, Map<String, NodeType> selectorMap,
+            IndexReader reader) throws RepositoryException, IOException {
+        if (constraint instanceof And) {
+            And and = (And) constraint;
+            return Math.min(
+                    estimate(and.getConstraint1(), selectorMap, reader),
+                    estimate(and.getConstraint2(), selectorMap, reader));
+        } else if (constraint instanceof Or) {
+            Or or = (Or) constraint;
+            return Math.min(reader.maxDoc(),
+                    estimate(or.getConstraint1(), selectorMap, reader)
+                    + estimate(or.getConstraint2(), selectorMap, reader));
+        } else if (constraint instanceof Not) {
+            return reader.maxDoc();
+        } else if (constraint instanceof DescendantNode) {
+            return getSubtreeSize(
+                    ((DescendantNode) constraint).getAncestorPath(), reader);
+        } else {
+            try {
+                return estimate(create(constraint, selectorMap, null), reader);
+            } catch (RepositoryException e) {
+                // evaluated as a filter on the rows, or reported when
+                // the query is executed
+                return reader.maxDoc();
+            }
+        }
+    }
+
+    /**
+     * Estimates the number of documents that match the given lucene query
+     * from the document frequencies of its terms. Queries other than term
+     * and boolean queries are assumed to match all documents.
+     */
+    protected long estimate(Query query, IndexReader reader)
+            throws IOException {
+        if (query instanceof TermQuery) {
+            return reader.docFreq(((TermQuery) query).getTerm());
+        } else if (query instanceof BooleanQuery) {
+            long required = -1;
+            long optional = 0;
+            boolean hasOptional = false;
+            for (BooleanClause clause : ((BooleanQuery) query).getClauses()) {
+                if (clause.isProhibited()) {
+                    continue;
+                }
+                long estimate = estimate(clause.getQuery(), reader);
+                if (clause.isRequired()) {
+                    required = (required < 0)
+                            ? estimate : Math.min(required, estimate);
+                } else {
+                    optional += estimate;
+                    hasOptional = true;
+                }
+            }
+            if (required >= 0) {
+                return required;
+            } else if (hasOptional) {
+                return Math.min(optional, reader.maxDoc());
+            }
+        }
+        return reader.maxDoc();
+    }
+
+    /**
+     * Estimates the number of nodes below the node at the given path by
+     * walking up the hierarchy of a sample of the documents in the index.
+     * The estimate is at least the number of child nodes.
+     */
+    protected long getSubtreeSize(String path, IndexReader reader)
+            throws RepositoryException, IOException {
+        String id;
+        try {
+            id = session.getNode(path).getIdentifier();
+        } catch (PathNotFoundException e) {
+            return 0;
+        }
+        long children = reader.docFreq(new Term(PARENT, id));
+        if (children == 0 || !(reader instanceof HierarchyResolver)) {
+            return children;
+        }
+
+        int ancestor = -1;
+        TermDocs docs = reader.termDocs(new Term(UUID, id));
+        try {
+            if (docs.next()) {
+                ancestor = docs.doc();
+            }
+        } finally {
+            docs.close();
+        }
+        if (ancestor == -1) {
+            return children;
+        }
+
+        HierarchyResolver resolver = (HierarchyResolver) reader;
+        int maxDoc = reader.maxDoc();
+        int step = Math.max(1, maxDoc / SUBTREE_SAMPLES);
+        int sampled = 0;
+        int matches = 0;
+        int[] parents = new int[1];
+        for (int doc = step / 2; doc < maxDoc; doc += step) {
+            if (reader.isDeleted(doc)) {
+                continue;
+            }
+            sampled++;
+            int current = doc;
+            for (int depth = 0; depth < MAX_SAMPLE_DEPTH; depth++) {
+                parents = resolver.getParents(current, parents);
+                if (parents.length == 0) {
+                    break;
+                }
+                current = parents[0];
+                if (current == ancestor) {
+                    matches++;
+                    break;
+                }
+            }
+        }
+        if (sampled == 0) {
+            return children;
+        }
+        return Math.max(children, (long) matches * reader.numDocs() / sampled);
+    }
+
     /**
      * Creates a lucene query for the given QOM selector.
      *
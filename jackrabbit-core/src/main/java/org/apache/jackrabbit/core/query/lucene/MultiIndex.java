@@ -36,6 +36,8 @@ import java.util.concurrent.TimeUnit;
 import javax.jcr.RepositoryException;
 
 import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.persistence.IterablePersistenceManager;
+import org.apache.jackrabbit.core.persistence.PersistenceManager;
 import org.apache.jackrabbit.core.query.lucene.directory.DirectoryManager;
 import org.apache.jackrabbit.core.state.ChildNodeEntry;
 import org.apache.jackrabbit.core.state.ItemStateException;
@@ -233,6 +235,11 @@ public class MultiIndex {
      */
     private final IndexFormatVersion version;
 
+    /**
+     * Progress of the initial index creation.
+     */
+    private final ReindexStatistics reindexStatistics = new ReindexStatistics();
+
     /**
      * Creates a new MultiIndex.
      *
@@ -360,9 +367,19 @@ public class MultiIndex {
         return version;
     }
 
+    /**
+     * @return the progress of the initial index creation.
+     */
+    ReindexStatistics getReindexStatistics() {
+        return reindexStatistics;
+    }
+
     /**
      * Creates an initial index by traversing the node hierarchy starting at the
-     * node with <code>rootId</code>.
+     * node with <code>rootId</code>. If the index is created for the whole
+     * workspace, {@link SearchIndex#getReindexThreads()} is greater than one
+     * and the persistence manager can iterate over all nodes, the nodes are
+     * indexed concurrently by a {@link ParallelIndexCreator} instead.
      *
      * @param stateMgr the item state manager.
      * @param rootId   the id of the node from where to start.
@@ -380,10 +397,22 @@ public class MultiIndex {
             reindexing = true;
             try {
                 long count = 0;
-                // traverse and index workspace
                 executeAndLog(new Start(Action.INTERNAL_TRANSACTION));
-                NodeState rootState = (NodeState) stateMgr.getItemState(rootId);
-                count = createIndex(rootState, rootPath, stateMgr, count);
+                PersistenceManager pm =
+                    handler.getContext().getPersistenceManager();
+                int threads = handler.getReindexThreads();
+                if (threads > 1 && rootPath.denotesRoot()
+                        && pm instanceof IterablePersistenceManager) {
+                    // index all nodes of the persistence manager
+                    reindexStatistics.started(threads);
+                    count = createIndexConcurrently(
+                            (IterablePersistenceManager) pm, stateMgr, threads);
+                } else {
+                    // traverse and index workspace
+                    reindexStatistics.started(1);
+                    NodeState rootState = (NodeState) stateMgr.getItemState(rootId);
+                    count = createIndex(rootState, rootPath, stateMgr, count);
+                }
                 checkIndexingQueue(true);
                 executeAndLog(new Commit(getTransactionId()));
                 log.debug("Created initial index for {} nodes", count);
@@ -395,6 +424,7 @@ public class MultiIndex {
                 ex.initCause(e);
                 throw ex;
             } finally {
+                reindexStatistics.finished();
                 reindexing = false;
                 scheduleFlushTask();
             }
@@ -1215,6 +1245,7 @@ public class MultiIndex {
             return count;
         }
         executeAndLog(new AddNode(getTransactionId(), id));
+        reindexStatistics.indexed(1);
         if (++count % 100 == 0) {
             PathResolver resolver = new DefaultNamePathResolver(
                     handler.getContext().getNamespaceRegistry());
@@ -1245,6 +1276,44 @@ public class MultiIndex {
         return count;
     }
 
+    /**
+     * Creates the initial index with the given number of threads. Every
+     * thread adds documents to a new persistent index, which gets added to
+     * this multi index once all nodes are indexed.
+     *
+     * @param pm       the persistence manager of the workspace.
+     * @param stateMgr the shared item state manager.
+     * @param threads  the number of threads.
+     * @return the number of nodes indexed.
+     * @throws IOException         if an error occurs while writing to the
+     *                             index.
+     * @throws ItemStateException  if the node ids cannot be read.
+     * @throws RepositoryException if any other error occurs
+     */
+    private long createIndexConcurrently(IterablePersistenceManager pm,
+                                         ItemStateManager stateMgr,
+                                         int threads)
+            throws IOException, ItemStateException, RepositoryException {
+        List<PersistentIndex> targets = new ArrayList<PersistentIndex>();
+        for (int i = 0; i < threads; i++) {
+            CreateIndex create = new CreateIndex(getTransactionId(), null);
+            executeAndLog(create);
+            targets.add(getOrCreateIndex(create.getIndexName()));
+        }
+
+        long count = new ParallelIndexCreator(
+                this, pm, stateMgr, excludedIDs, reindexStatistics).createIndex(targets);
+
+        for (PersistentIndex target : targets) {
+            if (target.getNumDocuments() > 0) {
+                executeAndLog(new AddIndex(getTransactionId(), target.getName()));
+            } else {
+                executeAndLog(new DeleteIndex(getTransactionId(), target.getName()));
+            }
+        }
+        return count;
+    }
+
     /**
      * Attempts to delete all files that are older than
      *{@link SearchIndex#getMaxHistoryAge()}.
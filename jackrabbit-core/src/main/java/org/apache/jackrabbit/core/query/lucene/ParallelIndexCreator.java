@@ -0,0 +1,330 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.query.lucene;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import javax.jcr.RepositoryException;
+
+import org.apache.commons.io.IOExceptionWithCause;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.persistence.IterablePersistenceManager;
+import org.apache.jackrabbit.core.state.ChildNodeEntry;
+import org.apache.jackrabbit.core.state.ItemStateException;
+import org.apache.jackrabbit.core.state.ItemStateManager;
+import org.apache.jackrabbit.core.state.NoSuchItemStateException;
+import org.apache.jackrabbit.core.state.NodeState;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Fieldable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates the initial index of a workspace with several threads. The node
+ * ids are read from the persistence manager in batches, which are handed to
+ * one worker thread per target index. A worker creates the documents of a
+ * batch, waits until the text of their binary properties has been extracted
+ * by the background extractors, and adds them to its own index. Once all
+ * nodes have been indexed, each worker optimizes its index into a single
+ * segment.
+ * <p>
+ * Nodes stored below one of the excluded nodes are not indexed. Unlike the
+ * traversal done by {@link MultiIndex#createInitialIndex}, nodes that are
+ * stored in the persistence manager but not reachable from the root node
+ * are indexed as well.
+ */
+class ParallelIndexCreator {
+
+    /**
+     * The logger instance for this class.
+     */
+    private static final Logger log =
+        LoggerFactory.getLogger(ParallelIndexCreator.class);
+
+    /**
+     * Number of node ids read from the persistence manager at once.
+     */
+    private static final int NODES_AT_ONCE = 1000;
+
+    /**
+     * Number of nodes handed to a worker at once.
+     */
+    private static final int BATCH_SIZE = 100;
+
+    /**
+     * Marks the end of the batches.
+     */
+    private static final List<NodeId> END = new ArrayList<NodeId>(0);
+
+    private final MultiIndex index;
+
+    private final IterablePersistenceManager pm;
+
+    private final ItemStateManager stateMgr;
+
+    private final Set<NodeId> excludedIDs;
+
+    private final ReindexStatistics statistics;
+
+    /**
+     * Batches of node ids to index.
+     */
+    private BlockingQueue<List<NodeId>> queue;
+
+    /**
+     * The first failure of a worker, or <code>null</code>.
+     */
+    private volatile Exception failure;
+
+    /**
+     * Creates a new index creator.
+     *
+     * @param index the multi index that creates the documents
+     * @param pm the persistence manager of the workspace
+     * @param stateMgr the item state manager of the workspace
+     * @param excludedIDs ids of the nodes whose subtrees are not indexed
+     * @param statistics the progress statistics to update
+     */
+    ParallelIndexCreator(MultiIndex index, IterablePersistenceManager pm,
+                         ItemStateManager stateMgr, Set<NodeId> excludedIDs,
+                         ReindexStatistics statistics) {
+        this.index = index;
+        this.pm = pm;
+        this.stateMgr = stateMgr;
+        this.excludedIDs = excludedIDs;
+        this.statistics = statistics;
+    }
+
+    /**
+     * Indexes all nodes of the workspace into the given empty indexes, using
+     * one thread per index.
+     *
+     * @param targets the indexes to add the documents to
+     * @return the number of documents created
+     * @throws IOException if the documents could not be added
+     * @throws ItemStateException if the node ids could not be read
+     * @throws RepositoryException if the node ids could not be read
+     */
+    long createIndex(List<PersistentIndex> targets)
+            throws IOException, ItemStateException, RepositoryException {
+        statistics.setTotalNodes(countNodes());
+        Set<NodeId> excluded = getExcludedNodes();
+        log.info("Indexing {} nodes with {} threads",
+                statistics.getTotalNodes(), targets.size());
+
+        queue = new ArrayBlockingQueue<List<NodeId>>(2 * targets.size());
+        Worker[] workers = new Worker[targets.size()];
+        Thread[] threads = new Thread[workers.length];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(targets.get(i));
+            threads[i] = new Thread(workers[i], "Reindex-" + (i + 1));
+            threads[i].start();
+        }
+
+        try {
+            List<NodeId> batch = new ArrayList<NodeId>(BATCH_SIZE);
+            List<NodeId> ids = pm.getAllNodeIds(null, NODES_AT_ONCE);
+            while (!ids.isEmpty() && failure == null) {
+                for (NodeId id : ids) {
+                    if (excluded.contains(id)) {
+                        statistics.indexed(1);
+                    } else {
+                        batch.add(id);
+                        if (batch.size() == BATCH_SIZE) {
+                            put(batch);
+                            batch = new ArrayList<NodeId>(BATCH_SIZE);
+                        }
+                    }
+                }
+                ids = pm.getAllNodeIds(ids.get(ids.size() - 1), NODES_AT_ONCE);
+            }
+            if (!batch.isEmpty()) {
+                put(batch);
+            }
+        } finally {
+            for (int i = 0; i < workers.length; i++) {
+                put(END);
+            }
+            for (Thread thread : threads) {
+                join(thread);
+            }
+        }
+
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure != null) {
+            throw new IOExceptionWithCause("Error indexing workspace", failure);
+        }
+
+        long count = 0;
+        for (Worker worker : workers) {
+            count += worker.count;
+        }
+        return count;
+    }
+
+    /**
+     * Counts the nodes stored in the persistence manager.
+     *
+     * @return number of nodes
+     * @throws ItemStateException if the node ids could not be read
+     * @throws RepositoryException if the node ids could not be read
+     */
+    private long countNodes() throws ItemStateException, RepositoryException {
+        long count = 0;
+        List<NodeId> ids = pm.getAllNodeIds(null, 10 * NODES_AT_ONCE);
+        while (!ids.isEmpty()) {
+            count += ids.size();
+            ids = pm.getAllNodeIds(ids.get(ids.size() - 1), 10 * NODES_AT_ONCE);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the ids of the excluded nodes and of all their descendants
+     * that are stored in the persistence manager.
+     *
+     * @return ids of the nodes not to index
+     * @throws ItemStateException if a node could not be loaded
+     */
+    private Set<NodeId> getExcludedNodes() throws ItemStateException {
+        Set<NodeId> excluded = new HashSet<NodeId>();
+        LinkedList<NodeId> pending = new LinkedList<NodeId>(excludedIDs);
+        while (!pending.isEmpty()) {
+            NodeId id = pending.removeFirst();
+            if (excluded.add(id) && pm.exists(id)) {
+                for (ChildNodeEntry child : pm.load(id).getChildNodeEntries()) {
+                    pending.add(child.getId());
+                }
+            }
+        }
+        return excluded;
+    }
+
+    private void put(List<NodeId> batch) {
+        for (;;) {
+            try {
+                queue.put(batch);
+                return;
+            } catch (InterruptedException e) {
+                // retry
+            }
+        }
+    }
+
+    private static void join(Thread thread) {
+        for (;;) {
+            try {
+                thread.join();
+                return;
+            } catch (InterruptedException e) {
+                // retry
+            }
+        }
+    }
+
+    /**
+     * Blocks until the text extraction of all fields of the given document
+     * has finished.
+     *
+     * @param doc the document
+     */
+    private static void waitForTextExtraction(Document doc) {
+        for (Fieldable field : doc.getFields()) {
+            if (field instanceof LazyTextExtractorField) {
+                field.stringValue();
+            }
+        }
+    }
+
+    /**
+     * Indexes the batches of node ids into a target index. After a failure
+     * the worker keeps taking batches without indexing them, so that the
+     * thread that reads the node ids never blocks.
+     */
+    private class Worker implements Runnable {
+
+        private final PersistentIndex target;
+
+        private long count = 0;
+
+        Worker(PersistentIndex target) {
+            this.target = target;
+        }
+
+        public void run() {
+            for (;;) {
+                List<NodeId> batch;
+                try {
+                    batch = queue.take();
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                if (batch == END) {
+                    break;
+                } else if (failure == null) {
+                    try {
+                        index(batch);
+                    } catch (Exception e) {
+                        log.error("Error indexing workspace", e);
+                        failure = e;
+                    }
+                }
+            }
+            if (failure == null) {
+                try {
+                    target.commit(true);
+                } catch (Exception e) {
+                    log.error("Error optimizing index " + target.getName(), e);
+                    failure = e;
+                }
+            }
+        }
+
+        private void index(List<NodeId> batch) throws IOException {
+            List<Document> docs = new ArrayList<Document>(batch.size());
+            for (NodeId id : batch) {
+                try {
+                    NodeState state = (NodeState) stateMgr.getItemState(id);
+                    docs.add(index.createDocument(state));
+                } catch (NoSuchItemStateException e) {
+                    log.debug("Node {} does not exist anymore", id);
+                } catch (ItemStateException e) {
+                    // JCR-3268 log bundle corruption and continue
+                    log.error("Unable to index node " + id, e);
+                } catch (RepositoryException e) {
+                    log.debug(e.getMessage());
+                }
+            }
+            for (Document doc : docs) {
+                waitForTextExtraction(doc);
+            }
+            target.addDocuments(docs.toArray(new Document[docs.size()]));
+            count += docs.size();
+            statistics.indexed(batch.size());
+        }
+
+    }
+
+}
@@ -29,6 +29,7 @@ import javax.jcr.RepositoryException;
 import javax.jcr.query.RowIterator;
 
 import org.apache.jackrabbit.api.query.JackrabbitQueryResult;
+import org.apache.jackrabbit.core.id.NodeId;
 import org.apache.jackrabbit.core.session.SessionContext;
 import org.apache.jackrabbit.spi.Name;
 import org.apache.jackrabbit.spi.commons.query.qom.ColumnImpl;
@@ -45,6 +46,12 @@ public abstract class QueryResultImpl implements JackrabbitQueryResult {
      */
     private static final Logger log = LoggerFactory.getLogger(QueryResultImpl.class);
 
+    /**
+     * The maximum number of hits whose node states are prefetched before
+     * access is checked on them.
+     */
+    private static final int PREFETCH_SIZE = 100;
+
     /**
      * The search index to execute the query.
      */
@@ -364,16 +371,46 @@ public abstract class QueryResultImpl implements JackrabbitQueryResult {
                                    long maxResults)
             throws IOException, RepositoryException {
         while (collector.size() < maxResults) {
-            ScoreNode[] sn = hits.nextScoreNodes();
-            if (sn == null) {
-                // no more results
+            // read the next chunk of hits, but never more than could
+            // be collected if access was granted to all of them
+            int chunkSize = (int) Math.min(
+                    PREFETCH_SIZE, maxResults - collector.size());
+            List<ScoreNode[]> chunk = new ArrayList<ScoreNode[]>(chunkSize);
+            List<NodeId> ids = new ArrayList<NodeId>();
+            while (chunk.size() < chunkSize) {
+                ScoreNode[] sn = hits.nextScoreNodes();
+                if (sn == null) {
+                    // no more results
+                    break;
+                }
+                chunk.add(sn);
+                for (ScoreNode node : sn) {
+                    if (node != null) {
+                        ids.add(node.getNodeId());
+                    }
+                }
+            }
+            if (chunk.isEmpty()) {
                 break;
             }
-            // check access
-            if (isAccessGranted(sn)) {
-                collector.add(sn);
-            } else {
-                invalid++;
+
+            // load the node states of the chunk with a few bulk reads
+            // before they are accessed one by one for the access check
+            if (ids.size() > 1) {
+                sessionContext.getWorkspace().getItemStateManager().prefetch(ids);
+            }
+
+            for (ScoreNode[] sn : chunk) {
+                // check access
+                if (isAccessGranted(sn)) {
+                    collector.add(sn);
+                } else {
+                    invalid++;
+                }
+            }
+            if (chunk.size() < chunkSize) {
+                // no more results
+                break;
             }
         }
     }
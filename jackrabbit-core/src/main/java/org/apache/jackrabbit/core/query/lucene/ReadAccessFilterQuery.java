@@ -0,0 +1,373 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.query.lucene;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.jackrabbit.core.SessionImpl;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Searcher;
+import org.apache.lucene.search.Similarity;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.Weight;
+
+/**
+ * <code>ReadAccessFilterQuery</code> removes the matches of a sub query that
+ * are located in subtrees the session is not allowed to read. The subtrees
+ * are given as the read permissions of the access controlled nodes: a node
+ * that is not access controlled has the read permission of its nearest
+ * access controlled ancestor-or-self. The permissions are resolved with the
+ * hierarchy of the index reader, without loading any item states.
+ * <p>
+ * The filter only removes matches that are certainly not readable. Matches
+ * that pass the filter must still be checked by the access manager.
+ */
+@SuppressWarnings("serial")
+class ReadAccessFilterQuery extends Query implements JackrabbitQuery {
+
+    /**
+     * The sub query to filter.
+     */
+    private final Query subQuery;
+
+    /**
+     * The access controlled nodes, mapped to <code>false</code> if their
+     * subtree is not readable.
+     */
+    private final Map<NodeId, Boolean> readPermissions;
+
+    /**
+     * Creates a new read access filter query.
+     *
+     * @param subQuery        the sub query to filter.
+     * @param readPermissions the access controlled nodes, mapped to
+     *                        <code>false</code> if their subtree cannot be
+     *                        read.
+     */
+    ReadAccessFilterQuery(Query subQuery, Map<NodeId, Boolean> readPermissions) {
+        this.subQuery = subQuery;
+        this.readPermissions = readPermissions;
+    }
+
+    /**
+     * Executes the sub query if it is a {@link JackrabbitQuery} and filters
+     * its hits. Otherwise returns <code>null</code> and the query is executed
+     * with the regular Lucene API.
+     *
+     * {@inheritDoc}
+     */
+    public QueryHits execute(JackrabbitIndexSearcher searcher,
+                             SessionImpl session,
+                             Sort sort) throws IOException {
+        if (!(subQuery instanceof JackrabbitQuery)) {
+            return null;
+        }
+        final IndexReader reader = searcher.getIndexReader();
+        if (!(reader instanceof HierarchyResolver)) {
+            return null;
+        }
+        final QueryHits hits =
+            ((JackrabbitQuery) subQuery).execute(searcher, session, sort);
+        if (hits == null) {
+            return null;
+        }
+        final DeniedDocs denied = new DeniedDocs(reader);
+        return new AbstractQueryHits() {
+
+            public ScoreNode nextScoreNode() throws IOException {
+                ScoreNode sn = hits.nextScoreNode();
+                while (sn != null && denied.isDenied(sn.getDoc(reader))) {
+                    sn = hits.nextScoreNode();
+                }
+                return sn;
+            }
+
+            public void close() throws IOException {
+                hits.close();
+            }
+        };
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Weight createWeight(Searcher searcher) throws IOException {
+        return new ReadAccessFilterWeight(searcher, subQuery.weight(searcher));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void extractTerms(Set<Term> terms) {
+        subQuery.extractTerms(terms);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Query rewrite(IndexReader reader) throws IOException {
+        Query sQuery = subQuery.rewrite(reader);
+        if (sQuery == subQuery) {
+            return this;
+        } else {
+            return new ReadAccessFilterQuery(sQuery, readPermissions);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String toString(String field) {
+        return "ReadAccessFilterQuery(" + subQuery.toString(field) + ")";
+    }
+
+    //-----------------------< ReadAccessFilterWeight >-------------------------
+
+    /**
+     * The <code>Weight</code> implementation for this
+     * <code>ReadAccessFilterQuery</code>.
+     */
+    private class ReadAccessFilterWeight extends Weight {
+
+        /**
+         * The searcher in use
+         */
+        private final Searcher searcher;
+
+        /**
+         * The weight of the sub query.
+         */
+        private final Weight subWeight;
+
+        private ReadAccessFilterWeight(Searcher searcher, Weight subWeight) {
+            this.searcher = searcher;
+            this.subWeight = subWeight;
+        }
+
+        /**
+         * Returns this <code>ReadAccessFilterQuery</code>.
+         *
+         * @return this <code>ReadAccessFilterQuery</code>.
+         */
+        public Query getQuery() {
+            return ReadAccessFilterQuery.this;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public float getValue() {
+            return subWeight.getValue();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public float sumOfSquaredWeights() throws IOException {
+            return subWeight.sumOfSquaredWeights();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void normalize(float norm) {
+            subWeight.normalize(norm);
+        }
+
+        /**
+         * Creates a scorer that skips the denied matches of the sub scorer.
+         * The matches are not filtered if <code>reader</code> is not a
+         * {@link HierarchyResolver}.
+         *
+         * @param reader a reader for accessing the index.
+         * @return the scorer.
+         * @throws IOException if an error occurs while reading from the index.
+         */
+        public Scorer scorer(IndexReader reader, boolean scoreDocsInOrder,
+                boolean topScorer) throws IOException {
+            Scorer subScorer = subWeight.scorer(reader, true, false);
+            if (subScorer == null || !(reader instanceof HierarchyResolver)) {
+                return subScorer;
+            }
+            return new ReadAccessFilterScorer(searcher.getSimilarity(),
+                    subScorer, new DeniedDocs(reader));
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public Explanation explain(IndexReader reader, int doc) throws IOException {
+            return subWeight.explain(reader, doc);
+        }
+    }
+
+    //-----------------------< ReadAccessFilterScorer >-------------------------
+
+    /**
+     * Implements a <code>Scorer</code> for this
+     * <code>ReadAccessFilterQuery</code>.
+     */
+    private static class ReadAccessFilterScorer extends Scorer {
+
+        /**
+         * The scorer of the sub query.
+         */
+        private final Scorer subScorer;
+
+        /**
+         * The documents that cannot be read.
+         */
+        private final DeniedDocs denied;
+
+        private ReadAccessFilterScorer(Similarity similarity,
+                                       Scorer subScorer,
+                                       DeniedDocs denied) {
+            super(similarity);
+            this.subScorer = subScorer;
+            this.denied = denied;
+        }
+
+        @Override
+        public int nextDoc() throws IOException {
+            return skipDenied(subScorer.nextDoc());
+        }
+
+        @Override
+        public int docID() {
+            return subScorer.docID();
+        }
+
+        @Override
+        public float score() throws IOException {
+            return subScorer.score();
+        }
+
+        @Override
+        public int advance(int target) throws IOException {
+            return skipDenied(subScorer.advance(target));
+        }
+
+        private int skipDenied(int doc) throws IOException {
+            while (doc != NO_MORE_DOCS && denied.isDenied(doc)) {
+                doc = subScorer.nextDoc();
+            }
+            return doc;
+        }
+    }
+
+    //-----------------------------< DeniedDocs >-------------------------------
+
+    /**
+     * Resolves whether documents of an index reader are located in a subtree
+     * that cannot be read. Walks up the hierarchy of a document until an
+     * access controlled node or an already resolved document is found and
+     * remembers the result for all documents on the way.
+     */
+    private class DeniedDocs {
+
+        /**
+         * The hierarchy of the reader.
+         */
+        private final HierarchyResolver resolver;
+
+        /**
+         * The documents for which the result is known.
+         */
+        private final BitSet resolved;
+
+        /**
+         * The documents that cannot be read.
+         */
+        private final BitSet denied;
+
+        /**
+         * Documents on the path to the next resolved ancestor.
+         */
+        private int[] path = new int[16];
+
+        /**
+         * Reusable array that holds document numbers of parents.
+         */
+        private int[] pDocs = new int[1];
+
+        private DeniedDocs(IndexReader reader) throws IOException {
+            this.resolver = (HierarchyResolver) reader;
+            this.resolved = new BitSet(reader.maxDoc());
+            this.denied = new BitSet(reader.maxDoc());
+            for (Map.Entry<NodeId, Boolean> entry : readPermissions.entrySet()) {
+                Term term = TermFactory.createUUIDTerm(entry.getKey().toString());
+                TermDocs docs = reader.termDocs(term);
+                try {
+                    while (docs.next()) {
+                        int doc = docs.doc();
+                        resolved.set(doc);
+                        if (!entry.getValue()) {
+                            denied.set(doc);
+                        }
+                    }
+                } finally {
+                    docs.close();
+                }
+            }
+        }
+
+        /**
+         * @param doc a document number.
+         * @return <code>true</code> if the document cannot be read.
+         * @throws IOException if an error occurs while reading from the index.
+         */
+        boolean isDenied(int doc) throws IOException {
+            int length = 0;
+            boolean result = false;
+            int current = doc;
+            while (!resolved.get(current)) {
+                if (length == path.length) {
+                    int[] copy = new int[path.length * 2];
+                    System.arraycopy(path, 0, copy, 0, path.length);
+                    path = copy;
+                }
+                path[length++] = current;
+                pDocs = resolver.getParents(current, pDocs);
+                if (pDocs.length != 1) {
+                    // root node, unknown parent or shared node
+                    current = -1;
+                    break;
+                }
+                current = pDocs[0];
+            }
+            if (current != -1) {
+                result = denied.get(current);
+            }
+            for (int i = 0; i < length; i++) {
+                resolved.set(path[i]);
+                if (result) {
+                    denied.set(path[i]);
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.query.lucene;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress of the initial index creation of a {@link MultiIndex}.
+ */
+public class ReindexStatistics implements ReindexStatisticsMBean {
+
+    private final AtomicLong indexed = new AtomicLong();
+
+    private volatile int threads = 0;
+
+    private volatile long total = -1;
+
+    private volatile long start = 0;
+
+    private volatile long end = 0;
+
+    /**
+     * Records the start of the index creation.
+     *
+     * @param threads number of threads that create index documents
+     */
+    void started(int threads) {
+        this.threads = threads;
+        this.total = -1;
+        this.indexed.set(0);
+        this.end = 0;
+        this.start = System.currentTimeMillis();
+    }
+
+    /**
+     * Sets the number of nodes to index, once known.
+     *
+     * @param total number of nodes
+     */
+    void setTotalNodes(long total) {
+        this.total = total;
+    }
+
+    /**
+     * Records nodes that have been indexed.
+     *
+     * @param count number of nodes
+     */
+    void indexed(long count) {
+        indexed.addAndGet(count);
+    }
+
+    /**
+     * Records the end of the index creation.
+     */
+    void finished() {
+        end = System.currentTimeMillis();
+    }
+
+    private long getElapsedMillis() {
+        if (start == 0) {
+            return 0;
+        } else if (end == 0) {
+            return System.currentTimeMillis() - start;
+        } else {
+            return end - start;
+        }
+    }
+
+    //-----------------------------------------< ReindexStatisticsMBean >--
+
+    public boolean isRunning() {
+        return start != 0 && end == 0;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public long getTotalNodes() {
+        return total;
+    }
+
+    public long getIndexedNodes() {
+        return indexed.get();
+    }
+
+    public double getProgress() {
+        long total = this.total;
+        if (total < 0) {
+            return -1;
+        } else if (total == 0) {
+            return 100;
+        } else {
+            return Math.min(100.0, 100.0 * indexed.get() / total);
+        }
+    }
+
+    public double getDocumentsPerSecond() {
+        long millis = getElapsedMillis();
+        if (millis == 0) {
+            return 0;
+        } else {
+            return indexed.get() * 1000.0 / millis;
+        }
+    }
+
+    public long getElapsedSeconds() {
+        return getElapsedMillis() / 1000;
+    }
+
+    public long getEstimatedSecondsRemaining() {
+        long total = this.total;
+        double rate = getDocumentsPerSecond();
+        if (!isRunning()) {
+            return 0;
+        } else if (total < 0 || rate == 0) {
+            return -1;
+        } else {
+            return (long) (Math.max(total - indexed.get(), 0) / rate);
+        }
+    }
+
+}
@@ -0,0 +1,70 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.query.lucene;
+
+/**
+ * JMX bindings for the progress of the initial index creation of a
+ * {@link SearchIndex}. One instance is registered per search index while
+ * the index is open.
+ */
+public interface ReindexStatisticsMBean {
+
+    String NAME = "org.apache.jackrabbit:type=Reindex";
+
+    /**
+     * @return <code>true</code> while the index is being created
+     */
+    boolean isRunning();
+
+    /**
+     * @return number of threads that create index documents
+     */
+    int getThreads();
+
+    /**
+     * @return number of nodes to index, or -1 if unknown
+     */
+    long getTotalNodes();
+
+    /**
+     * @return number of nodes indexed so far
+     */
+    long getIndexedNodes();
+
+    /**
+     * @return percentage of the nodes indexed so far, or -1 if the total
+     *         number of nodes is unknown
+     */
+    double getProgress();
+
+    /**
+     * @return average number of documents created per second
+     */
+    double getDocumentsPerSecond();
+
+    /**
+     * @return number of seconds since the index creation started
+     */
+    long getElapsedSeconds();
+
+    /**
+     * @return estimated number of seconds until the index creation is
+     *         complete, or -1 if unknown
+     */
+    long getEstimatedSecondsRemaining();
+
+}
@@ -19,6 +19,7 @@ package org.apache.jackrabbit.core.query.lucene;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.management.ManagementFactory;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
@@ -29,6 +30,7 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -36,6 +38,9 @@ import java.util.Set;
 import javax.jcr.PropertyType;
 import javax.jcr.RepositoryException;
 import javax.jcr.query.InvalidQueryException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
@@ -68,6 +73,8 @@ import org.apache.jackrabbit.core.query.QueryHandlerContext;
 import org.apache.jackrabbit.core.query.lucene.directory.DirectoryManager;
 import org.apache.jackrabbit.core.query.lucene.directory.FSDirectoryManager;
 import org.apache.jackrabbit.core.query.lucene.hits.AbstractHitCollector;
+import org.apache.jackrabbit.core.security.AccessManager;
+import org.apache.jackrabbit.core.security.authorization.SubtreeReadPermissions;
 import org.apache.jackrabbit.core.session.SessionContext;
 import org.apache.jackrabbit.core.state.ItemState;
 import org.apache.jackrabbit.core.state.ItemStateException;
@@ -191,6 +198,22 @@ public class SearchIndex extends AbstractQueryHandler {
      */
     public static final long DEFAULT_EXTRACTOR_TIMEOUT = 100;
 
+    /**
+     * The default value for {@link #asyncIndexingBatchSize}.
+     */
+    public static final int DEFAULT_ASYNC_INDEXING_BATCH_SIZE = 100;
+
+    /**
+     * The default value for {@link #joinMemoryRows}.
+     */
+    public static final int DEFAULT_JOIN_MEMORY_ROWS = 10000;
+
+    /**
+     * The default time in milliseconds a query waits for the asynchronous
+     * indexer to reach the requested revision.
+     */
+    public static final long DEFAULT_ASYNC_INDEXING_TIMEOUT = 10000;
+
     /**
      * The default value for {@link #termInfosIndexDivisor}.
      */
@@ -320,6 +343,37 @@ public class SearchIndex extends AbstractQueryHandler {
      */
     private long extractorTimeout = DEFAULT_EXTRACTOR_TIMEOUT;
 
+    /**
+     * reindexThreads config parameter
+     */
+    private int reindexThreads = 1;
+
+    /**
+     * asyncIndexing config parameter
+     */
+    private boolean asyncIndexing = false;
+
+    /**
+     * asyncIndexingBatchSize config parameter
+     */
+    private int asyncIndexingBatchSize = DEFAULT_ASYNC_INDEXING_BATCH_SIZE;
+
+    /**
+     * asyncIndexingTimeout config parameter
+     */
+    private long asyncIndexingTimeout = DEFAULT_ASYNC_INDEXING_TIMEOUT;
+
+    /**
+     * The indexer that updates the index in the background, or
+     * <code>null</code> if the index is updated synchronously.
+     */
+    private AsyncIndexer asyncIndexer;
+
+    /**
+     * Object name of the registered reindex statistics, or <code>null</code>.
+     */
+    private ObjectName reindexStatisticsName;
+
     /**
      * Number of documents that are buffered before they are added to the index.
      */
@@ -379,6 +433,15 @@ public class SearchIndex extends AbstractQueryHandler {
      */
     private int resultFetchSize = Integer.MAX_VALUE;
 
+    /**
+     * The number of rows a SQL2 join keeps in memory per row set before the
+     * remaining rows are written to a temporary file. A negative value keeps
+     * all rows in memory.
+     * <p>
+     * Default value is: {@link #DEFAULT_JOIN_MEMORY_ROWS}.
+     */
+    private int joinMemoryRows = DEFAULT_JOIN_MEMORY_ROWS;
+
     /**
      * If set to <code>true</code> the fulltext field is stored and and a term
      * vector is created with offset information.
@@ -579,6 +642,7 @@ public class SearchIndex extends AbstractQueryHandler {
             } else {
                 rootPath = ROOT_PATH;
             }
+            registerReindexStatistics();
             index.createInitialIndex(context.getItemStateManager(),
                     context.getRootId(), rootPath);
             checkPendingJournalChanges(context);
@@ -604,6 +668,11 @@ public class SearchIndex extends AbstractQueryHandler {
             }
         }
 
+        if (asyncIndexing) {
+            asyncIndexer = new AsyncIndexer(this, index.getDirectory(),
+                    context.getExecutor(), asyncIndexingBatchSize);
+        }
+
         // initialize spell checker
         spellChecker = createSpellChecker();
 
@@ -639,7 +708,9 @@ public class SearchIndex extends AbstractQueryHandler {
     /**
      * This implementation forwards the call to
      * {@link MultiIndex#update(Collection, Collection)} and
-     * transforms the two iterators to the required types.
+     * transforms the two iterators to the required types. If asynchronous
+     * indexing is enabled, the ids of the nodes are only queued and the
+     * index is updated in the background.
      *
      * @param remove ids of nodes to remove.
      * @param add    NodeStates to add. Calls to <code>next()</code> on this
@@ -652,6 +723,61 @@ public class SearchIndex extends AbstractQueryHandler {
             throws RepositoryException, IOException {
         checkOpen();
 
+        if (asyncIndexer != null) {
+            Set<NodeId> ids = new LinkedHashSet<NodeId>();
+            while (remove.hasNext()) {
+                ids.add(remove.next());
+            }
+            while (add.hasNext()) {
+                NodeState state = add.next();
+                if (state != null) {
+                    ids.add(state.getNodeId());
+                }
+            }
+            asyncIndexer.enqueue(ids);
+        } else {
+            updateIndex(remove, add);
+        }
+    }
+
+    /**
+     * Indexes the current state of the given nodes. Nodes that do not
+     * exist anymore are removed from the index. Called by the
+     * {@link AsyncIndexer} for a batch of queued nodes.
+     *
+     * @param ids ids of the nodes to index.
+     * @throws RepositoryException if an error occurs while indexing a node.
+     * @throws IOException         if an error occurs while updating the index.
+     */
+    void indexNodes(Collection<NodeId> ids)
+            throws RepositoryException, IOException {
+        ItemStateManager ism = getContext().getItemStateManager();
+        List<NodeState> states = new ArrayList<NodeState>(ids.size());
+        for (NodeId id : ids) {
+            try {
+                if (ism.hasItemState(id)) {
+                    states.add((NodeState) ism.getItemState(id));
+                }
+            } catch (NoSuchItemStateException e) {
+                // removed in the meantime
+            } catch (ItemStateException e) {
+                log.warn("Unable to index node " + id + ": " + e);
+            }
+        }
+        updateIndex(ids.iterator(), states.iterator());
+    }
+
+    /**
+     * Removes the given nodes from the index, adds documents for the given
+     * node states and updates affected aggregate roots.
+     *
+     * @param remove ids of nodes to remove.
+     * @param add    NodeStates to add, may return <code>null</code>.
+     * @throws RepositoryException if an error occurs while indexing a node.
+     * @throws IOException         if an error occurs while updating the index.
+     */
+    private void updateIndex(Iterator<NodeId> remove, Iterator<NodeState> add)
+            throws RepositoryException, IOException {
         Map<NodeId, NodeState> aggregateRoots = new HashMap<NodeId, NodeState>();
         Set<NodeId> removedIds = new HashSet<NodeId>();
         Set<NodeId> addedIds = new HashSet<NodeId>();
@@ -811,6 +937,9 @@ public class SearchIndex extends AbstractQueryHandler {
      */
     public void flush() throws RepositoryException {
         try {
+            if (asyncIndexer != null) {
+                asyncIndexer.waitForRevision(Long.MAX_VALUE, 0);
+            }
             index.waitUntilIndexingQueueIsEmpty();
             index.safeFlush();
             // flush may have pushed nodes into the indexing queue
@@ -818,6 +947,67 @@ public class SearchIndex extends AbstractQueryHandler {
             index.waitUntilIndexingQueueIsEmpty();
         } catch (IOException e) {
             throw new RepositoryException("Failed to flush the index", e);
+        } catch (InterruptedException e) {
+            throw new RepositoryException("Interrupted while flushing the index", e);
+        }
+    }
+
+    /**
+     * Returns the revision of the asynchronous indexing queue. The revision
+     * is incremented whenever the changes of a save are queued. A query
+     * can wait until all changes up to a revision have been indexed, see
+     * {@link org.apache.jackrabbit.core.query.QueryImpl#setIndexRevision(long)}.
+     *
+     * @return the revision of the asynchronous indexing queue, or 0 if the
+     *         index is updated synchronously.
+     */
+    public long getIndexRevision() {
+        if (asyncIndexer != null) {
+            return asyncIndexer.getRevision();
+        } else {
+            return 0;
+        }
+    }
+
+    /**
+     * @return the revision up to which all queued changes have been indexed,
+     *         or 0 if the index is updated synchronously.
+     */
+    public long getIndexedRevision() {
+        if (asyncIndexer != null) {
+            return asyncIndexer.getIndexedRevision();
+        } else {
+            return 0;
+        }
+    }
+
+    /**
+     * Waits until all changes up to the given revision of the asynchronous
+     * indexing queue have been indexed. Returns immediately if the index is
+     * updated synchronously. {@link Long#MAX_VALUE} waits for all changes
+     * queued so far.
+     *
+     * @param revision the revision to wait for.
+     * @throws RepositoryException if the revision is not indexed within
+     *                             the <code>asyncIndexingTimeout</code>, its
+     *                             nodes failed to be indexed or the thread
+     *                             is interrupted.
+     */
+    public void waitForIndexRevision(long revision)
+            throws RepositoryException {
+        if (asyncIndexer == null) {
+            return;
+        }
+        try {
+            if (!asyncIndexer.waitForRevision(revision, asyncIndexingTimeout)) {
+                throw new RepositoryException(
+                        "Timed out waiting for index revision " + revision);
+            }
+        } catch (InterruptedException e) {
+            throw new RepositoryException(
+                    "Interrupted while waiting for index revision " + revision, e);
+        } catch (IOException e) {
+            throw new RepositoryException(e.getMessage(), e);
         }
     }
 
@@ -836,7 +1026,11 @@ public class SearchIndex extends AbstractQueryHandler {
         if (spellChecker != null) {
             spellChecker.close();
         }
+        if (asyncIndexer != null) {
+            asyncIndexer.close();
+        }
         index.close();
+        unregisterReindexStatistics();
         getContext().destroy();
         super.close();
         closed = true;
@@ -867,6 +1061,7 @@ public class SearchIndex extends AbstractQueryHandler {
         checkOpen();
 
         Sort sort = new Sort(createSortFields(orderProps, orderSpecs, orderFuncs));
+        query = applyReadAccessFilter(session, query);
 
         final IndexReader reader = getIndexReader(queryImpl.needsSystemTree());
         JackrabbitIndexSearcher searcher = new JackrabbitIndexSearcher(
@@ -918,6 +1113,35 @@ public class SearchIndex extends AbstractQueryHandler {
         };
     }
 
+    /**
+     * Wraps the given query with a {@link ReadAccessFilterQuery} if the
+     * access manager of the session provides the read permissions of the
+     * access controlled subtrees and some of them cannot be read. The
+     * matches in these subtrees are then removed before the items are
+     * loaded for the regular access check.
+     *
+     * @param session the session that executes the query.
+     * @param query   the lucene query.
+     * @return the filtered query or <code>query</code> if there is nothing
+     *         to filter.
+     */
+    protected Query applyReadAccessFilter(SessionImpl session, Query query) {
+        AccessManager am = session.getAccessManager();
+        if (am instanceof SubtreeReadPermissions) {
+            try {
+                Map<NodeId, Boolean> permissions =
+                    ((SubtreeReadPermissions) am).getSubtreeReadPermissions();
+                if (permissions != null
+                        && permissions.containsValue(Boolean.FALSE)) {
+                    return new ReadAccessFilterQuery(query, permissions);
+                }
+            } catch (RepositoryException e) {
+                log.warn("Unable to evaluate subtree read permissions", e);
+            }
+        }
+        return query;
+    }
+
     /**
      * Creates an excerpt provider for the given <code>query</code>.
      *
@@ -2133,6 +2357,24 @@ public class SearchIndex extends AbstractQueryHandler {
         return resultFetchSize;
     }
 
+    /**
+     * Sets the number of rows a SQL2 join keeps in memory per row set before
+     * the remaining rows are written to a temporary file.
+     *
+     * @param rows the number of rows, or a negative value to keep all rows
+     *             in memory.
+     */
+    public void setJoinMemoryRows(int rows) {
+        joinMemoryRows = rows;
+    }
+
+    /**
+     * @return the number of rows a SQL2 join keeps in memory per row set.
+     */
+    public int getJoinMemoryRows() {
+        return joinMemoryRows;
+    }
+
     /**
      * The number of background threads for the extractor pool.
      *
@@ -2153,6 +2395,84 @@ public class SearchIndex extends AbstractQueryHandler {
         return extractorPoolSize;
     }
 
+    /**
+     * Sets the number of threads that create the initial index of a
+     * workspace. With more than one thread, the nodes are read from the
+     * persistence manager instead of traversing the workspace, if the
+     * persistence manager supports that.
+     *
+     * @param numThreads the number of threads.
+     */
+    public void setReindexThreads(int numThreads) {
+        if (numThreads < 1) {
+            numThreads = 1;
+        }
+        reindexThreads = numThreads;
+    }
+
+    /**
+     * @return the number of threads that create the initial index.
+     */
+    public int getReindexThreads() {
+        return reindexThreads;
+    }
+
+    /**
+     * Enables or disables asynchronous indexing. If enabled, a save only
+     * queues the ids of the changed nodes in a log file of the index and
+     * the index is updated in the background. Queries see the changes
+     * once they have been indexed, unless they wait for a revision.
+     *
+     * @param b <code>true</code> to update the index asynchronously.
+     */
+    public void setAsyncIndexing(boolean b) {
+        asyncIndexing = b;
+    }
+
+    /**
+     * @return <code>true</code> if the index is updated asynchronously.
+     */
+    public boolean getAsyncIndexing() {
+        return asyncIndexing;
+    }
+
+    /**
+     * Sets the maximum number of queued nodes that the asynchronous indexer
+     * adds to the index in one update.
+     *
+     * @param size the batch size.
+     */
+    public void setAsyncIndexingBatchSize(int size) {
+        if (size < 1) {
+            size = 1;
+        }
+        asyncIndexingBatchSize = size;
+    }
+
+    /**
+     * @return the batch size of the asynchronous indexer.
+     */
+    public int getAsyncIndexingBatchSize() {
+        return asyncIndexingBatchSize;
+    }
+
+    /**
+     * Sets the time in milliseconds a query waits for the asynchronous
+     * indexer to reach a requested revision, or 0 to wait without a limit.
+     *
+     * @param timeout the timeout in milliseconds.
+     */
+    public void setAsyncIndexingTimeout(long timeout) {
+        asyncIndexingTimeout = timeout;
+    }
+
+    /**
+     * @return the time in milliseconds a query waits for a revision.
+     */
+    public long getAsyncIndexingTimeout() {
+        return asyncIndexingTimeout;
+    }
+
     /**
      * The number of extractor jobs that are queued until a new job is executed
      * with the current thread instead of using the thread pool.
@@ -2552,6 +2872,38 @@ public class SearchIndex extends AbstractQueryHandler {
         this.redoLogFactoryClass = className;
     }
 
+    /**
+     * Registers the progress statistics of the initial index creation with
+     * the platform MBean server.
+     */
+    private void registerReindexStatistics() {
+        try {
+            ObjectName name = new ObjectName(ReindexStatisticsMBean.NAME
+                    + ",path=" + ObjectName.quote(path));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new StandardMBean(index.getReindexStatistics(),
+                            ReindexStatisticsMBean.class), name);
+            reindexStatisticsName = name;
+        } catch (JMException e) {
+            log.warn("Unable to register the reindex statistics MBean", e);
+        }
+    }
+
+    /**
+     * Unregisters the progress statistics of the initial index creation.
+     */
+    private void unregisterReindexStatistics() {
+        if (reindexStatisticsName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+                        reindexStatisticsName);
+            } catch (JMException e) {
+                log.warn("Unable to unregister the reindex statistics MBean", e);
+            }
+            reindexStatisticsName = null;
+        }
+    }
+
     /**
      * In the case of an initial index build operation, this checks if there are
      * some new nodes pending in the journal and tries to preemptively delete
@@ -17,7 +17,6 @@
 package org.apache.jackrabbit.core.query.lucene.join;
 
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
@@ -62,7 +61,7 @@ class DescendantNodeJoinMerger extends JoinMerger {
     }
 
     @Override
-    public List<Constraint> getRightJoinConstraints(Collection<Row> leftRows)
+    public List<Constraint> getRightJoinConstraints(Iterable<Row> leftRows)
             throws RepositoryException {
         Set<String> paths = new HashSet<String>();
         for (Row row : leftRows) {
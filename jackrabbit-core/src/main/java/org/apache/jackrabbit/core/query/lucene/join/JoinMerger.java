@@ -20,16 +20,19 @@ import static javax.jcr.query.qom.QueryObjectModelConstants.JCR_JOIN_TYPE_LEFT_O
 import static javax.jcr.query.qom.QueryObjectModelConstants.JCR_JOIN_TYPE_INNER;
 
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import javax.jcr.RepositoryException;
+import javax.jcr.Session;
 import javax.jcr.UnsupportedRepositoryOperationException;
 import javax.jcr.query.QueryResult;
 import javax.jcr.query.Row;
@@ -46,9 +49,13 @@ import javax.jcr.query.qom.SameNodeJoinCondition;
 import javax.jcr.query.qom.Selector;
 import javax.jcr.query.qom.Source;
 
+import org.apache.jackrabbit.commons.iterator.AbstractLazyIterator;
+import org.apache.jackrabbit.commons.iterator.LazyIteratorChain;
 import org.apache.jackrabbit.commons.iterator.RowIterable;
 import org.apache.jackrabbit.commons.iterator.RowIteratorAdapter;
 import org.apache.jackrabbit.commons.query.qom.OperandEvaluator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * A join merger is used by the {@link QueryEngine} class to efficiently
@@ -62,6 +69,16 @@ import org.apache.jackrabbit.commons.query.qom.OperandEvaluator;
  */
 abstract class JoinMerger {
 
+    /**
+     * The logger instance for this class
+     */
+    private static final Logger log = LoggerFactory.getLogger(JoinMerger.class);
+
+    /**
+     * The number of partitions of a partitioned merge.
+     */
+    private static final int PARTITIONS = 32;
+
     /**
      * Static factory method for creating a merger for the given join.
      *
@@ -99,6 +116,31 @@ abstract class JoinMerger {
         }
     }
 
+    /**
+     * Static factory method for creating a merger for the given join that
+     * keeps at most <code>maxMemoryRows</code> rows of the right dataset in
+     * memory and writes the rows of larger datasets to temporary files.
+     *
+     * @param join join
+     * @param columns columns of the query
+     * @param evaluator operand evaluator
+     * @param factory QOM factory
+     * @param session the session that executes the query
+     * @param maxMemoryRows the number of rows kept in memory, or a negative
+     *                      value to keep all rows in memory
+     * @return join merger
+     * @throws RepositoryException if the merger can not be created
+     */
+    public static JoinMerger getJoinMerger(
+            Join join, Map<String, PropertyValue> columns,
+            OperandEvaluator evaluator, QueryObjectModelFactory factory,
+            Session session, int maxMemoryRows) throws RepositoryException {
+        JoinMerger merger = getJoinMerger(join, columns, evaluator, factory);
+        merger.session = session;
+        merger.maxMemoryRows = maxMemoryRows;
+        return merger;
+    }
+
     private final String type;
 
     protected final Set<String> leftSelectors;
@@ -115,6 +157,14 @@ abstract class JoinMerger {
 
     protected final QueryObjectModelFactory factory;
 
+    /**
+     * The session used to read back rows written to temporary files, or
+     * <code>null</code> if all rows are kept in memory.
+     */
+    private Session session;
+
+    private int maxMemoryRows = -1;
+
     protected JoinMerger(
             Join join, Map<String, PropertyValue> columns,
             OperandEvaluator evaluator, QueryObjectModelFactory factory)
@@ -146,6 +196,10 @@ abstract class JoinMerger {
         return selectorNames;
     }
 
+    public Map<String, PropertyValue> getColumns() {
+        return columns;
+    }
+
     public Set<String> getLeftSelectors() {
         return leftSelectors;
     }
@@ -175,7 +229,14 @@ abstract class JoinMerger {
      * Merges the left and right dataset of a join query. Take special
      * precaution for outer joins, as extra checks are needed to distinguish
      * 'null' nodes vs 'not to be included' nodes
-     * 
+     * <p>
+     * The right dataset is read into a hash table on its join values and the
+     * left dataset is streamed against it. The merged rows are collected,
+     * so that the result has an exact size, if the size of the left dataset
+     * is known. If the right dataset has more rows than the merger may keep
+     * in memory, both datasets are first split into partitions on the hash
+     * of their join values, which are written to temporary files and then
+     * merged one partition at a time while the result is iterated.
      * 
      * @param leftRows
      *            the left dataset of the join
@@ -194,21 +255,58 @@ abstract class JoinMerger {
     public QueryResult merge(RowIterator leftRows, RowIterator rightRows,
             Set<Row> excludingOuterJoinRowsSet, Comparator<Row> rowComparator)
             throws RepositoryException {
-        Map<String, List<Row>> map = buildRightRowValues(rightRows);
+        return merge(leftRows, rightRows, excludingOuterJoinRowsSet,
+                rowComparator, false);
+    }
 
-        if (JCR_JOIN_TYPE_INNER.equals(type) && !map.isEmpty()) {
-            List<Row> rows = new ArrayList<Row>();
-            for (Row leftRow : new RowIterable(leftRows)) {
-                for (String value : getLeftValues(leftRow)) {
-                    List<Row> matchingRows = map.get(value);
-                    if (matchingRows != null) {
-                        for (Row rightRow : matchingRows) {
-                            rows.add(mergeRow(leftRow, rightRow));
-                        }
-                    }
-                }
+    /**
+     * Merges the left and right dataset of a join query like
+     * {@link #merge(RowIterator, RowIterator, Set, Comparator)}. A lazy merge
+     * never collects the merged rows: they are created while the result is
+     * iterated, and the result has an unknown size. This is useful if the
+     * result is sorted or only partially read.
+     *
+     * @param leftRows
+     *            the left dataset of the join
+     * @param rightRows
+     *            the right dataset of the join
+     * @param excludingOuterJoinRowsSet
+     *            if not <code>null</code> must be taken into consideration when
+     *            merging OUTER JOINs
+     * @param rowComparator
+     *            a comparator implementation that has to handle the 'is row
+     *            equal to' problem, in the case of outer joins with
+     *            excludingOuterJoinRowsSet
+     * @param lazy
+     *            whether the merged rows are only created while the result
+     *            is iterated
+     * @return a QueryResult that has the final JOIN resultset
+     * @throws RepositoryException
+     */
+    public QueryResult merge(RowIterator leftRows, RowIterator rightRows,
+            Set<Row> excludingOuterJoinRowsSet, Comparator<Row> rowComparator,
+            boolean lazy) throws RepositoryException {
+        List<Row> right = new ArrayList<Row>();
+        while (rightRows.hasNext()) {
+            if (session != null && maxMemoryRows >= 0
+                    && right.size() >= maxMemoryRows) {
+                return mergePartitioned(leftRows, right, rightRows,
+                        excludingOuterJoinRowsSet, rowComparator);
             }
-            return asQueryResult(new RowIteratorAdapter(rows));
+            right.add(rightRows.nextRow());
+        }
+        Map<String, List<Row>> map = buildRightRowValues(right, -1);
+        return merge(leftRows, map, excludingOuterJoinRowsSet, rowComparator,
+                !lazy && leftRows.getSize() >= 0);
+    }
+
+    private QueryResult merge(RowIterator leftRows,
+            Map<String, List<Row>> map, Set<Row> excludingOuterJoinRowsSet,
+            Comparator<Row> rowComparator, boolean collect) {
+        if (JCR_JOIN_TYPE_INNER.equals(type) && !map.isEmpty()) {
+            return asQueryResult(new MergingIterator(
+                    new RowIterable(leftRows).iterator(), map, -1,
+                    excludingOuterJoinRowsSet, rowComparator), collect);
         }
 
         if (JCR_JOIN_TYPE_LEFT_OUTER.equals(type)) {
@@ -228,63 +326,135 @@ abstract class JoinMerger {
                         Collections.emptySet()));
             }
 
-            List<Row> rows = new ArrayList<Row>();
-            for (Row leftRow : new RowIterable(leftRows)) {
-                Set<String> leftValues = getLeftValues(leftRow);
-                if(leftValues.isEmpty()){
-                    leftValues.add(null);
-                }
-                for (String value : leftValues) {
-                    List<Row> matchingRows = map.get(value);
-                    if (matchingRows != null) {
-                        for (Row rightRow : matchingRows) {
-                            // I have possible WHERE clauses on the join that I
-                            // need to look at for each rightRow
-                            if (excludingOuterJoinRowsSet == null) {
-                                rows.add(mergeRow(leftRow, rightRow));
-                            } else {
-                                boolean isIncluded = false;
-                                // apparently
-                                // 'excludingOuterJoinRowsSet.contains' fails to
-                                // match rows
-
-                                // TODO can 'rightRow.getNode()' break because
-                                // of joins that are bigger than 2 way?
-                                // how does this perform for 3 way joins ?
-                                for (Row r : excludingOuterJoinRowsSet) {
-                                    if(rowComparator.compare(rightRow, r) == 0){
-                                        isIncluded = true;
-                                        break;
-                                    }
-                                }
-                                if (isIncluded) {
-                                    rows.add(mergeRow(leftRow, rightRow));
-                                }
-                            }
-                        }
-                    } else {
-                        // No matches in an outer join -> add a null row, if
-                        // there are no 'WHERE' conditions
-                        if (excludingOuterJoinRowsSet == null) {
-                            rows.add(mergeRow(leftRow, null));
-                        }
+            return asQueryResult(new MergingIterator(
+                    new RowIterable(leftRows).iterator(), map, -1,
+                    excludingOuterJoinRowsSet, rowComparator), collect);
+        }
+        return asQueryResult(new RowIteratorAdapter(Collections.emptySet()));
+    }
+
+    /**
+     * Merges the left and right dataset with a partitioned hash join. Rows
+     * are assigned to the partitions of their join values, and a left row
+     * in a partition is only matched with the values of that partition, so
+     * the result is the same as the one of an in-memory merge.
+     */
+    private QueryResult mergePartitioned(RowIterator leftRows, List<Row> right,
+            RowIterator rightRows, final Set<Row> excludingOuterJoinRowsSet,
+            final Comparator<Row> rowComparator) throws RepositoryException {
+        boolean isOuterJoin = JCR_JOIN_TYPE_LEFT_OUTER.equals(type);
+        if (!isOuterJoin && !JCR_JOIN_TYPE_INNER.equals(type)) {
+            return asQueryResult(new RowIteratorAdapter(Collections.emptySet()));
+        }
+        log.debug("Right side of the join has more than {} rows, "
+                + "merging in {} partitions", maxMemoryRows, PARTITIONS);
+
+        // the rows of the partitions are only used as the left and right
+        // rows of the merged rows, which have their own columns
+        Map<String, PropertyValue> noColumns = Collections.emptyMap();
+        int partitionRows = Math.max(1, maxMemoryRows / PARTITIONS);
+        final RowBuffer[] leftPartitions = new RowBuffer[PARTITIONS];
+        final RowBuffer[] rightPartitions = new RowBuffer[PARTITIONS];
+        for (int i = 0; i < PARTITIONS; i++) {
+            leftPartitions[i] = new RowBuffer(session, noColumns, evaluator,
+                    leftSelectors.toArray(new String[leftSelectors.size()]),
+                    partitionRows, false);
+            rightPartitions[i] = new RowBuffer(session, noColumns, evaluator,
+                    rightSelectors.toArray(new String[rightSelectors.size()]),
+                    partitionRows, false);
+        }
+
+        boolean hasValues = false;
+        Iterator<Row> it = new LazyIteratorChain<Row>(
+                right.iterator(), new RowIterable(rightRows).iterator());
+        while (it.hasNext()) {
+            Row row = it.next();
+            Set<String> values = getRightValues(row);
+            hasValues |= !values.isEmpty();
+            for (int partition : getPartitions(values)) {
+                rightPartitions[partition].add(row);
+            }
+        }
+        right.clear();
+
+        if (!hasValues) {
+            for (int i = 0; i < PARTITIONS; i++) {
+                leftPartitions[i].dispose();
+                rightPartitions[i].dispose();
+            }
+            Map<String, List<Row>> map = Collections.emptyMap();
+            return merge(leftRows, map, excludingOuterJoinRowsSet,
+                    rowComparator, false);
+        }
+
+        for (Row row : new RowIterable(leftRows)) {
+            Set<String> values = getLeftValues(row);
+            if (isOuterJoin && values.isEmpty()) {
+                values = Collections.<String>singleton(null);
+            }
+            for (int partition : getPartitions(values)) {
+                leftPartitions[partition].add(row);
+            }
+        }
+
+        return asQueryResult(new RowIteratorAdapter(
+                new AbstractLazyIterator<Row>() {
+
+            private int partition = -1;
+
+            private Iterator<Row> rows = Collections.<Row>emptySet().iterator();
+
+            @Override
+            protected Row getNext() {
+                while (!rows.hasNext()) {
+                    if (partition >= 0) {
+                        leftPartitions[partition].dispose();
+                        rightPartitions[partition].dispose();
+                    }
+                    if (++partition == PARTITIONS) {
+                        return null;
+                    }
+                    Map<String, List<Row>> map;
+                    try {
+                        map = buildRightRowValues(
+                                rightPartitions[partition], partition);
+                    } catch (RepositoryException e) {
+                        log.warn("Unable to read join partition", e);
+                        continue;
                     }
+                    rows = new MergingIterator(
+                            leftPartitions[partition].iterator(), map,
+                            partition, excludingOuterJoinRowsSet,
+                            rowComparator);
                 }
+                return rows.next();
             }
-            return asQueryResult(new RowIteratorAdapter(rows));
-        }
-        return asQueryResult(new RowIteratorAdapter(Collections.emptySet()));
+        }));
     }
 
     private QueryResult asQueryResult(RowIterator rowIterator) {
         return new SimpleQueryResult(columnNames, selectorNames, rowIterator);
     }
 
-    private Map<String, List<Row>> buildRightRowValues(RowIterator rightRows)
-            throws RepositoryException {
+    private QueryResult asQueryResult(Iterator<Row> rows, boolean collect) {
+        if (collect) {
+            List<Row> list = new ArrayList<Row>();
+            while (rows.hasNext()) {
+                list.add(rows.next());
+            }
+            return asQueryResult(new RowIteratorAdapter(list));
+        }
+        return asQueryResult(new RowIteratorAdapter(rows));
+    }
+
+    private Map<String, List<Row>> buildRightRowValues(Iterable<Row> rightRows,
+            int partition) throws RepositoryException {
         Map<String, List<Row>> map = new HashMap<String, List<Row>>();
-        for (Row row : new RowIterable(rightRows)) {
+        for (Row row : rightRows) {
             for (String value : getRightValues(row)) {
+                if (partition >= 0 && getPartition(value) != partition) {
+                    continue;
+                }
                 List<Row> rows = map.get(value);
                 if (rows == null) {
                     rows = new ArrayList<Row>();
@@ -296,6 +466,106 @@ abstract class JoinMerger {
         return map;
     }
 
+    private static int getPartition(String value) {
+        if (value == null) {
+            return 0;
+        }
+        return (value.hashCode() & Integer.MAX_VALUE) % PARTITIONS;
+    }
+
+    private static Set<Integer> getPartitions(Set<String> values) {
+        Set<Integer> partitions = new HashSet<Integer>();
+        for (String value : values) {
+            partitions.add(getPartition(value));
+        }
+        return partitions;
+    }
+
+    /**
+     * Merges the left rows with the matching rows of a hash table on the
+     * right join values while the result is iterated.
+     */
+    private class MergingIterator extends AbstractLazyIterator<Row> {
+
+        private final Iterator<Row> leftRows;
+
+        private final Map<String, List<Row>> map;
+
+        /**
+         * The partition of the join values in <code>map</code>, or -1 if
+         * all join values are in <code>map</code>.
+         */
+        private final int partition;
+
+        private final Set<Row> excludingOuterJoinRowsSet;
+
+        private final Comparator<Row> rowComparator;
+
+        private final LinkedList<Row> pending = new LinkedList<Row>();
+
+        private MergingIterator(Iterator<Row> leftRows,
+                Map<String, List<Row>> map, int partition,
+                Set<Row> excludingOuterJoinRowsSet,
+                Comparator<Row> rowComparator) {
+            this.leftRows = leftRows;
+            this.map = map;
+            this.partition = partition;
+            this.excludingOuterJoinRowsSet = excludingOuterJoinRowsSet;
+            this.rowComparator = rowComparator;
+        }
+
+        @Override
+        protected Row getNext() {
+            while (pending.isEmpty() && leftRows.hasNext()) {
+                Row leftRow = leftRows.next();
+                try {
+                    mergeLeftRow(leftRow);
+                } catch (RepositoryException e) {
+                    log.warn("Unable to merge join row " + leftRow, e);
+                }
+            }
+            return pending.poll();
+        }
+
+        private void mergeLeftRow(Row leftRow) throws RepositoryException {
+            boolean isOuterJoin = JCR_JOIN_TYPE_LEFT_OUTER.equals(type);
+            Set<String> leftValues = getLeftValues(leftRow);
+            if (isOuterJoin && leftValues.isEmpty()) {
+                leftValues = Collections.<String>singleton(null);
+            }
+            for (String value : leftValues) {
+                if (partition >= 0 && getPartition(value) != partition) {
+                    continue;
+                }
+                List<Row> matchingRows = map.get(value);
+                if (matchingRows != null) {
+                    for (Row rightRow : matchingRows) {
+                        // I have possible WHERE clauses on the join that I
+                        // need to look at for each rightRow
+                        if (!isOuterJoin || excludingOuterJoinRowsSet == null) {
+                            pending.add(mergeRow(leftRow, rightRow));
+                        } else {
+                            // apparently
+                            // 'excludingOuterJoinRowsSet.contains' fails to
+                            // match rows
+                            for (Row r : excludingOuterJoinRowsSet) {
+                                if (rowComparator.compare(rightRow, r) == 0) {
+                                    pending.add(mergeRow(leftRow, rightRow));
+                                    break;
+                                }
+                            }
+                        }
+                    }
+                } else if (isOuterJoin && excludingOuterJoinRowsSet == null) {
+                    // No matches in an outer join -> add a null row, if
+                    // there are no 'WHERE' conditions
+                    pending.add(mergeRow(leftRow, null));
+                }
+            }
+        }
+
+    }
+
     /**
      * Merges the given left and right rows to a single joined row.
      *
@@ -315,7 +585,7 @@ abstract class JoinMerger {
     public abstract Set<String> getRightValues(Row row)
             throws RepositoryException;
 
-    public abstract List<Constraint> getRightJoinConstraints(Collection<Row> leftRows)
+    public abstract List<Constraint> getRightJoinConstraints(Iterable<Row> leftRows)
             throws RepositoryException;
 
 }
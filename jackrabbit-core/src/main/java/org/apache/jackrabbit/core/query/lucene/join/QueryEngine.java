@@ -16,6 +16,7 @@
  */
 package org.apache.jackrabbit.core.query.lucene.join;
 
+import static javax.jcr.query.qom.QueryObjectModelConstants.JCR_JOIN_TYPE_INNER;
 import static javax.jcr.query.qom.QueryObjectModelConstants.JCR_JOIN_TYPE_LEFT_OUTER;
 import static javax.jcr.query.qom.QueryObjectModelConstants.JCR_JOIN_TYPE_RIGHT_OUTER;
 
@@ -28,6 +29,7 @@ import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.TreeSet;
 
@@ -57,7 +59,7 @@ import javax.jcr.query.qom.Source;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.jackrabbit.JcrConstants;
-import org.apache.jackrabbit.commons.JcrUtils;
+import org.apache.jackrabbit.commons.iterator.AbstractLazyIterator;
 import org.apache.jackrabbit.commons.iterator.RowIteratorAdapter;
 import org.apache.jackrabbit.commons.query.qom.OperandEvaluator;
 import org.apache.jackrabbit.core.query.lucene.LuceneQueryFactory;
@@ -83,6 +85,12 @@ public class QueryEngine {
             .getProperty(NATIVE_SORT_SYSTEM_PROPERTY, "false"));
 
     private static final int printIndentStep = 4;
+
+    /**
+     * The number of join values looked up with one query on the right side
+     * of a join.
+     */
+    private static final int BATCH_SIZE = 500;
     
     private final Session session;
 
@@ -96,10 +104,40 @@ public class QueryEngine {
 
     private final OperandEvaluator evaluator;
 
+    /**
+     * The number of rows of a join row set kept in memory, or a negative
+     * value to keep all rows in memory.
+     */
+    private final int maxMemoryRows;
+
+    /**
+     * The execution plan of the queries run by this engine.
+     */
+    private final StringBuilder plan = new StringBuilder();
+
     public QueryEngine(Session session, LuceneQueryFactory lqf,
             Map<String, Value> variables) throws RepositoryException {
+        this(session, lqf, variables, -1);
+    }
+
+    /**
+     * Creates a query engine whose joins keep at most
+     * <code>maxMemoryRows</code> rows per row set in memory and write the
+     * remaining rows to temporary files.
+     *
+     * @param session the session that executes the query
+     * @param lqf the lucene query factory
+     * @param variables the bind variables
+     * @param maxMemoryRows the number of rows kept in memory, or a negative
+     *                      value to keep all rows in memory
+     * @throws RepositoryException if the engine cannot be created
+     */
+    public QueryEngine(Session session, LuceneQueryFactory lqf,
+            Map<String, Value> variables, int maxMemoryRows)
+            throws RepositoryException {
         this.session = session;
         this.lqf = lqf;
+        this.maxMemoryRows = maxMemoryRows;
         Workspace workspace = session.getWorkspace();
         this.ntManager = workspace.getNodeTypeManager();
         this.qomFactory = workspace.getQueryManager().getQOMFactory();
@@ -116,9 +154,22 @@ public class QueryEngine {
                 offset, limit, 2);
         log.debug("SQL2 QUERY execute took {} ms. native sort is {}.",
                 System.currentTimeMillis() - time, NATIVE_SORT);
+        log.debug("SQL2 QUERY plan:{}{}", IOUtils.LINE_SEPARATOR, plan);
         return qr;
     }
 
+    /**
+     * Returns the execution plan of the queries run by this engine: the
+     * order and algorithm of each join with the estimated number of rows
+     * of its sides, and the constraint, number of rows and time of each
+     * selector.
+     *
+     * @return the execution plan, or an empty string if no query was run
+     */
+    public String getPlan() {
+        return plan.toString();
+    }
+
     protected QueryResult execute(Column[] columns, Source source,
             Constraint constraint, Ordering[] orderings, long offset,
             long limit, int printIndentation) throws RepositoryException {
@@ -147,20 +198,48 @@ public class QueryEngine {
             return execute(columns, betterJoin, constraint, orderings, offset,
                     limit, printIndentation);
         }
-        JoinMerger merger = JoinMerger.getJoinMerger(join,
-                getColumnMap(columns, getSelectorNames(join)), evaluator,
-                qomFactory);
-        ConstraintSplitter splitter = new ConstraintSplitter(constraint,
-                qomFactory, merger.getLeftSelectors(),
-                merger.getRightSelectors(), join);
-        ConstraintSplitInfo csInfo = splitter.getConstraintSplitInfo();
-
-        logQueryAnalysis(csInfo, printIndentation);
+        Map<String, PropertyValue> columnMap =
+            getColumnMap(columns, getSelectorNames(join));
+        JoinMerger merger = JoinMerger.getJoinMerger(join, columnMap,
+                evaluator, qomFactory, session, maxMemoryRows);
+        ConstraintSplitInfo csInfo = split(merger, constraint, join);
 
         boolean isOuterJoin = JCR_JOIN_TYPE_LEFT_OUTER.equalsIgnoreCase(join
                 .getJoinType());
-        QueryResult result = execute(merger, csInfo, isOuterJoin,
+        String order = "";
+        if (!isOuterJoin && !csInfo.isMultiple()) {
+            // execute the more selective side of an inner join first, as
+            // its join values constrain the query of the other side
+            long left = estimate(csInfo.getSource().getLeft(),
+                    csInfo.getLeftConstraint());
+            long right = estimate(csInfo.getSource().getRight(),
+                    csInfo.getRightConstraint());
+            order = " estimated rows: left " + left + ", right " + right;
+            if (right < left) {
+                Join swapped = qomFactory.join(join.getRight(),
+                        join.getLeft(), JCR_JOIN_TYPE_INNER,
+                        join.getJoinCondition());
+                merger = JoinMerger.getJoinMerger(swapped, columnMap,
+                        evaluator, qomFactory, session, maxMemoryRows);
+                csInfo = split(merger, constraint, swapped);
+                order += ", sides swapped";
+            }
+        }
+        plan(printIndentation, "JOIN " + join.getJoinType() + " ON "
+                + join.getJoinCondition() + order);
+
+        logQueryAnalysis(csInfo, printIndentation);
+
+        // the merged rows are only collected if the result is returned as
+        // it is, so that it has an exact size
+        boolean lazy = (orderings != null && orderings.length > 0)
+                || offset > 0 || limit >= 0;
+        QueryResult result = execute(merger, csInfo, isOuterJoin, lazy,
                 printIndentation);
+        // keep the selector order of the query if the sides were swapped
+        result = new SimpleQueryResult(merger.getColumnNames(),
+                getSelectorNames(join).keySet().toArray(new String[0]),
+                result.getRows());
 
         long sort = System.currentTimeMillis();
         QueryResult sortedResult = sort(result, orderings, evaluator, offset,
@@ -171,29 +250,24 @@ public class QueryEngine {
     }
 
     protected QueryResult execute(JoinMerger merger,
-            ConstraintSplitInfo csInfo, boolean isOuterJoin,
+            ConstraintSplitInfo csInfo, boolean isOuterJoin, boolean lazy,
             int printIndentation) throws RepositoryException {
 
-        Comparator<Row> leftCo = new RowPathComparator(
-                merger.getLeftSelectors());
         long timeJoinLeftSide = System.currentTimeMillis();
 
         if (csInfo.isMultiple()) {
             log.debug("{} SQL2 JOIN execute: there are multiple inner splits.",
                     genString(printIndentation));
 
+            RowBuffer allRows = new RowBuffer(session, merger.getColumns(),
+                    evaluator, merger.getSelectorNames(), maxMemoryRows, true);
+
             // first branch
             long bTime = System.currentTimeMillis();
             QueryResult branch1 = execute(merger,
-                    csInfo.getLeftInnerConstraints(), isOuterJoin,
+                    csInfo.getLeftInnerConstraints(), isOuterJoin, true,
                     printIndentation + printIndentStep);
-            Set<Row> allRows = new TreeSet<Row>(new RowPathComparator(
-                    Arrays.asList(merger.getSelectorNames())));
-            RowIterator ri1 = branch1.getRows();
-            while (ri1.hasNext()) {
-                Row r = ri1.nextRow();
-                allRows.add(r);
-            }
+            allRows.addAll(branch1.getRows());
             log.debug("{} SQL2 JOIN executed first branch, took {} ms.",
                     genString(printIndentation), System.currentTimeMillis()
                             - bTime);
@@ -201,27 +275,25 @@ public class QueryEngine {
             // second branch
             bTime = System.currentTimeMillis();
             QueryResult branch2 = execute(merger,
-                    csInfo.getRightInnerConstraints(), isOuterJoin,
+                    csInfo.getRightInnerConstraints(), isOuterJoin, true,
                     printIndentation + printIndentStep);
-            RowIterator ri2 = branch2.getRows();
-            while (ri2.hasNext()) {
-                Row r = ri2.nextRow();
-                allRows.add(r);
-            }
+            allRows.addAll(branch2.getRows());
             log.debug("{} SQL2 JOIN executed second branch, took {} ms.",
                     genString(printIndentation), System.currentTimeMillis()
                             - bTime);
             return new SimpleQueryResult(merger.getColumnNames(),
-                    merger.getSelectorNames(), new RowIteratorAdapter(allRows));
+                    merger.getSelectorNames(), allRows.getRows());
         }
 
-        Set<Row> leftRows = buildLeftRowsJoin(csInfo, leftCo, printIndentation
+        Source leftSource = csInfo.getSource().getLeft();
+        RowBuffer leftRows = createRowBuffer(leftSource);
+        buildLeftRowsJoin(csInfo, leftRows, printIndentation
                 + printIndentStep);
         if (log.isDebugEnabled()) {
             timeJoinLeftSide = System.currentTimeMillis() - timeJoinLeftSide;
             log.debug(genString(printIndentation) + "SQL2 JOIN LEFT SIDE took "
                     + timeJoinLeftSide + " ms. fetched " + leftRows.size()
-                    + " rows.");
+                    + " rows" + (leftRows.isSpilled() ? " (spilled)." : "."));
         }
 
         // The join constraint information is split into:
@@ -234,7 +306,7 @@ public class QueryEngine {
         // this way, at merge time in case of an outer join we can tell if
         // it's a 'null' row, or a bad row -> one that must not be returned.
         // This way at the end we'll have:
-        // - rightRowsSet containing the 'ON' dataset
+        // - rightRows containing the 'ON' dataset
         // - excludingOuterJoinRowsSet: the 'ON' + 'WHERE' condition
         // dataset, or
         // NULL if there is no 'WHERE' condition
@@ -245,37 +317,138 @@ public class QueryEngine {
         Comparator<Row> rightCo = new RowPathComparator(
                 merger.getRightSelectors());
 
-        if (leftRows == null || leftRows.isEmpty()) {
-            return merger.merge(new RowIteratorAdapter((leftRows == null) ? Collections.emptySet() : leftRows),
-                    new RowIteratorAdapter(new TreeSet<Row>()), null, rightCo);
+        if (leftRows.isEmpty()) {
+            return merger.merge(leftRows.getRows(),
+                    new RowIteratorAdapter(Collections.emptySet()), null,
+                    rightCo, lazy);
         }
 
-        Set<Row> rightRows = buildRightRowsJoin(csInfo, rightConstraints,
-                isOuterJoin, rightCo, printIndentation + printIndentStep);
+        Source rightSource = csInfo.getSource().getRight();
+        // Look up the join values of the left rows in the index of the right
+        // side, unless there are so many values that reading the whole
+        // right side and hashing it in the merger is cheaper
+        boolean hashJoin = false;
+        if (rightConstraints.size() >= BATCH_SIZE) {
+            long estimate = estimate(rightSource,
+                    isOuterJoin ? null : csInfo.getRightConstraint());
+            hashJoin = estimate < 2L * rightConstraints.size();
+            plan(printIndentation, (hashJoin ? "HASH JOIN" : "INDEX LOOKUP")
+                    + " of " + rightConstraints.size()
+                    + " join values, estimated right rows " + estimate);
+        } else {
+            plan(printIndentation, "INDEX LOOKUP of "
+                    + rightConstraints.size() + " join values");
+        }
+        RowBuffer rightRows = createRowBuffer(rightSource);
+        if (hashJoin) {
+            buildRightRowsHash(csInfo, isOuterJoin, rightRows,
+                    printIndentation + printIndentStep);
+        } else {
+            buildRightRowsJoin(csInfo, rightConstraints, isOuterJoin,
+                    rightRows, printIndentation + printIndentStep);
+        }
 
         // this has to be initialized as null
         Set<Row> excludingOuterJoinRowsSet = null;
         if (isOuterJoin && csInfo.getRightConstraint() != null) {
-            excludingOuterJoinRowsSet = buildRightRowsJoin(csInfo,
-                    rightConstraints, false, rightCo, printIndentation
-                            + printIndentStep);
+            RowBuffer excludingRows = createRowBuffer(rightSource);
+            if (hashJoin) {
+                buildRightRowsHash(csInfo, false, excludingRows,
+                        printIndentation + printIndentStep);
+            } else {
+                buildRightRowsJoin(csInfo, rightConstraints, false,
+                        excludingRows, printIndentation + printIndentStep);
+            }
+            excludingOuterJoinRowsSet = new TreeSet<Row>(rightCo);
+            for (Row row : excludingRows) {
+                excludingOuterJoinRowsSet.add(row);
+            }
+            excludingRows.dispose();
         }
 
         if (log.isDebugEnabled()) {
             timeJoinRightSide = System.currentTimeMillis() - timeJoinRightSide;
             log.debug(genString(printIndentation)
                     + "SQL2 JOIN RIGHT SIDE took " + timeJoinRightSide
-                    + " ms. fetched " + rightRows.size() + " rows.");
+                    + " ms. fetched " + rightRows.size() + " rows"
+                    + (rightRows.isSpilled() ? " (spilled)." : "."));
         }
         // merge left with right datasets
-        return merger.merge(new RowIteratorAdapter(leftRows),
-                new RowIteratorAdapter(rightRows), excludingOuterJoinRowsSet,
-                rightCo);
+        return merger.merge(leftRows.getRows(), rightRows.getRows(),
+                excludingOuterJoinRowsSet, rightCo, lazy);
 
     }
 
-    private Set<Row> buildLeftRowsJoin(ConstraintSplitInfo csi,
-            Comparator<Row> comparator, int printIndentation)
+    /**
+     * Splits the given constraint between the sides of the given join.
+     */
+    private ConstraintSplitInfo split(JoinMerger merger,
+            Constraint constraint, Join join) throws RepositoryException {
+        ConstraintSplitter splitter = new ConstraintSplitter(constraint,
+                qomFactory, merger.getLeftSelectors(),
+                merger.getRightSelectors(), join);
+        return splitter.getConstraintSplitInfo();
+    }
+
+    /**
+     * Estimates the number of rows of the given source with the given
+     * constraint. The rows of an inner join are estimated as the rows of
+     * its more selective side, the rows of an outer join as the rows of
+     * its outer side.
+     */
+    private long estimate(Source source, Constraint constraint)
+            throws RepositoryException {
+        if (source instanceof Selector) {
+            try {
+                return lqf.estimate((Selector) source, constraint);
+            } catch (IOException e) {
+                throw new RepositoryException(
+                        "Failed to access the query index", e);
+            }
+        } else if (source instanceof Join) {
+            Join join = (Join) source;
+            ConstraintSplitter splitter = new ConstraintSplitter(constraint,
+                    qomFactory, getSelectorNames(join.getLeft()).keySet(),
+                    getSelectorNames(join.getRight()).keySet(), join);
+            return estimate(splitter.getConstraintSplitInfo(),
+                    join.getJoinType());
+        } else {
+            throw new UnsupportedRepositoryOperationException(
+                    "Unknown source type: " + source);
+        }
+    }
+
+    private long estimate(ConstraintSplitInfo csi, String joinType)
+            throws RepositoryException {
+        if (csi.isMultiple()) {
+            return estimate(csi.getLeftInnerConstraints(), joinType)
+                    + estimate(csi.getRightInnerConstraints(), joinType);
+        }
+        Join join = csi.getSource();
+        if (JCR_JOIN_TYPE_LEFT_OUTER.equalsIgnoreCase(joinType)) {
+            return estimate(join.getLeft(), csi.getLeftConstraint());
+        } else if (JCR_JOIN_TYPE_RIGHT_OUTER.equalsIgnoreCase(joinType)) {
+            return estimate(join.getRight(), csi.getRightConstraint());
+        } else {
+            return Math.min(
+                    estimate(join.getLeft(), csi.getLeftConstraint()),
+                    estimate(join.getRight(), csi.getRightConstraint()));
+        }
+    }
+
+    /**
+     * Creates a distinct row buffer for the rows of the given source.
+     */
+    private RowBuffer createRowBuffer(Source source)
+            throws RepositoryException {
+        Map<String, NodeType> selectors = getSelectorNames(source);
+        return new RowBuffer(session, getColumnMap(null, selectors),
+                evaluator, selectors.keySet().toArray(
+                        new String[selectors.size()]), maxMemoryRows, true);
+    }
+
+    private void buildLeftRowsJoin(ConstraintSplitInfo csi,
+            RowBuffer leftRows, int printIndentation)
             throws RepositoryException {
 
         if (csi.isMultiple()) {
@@ -283,21 +456,16 @@ public class QueryEngine {
                 log.debug(genString(printIndentation)
                         + "SQL2 JOIN LEFT SIDE there are multiple inner splits.");
             }
-            Set<Row> leftRows = new TreeSet<Row>(comparator);
-            leftRows.addAll(buildLeftRowsJoin(csi.getLeftInnerConstraints(),
-                    comparator, printIndentation + printIndentStep));
-            leftRows.addAll(buildLeftRowsJoin(csi.getRightInnerConstraints(),
-                    comparator, printIndentation + printIndentStep));
-            return leftRows;
+            buildLeftRowsJoin(csi.getLeftInnerConstraints(), leftRows,
+                    printIndentation + printIndentStep);
+            buildLeftRowsJoin(csi.getRightInnerConstraints(), leftRows,
+                    printIndentation + printIndentStep);
+            return;
         }
 
-        Set<Row> leftRows = new TreeSet<Row>(comparator);
         QueryResult leftResult = execute(null, csi.getSource().getLeft(),
                 csi.getLeftConstraint(), null, 0, -1, printIndentation);
-        for (Row row : JcrUtils.getRows(leftResult)) {
-            leftRows.add(row);
-        }
-        return leftRows;
+        leftRows.addAll(leftResult.getRows());
     }
 
     /**
@@ -306,16 +474,16 @@ public class QueryEngine {
      * @param rightConstraints
      *            contains 'ON' constraints
      * @param ignoreWhereConstraints
-     * @param comparator
-     *            used to merge similar rows together
+     * @param rightRows
+     *            the buffer that receives the rows, merges similar rows
+     *            together
      * @param printIndentation
      *            used in logging
-     * @return the right-side dataset of the join operation
      * @throws RepositoryException
      */
-    private Set<Row> buildRightRowsJoin(ConstraintSplitInfo csi,
+    private void buildRightRowsJoin(ConstraintSplitInfo csi,
             List<Constraint> rightConstraints, boolean ignoreWhereConstraints,
-            Comparator<Row> comparator, int printIndentation)
+            RowBuffer rightRows, int printIndentation)
             throws RepositoryException {
 
         if (csi.isMultiple()) {
@@ -323,18 +491,16 @@ public class QueryEngine {
                 log.debug(genString(printIndentation)
                         + "SQL2 JOIN RIGHT SIDE there are multiple inner splits.");
             }
-            Set<Row> rightRows = new TreeSet<Row>(comparator);
-            rightRows.addAll(buildRightRowsJoin(csi.getLeftInnerConstraints(),
-                    rightConstraints, ignoreWhereConstraints, comparator,
-                    printIndentation + printIndentStep));
-            rightRows.addAll(buildRightRowsJoin(csi.getRightInnerConstraints(),
-                    rightConstraints, ignoreWhereConstraints, comparator,
-                    printIndentation + printIndentStep));
-            return rightRows;
-        }
-
-        if (rightConstraints.size() < 500) {
-            Set<Row> rightRows = new TreeSet<Row>(comparator);
+            buildRightRowsJoin(csi.getLeftInnerConstraints(),
+                    rightConstraints, ignoreWhereConstraints, rightRows,
+                    printIndentation + printIndentStep);
+            buildRightRowsJoin(csi.getRightInnerConstraints(),
+                    rightConstraints, ignoreWhereConstraints, rightRows,
+                    printIndentation + printIndentStep);
+            return;
+        }
+
+        if (rightConstraints.size() < BATCH_SIZE) {
             List<Constraint> localRightContraints = rightConstraints;
             Constraint rightConstraint = Constraints.and(qomFactory,
                     Constraints.or(qomFactory, localRightContraints),
@@ -345,21 +511,18 @@ public class QueryEngine {
             }
             QueryResult rightResult = execute(null, csi.getSource().getRight(),
                     rightConstraint, null, 0, -1, printIndentation);
-            for (Row row : JcrUtils.getRows(rightResult)) {
-                rightRows.add(row);
-            }
-            return rightRows;
+            rightRows.addAll(rightResult.getRows());
+            return;
         }
 
         // the 'batch by 500' approach
-        Set<Row> rightRows = new TreeSet<Row>(comparator);
-        for (int i = 0; i < rightConstraints.size(); i += 500) {
+        for (int i = 0; i < rightConstraints.size(); i += BATCH_SIZE) {
             if (log.isDebugEnabled()) {
                 log.debug(genString(printIndentation)
                         + "SQL2 JOIN RIGHT SIDE executing batch # " + i + ".");
             }
             List<Constraint> localRightContraints = rightConstraints.subList(i,
-                    Math.min(i + 500, rightConstraints.size()));
+                    Math.min(i + BATCH_SIZE, rightConstraints.size()));
             Constraint rightConstraint = Constraints.and(qomFactory,
                     Constraints.or(qomFactory, localRightContraints),
                     csi.getRightConstraint());
@@ -370,11 +533,41 @@ public class QueryEngine {
 
             QueryResult rightResult = execute(null, csi.getSource().getRight(),
                     rightConstraint, null, 0, -1, printIndentation);
-            for (Row row : JcrUtils.getRows(rightResult)) {
-                rightRows.add(row);
-            }
+            rightRows.addAll(rightResult.getRows());
         }
-        return rightRows;
+    }
+
+    /**
+     * Reads all rows of the right side of a join that match its 'WHERE'
+     * constraints, for the merger to match them with the left rows by
+     * their join values.
+     */
+    private void buildRightRowsHash(ConstraintSplitInfo csi,
+            boolean ignoreWhereConstraints, RowBuffer rightRows,
+            int printIndentation) throws RepositoryException {
+        if (csi.isMultiple()) {
+            buildRightRowsHash(csi.getLeftInnerConstraints(),
+                    ignoreWhereConstraints, rightRows, printIndentation);
+            buildRightRowsHash(csi.getRightInnerConstraints(),
+                    ignoreWhereConstraints, rightRows, printIndentation);
+            return;
+        }
+        Constraint rightConstraint = null;
+        if (!ignoreWhereConstraints) {
+            rightConstraint = csi.getRightConstraint();
+        }
+        QueryResult rightResult = execute(null, csi.getSource().getRight(),
+                rightConstraint, null, 0, -1, printIndentation);
+        rightRows.addAll(rightResult.getRows());
+    }
+
+    /**
+     * Adds a step to the execution plan.
+     */
+    private void plan(int printIndentation, String step) {
+        plan.append(genString(printIndentation));
+        plan.append(step);
+        plan.append(IOUtils.LINE_SEPARATOR);
     }
 
     private static String genString(int len) {
@@ -462,8 +655,13 @@ public class QueryEngine {
         boolean externalSort = !NATIVE_SORT;
         RowIterator rows = null;
         try {
-            rows = new RowIteratorAdapter(lqf.execute(columnMap, selector,
-                    constraint, sort, externalSort, offset, limit));
+            List<Row> list = lqf.execute(columnMap, selector, constraint,
+                    sort, externalSort, offset, limit);
+            plan(printIndentation, "SELECT " + selector
+                    + (constraint != null ? " WHERE " + constraint : "")
+                    + " fetched " + list.size() + " rows in "
+                    + (System.currentTimeMillis() - time) + " ms");
+            rows = new RowIteratorAdapter(list);
         } catch (IOException e) {
             throw new RepositoryException("Failed to access the query index", e);
         } finally {
@@ -595,7 +793,10 @@ public class QueryEngine {
      * Sorts the given query results according to the given QOM orderings. If
      * one or more orderings have been specified, this method will iterate
      * through the entire original result set, order the collected rows, and
-     * return a new result set based on the sorted collection of rows.
+     * return a new result set based on the sorted collection of rows. If a
+     * limit is given as well, only the first <code>offset + limit</code> rows
+     * are kept while iterating. Without orderings, the offset and limit are
+     * applied while the returned result is iterated.
      * 
      * @param result
      *            original query results
@@ -612,17 +813,20 @@ public class QueryEngine {
     protected static QueryResult sort(QueryResult result,
             final Ordering[] orderings, OperandEvaluator evaluator,
             long offset, long limit) throws RepositoryException {
-        if ((orderings != null && orderings.length > 0) || offset != 0
-                || limit >= 0) {
-            List<Row> rows = new ArrayList<Row>();
-
-            RowIterator iterator = result.getRows();
-            while (iterator.hasNext()) {
-                rows.add(iterator.nextRow());
-            }
-
-            if (orderings != null && orderings.length > 0) {
-                Collections.sort(rows, new RowComparator(orderings, evaluator));
+        if (orderings != null && orderings.length > 0) {
+            Comparator<Row> comparator =
+                new RowComparator(orderings, evaluator);
+            List<Row> rows;
+            if (limit >= 0 && offset + limit < Integer.MAX_VALUE) {
+                rows = top(result.getRows(), comparator,
+                        (int) (Math.max(offset, 0) + limit));
+            } else {
+                rows = new ArrayList<Row>();
+                RowIterator iterator = result.getRows();
+                while (iterator.hasNext()) {
+                    rows.add(iterator.nextRow());
+                }
+                Collections.sort(rows, comparator);
             }
 
             if (offset > 0) {
@@ -636,9 +840,93 @@ public class QueryEngine {
 
             return new SimpleQueryResult(result.getColumnNames(),
                     result.getSelectorNames(), new RowIteratorAdapter(rows));
+        } else if (offset > 0 || limit >= 0) {
+            final RowIterator iterator = result.getRows();
+            for (long i = 0; i < offset && iterator.hasNext(); i++) {
+                iterator.nextRow();
+            }
+            final long max = limit;
+            return new SimpleQueryResult(result.getColumnNames(),
+                    result.getSelectorNames(), new RowIteratorAdapter(
+                            new AbstractLazyIterator<Row>() {
+
+                private long count = 0;
+
+                @Override
+                protected Row getNext() {
+                    if ((max < 0 || count < max) && iterator.hasNext()) {
+                        count++;
+                        return iterator.nextRow();
+                    }
+                    return null;
+                }
+            }));
         } else {
             return result;
         }
     }
 
+    /**
+     * Returns the first <code>n</code> rows of the given rows in the order
+     * of the given comparator. Rows that compare equal keep their order.
+     * Only <code>n</code> rows are kept in memory while iterating.
+     *
+     * @param iterator the rows
+     * @param comparator the order of the rows
+     * @param n the number of rows to return
+     * @return the first <code>n</code> rows, sorted
+     */
+    private static List<Row> top(RowIterator iterator,
+            final Comparator<Row> comparator, int n) {
+        if (n == 0) {
+            return Collections.emptyList();
+        }
+        // the head of the queue is the last of the rows kept so far
+        PriorityQueue<RankedRow> queue = new PriorityQueue<RankedRow>(
+                Math.min(n, 1024), new Comparator<RankedRow>() {
+                    public int compare(RankedRow a, RankedRow b) {
+                        return b.compareTo(a, comparator);
+                    }
+                });
+        long rank = 0;
+        while (iterator.hasNext()) {
+            RankedRow row = new RankedRow(iterator.nextRow(), rank++);
+            if (queue.size() < n) {
+                queue.add(row);
+            } else if (row.compareTo(queue.peek(), comparator) < 0) {
+                queue.poll();
+                queue.add(row);
+            }
+        }
+        Row[] rows = new Row[queue.size()];
+        for (int i = rows.length - 1; i >= 0; i--) {
+            rows[i] = queue.poll().row;
+        }
+        return Arrays.asList(rows);
+    }
+
+    /**
+     * A row with its position in the unsorted result.
+     */
+    private static class RankedRow {
+
+        private final Row row;
+
+        private final long rank;
+
+        private RankedRow(Row row, long rank) {
+            this.row = row;
+            this.rank = rank;
+        }
+
+        private int compareTo(RankedRow other, Comparator<Row> comparator) {
+            int c = comparator.compare(row, other.row);
+            if (c == 0) {
+                c = rank < other.rank ? -1 : (rank == other.rank ? 0 : 1);
+            }
+            return c;
+        }
+
+    }
+
 }
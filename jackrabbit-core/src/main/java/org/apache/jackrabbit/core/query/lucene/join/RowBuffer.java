@@ -0,0 +1,673 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.query.lucene.join;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.Row;
+import javax.jcr.query.RowIterator;
+import javax.jcr.query.qom.PropertyValue;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.jackrabbit.commons.iterator.AbstractLazyIterator;
+import org.apache.jackrabbit.commons.iterator.RowIteratorAdapter;
+import org.apache.jackrabbit.commons.query.qom.OperandEvaluator;
+import org.apache.jackrabbit.util.TransientFileFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A row set of a join that keeps a limited number of rows in memory. Rows
+ * added beyond that limit are written to a temporary file as the
+ * identifiers, paths and scores of their selector nodes, and the nodes are
+ * resolved again by their identifiers when the rows are read back, so that
+ * nodes that have been moved or reordered in the meantime are still found.
+ * Rows can be added until the buffer is read for the first time, and can
+ * then be read any number of times.
+ * <p>
+ * A distinct buffer ignores rows whose selector nodes have the same paths
+ * as a row added before, like a set ordered by {@link RowPathComparator}.
+ * Rows are checked against the keys of the rows in memory when they are
+ * added, and the spilled rows are checked against each other when the
+ * buffer is read for the first time, by sorting their keys in runs of
+ * bounded size on disk. Only one bit per spilled row is kept in memory for
+ * this.
+ */
+class RowBuffer implements Iterable<Row> {
+
+    /**
+     * The logger instance for this class
+     */
+    private static final Logger log = LoggerFactory.getLogger(RowBuffer.class);
+
+    /**
+     * The minimum number of keys sorted in memory at a time when the
+     * duplicates of the spilled rows are removed.
+     */
+    private static final int MIN_RUN_SIZE = 1024;
+
+    private final Session session;
+
+    private final Map<String, PropertyValue> columns;
+
+    private final OperandEvaluator evaluator;
+
+    private final String[] selectorNames;
+
+    /**
+     * The number of rows kept in memory, or a negative value to keep all
+     * rows in memory.
+     */
+    private final int maxMemoryRows;
+
+    /**
+     * The path keys of the rows in memory, or <code>null</code> if the
+     * buffer is not distinct or has already been read.
+     */
+    private Set<String> keys;
+
+    private final boolean distinct;
+
+    private final List<Row> memoryRows = new ArrayList<Row>();
+
+    private int size;
+
+    /**
+     * The number of rows written to the temporary file.
+     */
+    private int spilledRows;
+
+    /**
+     * The spilled rows that duplicate an earlier spilled row, by their
+     * position in the temporary file, or <code>null</code> if there are
+     * none.
+     */
+    private BitSet duplicates;
+
+    /**
+     * The temporary file with the spilled rows, or <code>null</code> if no
+     * row was spilled.
+     */
+    private File file;
+
+    /**
+     * The output of the temporary file while rows are added.
+     */
+    private DataOutputStream out;
+
+    /**
+     * Set when the buffer is read for the first time.
+     */
+    private boolean sealed;
+
+    /**
+     * The inputs of the temporary file of the iterators that have not been
+     * read to the end, closed when the buffer is disposed.
+     */
+    private final Set<DataInputStream> inputs = new HashSet<DataInputStream>();
+
+    /**
+     * Creates a new row buffer.
+     *
+     * @param session       the session that executes the query.
+     * @param columns       the columns of the rows.
+     * @param evaluator     the operand evaluator of the rows.
+     * @param selectorNames the selectors of the rows.
+     * @param maxMemoryRows the number of rows kept in memory, or a negative
+     *                      value to keep all rows in memory.
+     * @param distinct      whether duplicate rows are ignored.
+     */
+    RowBuffer(Session session, Map<String, PropertyValue> columns,
+            OperandEvaluator evaluator, String[] selectorNames,
+            int maxMemoryRows, boolean distinct) {
+        this.session = session;
+        this.columns = columns;
+        this.evaluator = evaluator;
+        this.selectorNames = selectorNames;
+        this.maxMemoryRows = maxMemoryRows;
+        this.distinct = distinct;
+        if (distinct) {
+            keys = new HashSet<String>();
+        }
+    }
+
+    /**
+     * Adds a row to this buffer.
+     *
+     * @param row the row.
+     * @return <code>false</code> if the buffer is distinct and already
+     *         contains the row in memory, <code>true</code> otherwise.
+     *         Duplicates of spilled rows are only removed when the buffer
+     *         is read.
+     * @throws RepositoryException if the row cannot be read or written.
+     */
+    boolean add(Row row) throws RepositoryException {
+        if (sealed) {
+            throw new IllegalStateException("Row buffer has already been read");
+        }
+        String key = null;
+        if (keys != null) {
+            key = getKey(row);
+            if (keys.contains(key)) {
+                return false;
+            }
+        }
+        if (maxMemoryRows < 0 || memoryRows.size() < maxMemoryRows) {
+            memoryRows.add(row);
+            if (key != null) {
+                keys.add(key);
+            }
+        } else {
+            try {
+                write(row);
+            } catch (IOException e) {
+                throw new RepositoryException(
+                        "Failed to write join rows to a temporary file", e);
+            }
+            spilledRows++;
+        }
+        size++;
+        return true;
+    }
+
+    /**
+     * Adds all rows of the given iterator to this buffer.
+     *
+     * @param rows the rows.
+     * @throws RepositoryException if a row cannot be read or written.
+     */
+    void addAll(RowIterator rows) throws RepositoryException {
+        while (rows.hasNext()) {
+            add(rows.nextRow());
+        }
+    }
+
+    /**
+     * @return the number of rows in this buffer. Until the buffer is read,
+     *         this includes the duplicates of spilled rows.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return <code>true</code> if this buffer does not contain any rows.
+     */
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return <code>true</code> if rows of this buffer have been written to
+     *         a temporary file.
+     */
+    boolean isSpilled() {
+        return file != null;
+    }
+
+    /**
+     * @return the rows of this buffer, with their exact number as size if
+     *         no row has been spilled.
+     */
+    RowIterator getRows() {
+        seal();
+        if (file == null) {
+            return new RowIteratorAdapter(memoryRows);
+        }
+        return new RowIteratorAdapter(iterator());
+    }
+
+    /**
+     * Returns the rows of this buffer. Rows are added in memory first, so
+     * they are returned in the order they were added. Spilled rows whose
+     * nodes do not exist anymore are skipped. The temporary file is open
+     * while the spilled rows are read, until the end of the rows is reached
+     * or the buffer is disposed.
+     *
+     * @return the rows of this buffer.
+     */
+    public Iterator<Row> iterator() {
+        seal();
+        final Iterator<Row> memory = memoryRows.iterator();
+        if (file == null) {
+            return memory;
+        }
+        return new AbstractLazyIterator<Row>() {
+
+            private DataInputStream in;
+
+            private int position;
+
+            private boolean done;
+
+            @Override
+            protected Row getNext() {
+                if (memory.hasNext()) {
+                    return memory.next();
+                }
+                while (!done) {
+                    try {
+                        if (in == null) {
+                            in = open();
+                            inputs.add(in);
+                        }
+                        if (position == spilledRows) {
+                            close();
+                        } else if (duplicates != null
+                                && duplicates.get(position++)) {
+                            readPaths(in, new String[selectorNames.length],
+                                    new double[selectorNames.length]);
+                        } else {
+                            position++;
+                            return read(in);
+                        }
+                    } catch (ItemNotFoundException e) {
+                        log.debug("Skipping removed join row: {}", e.getMessage());
+                    } catch (IOException e) {
+                        log.warn("Unable to read join rows from " + file, e);
+                        close();
+                    } catch (RepositoryException e) {
+                        log.warn("Unable to read join rows from " + file, e);
+                        close();
+                    }
+                }
+                return null;
+            }
+
+            private void close() {
+                if (in != null) {
+                    inputs.remove(in);
+                    IOUtils.closeQuietly(in);
+                }
+                done = true;
+            }
+        };
+    }
+
+    /**
+     * Closes the iterators of this buffer that have not been read to the end
+     * and deletes the temporary file of this buffer, if any. The buffer must
+     * not be used anymore afterwards. Files of buffers that are not disposed
+     * are deleted when the buffer is garbage collected.
+     */
+    void dispose() {
+        for (DataInputStream in : inputs) {
+            IOUtils.closeQuietly(in);
+        }
+        inputs.clear();
+        IOUtils.closeQuietly(out);
+        out = null;
+        if (file != null) {
+            file.delete();
+        }
+        memoryRows.clear();
+        keys = null;
+        duplicates = null;
+    }
+
+    //-------------------------------------------------------------< internal >
+
+    private void seal() {
+        if (!sealed) {
+            sealed = true;
+            keys = null;
+            if (out != null) {
+                try {
+                    out.close();
+                    if (distinct) {
+                        findDuplicates();
+                    }
+                } catch (IOException e) {
+                    log.warn("Unable to remove duplicate join rows from "
+                            + file, e);
+                } finally {
+                    out = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the spilled rows that duplicate an earlier spilled row. The keys
+     * of the spilled rows are sorted together with their positions in runs
+     * that are written to temporary files, and the runs are merged. The
+     * first key of each group of equal keys then has the lowest position,
+     * the others are duplicates.
+     */
+    private void findDuplicates() throws IOException {
+        int runSize = Math.max(maxMemoryRows, MIN_RUN_SIZE);
+        List<File> runs = new ArrayList<File>();
+        List<KeyEntry> run = new ArrayList<KeyEntry>();
+        List<RunReader> readers = new ArrayList<RunReader>();
+        DataInputStream in = open();
+        try {
+            String[] ids = new String[selectorNames.length];
+            double[] scores = new double[selectorNames.length];
+            for (int i = 0; i < spilledRows; i++) {
+                run.add(new KeyEntry(getKey(readPaths(in, ids, scores)), i));
+                if (run.size() == runSize && i + 1 < spilledRows) {
+                    runs.add(writeRun(run));
+                    run.clear();
+                }
+            }
+            IOUtils.closeQuietly(in);
+            if (runs.isEmpty()) {
+                Collections.sort(run);
+                String previous = null;
+                for (KeyEntry entry : run) {
+                    if (entry.key.equals(previous)) {
+                        addDuplicate(entry.position);
+                    }
+                    previous = entry.key;
+                }
+            } else {
+                runs.add(writeRun(run));
+                run.clear();
+                PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>();
+                for (File runFile : runs) {
+                    RunReader reader = new RunReader(runFile);
+                    readers.add(reader);
+                    if (reader.next()) {
+                        queue.add(reader);
+                    }
+                }
+                String previous = null;
+                while (!queue.isEmpty()) {
+                    RunReader reader = queue.poll();
+                    if (reader.entry.key.equals(previous)) {
+                        addDuplicate(reader.entry.position);
+                    }
+                    previous = reader.entry.key;
+                    if (reader.next()) {
+                        queue.add(reader);
+                    }
+                }
+            }
+        } finally {
+            IOUtils.closeQuietly(in);
+            for (RunReader reader : readers) {
+                reader.close();
+            }
+            for (File runFile : runs) {
+                runFile.delete();
+            }
+        }
+        if (duplicates != null) {
+            int count = duplicates.cardinality();
+            log.debug("Removed {} duplicate join rows from {}", count, file);
+            size -= count;
+        }
+    }
+
+    private void addDuplicate(int position) {
+        if (duplicates == null) {
+            duplicates = new BitSet(spilledRows);
+        }
+        duplicates.set(position);
+    }
+
+    private File writeRun(List<KeyEntry> run) throws IOException {
+        Collections.sort(run);
+        File runFile = TransientFileFactory.getInstance().createTransientFile(
+                "join", ".keys", null);
+        DataOutputStream runOut = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(runFile)));
+        try {
+            for (KeyEntry entry : run) {
+                // the key of several selectors may exceed writeUTF's limit
+                byte[] key = entry.key.getBytes("UTF-8");
+                runOut.writeInt(key.length);
+                runOut.write(key);
+                runOut.writeInt(entry.position);
+            }
+        } finally {
+            runOut.close();
+        }
+        return runFile;
+    }
+
+    private DataInputStream open() throws IOException {
+        return new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+    }
+
+    private String getKey(Row row) throws RepositoryException {
+        String[] paths = new String[selectorNames.length];
+        for (int i = 0; i < selectorNames.length; i++) {
+            paths[i] = row.getPath(selectorNames[i]);
+        }
+        return getKey(paths);
+    }
+
+    private static String getKey(String[] paths) {
+        if (paths.length == 1) {
+            return (paths[0] != null) ? paths[0] : "";
+        }
+        StringBuilder key = new StringBuilder();
+        for (String path : paths) {
+            if (path != null) {
+                key.append(path);
+            }
+            // paths cannot contain a tab
+            key.append('\t');
+        }
+        return key.toString();
+    }
+
+    private void write(Row row) throws IOException, RepositoryException {
+        if (out == null) {
+            file = TransientFileFactory.getInstance().createTransientFile(
+                    "join", ".rows", null);
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(file)));
+            log.debug("Writing join rows to {}", file);
+        }
+        for (String selector : selectorNames) {
+            Node node = row.getNode(selector);
+            if (node != null) {
+                out.writeBoolean(true);
+                out.writeUTF(node.getPath());
+                out.writeUTF(node.getIdentifier());
+                out.writeDouble(row.getScore(selector));
+            } else {
+                out.writeBoolean(false);
+            }
+        }
+    }
+
+    /**
+     * Reads the next spilled row. The paths the nodes had when the row was
+     * added are the keys of distinct buffers, the identifiers are used to
+     * resolve the nodes again.
+     *
+     * @param in     the input of the temporary file.
+     * @param ids    the node identifiers, set by this method.
+     * @param scores the scores, set by this method.
+     * @return the paths, <code>null</code> for selectors without a node.
+     * @throws IOException if the row cannot be read.
+     */
+    private String[] readPaths(DataInputStream in, String[] ids,
+            double[] scores) throws IOException {
+        String[] paths = new String[selectorNames.length];
+        for (int i = 0; i < selectorNames.length; i++) {
+            if (in.readBoolean()) {
+                paths[i] = in.readUTF();
+                ids[i] = in.readUTF();
+                scores[i] = in.readDouble();
+            } else {
+                ids[i] = null;
+            }
+        }
+        return paths;
+    }
+
+    private Row read(DataInputStream in)
+            throws IOException, RepositoryException {
+        Node[] nodes = new Node[selectorNames.length];
+        String[] ids = new String[selectorNames.length];
+        double[] scores = new double[selectorNames.length];
+        // read the complete row before resolving any node
+        readPaths(in, ids, scores);
+        String missing = null;
+        for (int i = 0; i < selectorNames.length; i++) {
+            if (ids[i] != null) {
+                try {
+                    nodes[i] = session.getNodeByIdentifier(ids[i]);
+                } catch (ItemNotFoundException e) {
+                    missing = ids[i];
+                }
+            }
+        }
+        if (missing != null) {
+            throw new ItemNotFoundException(missing);
+        }
+        if (selectorNames.length == 1) {
+            return new SelectorRow(
+                    columns, evaluator, selectorNames[0], nodes[0], scores[0]);
+        } else {
+            return new BufferedRow(columns, evaluator, nodes, scores);
+        }
+    }
+
+    /**
+     * The key of a spilled row and its position in the temporary file.
+     */
+    private static class KeyEntry implements Comparable<KeyEntry> {
+
+        private final String key;
+
+        private final int position;
+
+        private KeyEntry(String key, int position) {
+            this.key = key;
+            this.position = position;
+        }
+
+        public int compareTo(KeyEntry o) {
+            int c = key.compareTo(o.key);
+            if (c != 0) {
+                return c;
+            }
+            return (position < o.position) ? -1
+                    : ((position == o.position) ? 0 : 1);
+        }
+
+    }
+
+    /**
+     * Reads the sorted key entries of a run.
+     */
+    private static class RunReader implements Comparable<RunReader> {
+
+        private final DataInputStream in;
+
+        private KeyEntry entry;
+
+        private RunReader(File file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+        }
+
+        private boolean next() throws IOException {
+            try {
+                byte[] key = new byte[in.readInt()];
+                in.readFully(key);
+                entry = new KeyEntry(new String(key, "UTF-8"), in.readInt());
+                return true;
+            } catch (EOFException e) {
+                entry = null;
+                return false;
+            }
+        }
+
+        private void close() {
+            IOUtils.closeQuietly(in);
+        }
+
+        public int compareTo(RunReader o) {
+            return entry.compareTo(o.entry);
+        }
+
+    }
+
+    /**
+     * A row with more than one selector read back from the temporary file.
+     */
+    private class BufferedRow extends AbstractRow {
+
+        private final Node[] nodes;
+
+        private final double[] scores;
+
+        private BufferedRow(
+                Map<String, PropertyValue> columns, OperandEvaluator evaluator,
+                Node[] nodes, double[] scores) {
+            super(columns, evaluator);
+            this.nodes = nodes;
+            this.scores = scores;
+        }
+
+        public Node getNode() throws RepositoryException {
+            throw new RepositoryException();
+        }
+
+        public Node getNode(String selectorName) throws RepositoryException {
+            return nodes[getIndex(selectorName)];
+        }
+
+        public double getScore() throws RepositoryException {
+            throw new RepositoryException();
+        }
+
+        public double getScore(String selectorName) throws RepositoryException {
+            return scores[getIndex(selectorName)];
+        }
+
+        private int getIndex(String selectorName) throws RepositoryException {
+            for (int i = 0; i < selectorNames.length; i++) {
+                if (selectorNames[i].equals(selectorName)) {
+                    return i;
+                }
+            }
+            throw new RepositoryException(
+                    "Selector " + selectorName + " is not included in this row");
+        }
+
+    }
+
+}
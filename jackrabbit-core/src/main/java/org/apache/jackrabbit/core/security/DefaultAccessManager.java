@@ -22,10 +22,12 @@ import org.apache.jackrabbit.commons.iterator.AccessControlPolicyIteratorAdapter
 import org.apache.jackrabbit.core.HierarchyManager;
 import org.apache.jackrabbit.core.SessionImpl;
 import org.apache.jackrabbit.core.id.ItemId;
+import org.apache.jackrabbit.core.id.NodeId;
 import org.apache.jackrabbit.core.security.authorization.AccessControlEditor;
 import org.apache.jackrabbit.core.security.authorization.AccessControlProvider;
 import org.apache.jackrabbit.core.security.authorization.CompiledPermissions;
 import org.apache.jackrabbit.core.security.authorization.Permission;
+import org.apache.jackrabbit.core.security.authorization.SubtreeReadPermissions;
 import org.apache.jackrabbit.core.security.authorization.WorkspaceAccessManager;
 import org.apache.jackrabbit.spi.Name;
 import org.apache.jackrabbit.spi.Path;
@@ -50,6 +52,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -74,7 +77,8 @@ import java.util.Set;
  * @see AccessManager
  * @see javax.jcr.security.AccessControlManager
  */
-public class DefaultAccessManager extends AbstractAccessControlManager implements AccessManager {
+public class DefaultAccessManager extends AbstractAccessControlManager
+        implements AccessManager, SubtreeReadPermissions {
 
     private static final Logger log = LoggerFactory.getLogger(DefaultAccessManager.class);
 
@@ -274,6 +278,21 @@ public class DefaultAccessManager extends AbstractAccessControlManager implement
         return wspAccess.canAccess(workspaceName);
     }
 
+    //-------------------------------------------< SubtreeReadPermissions >---
+    /**
+     * @see SubtreeReadPermissions#getSubtreeReadPermissions()
+     */
+    public Map<NodeId, Boolean> getSubtreeReadPermissions() throws RepositoryException {
+        checkInitialized();
+        if (compiledPermissions.canReadAll()) {
+            return Collections.emptyMap();
+        } else if (compiledPermissions instanceof SubtreeReadPermissions) {
+            return ((SubtreeReadPermissions) compiledPermissions).getSubtreeReadPermissions();
+        } else {
+            return null;
+        }
+    }
+
     //-----------------------------------------------< AccessControlManager >---
     /**
      * @see javax.jcr.security.AccessControlManager#hasPrivileges(String, Privilege[])
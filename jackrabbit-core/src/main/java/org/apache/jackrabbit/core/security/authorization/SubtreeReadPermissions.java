@@ -0,0 +1,49 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.security.authorization;
+
+import java.util.Map;
+
+import javax.jcr.RepositoryException;
+
+import org.apache.jackrabbit.core.id.NodeId;
+
+/**
+ * <code>SubtreeReadPermissions</code> is implemented by permission
+ * evaluations that can express the read permission of a workspace as the
+ * read permission of its access controlled nodes. The query handler uses
+ * this to exclude subtrees that cannot be read before the matching nodes
+ * are loaded.
+ */
+public interface SubtreeReadPermissions {
+
+    /**
+     * Returns the access controlled nodes of the workspace mapped to
+     * <code>false</code> if neither the node nor any of its descendants can
+     * be read, except for descendants below another access controlled node.
+     * A node that is not access controlled has the read permission of its
+     * nearest access controlled ancestor-or-self. The read permission of
+     * nodes without access controlled ancestor is unknown.
+     *
+     * @return the read permissions of the access controlled nodes, or
+     *         <code>null</code> if the read permissions cannot be expressed
+     *         this way or are not available yet.
+     * @throws RepositoryException if an error occurs.
+     */
+    Map<NodeId, Boolean> getSubtreeReadPermissions() throws RepositoryException;
+
+}
@@ -33,6 +33,7 @@ import org.apache.jackrabbit.core.security.authorization.Permission;
 import org.apache.jackrabbit.core.security.authorization.PrivilegeBits;
 import org.apache.jackrabbit.core.security.authorization.PrivilegeManagerImpl;
 import org.apache.jackrabbit.core.security.authorization.PrivilegeRegistry;
+import org.apache.jackrabbit.core.security.authorization.SubtreeReadPermissions;
 import org.apache.jackrabbit.spi.Name;
 import org.apache.jackrabbit.spi.Path;
 import org.apache.jackrabbit.util.Text;
@@ -43,6 +44,9 @@ import javax.jcr.ItemNotFoundException;
 import javax.jcr.RepositoryException;
 import java.security.Principal;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -51,7 +55,8 @@ import java.util.Set;
 /**
  * <code>CompiledPermissionsImpl</code>...
  */
-class CompiledPermissionsImpl extends AbstractCompiledPermissions implements AccessControlListener {
+class CompiledPermissionsImpl extends AbstractCompiledPermissions
+        implements AccessControlListener, SubtreeReadPermissions {
 
     private static final Logger LOG = LoggerFactory.getLogger(CompiledPermissionsImpl.class);
 
@@ -76,6 +81,12 @@ class CompiledPermissionsImpl extends AbstractCompiledPermissions implements Acc
 
     private final Object monitor = new Object();
 
+    /**
+     * The names of the principals, which identify the shared subtree read
+     * permissions.
+     */
+    private final Set<String> principalNameSet;
+
     CompiledPermissionsImpl(Set<Principal> principals, SessionImpl session,
                             EntryCollector entryCollector, AccessControlUtils util,
                             boolean listenToEvents) throws RepositoryException {
@@ -87,6 +98,8 @@ class CompiledPermissionsImpl extends AbstractCompiledPermissions implements Acc
         for (Principal princ : principals) {
             principalNames.add(princ.getName());
         }
+        principalNameSet = Collections.unmodifiableSet(
+                new HashSet<String>(principalNames));
 
         if (listenToEvents) {
             /*
@@ -286,6 +299,57 @@ class CompiledPermissionsImpl extends AbstractCompiledPermissions implements Acc
         return canRead;
     }
 
+    //-----------------------------------------< SubtreeReadPermissions >---
+    /**
+     * Returns the read permissions of the access controlled nodes of the
+     * workspace. They are shared with all sessions of the same principals
+     * and kept up to date by the {@link EntryCollector}, which also tracks
+     * the access controlled nodes.
+     *
+     * @see SubtreeReadPermissions#getSubtreeReadPermissions()
+     * @see EntryCollector#getSubtreeReadPermissions(Set, CompiledPermissionsImpl)
+     */
+    public Map<NodeId, Boolean> getSubtreeReadPermissions() throws RepositoryException {
+        return entryCollector.getSubtreeReadPermissions(principalNameSet, this);
+    }
+
+    /**
+     * Evaluates the read permission of the given access controlled nodes.
+     * Since the entries of a node apply to all its descendants, nodes below
+     * an access controlled node have the same read permission unless an
+     * entry has restrictions, in which case <code>null</code> is returned.
+     * An access controlled node is only reported as not readable if its
+     * access control content cannot be read either.
+     *
+     * @param ids the ids of the access controlled nodes.
+     * @return the read permissions of the nodes, or <code>null</code>.
+     * @throws RepositoryException if an error occurs.
+     */
+    Map<NodeId, Boolean> evaluateSubtreeReadPermissions(Set<NodeId> ids)
+            throws RepositoryException {
+        Map<NodeId, Boolean> permissions = new HashMap<NodeId, Boolean>();
+        for (NodeId id : ids) {
+            NodeImpl node;
+            try {
+                node = entryCollector.getNodeById(id);
+            } catch (ItemNotFoundException e) {
+                // removed since it was collected
+                continue;
+            }
+            if (!ACLProvider.isAccessControlled(node)) {
+                continue;
+            }
+            for (Entry ace : entryCollector.getEntries(id).getACEs()) {
+                if (ace.hasRestrictions()) {
+                    return null;
+                }
+            }
+            permissions.put(id, canRead(null, id)
+                    || grants(node.getPrimaryPath(), Permission.READ_AC));
+        }
+        return Collections.unmodifiableMap(permissions);
+    }
+
     //----------------------------------------< ACLModificationListener >---
     /**
      * @see org.apache.jackrabbit.core.security.authorization.AccessControlListener#acModified(org.apache.jackrabbit.core.security.authorization.AccessControlModifications)
@@ -18,11 +18,13 @@ package org.apache.jackrabbit.core.security.authorization.acl;
 
 import org.apache.jackrabbit.core.NodeImpl;
 import org.apache.jackrabbit.core.SessionImpl;
+import org.apache.jackrabbit.core.cache.GrowingLRUMap;
 import org.apache.jackrabbit.core.id.NodeId;
 import org.apache.jackrabbit.core.observation.SynchronousEventListener;
 import org.apache.jackrabbit.core.security.authorization.AccessControlConstants;
 import org.apache.jackrabbit.core.security.authorization.AccessControlModifications;
 import org.apache.jackrabbit.core.security.authorization.AccessControlObserver;
+import org.apache.jackrabbit.spi.Name;
 import org.apache.jackrabbit.spi.commons.conversion.NameResolver;
 import org.apache.jackrabbit.util.Text;
 import org.slf4j.Logger;
@@ -30,6 +32,7 @@ import org.slf4j.LoggerFactory;
 
 import javax.jcr.ItemNotFoundException;
 import javax.jcr.Node;
+import javax.jcr.NodeIterator;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.observation.Event;
@@ -39,9 +42,11 @@ import javax.jcr.observation.ObservationManager;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * <code>EntryCollector</code> collects ACEs defined and effective for a
@@ -68,6 +73,52 @@ public class EntryCollector extends AccessControlObserver implements AccessContr
 
     private final EventListener moveListener;
 
+    /**
+     * Guards the access controlled node ids and the subtree read
+     * permissions below.
+     */
+    private final Object accessControlledMonitor = new Object();
+
+    /**
+     * Serializes the updates of the {@link #accessControlledIds}.
+     */
+    private final Object updateMonitor = new Object();
+
+    /**
+     * The ids of the access controlled nodes of the workspace, or
+     * <code>null</code> if they have not been collected yet.
+     */
+    private Set<NodeId> accessControlledIds;
+
+    /**
+     * The ids of the access controlled nodes whose access control content
+     * has been modified since the {@link #accessControlledIds} were updated.
+     */
+    private final Set<NodeId> modifiedIds = new HashSet<NodeId>();
+
+    /**
+     * Whether the access controlled nodes are being collected.
+     */
+    private boolean collecting;
+
+    /**
+     * Whether this collector has been closed.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Incremented on every access control modification.
+     */
+    private long modificationCount;
+
+    /**
+     * The subtree read permissions of the access controlled nodes by set of
+     * principal names, shared by all sessions with the same principals.
+     */
+    @SuppressWarnings("unchecked")
+    private final Map<Set<String>, Map<NodeId, Boolean>> subtreeReadPermissions =
+        new GrowingLRUMap(16, 1000);
+
     /**
      *
      * @param systemSession
@@ -110,6 +161,7 @@ public class EntryCollector extends AccessControlObserver implements AccessContr
      */
     @Override
     protected void close() {
+        closed = true;
         super.close();
         try {
             ObservationManager observationMgr = systemSession.getWorkspace().getObservationManager();
@@ -217,6 +269,215 @@ public class EntryCollector extends AccessControlObserver implements AccessContr
         return ((NodeImpl) systemSession.getItemManager().getItem(nodeId));
     }
 
+    /**
+     * Returns the read permissions of the access controlled nodes for the
+     * given principals, see
+     * {@link CompiledPermissionsImpl#getSubtreeReadPermissions()}. The
+     * permissions are evaluated once for every set of principals and
+     * cached until access control content is modified.
+     * <p>
+     * The access controlled nodes are collected once per workspace by
+     * traversing it in the background, and kept up to date with the access
+     * control modifications observed by this collector. Until they have
+     * been collected, <code>null</code> is returned.
+     *
+     * @param principalNames the names of the principals.
+     * @param permissions the compiled permissions of the principals, used
+     *                    to evaluate the read permissions.
+     * @return the read permissions of the access controlled nodes, or
+     *         <code>null</code> if they are not available.
+     * @throws RepositoryException if an error occurs.
+     */
+    Map<NodeId, Boolean> getSubtreeReadPermissions(
+            Set<String> principalNames, CompiledPermissionsImpl permissions)
+            throws RepositoryException {
+        long count;
+        synchronized (accessControlledMonitor) {
+            if (subtreeReadPermissions.containsKey(principalNames)) {
+                return subtreeReadPermissions.get(principalNames);
+            }
+            count = modificationCount;
+        }
+
+        Set<NodeId> ids = getAccessControlledIds();
+        if (ids == null) {
+            return null;
+        }
+        Map<NodeId, Boolean> result =
+            permissions.evaluateSubtreeReadPermissions(ids);
+
+        synchronized (accessControlledMonitor) {
+            if (count == modificationCount) {
+                subtreeReadPermissions.put(principalNames, result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the ids of the access controlled nodes of the workspace. The
+     * first call starts collecting them in the background.
+     *
+     * @return the ids of the access controlled nodes, or <code>null</code>
+     *         if they have not been collected yet.
+     * @throws RepositoryException if a modified node cannot be read.
+     */
+    Set<NodeId> getAccessControlledIds() throws RepositoryException {
+        synchronized (updateMonitor) {
+            Set<NodeId> ids;
+            Set<NodeId> modified;
+            synchronized (accessControlledMonitor) {
+                if (accessControlledIds == null) {
+                    if (!collecting && !closed) {
+                        collecting = true;
+                        startCollecting();
+                    }
+                    return null;
+                }
+                if (modifiedIds.isEmpty()) {
+                    return accessControlledIds;
+                }
+                ids = new HashSet<NodeId>(accessControlledIds);
+                modified = new HashSet<NodeId>(modifiedIds);
+                modifiedIds.clear();
+            }
+
+            boolean success = false;
+            try {
+                for (NodeId id : modified) {
+                    if (isAccessControlled(id)) {
+                        ids.add(id);
+                    } else {
+                        ids.remove(id);
+                    }
+                }
+                success = true;
+            } finally {
+                if (!success) {
+                    synchronized (accessControlledMonitor) {
+                        modifiedIds.addAll(modified);
+                    }
+                }
+            }
+
+            ids = Collections.unmodifiableSet(ids);
+            synchronized (accessControlledMonitor) {
+                accessControlledIds = ids;
+            }
+            return ids;
+        }
+    }
+
+    /**
+     * Tests if the node with the given id exists and is access controlled.
+     *
+     * @param nodeId the id of the node.
+     * @return <code>true</code> if the node is access controlled.
+     * @throws RepositoryException if an error occurs.
+     */
+    private boolean isAccessControlled(NodeId nodeId) throws RepositoryException {
+        try {
+            return ACLProvider.isAccessControlled(getNodeById(nodeId));
+        } catch (ItemNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Starts a thread that collects the ids of the access controlled nodes
+     * of the workspace.
+     */
+    private void startCollecting() {
+        String name = "EntryCollector-" + systemSession.getWorkspace().getName();
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                Set<NodeId> ids = null;
+                try {
+                    ids = collectAccessControlledIds();
+                } catch (RepositoryException e) {
+                    log.warn("Failed to collect the access controlled nodes", e);
+                } finally {
+                    synchronized (accessControlledMonitor) {
+                        collecting = false;
+                        if (ids != null) {
+                            accessControlledIds = Collections.unmodifiableSet(ids);
+                        }
+                    }
+                }
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Traverses the workspace and collects the ids of the access controlled
+     * nodes. The access control content itself is not traversed.
+     *
+     * @return the ids of the access controlled nodes, or <code>null</code>
+     *         if this collector has been closed meanwhile.
+     * @throws RepositoryException if an error occurs.
+     */
+    private Set<NodeId> collectAccessControlledIds() throws RepositoryException {
+        Set<NodeId> ids = new HashSet<NodeId>();
+        // JCR-2890: use a separate session, see onEvent()
+        String workspaceName = systemSession.getWorkspace().getName();
+        Session session = systemSession.createSession(workspaceName);
+        try {
+            NodeImpl root = (NodeImpl) session.getRootNode();
+            if (ACLProvider.isAccessControlled(root)) {
+                ids.add(root.getNodeId());
+            }
+            LinkedList<NodeIterator> stack = new LinkedList<NodeIterator>();
+            stack.add(root.getNodes());
+            while (!stack.isEmpty()) {
+                if (closed) {
+                    return null;
+                }
+                NodeIterator children = stack.getLast();
+                if (!children.hasNext()) {
+                    stack.removeLast();
+                    continue;
+                }
+                NodeImpl child = (NodeImpl) children.nextNode();
+                Name name = child.getQName();
+                if (N_POLICY.equals(name) || N_REPO_POLICY.equals(name)) {
+                    continue;
+                }
+                if (ACLProvider.isAccessControlled(child)) {
+                    ids.add(child.getNodeId());
+                }
+                stack.add(child.getNodes());
+            }
+        } finally {
+            session.logout();
+        }
+        return ids;
+    }
+
+    /**
+     * Notifies the listeners, then forgets the subtree read permissions and
+     * records the modified access controlled nodes. Permissions evaluated
+     * while the listeners are notified are therefore not kept.
+     *
+     * @see AccessControlObserver#notifyListeners(AccessControlModifications)
+     */
+    @Override
+    protected void notifyListeners(AccessControlModifications modifications) {
+        super.notifyListeners(modifications);
+        synchronized (accessControlledMonitor) {
+            modificationCount++;
+            subtreeReadPermissions.clear();
+            if (accessControlledIds != null || collecting) {
+                for (Object key : modifications.getNodeIdentifiers()) {
+                    if (key instanceof NodeId) {
+                        modifiedIds.add((NodeId) key);
+                    }
+                }
+            }
+        }
+    }
+
     //------------------------------------------------------< EventListener >---
     /**
      * Collects access controlled nodes that are effected by access control
@@ -16,11 +16,16 @@
  */
 package org.apache.jackrabbit.core.state;
 
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.PropertyType;
 
 import org.apache.commons.collections.map.LinkedMap;
 import org.apache.jackrabbit.core.id.ItemId;
 import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.value.InternalValue;
 import org.apache.jackrabbit.core.version.VersionItemStateManager;
 
 /**
@@ -253,6 +258,52 @@ public class ChangeLog {
         return modifiedRefs.values();
     }
 
+    /**
+     * Returns the ids of the items affected by this change log: the added,
+     * modified and removed items, the targets of the modified references
+     * and the targets of the REFERENCE properties that are added, modified
+     * or removed. The references of such properties are updated as part of
+     * the commit, so {@link ISMLocking} strategies that only lock the items
+     * of a change log must not let concurrent changes to them overlap.
+     *
+     * @return affected item ids
+     */
+    Set<ItemId> getAffectedIds() {
+        Set<ItemId> ids = new HashSet<ItemId>();
+        for (ItemState state : addedStates.values()) {
+            ids.add(state.getId());
+            addReferenceTargets(ids, state);
+        }
+        for (ItemState state : modifiedStates.values()) {
+            ids.add(state.getId());
+            addReferenceTargets(ids, state);
+            if (state.hasOverlayedState()) {
+                addReferenceTargets(ids, state.getOverlayedState());
+            }
+        }
+        for (ItemState state : deletedStates.values()) {
+            ids.add(state.getId());
+            addReferenceTargets(ids, state);
+        }
+        ids.addAll(modifiedRefs.keySet());
+        return ids;
+    }
+
+    /**
+     * Adds the targets of the given REFERENCE property to the given set.
+     */
+    private static void addReferenceTargets(Set<ItemId> ids, ItemState state) {
+        if (!state.isNode()) {
+            PropertyState property = (PropertyState) state;
+            if (property.getType() == PropertyType.REFERENCE) {
+                InternalValue[] values = property.getValues();
+                for (int i = 0; values != null && i < values.length; i++) {
+                    ids.add(values[i].getNodeId());
+                }
+            }
+        }
+    }
+
     /**
      * Merge another change log with this change log
      *
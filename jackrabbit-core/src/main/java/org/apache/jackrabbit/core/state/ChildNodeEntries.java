@@ -16,126 +16,172 @@
  */
 package org.apache.jackrabbit.core.state;
 
-import org.apache.commons.collections.map.LinkedMap;
 import org.apache.jackrabbit.core.id.NodeId;
-import org.apache.jackrabbit.core.util.EmptyLinkedMap;
 import org.apache.jackrabbit.spi.Name;
 
-import java.util.List;
-import java.util.HashMap;
-import java.util.Collections;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.RandomAccess;
 
 /**
  * <code>ChildNodeEntries</code> represents an insertion-ordered
  * collection of <code>ChildNodeEntry</code>s that also maintains
  * the index values of same-name siblings on insertion and removal.
+ * <p>
+ * To keep nodes with hundreds of thousands of child nodes affordable, the
+ * entries are not kept as objects. The most and least significant bits of
+ * the child node ids and the child node names are stored in parallel
+ * arrays (slots) in insertion order, and two open addressing hash tables
+ * of slot numbers allow to look up entries by id and by name in constant
+ * time. Same-name siblings share a single <code>Name</code> instance, and
+ * the slots of the siblings are only tracked for names that are used more
+ * than once. Removed entries leave an empty slot behind, and the slots are
+ * compacted once more than half of them are empty.
+ * <code>ChildNodeEntry</code> instances are created on demand.
+ * <p>
+ * The arrays are shared between clones and with the lists returned by
+ * {@link #list()}, and copied before they are modified.
+ * <p>
+ * The entries can also be supplied by a {@link ChildNodeEntryLoader}, in
+ * which case they are only loaded when they are accessed for the first
+ * time. The number of entries is known without loading them.
  */
 class ChildNodeEntries implements Cloneable {
 
     /**
-     * Insertion-ordered map of entries
-     * (key=NodeId, value=entry)
+     * The minimum number of slots.
+     */
+    private static final int MIN_CAPACITY = 8;
+
+    private static final long[] EMPTY_LONGS = new long[0];
+
+    private static final Name[] EMPTY_NAMES = new Name[0];
+
+    private static final int[] EMPTY_TABLE = new int[0];
+
+    /**
+     * Most significant bits of the child node ids, by slot.
+     */
+    private long[] msbs;
+
+    /**
+     * Least significant bits of the child node ids, by slot.
+     */
+    private long[] lsbs;
+
+    /**
+     * Names of the child nodes, by slot, or <code>null</code> for the slots
+     * of removed entries.
+     */
+    private Name[] names;
+
+    /**
+     * The number of used slots, including the slots of removed entries.
      */
-    private LinkedMap entries;
+    private int count;
 
     /**
-     * Map used for lookup by name
-     * (key=name, value=either a single entry or a list of sns entries)
+     * The number of entries.
      */
-    private Map<Name, Object> nameMap;
+    private int size;
 
     /**
-     * Indicates whether the entries and nameMap are shared with another
-     * ChildNodeEntries instance.
+     * Hash table for lookup by id. Contains the slot number plus one of each
+     * entry, or zero for free cells. Uses linear probing.
+     */
+    private int[] idTable;
+
+    /**
+     * Hash table for lookup by name. Contains the slot number plus one of
+     * the first entry with a given name, or zero for free cells. Uses linear
+     * probing.
+     */
+    private int[] nameTable;
+
+    /**
+     * Slots of same-name siblings, for names with more than one entry
+     * (key=name, value=number of siblings followed by their slots in
+     * ascending order), or <code>null</code> if there are no same-name
+     * siblings.
+     */
+    private Map<Name, int[]> siblings;
+
+    /**
+     * Indicates whether the arrays are shared with another ChildNodeEntries
+     * instance or with a list returned by {@link #list()}.
      */
     private boolean shared;
 
+    /**
+     * The loader of the entries, or <code>null</code> if the entries have
+     * been loaded. The arrays are empty as long as a loader is set.
+     */
+    private volatile ChildNodeEntryLoader loader;
+
     ChildNodeEntries() {
         init();
     }
 
+    /**
+     * Replaces all entries with the entries of the given loader, which are
+     * loaded when they are accessed for the first time.
+     *
+     * @param loader loader of the entries
+     */
+    void setLoader(ChildNodeEntryLoader loader) {
+        init();
+        this.loader = loader;
+    }
+
     ChildNodeEntry get(NodeId id) {
-        return (ChildNodeEntry) entries.get(id);
+        ensureLoaded();
+        int slot = findId(id.getMostSignificantBits(), id.getLeastSignificantBits());
+        if (slot < 0) {
+            return null;
+        }
+        return new ChildNodeEntry(names[slot], id, getIndex(slot));
     }
 
-    @SuppressWarnings("unchecked")
     List<ChildNodeEntry> get(Name nodeName) {
-        Object obj = nameMap.get(nodeName);
-        if (obj == null) {
+        ensureLoaded();
+        int slot = findName(nodeName);
+        if (slot < 0) {
             return Collections.emptyList();
         }
-        if (obj instanceof List<?>) {
-            // map entry is a list of siblings
-            return Collections.unmodifiableList((List<ChildNodeEntry>) obj);
-        } else {
-            // map entry is a single child node entry
-            return Collections.singletonList((ChildNodeEntry) obj);
+        int[] list = getSiblings(names[slot]);
+        if (list == null) {
+            // a single child node entry
+            return Collections.singletonList(createEntry(slot, 1));
         }
+        // a list of siblings
+        List<ChildNodeEntry> result = new ArrayList<ChildNodeEntry>(list[0]);
+        for (int i = 1; i <= list[0]; i++) {
+            result.add(createEntry(list[i], i));
+        }
+        return Collections.unmodifiableList(result);
     }
 
-    @SuppressWarnings("unchecked")
     ChildNodeEntry get(Name nodeName, int index) {
         if (index < 1) {
             throw new IllegalArgumentException("index is 1-based");
         }
+        ensureLoaded();
 
-        Object obj = nameMap.get(nodeName);
-        if (obj == null) {
+        int slot = findSibling(nodeName, index);
+        if (slot < 0) {
             return null;
         }
-        if (obj instanceof List<?>) {
-            // map entry is a list of siblings
-            List<ChildNodeEntry> siblings = (List<ChildNodeEntry>) obj;
-            if (index <= siblings.size()) {
-                return siblings.get(index - 1);
-            }
-        } else {
-            // map entry is a single child node entry
-            if (index == 1) {
-                return (ChildNodeEntry) obj;
-            }
-        }
-        return null;
+        return createEntry(slot, index);
     }
 
-    @SuppressWarnings("unchecked")
     ChildNodeEntry add(Name nodeName, NodeId id) {
-        ensureModifiable();
-        List<ChildNodeEntry> siblings = null;
-        int index = 0;
-        Object obj = nameMap.get(nodeName);
-        if (obj != null) {
-            if (obj instanceof List<?>) {
-                // map entry is a list of siblings
-                siblings = (List<ChildNodeEntry>) obj;
-                if (siblings.size() > 0) {
-                    // reuse immutable Name instance from 1st same name sibling
-                    // in order to help gc conserving memory
-                    nodeName = siblings.get(0).getName();
-                }
-            } else {
-                // map entry is a single child node entry,
-                // convert to siblings list
-                siblings = new ArrayList<ChildNodeEntry>();
-                siblings.add((ChildNodeEntry) obj);
-                nameMap.put(nodeName, siblings);
-            }
-            index = siblings.size();
-        }
-
-        index++;
-
-        ChildNodeEntry entry = new ChildNodeEntry(nodeName, id, index);
-        if (siblings != null) {
-            siblings.add(entry);
-        } else {
-            nameMap.put(nodeName, entry);
-        }
-        entries.put(id, entry);
-
-        return entry;
+        ensureLoaded();
+        return append(nodeName, id);
     }
 
     void addAll(List<ChildNodeEntry> entriesList) {
@@ -145,66 +191,67 @@ class ChildNodeEntries implements Cloneable {
         }
     }
 
-    // The index may have changed because of changes by another session. Use remove(NodeId id)
-    // instead    
-    @Deprecated
-    @SuppressWarnings("unchecked")
-    public ChildNodeEntry remove(Name nodeName, int index) {
-        if (index < 1) {
-            throw new IllegalArgumentException("index is 1-based");
-        }
-
+    /**
+     * Adds an entry to the end of the list, without loading the entries.
+     *
+     * @param nodeName name of the child node
+     * @param id id of the child node
+     * @return the added entry
+     */
+    private ChildNodeEntry append(Name nodeName, NodeId id) {
         ensureModifiable();
-        Object obj = nameMap.get(nodeName);
-        if (obj == null) {
-            return null;
+        ensureCapacity(count + 1);
+
+        int index = 1;
+        int first = findName(nodeName);
+        if (first >= 0) {
+            // reuse immutable Name instance from 1st same name sibling
+            // in order to help gc conserving memory
+            nodeName = names[first];
         }
 
-        if (obj instanceof ChildNodeEntry) {
-            // map entry is a single child node entry
-            if (index != 1) {
-                return null;
-            }
-            ChildNodeEntry removedEntry = (ChildNodeEntry) obj;
-            nameMap.remove(nodeName);
-            entries.remove(removedEntry.getId());
-            return removedEntry;
-        }
+        int slot = count++;
+        msbs[slot] = id.getMostSignificantBits();
+        lsbs[slot] = id.getLeastSignificantBits();
+        names[slot] = nodeName;
+        size++;
+        insert(idTable, slot, hashId(slot));
 
-        // map entry is a list of siblings
-        List<ChildNodeEntry> siblings = (List<ChildNodeEntry>) obj;
-        if (index > siblings.size()) {
-            return null;
+        if (first < 0) {
+            insert(nameTable, slot, hashName(nodeName));
+        } else {
+            int[] list = getSiblings(nodeName);
+            if (list == null) {
+                // convert the single entry to a list of siblings
+                list = new int[] { 1, first, 0, 0 };
+                if (siblings == null) {
+                    siblings = new HashMap<Name, int[]>();
+                }
+            } else if (list[0] + 1 == list.length) {
+                list = Arrays.copyOf(list, list.length * 2);
+            }
+            list[++list[0]] = slot;
+            siblings.put(nodeName, list);
+            index = list[0];
         }
 
-        // remove from siblings list
-        ChildNodeEntry removedEntry = siblings.remove(index - 1);
-        // remove from ordered entries map
-        entries.remove(removedEntry.getId());
+        return new ChildNodeEntry(nodeName, id, index);
+    }
 
-        // update indices of subsequent same-name siblings
-        for (int i = index - 1; i < siblings.size(); i++) {
-            ChildNodeEntry oldEntry = siblings.get(i);
-            ChildNodeEntry newEntry = new ChildNodeEntry(nodeName, oldEntry.getId(), oldEntry.getIndex() - 1);
-            // overwrite old entry with updated entry in siblings list
-            siblings.set(i, newEntry);
-            // overwrite old entry with updated entry in ordered entries map
-            entries.put(newEntry.getId(), newEntry);
+    // The index may have changed because of changes by another session. Use remove(NodeId id)
+    // instead    
+    @Deprecated
+    public ChildNodeEntry remove(Name nodeName, int index) {
+        if (index < 1) {
+            throw new IllegalArgumentException("index is 1-based");
         }
+        ensureLoaded();
 
-        // clean up name lookup map if necessary
-        if (siblings.size() == 0) {
-            // no more entries with that name left:
-            // remove from name lookup map as well
-            nameMap.remove(nodeName);
-        } else if (siblings.size() == 1) {
-            // just one entry with that name left:
-            // discard siblings list and update name lookup map accordingly
-            nameMap.put(nodeName, siblings.get(0));
+        int slot = findSibling(nodeName, index);
+        if (slot < 0) {
+            return null;
         }
-
-        // we're done
-        return removedEntry;
+        return removeSlot(slot);
     }
 
     /**
@@ -214,11 +261,12 @@ class ChildNodeEntries implements Cloneable {
      * @return the removed entry or <code>null</code> if there is no such entry.
      */
     ChildNodeEntry remove(NodeId id) {
-        ChildNodeEntry entry = (ChildNodeEntry) entries.get(id);
-        if (entry != null) {
-            return remove(entry.getName(), entry.getIndex());
+        ensureLoaded();
+        int slot = findId(id.getMostSignificantBits(), id.getLeastSignificantBits());
+        if (slot < 0) {
+            return null;
         }
-        return entry;
+        return removeSlot(slot);
     }
 
     /**
@@ -252,7 +300,9 @@ class ChildNodeEntries implements Cloneable {
      *         <code>this</code> but not in <code>other</code>
      */
     List<ChildNodeEntry> removeAll(ChildNodeEntries other) {
-        if (entries.isEmpty()) {
+        ensureLoaded();
+        other.ensureLoaded();
+        if (size == 0) {
             return Collections.emptyList();
         }
         if (other.isEmpty()) {
@@ -260,15 +310,9 @@ class ChildNodeEntries implements Cloneable {
         }
 
         List<ChildNodeEntry> result = new ArrayList<ChildNodeEntry>();
-        for (Object e : entries.values()) {
-            ChildNodeEntry entry = (ChildNodeEntry) e;
-            ChildNodeEntry otherEntry = other.get(entry.getId());
-            if (entry == otherEntry) {
-                continue;
-            }
-            if (otherEntry == null
-                    || !entry.getName().equals(otherEntry.getName())) {
-                result.add(entry);
+        for (int slot = 0; slot < count; slot++) {
+            if (names[slot] != null && !other.contains(this, slot)) {
+                result.add(createEntry(slot, getIndex(slot)));
             }
         }
         return result;
@@ -288,20 +332,16 @@ class ChildNodeEntries implements Cloneable {
      *         <code>this</code> <i>and</i> in <code>other</code>
      */
     List<ChildNodeEntry> retainAll(ChildNodeEntries other) {
-        if (entries.isEmpty()
-                || other.isEmpty()) {
+        ensureLoaded();
+        other.ensureLoaded();
+        if (size == 0 || other.isEmpty()) {
             return Collections.emptyList();
         }
 
         List<ChildNodeEntry> result = new ArrayList<ChildNodeEntry>();
-        for (Object e : entries.values()) {
-            ChildNodeEntry entry = (ChildNodeEntry) e;
-            ChildNodeEntry otherEntry = other.get(entry.getId());
-            if (entry == otherEntry) {
-                result.add(entry);
-            } else if (otherEntry != null
-                    && entry.getName().equals(otherEntry.getName())) {
-                result.add(entry);
+        for (int slot = 0; slot < count; slot++) {
+            if (names[slot] != null && other.contains(this, slot)) {
+                result.add(createEntry(slot, getIndex(slot)));
             }
         }
         return result;
@@ -310,33 +350,56 @@ class ChildNodeEntries implements Cloneable {
     //-----------------------------------------------< unmodifiable List view >
 
     public boolean isEmpty() {
-        return entries.isEmpty();
+        return size() == 0;
     }
 
-    @SuppressWarnings("unchecked")
+    /**
+     * Returns an unmodifiable list of the entries in insertion order. The
+     * list is not affected by later modifications of this instance, and
+     * creates the entries only when they are accessed.
+     *
+     * @return list of entries
+     */
     public List<ChildNodeEntry> list() {
-        return new ArrayList<ChildNodeEntry>(entries.values());
+        ensureLoaded();
+        if (size == 0) {
+            return Collections.emptyList();
+        }
+        if (size < count) {
+            ensureModifiable();
+            compact(msbs.length);
+        }
+        shared = true;
+        return new EntryList(names, msbs, lsbs, siblings, size);
     }
 
     public List<ChildNodeEntry> getRenamedEntries(ChildNodeEntries that) {
+        ensureLoaded();
+        that.ensureLoaded();
         List<ChildNodeEntry> renamed = Collections.emptyList();
-        for (Object e : entries.values()) {
-            ChildNodeEntry entry = (ChildNodeEntry) e;
-            ChildNodeEntry other = that.get(entry.getId());
-            if (other != null && !entry.getName().equals(other.getName())) {
+        for (int slot = 0; slot < count; slot++) {
+            if (names[slot] == null) {
+                continue;
+            }
+            int other = that.findId(msbs[slot], lsbs[slot]);
+            if (other >= 0 && !names[slot].equals(that.names[other])) {
                 // child node entry with same id but different name exists in
                 // overlaid and this state => renamed entry detected
                 if (renamed.isEmpty()) {
                     renamed = new ArrayList<ChildNodeEntry>();
                 }
-                renamed.add(entry);
+                renamed.add(createEntry(slot, getIndex(slot)));
             }
         }
         return renamed;
     }
 
     public int size() {
-        return entries.size();
+        ChildNodeEntryLoader loader = this.loader;
+        if (loader != null) {
+            return loader.getChildNodeEntryCount();
+        }
+        return size;
     }
 
     //-------------------------------------------< java.lang.Object overrides >
@@ -346,9 +409,21 @@ class ChildNodeEntries implements Cloneable {
         }
         if (obj instanceof ChildNodeEntries) {
             ChildNodeEntries other = (ChildNodeEntries) obj;
-            return (nameMap.equals(other.nameMap)
-                    && entries.equals(other.entries)
-                    && shared == other.shared);
+            ensureLoaded();
+            other.ensureLoaded();
+            if (size != other.size) {
+                return false;
+            }
+            for (int slot = 0; slot < count; slot++) {
+                if (names[slot] != null) {
+                    int o = other.findId(msbs[slot], lsbs[slot]);
+                    if (o < 0 || !names[slot].equals(other.names[o])
+                            || getIndex(slot) != other.getIndex(o)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
         }
         return false;
     }
@@ -368,14 +443,15 @@ class ChildNodeEntries implements Cloneable {
 
     /**
      * Returns a shallow copy of this <code>ChildNodeEntries</code> instance;
-     * the entries themselves are not cloned.
+     * the entries themselves are not cloned. Entries that have not been
+     * loaded yet are loaded by the copy when they are first accessed.
      *
      * @return a shallow copy of this instance.
      */
-    protected Object clone() {
+    protected synchronized Object clone() {
         try {
             ChildNodeEntries clone = (ChildNodeEntries) super.clone();
-            if (nameMap != Collections.EMPTY_MAP) {
+            if (msbs.length > 0) {
                 clone.shared = true;
                 shared = true;
             }
@@ -389,35 +465,359 @@ class ChildNodeEntries implements Cloneable {
     //-------------------------------------------------------------< internal >
 
     /**
-     * Initializes the name and entries map with unmodifiable empty instances.
+     * Initializes the arrays with unmodifiable empty instances.
      */
     private void init() {
-        nameMap = Collections.emptyMap();
-        entries = EmptyLinkedMap.INSTANCE;
+        msbs = EMPTY_LONGS;
+        lsbs = EMPTY_LONGS;
+        names = EMPTY_NAMES;
+        idTable = EMPTY_TABLE;
+        nameTable = EMPTY_TABLE;
+        siblings = null;
+        count = 0;
+        size = 0;
         shared = false;
+        loader = null;
+    }
+
+    /**
+     * Loads the entries if they have not been loaded yet.
+     */
+    private void ensureLoaded() {
+        if (loader != null) {
+            load();
+        }
+    }
+
+    /**
+     * Loads the entries from the loader. Synchronized, as the entries of
+     * a node state may be accessed by concurrent readers.
+     */
+    private synchronized void load() {
+        ChildNodeEntryLoader loader = this.loader;
+        if (loader != null) {
+            int n = loader.getChildNodeEntryCount();
+            List<Name> names = new ArrayList<Name>(n);
+            List<NodeId> ids = new ArrayList<NodeId>(n);
+            loader.loadChildNodeEntries(names, ids);
+            ensureCapacity(names.size());
+            for (int i = 0; i < names.size(); i++) {
+                append(names.get(i), ids.get(i));
+            }
+            this.loader = null;
+        }
     }
 
     /**
-     * Ensures that the {@link #nameMap} and {@link #entries} map are
-     * modifiable.
+     * Ensures that the arrays are not shared, by copying them if needed.
      */
-    @SuppressWarnings("unchecked")
     private void ensureModifiable() {
-        if (nameMap == Collections.EMPTY_MAP) {
-            nameMap = new HashMap<Name, Object>();
-            entries = new LinkedMap();
-        } else if (shared) {
-            entries = (LinkedMap) entries.clone();
-            nameMap = new HashMap<Name, Object>(nameMap);
-            for (Map.Entry<Name, Object> entry : nameMap.entrySet()) {
-                Object value = entry.getValue();
-                if (value instanceof List<?>) {
-                    entry.setValue(new ArrayList<ChildNodeEntry>(
-                            (List<ChildNodeEntry>) value));
+        if (shared) {
+            msbs = msbs.clone();
+            lsbs = lsbs.clone();
+            names = names.clone();
+            idTable = idTable.clone();
+            nameTable = nameTable.clone();
+            if (siblings != null) {
+                Map<Name, int[]> copy = new HashMap<Name, int[]>();
+                for (Map.Entry<Name, int[]> entry : siblings.entrySet()) {
+                    copy.put(entry.getKey(), entry.getValue().clone());
                 }
+                siblings = copy;
             }
             shared = false;
         }
     }
 
+    /**
+     * Ensures that the given number of slots is available, by compacting
+     * the slots and growing the arrays if needed.
+     *
+     * @param required the number of slots that must be available
+     */
+    private void ensureCapacity(int required) {
+        if (required > msbs.length) {
+            int live = size + (required - count);
+            compact(Math.max(MIN_CAPACITY, live + live / 2));
+        }
+    }
+
+    /**
+     * Moves all entries to new arrays of the given capacity, removing the
+     * empty slots, and rebuilds the hash tables.
+     *
+     * @param capacity the number of slots
+     */
+    private void compact(int capacity) {
+        long[] newMsbs = new long[capacity];
+        long[] newLsbs = new long[capacity];
+        Name[] newNames = new Name[capacity];
+        int[] moved = new int[count];
+        int n = 0;
+        for (int slot = 0; slot < count; slot++) {
+            if (names[slot] != null) {
+                newMsbs[n] = msbs[slot];
+                newLsbs[n] = lsbs[slot];
+                newNames[n] = names[slot];
+                moved[slot] = n++;
+            }
+        }
+        msbs = newMsbs;
+        lsbs = newLsbs;
+        names = newNames;
+        count = n;
+
+        if (siblings != null) {
+            for (int[] list : siblings.values()) {
+                for (int i = 1; i <= list[0]; i++) {
+                    list[i] = moved[list[i]];
+                }
+            }
+        }
+
+        int tableSize = Integer.highestOneBit(capacity) * 4;
+        idTable = new int[tableSize];
+        nameTable = new int[tableSize];
+        for (int slot = 0; slot < count; slot++) {
+            insert(idTable, slot, hashId(slot));
+            Name name = names[slot];
+            int[] list = getSiblings(name);
+            if (list == null || list[1] == slot) {
+                insert(nameTable, slot, hashName(name));
+            }
+        }
+    }
+
+    /**
+     * Removes the entry in the given slot, and updates the indexes of its
+     * subsequent same-name siblings.
+     *
+     * @param slot the slot
+     * @return the removed entry
+     */
+    private ChildNodeEntry removeSlot(int slot) {
+        ensureModifiable();
+        Name name = names[slot];
+        int index = 1;
+        int[] list = getSiblings(name);
+        if (list == null) {
+            delete(nameTable, slot, true);
+        } else {
+            index = Arrays.binarySearch(list, 1, list[0] + 1, slot);
+            if (index == 1) {
+                // the first sibling is referenced by the name table
+                delete(nameTable, slot, true);
+                insert(nameTable, list[2], hashName(name));
+            }
+            System.arraycopy(list, index + 1, list, index, list[0] - index);
+            if (--list[0] == 1) {
+                siblings.remove(name);
+                if (siblings.isEmpty()) {
+                    siblings = null;
+                }
+            }
+        }
+        delete(idTable, slot, false);
+
+        ChildNodeEntry entry = createEntry(slot, index);
+        names[slot] = null;
+        size--;
+        if (slot == count - 1) {
+            count--;
+        } else if (size < count / 4 && count > MIN_CAPACITY) {
+            // most slots are empty, release them
+            compact(Math.max(MIN_CAPACITY, size + size / 2));
+        }
+        return entry;
+    }
+
+    /**
+     * Checks whether this instance contains an entry with the same id and
+     * name as the given entry of another instance.
+     */
+    private boolean contains(ChildNodeEntries other, int otherSlot) {
+        int slot = findId(other.msbs[otherSlot], other.lsbs[otherSlot]);
+        return slot >= 0 && names[slot].equals(other.names[otherSlot]);
+    }
+
+    private ChildNodeEntry createEntry(int slot, int index) {
+        return new ChildNodeEntry(
+                names[slot], new NodeId(msbs[slot], lsbs[slot]), index);
+    }
+
+    /**
+     * Returns the 1-based same-name sibling index of the given entry.
+     */
+    private int getIndex(int slot) {
+        return getIndex(siblings, slot, names[slot]);
+    }
+
+    private static int getIndex(Map<Name, int[]> siblings, int slot, Name name) {
+        int[] list = siblings != null ? siblings.get(name) : null;
+        if (list == null) {
+            return 1;
+        }
+        return Arrays.binarySearch(list, 1, list[0] + 1, slot);
+    }
+
+    private int[] getSiblings(Name name) {
+        return siblings != null ? siblings.get(name) : null;
+    }
+
+    /**
+     * Returns the slot of the same-name sibling with the given index,
+     * or -1 if there is no such entry.
+     */
+    private int findSibling(Name nodeName, int index) {
+        int slot = findName(nodeName);
+        if (slot < 0) {
+            return -1;
+        }
+        int[] list = getSiblings(names[slot]);
+        if (list == null) {
+            return index == 1 ? slot : -1;
+        }
+        return index <= list[0] ? list[index] : -1;
+    }
+
+    /**
+     * Returns the slot of the entry with the given id, or -1 if not found.
+     */
+    private int findId(long msb, long lsb) {
+        int[] table = idTable;
+        if (table.length == 0) {
+            return -1;
+        }
+        int mask = table.length - 1;
+        for (int i = hashId(msb, lsb) & mask; table[i] != 0; i = (i + 1) & mask) {
+            int slot = table[i] - 1;
+            if (msbs[slot] == msb && lsbs[slot] == lsb) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the slot of the first entry with the given name, or -1 if
+     * not found.
+     */
+    private int findName(Name name) {
+        int[] table = nameTable;
+        if (table.length == 0) {
+            return -1;
+        }
+        int mask = table.length - 1;
+        for (int i = hashName(name) & mask; table[i] != 0; i = (i + 1) & mask) {
+            int slot = table[i] - 1;
+            if (name.equals(names[slot])) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private static void insert(int[] table, int slot, int hash) {
+        int mask = table.length - 1;
+        int i = hash & mask;
+        while (table[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        table[i] = slot + 1;
+    }
+
+    /**
+     * Removes a slot from a hash table, and moves subsequent cells of the
+     * same probe sequence back so that no tombstones are needed.
+     *
+     * @param table the id or name table
+     * @param slot the slot to remove
+     * @param byName whether the table is the name table
+     */
+    private void delete(int[] table, int slot, boolean byName) {
+        int mask = table.length - 1;
+        int i = (byName ? hashName(names[slot]) : hashId(slot)) & mask;
+        while (table[i] != slot + 1) {
+            i = (i + 1) & mask;
+        }
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            int value = table[j];
+            if (value == 0) {
+                break;
+            }
+            int s = value - 1;
+            int k = (byName ? hashName(names[s]) : hashId(s)) & mask;
+            // move the cell back unless its home cell lies cyclically in (i, j]
+            if (i <= j ? (i < k && k <= j) : (i < k || k <= j)) {
+                continue;
+            }
+            table[i] = value;
+            i = j;
+        }
+        table[i] = 0;
+    }
+
+    private int hashId(int slot) {
+        return hashId(msbs[slot], lsbs[slot]);
+    }
+
+    private static int hashId(long msb, long lsb) {
+        long h = msb ^ lsb;
+        int x = (int) (h ^ (h >>> 32));
+        x *= 0x9e3779b9;
+        return x ^ (x >>> 16);
+    }
+
+    private static int hashName(Name name) {
+        int x = name.hashCode() * 0x9e3779b9;
+        return x ^ (x >>> 16);
+    }
+
+    /**
+     * Unmodifiable list of the entries of a compacted and shared set of
+     * arrays. Entries are created when accessed.
+     */
+    private static class EntryList extends AbstractList<ChildNodeEntry>
+            implements RandomAccess {
+
+        private final Name[] names;
+
+        private final long[] msbs;
+
+        private final long[] lsbs;
+
+        private final Map<Name, int[]> siblings;
+
+        private final int size;
+
+        EntryList(Name[] names, long[] msbs, long[] lsbs,
+                Map<Name, int[]> siblings, int size) {
+            this.names = names;
+            this.msbs = msbs;
+            this.lsbs = lsbs;
+            this.siblings = siblings;
+            this.size = size;
+        }
+
+        @Override
+        public ChildNodeEntry get(int slot) {
+            if (slot < 0 || slot >= size) {
+                throw new IndexOutOfBoundsException(
+                        "Index: " + slot + ", Size: " + size);
+            }
+            Name name = names[slot];
+            return new ChildNodeEntry(
+                    name, new NodeId(msbs[slot], lsbs[slot]),
+                    getIndex(siblings, slot, name));
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+    }
+
 }
@@ -0,0 +1,53 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.state;
+
+import java.util.List;
+
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.spi.Name;
+
+/**
+ * The <code>ChildNodeEntryLoader</code> interface allows a persistence
+ * manager to defer loading the child node entries of a node state until
+ * they are accessed for the first time.
+ *
+ * @see NodeState#setChildNodeEntryLoader(ChildNodeEntryLoader)
+ */
+public interface ChildNodeEntryLoader {
+
+    /**
+     * Returns the number of child node entries, without loading them.
+     *
+     * @return number of child node entries
+     */
+    int getChildNodeEntryCount();
+
+    /**
+     * Loads the child node entries. The names and ids of the child nodes
+     * are added to the given lists in the order of the child nodes. This
+     * method may be called more than once, and must then return the same
+     * entries.
+     *
+     * @param names list to which the child node names are added
+     * @param ids list to which the child node ids are added
+     * @throws IllegalStateException if the entries can not be loaded
+     */
+    void loadChildNodeEntries(List<Name> names, List<NodeId> ids)
+            throws IllegalStateException;
+
+}
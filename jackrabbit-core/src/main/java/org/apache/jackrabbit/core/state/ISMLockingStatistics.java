@@ -0,0 +1,144 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.state;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock wait time histograms of an {@link ISMLocking} strategy. Wait times
+ * are recorded in buckets with power of two upper bounds in microseconds:
+ * the first bucket counts locks that were acquired in less than one
+ * microsecond (usually without waiting at all), the second those that took
+ * less than two microseconds, and so on. The last bucket is open-ended.
+ */
+public class ISMLockingStatistics implements ISMLockingStatisticsMBean {
+
+    /**
+     * Number of histogram buckets. The last bucket counts waits of
+     * 2^22 microseconds (about four seconds) or more.
+     */
+    static final int BUCKETS = 24;
+
+    private final AtomicLongArray readHistogram = new AtomicLongArray(BUCKETS);
+
+    private final AtomicLongArray writeHistogram = new AtomicLongArray(BUCKETS);
+
+    private final AtomicLong readWaitTime = new AtomicLong();
+
+    private final AtomicLong writeWaitTime = new AtomicLong();
+
+    /**
+     * Records a read lock that was acquired after waiting the given time.
+     *
+     * @param nanos wait time in nanoseconds, 0 if no wait was necessary
+     */
+    public void recordReadWait(long nanos) {
+        record(readHistogram, readWaitTime, nanos);
+    }
+
+    /**
+     * Records a write lock that was acquired after waiting the given time.
+     *
+     * @param nanos wait time in nanoseconds, 0 if no wait was necessary
+     */
+    public void recordWriteWait(long nanos) {
+        record(writeHistogram, writeWaitTime, nanos);
+    }
+
+    private static void record(
+            AtomicLongArray histogram, AtomicLong total, long nanos) {
+        histogram.incrementAndGet(bucket(nanos));
+        if (nanos > 0) {
+            total.addAndGet(nanos);
+        }
+    }
+
+    /**
+     * Returns the histogram bucket of the given wait time.
+     *
+     * @param nanos wait time in nanoseconds
+     * @return bucket index
+     */
+    static int bucket(long nanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        return Math.min(bucket, BUCKETS - 1);
+    }
+
+    private static long[] toArray(AtomicLongArray histogram) {
+        long[] array = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            array[i] = histogram.get(i);
+        }
+        return array;
+    }
+
+    private static long sum(AtomicLongArray histogram) {
+        long sum = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            sum += histogram.get(i);
+        }
+        return sum;
+    }
+
+    //---------------------------------------< ISMLockingStatisticsMBean >--
+
+    public long getReadLockCount() {
+        return sum(readHistogram);
+    }
+
+    public long getWriteLockCount() {
+        return sum(writeHistogram);
+    }
+
+    public long getReadLockWaitTime() {
+        return TimeUnit.NANOSECONDS.toMicros(readWaitTime.get());
+    }
+
+    public long getWriteLockWaitTime() {
+        return TimeUnit.NANOSECONDS.toMicros(writeWaitTime.get());
+    }
+
+    public String[] getHistogramBuckets() {
+        String[] buckets = new String[BUCKETS];
+        for (int i = 0; i < BUCKETS - 1; i++) {
+            buckets[i] = "<" + (1L << i) + "us";
+        }
+        buckets[BUCKETS - 1] = ">=" + (1L << (BUCKETS - 2)) + "us";
+        return buckets;
+    }
+
+    public long[] getReadLockWaitHistogram() {
+        return toArray(readHistogram);
+    }
+
+    public long[] getWriteLockWaitHistogram() {
+        return toArray(writeHistogram);
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            readHistogram.set(i, 0);
+            writeHistogram.set(i, 0);
+        }
+        readWaitTime.set(0);
+        writeWaitTime.set(0);
+    }
+
+}
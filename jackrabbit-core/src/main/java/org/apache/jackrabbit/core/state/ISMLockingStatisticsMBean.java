@@ -0,0 +1,70 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.state;
+
+/**
+ * JMX bindings for the lock wait statistics of an {@link ISMLocking}
+ * strategy. One instance is registered per workspace.
+ */
+public interface ISMLockingStatisticsMBean {
+
+    String NAME = "org.apache.jackrabbit:type=ISMLocking";
+
+    /**
+     * @return number of read locks acquired
+     */
+    long getReadLockCount();
+
+    /**
+     * @return number of write locks acquired
+     */
+    long getWriteLockCount();
+
+    /**
+     * @return total time spent waiting for read locks, in microseconds
+     */
+    long getReadLockWaitTime();
+
+    /**
+     * @return total time spent waiting for write locks, in microseconds
+     */
+    long getWriteLockWaitTime();
+
+    /**
+     * @return the upper bounds of the histogram buckets, such as "&lt;1us",
+     *         "&lt;2us", "&lt;4us", ..., and the open-ended last bucket
+     */
+    String[] getHistogramBuckets();
+
+    /**
+     * @return number of read locks per wait time bucket, see
+     *         {@link #getHistogramBuckets()}
+     */
+    long[] getReadLockWaitHistogram();
+
+    /**
+     * @return number of write locks per wait time bucket, see
+     *         {@link #getHistogramBuckets()}
+     */
+    long[] getWriteLockWaitHistogram();
+
+    /**
+     * Resets all counters and histograms.
+     */
+    void reset();
+
+}
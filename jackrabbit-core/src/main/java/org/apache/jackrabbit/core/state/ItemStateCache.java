@@ -70,6 +70,15 @@ public interface ItemStateCache {
      */
     void evict(ItemId id);
 
+    /**
+     * Records the time it took to load an item state that was not found
+     * in this cache. The cache manager uses this to estimate how much time
+     * the cache saves.
+     *
+     * @param nanos the load duration in nanoseconds
+     */
+    void recordMissDuration(long nanos);
+
     /**
      * Clears all entries from this cache.
      */
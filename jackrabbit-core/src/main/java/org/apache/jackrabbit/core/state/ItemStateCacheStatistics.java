@@ -0,0 +1,163 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.state;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Size histograms of the item states added to an {@link MLRUItemStateCache},
+ * as estimated by {@link ItemState#calculateMemoryFootprint()}. Sizes are
+ * recorded in buckets with power of two upper bounds in bytes: the first
+ * bucket counts states of less than 64 bytes, the second those of less
+ * than 128 bytes, and so on. The last bucket is open-ended.
+ */
+public class ItemStateCacheStatistics implements ItemStateCacheStatisticsMBean {
+
+    /**
+     * Number of histogram buckets. The last bucket counts states of
+     * 2^24 bytes (16MB) or more.
+     */
+    static final int BUCKETS = 20;
+
+    /**
+     * Upper bound of the first bucket, as a power of two.
+     */
+    private static final int MIN_BITS = 6;
+
+    private final AtomicLongArray cachedHistogram = new AtomicLongArray(BUCKETS);
+
+    private final AtomicLongArray rejectedHistogram = new AtomicLongArray(BUCKETS);
+
+    private final AtomicLong cachedSize = new AtomicLong();
+
+    private final AtomicLong rejectedSize = new AtomicLong();
+
+    private final long maxStateSize;
+
+    /**
+     * Creates statistics for caches with the given maximum state size.
+     *
+     * @param maxStateSize maximum size of a cached state, or 0
+     */
+    public ItemStateCacheStatistics(long maxStateSize) {
+        this.maxStateSize = maxStateSize;
+    }
+
+    /**
+     * Creates statistics for caches with the default maximum state size.
+     */
+    public ItemStateCacheStatistics() {
+        this(MLRUItemStateCache.MAX_STATE_SIZE);
+    }
+
+    /**
+     * Records a state that was added to the cache.
+     *
+     * @param size estimated size in bytes
+     */
+    public void recordCached(long size) {
+        cachedHistogram.incrementAndGet(bucket(size));
+        cachedSize.addAndGet(size);
+    }
+
+    /**
+     * Records a state that was too large to be cached.
+     *
+     * @param size estimated size in bytes
+     */
+    public void recordRejected(long size) {
+        rejectedHistogram.incrementAndGet(bucket(size));
+        rejectedSize.addAndGet(size);
+    }
+
+    /**
+     * Returns the histogram bucket of the given size.
+     *
+     * @param size size in bytes
+     * @return bucket index
+     */
+    static int bucket(long size) {
+        int bucket = 64 - Long.numberOfLeadingZeros(size) - MIN_BITS;
+        return Math.min(Math.max(bucket, 0), BUCKETS - 1);
+    }
+
+    private static long[] toArray(AtomicLongArray histogram) {
+        long[] array = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            array[i] = histogram.get(i);
+        }
+        return array;
+    }
+
+    private static long sum(AtomicLongArray histogram) {
+        long sum = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            sum += histogram.get(i);
+        }
+        return sum;
+    }
+
+    //----------------------------------< ItemStateCacheStatisticsMBean >--
+
+    public long getCachedStateCount() {
+        return sum(cachedHistogram);
+    }
+
+    public long getCachedStateSize() {
+        return cachedSize.get();
+    }
+
+    public long getRejectedStateCount() {
+        return sum(rejectedHistogram);
+    }
+
+    public long getRejectedStateSize() {
+        return rejectedSize.get();
+    }
+
+    public long getMaxStateSize() {
+        return maxStateSize;
+    }
+
+    public String[] getHistogramBuckets() {
+        String[] buckets = new String[BUCKETS];
+        for (int i = 0; i < BUCKETS - 1; i++) {
+            buckets[i] = "<" + (1L << (i + MIN_BITS)) + "B";
+        }
+        buckets[BUCKETS - 1] = ">=" + (1L << (BUCKETS - 2 + MIN_BITS)) + "B";
+        return buckets;
+    }
+
+    public long[] getCachedStateSizeHistogram() {
+        return toArray(cachedHistogram);
+    }
+
+    public long[] getRejectedStateSizeHistogram() {
+        return toArray(rejectedHistogram);
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            cachedHistogram.set(i, 0);
+            rejectedHistogram.set(i, 0);
+        }
+        cachedSize.set(0);
+        rejectedSize.set(0);
+    }
+
+}
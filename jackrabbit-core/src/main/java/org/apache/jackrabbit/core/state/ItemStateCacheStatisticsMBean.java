@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.state;
+
+/**
+ * JMX bindings for the size statistics of the item states added to the
+ * shared item state cache of a workspace. One instance is registered per
+ * workspace.
+ */
+public interface ItemStateCacheStatisticsMBean {
+
+    String NAME = "org.apache.jackrabbit:type=ItemStateCache";
+
+    /**
+     * @return number of item states added to the cache
+     */
+    long getCachedStateCount();
+
+    /**
+     * @return total estimated size of the item states added to the cache,
+     *         in bytes
+     */
+    long getCachedStateSize();
+
+    /**
+     * @return number of item states that were not cached because they
+     *         exceeded the maximum state size
+     */
+    long getRejectedStateCount();
+
+    /**
+     * @return total estimated size of the item states that were not cached,
+     *         in bytes
+     */
+    long getRejectedStateSize();
+
+    /**
+     * @return the maximum estimated size of a cached item state in bytes,
+     *         or 0 if there is no limit
+     */
+    long getMaxStateSize();
+
+    /**
+     * @return the upper bounds of the histogram buckets, such as "&lt;64B",
+     *         "&lt;128B", "&lt;256B", ..., and the open-ended last bucket
+     */
+    String[] getHistogramBuckets();
+
+    /**
+     * @return number of item states added to the cache per size bucket,
+     *         see {@link #getHistogramBuckets()}
+     */
+    long[] getCachedStateSizeHistogram();
+
+    /**
+     * @return number of item states not cached per size bucket, see
+     *         {@link #getHistogramBuckets()}
+     */
+    long[] getRejectedStateSizeHistogram();
+
+    /**
+     * Resets all counters and histograms.
+     */
+    void reset();
+
+}
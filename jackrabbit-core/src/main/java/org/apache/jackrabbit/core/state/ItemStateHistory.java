@@ -0,0 +1,288 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.state;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.jackrabbit.core.id.ItemId;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.id.PropertyId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Superseded item states retained by a {@link SharedItemStateManager} for
+ * the read snapshots that are still open.
+ * <p>
+ * Every update of the shared states gets the next revision number. A
+ * snapshot is identified by the revision of the last update that it sees.
+ * While at least one snapshot is open, an update records a detached copy of
+ * each state it modifies or removes (and a <code>null</code> version for
+ * each state it adds) under its revision, before the changes are pushed to
+ * the shared states. The state of an item as seen by a snapshot is then the
+ * first version recorded after the revision of the snapshot, or the current
+ * state if the item has not been changed since.
+ * <p>
+ * Versions are discarded as soon as no open snapshot needs them anymore.
+ * The number of retained versions is bounded: once an update would exceed
+ * the limit, the oldest snapshots are expired, and reading from an expired
+ * snapshot fails with an {@link ItemStateException}. This class is
+ * thread-safe, but callers need to hold the read or write lock of the item
+ * state manager to get a consistent view of versions and current states.
+ */
+class ItemStateHistory {
+
+    /**
+     * Logger instance
+     */
+    private static final Logger log =
+        LoggerFactory.getLogger(ItemStateHistory.class);
+
+    /**
+     * Maximum number of retained versions.
+     */
+    private final int maxVersions;
+
+    /**
+     * Revision of the last update.
+     */
+    private long revision = 0;
+
+    /**
+     * Revision of the most recent expired snapshot, or -1.
+     */
+    private long expired = -1;
+
+    /**
+     * Number of retained versions.
+     */
+    private int size = 0;
+
+    /**
+     * Revisions of the open snapshots, mapped to the number of snapshots
+     * opened at that revision.
+     */
+    private final TreeMap<Long, Integer> snapshots = new TreeMap<Long, Integer>();
+
+    /**
+     * Recorded versions per item, in ascending order of revision.
+     */
+    private final Map<ItemId, List<Version>> versions =
+        new HashMap<ItemId, List<Version>>();
+
+    /**
+     * Creates a history that retains at most the given number of versions.
+     *
+     * @param maxVersions maximum number of retained versions
+     */
+    ItemStateHistory(int maxVersions) {
+        this.maxVersions = maxVersions;
+    }
+
+    /**
+     * Opens a snapshot of the last update. The caller must make sure that
+     * no update is in progress.
+     *
+     * @return revision of the snapshot
+     */
+    synchronized long openSnapshot() {
+        Integer count = snapshots.get(revision);
+        snapshots.put(revision, count == null ? 1 : count + 1);
+        return revision;
+    }
+
+    /**
+     * Closes a snapshot and discards the versions that are no longer
+     * needed by any of the remaining snapshots.
+     *
+     * @param snapshot revision of the snapshot
+     */
+    synchronized void closeSnapshot(long snapshot) {
+        Integer count = snapshots.get(snapshot);
+        if (count == null) {
+            return;
+        } else if (count == 1) {
+            snapshots.remove(snapshot);
+        } else {
+            snapshots.put(snapshot, count - 1);
+            return;
+        }
+        discard();
+    }
+
+    /**
+     * Discards the versions that are not needed by the open snapshots.
+     */
+    private void discard() {
+        if (snapshots.isEmpty()) {
+            versions.clear();
+            size = 0;
+        } else {
+            long oldest = snapshots.firstKey();
+            Iterator<List<Version>> iterator = versions.values().iterator();
+            while (iterator.hasNext()) {
+                List<Version> list = iterator.next();
+                while (!list.isEmpty() && list.get(0).revision <= oldest) {
+                    list.remove(0);
+                    size--;
+                }
+                if (list.isEmpty()) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Expires the oldest snapshots until no more than the maximum number
+     * of versions are retained.
+     */
+    private void expire() {
+        while (size > maxVersions && !snapshots.isEmpty()) {
+            long oldest = snapshots.firstKey();
+            snapshots.remove(oldest);
+            expired = Math.max(expired, oldest);
+            discard();
+            log.warn("Read snapshot {} has expired, more than {} superseded"
+                    + " item states would have to be retained for it",
+                    oldest, maxVersions);
+        }
+    }
+
+    /**
+     * Returns whether there are open snapshots.
+     *
+     * @return <code>true</code> if a snapshot is open
+     */
+    synchronized boolean hasSnapshots() {
+        return !snapshots.isEmpty();
+    }
+
+    /**
+     * Records the states that are about to be changed by an update. Must be
+     * called while holding the write lock for the change log, before the
+     * changes are pushed to the shared states.
+     *
+     * @param changes shared states of the update, not yet modified
+     */
+    synchronized void record(ChangeLog changes) {
+        long update = ++revision;
+        if (snapshots.isEmpty()) {
+            return;
+        }
+        for (ItemState state : changes.modifiedStates()) {
+            add(state.getId(), new Version(update, copyOf(state)));
+        }
+        for (ItemState state : changes.deletedStates()) {
+            add(state.getId(), new Version(update, copyOf(state)));
+        }
+        for (ItemState state : changes.addedStates()) {
+            add(state.getId(), new Version(update, null));
+        }
+        expire();
+    }
+
+    /**
+     * Returns the version of the given item as seen by a snapshot, or
+     * <code>null</code> if the item has not been changed since the snapshot
+     * was opened.
+     *
+     * @param id item id
+     * @param snapshot revision of the snapshot
+     * @return version, or <code>null</code>
+     * @throws ItemStateException if the snapshot has expired
+     */
+    synchronized Version getVersion(ItemId id, long snapshot)
+            throws ItemStateException {
+        if (snapshot <= expired) {
+            throw new ItemStateException("Read snapshot " + snapshot
+                    + " has expired, more than " + maxVersions
+                    + " superseded item states would have to be retained"
+                    + " for it");
+        }
+        List<Version> list = versions.get(id);
+        if (list != null) {
+            for (Version version : list) {
+                if (version.revision > snapshot) {
+                    return version;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void add(ItemId id, Version version) {
+        List<Version> list = versions.get(id);
+        if (list == null) {
+            list = new ArrayList<Version>(2);
+            versions.put(id, list);
+        }
+        list.add(version);
+        size++;
+    }
+
+    /**
+     * Creates a copy of the given state that is not connected to any other
+     * state and can therefore not be changed by later updates.
+     *
+     * @param state item state
+     * @return detached copy
+     */
+    static ItemState copyOf(ItemState state) {
+        ItemState copy;
+        if (state.isNode()) {
+            copy = new NodeState(
+                    (NodeId) state.getId(), null, null,
+                    ItemState.STATUS_EXISTING, false);
+        } else {
+            copy = new PropertyState(
+                    (PropertyId) state.getId(),
+                    ItemState.STATUS_EXISTING, false);
+        }
+        copy.copy(state, true);
+        return copy;
+    }
+
+    /**
+     * The state of an item before the update of a given revision.
+     */
+    static final class Version {
+
+        /**
+         * Revision of the update that superseded the state.
+         */
+        final long revision;
+
+        /**
+         * The superseded state, or <code>null</code> if the item did not
+         * exist before the update.
+         */
+        final ItemState state;
+
+        Version(long revision, ItemState state) {
+            this.revision = revision;
+            this.state = state;
+        }
+
+    }
+
+}
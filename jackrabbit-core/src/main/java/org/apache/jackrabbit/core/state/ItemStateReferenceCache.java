@@ -194,6 +194,13 @@ public class ItemStateReferenceCache implements ItemStateCache {
         }
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    public void recordMissDuration(long nanos) {
+        cache.recordMissDuration(nanos);
+    }
+
     /**
      * {@inheritDoc}
      */
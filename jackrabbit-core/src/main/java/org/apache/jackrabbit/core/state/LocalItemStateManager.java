@@ -16,6 +16,10 @@
  */
 package org.apache.jackrabbit.core.state;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
 import javax.jcr.InvalidItemStateException;
 import javax.jcr.ReferentialIntegrityException;
 import javax.jcr.RepositoryException;
@@ -55,6 +59,12 @@ public class LocalItemStateManager
      */
     private boolean editMode;
 
+    /**
+     * Revision of the read snapshot of the shared states seen through this
+     * manager, or <code>-1</code> if it sees the current shared states.
+     */
+    private volatile long snapshot = -1;
+
     /**
      * Change log
      */
@@ -107,7 +117,7 @@ public class LocalItemStateManager
             throws NoSuchItemStateException, ItemStateException {
 
         // load from parent manager and wrap
-        NodeState state = (NodeState) sharedStateMgr.getItemState(id);
+        NodeState state = (NodeState) getSharedItemState(id);
         state = new NodeState(state, state.getStatus(), false);
 
         // put it in cache
@@ -132,7 +142,7 @@ public class LocalItemStateManager
             throws NoSuchItemStateException, ItemStateException {
 
         // load from parent manager and wrap
-        PropertyState state = (PropertyState) sharedStateMgr.getItemState(id);
+        PropertyState state = (PropertyState) getSharedItemState(id);
         state = new PropertyState(state, state.getStatus(), false);
 
         // put it in cache
@@ -143,6 +153,83 @@ public class LocalItemStateManager
         return state;
     }
 
+    /**
+     * Returns the state of an item in the parent shared state manager, as
+     * seen by the read snapshot of this manager if one is open.
+     *
+     * @param id item id
+     * @return shared item state
+     * @throws NoSuchItemStateException if the item does not exist
+     * @throws ItemStateException if another error occurs
+     */
+    protected ItemState getSharedItemState(ItemId id)
+            throws NoSuchItemStateException, ItemStateException {
+        long revision = snapshot;
+        if (revision == -1) {
+            return sharedStateMgr.getItemState(id);
+        } else {
+            return sharedStateMgr.getItemState(id, revision);
+        }
+    }
+
+    /**
+     * Returns whether an item exists in the parent shared state manager, as
+     * seen by the read snapshot of this manager if one is open.
+     *
+     * @param id item id
+     * @return <code>true</code> if the item exists
+     */
+    protected boolean hasSharedItemState(ItemId id) {
+        long revision = snapshot;
+        if (revision == -1) {
+            return sharedStateMgr.hasItemState(id);
+        } else {
+            return sharedStateMgr.hasItemState(id, revision);
+        }
+    }
+
+    /**
+     * Makes this manager see the shared states as of now from now on: the
+     * changes persisted later on, by this or any other session, are not
+     * visible through this manager. Its item states are no longer updated
+     * by the shared state manager and local changes can not be saved
+     * anymore. The states read so far are discarded, so that they get
+     * reloaded from the snapshot. The snapshot is closed when this manager
+     * is {@link #dispose() disposed}.
+     *
+     * @throws ItemStateException if the snapshot could not be opened
+     * @see SharedItemStateManager#openSnapshot()
+     */
+    public void openSnapshot() throws ItemStateException {
+        if (snapshot != -1) {
+            throw new IllegalStateException("Snapshot already open");
+        }
+        sharedStateMgr.removeListener(this);
+        long revision = sharedStateMgr.openSnapshot();
+
+        ItemState[] states;
+        synchronized (this) {
+            snapshot = revision;
+            states = cache.retrieveAll();
+            cache.evictAll();
+        }
+        for (ItemState state : states) {
+            if (state != null) {
+                dispatcher.notifyStateDiscarded(state);
+            }
+        }
+    }
+
+    /**
+     * Returns whether this manager sees a read snapshot of the shared states.
+     *
+     * @return <code>true</code> if a snapshot is open
+     * @see #openSnapshot()
+     */
+    public boolean isSnapshot() {
+        return snapshot != -1;
+    }
+
     /**
      * Returns the change log that contains the current changes in this local
      * item state manager.
@@ -171,11 +258,13 @@ public class LocalItemStateManager
             state = cache.retrieve(id);
             if (state == null) {
                 // regular behaviour
+                long time = System.nanoTime();
                 if (id.denotesNode()) {
                     state = getNodeState((NodeId) id);
                 } else {
                     state = getPropertyState((PropertyId) id);
                 }
+                cache.recordMissDuration(System.nanoTime() - time);
             }
             return state;
         }
@@ -202,7 +291,7 @@ public class LocalItemStateManager
         }
 
         // regular behaviour
-        return sharedStateMgr.hasItemState(id);
+        return hasSharedItemState(id);
     }
 
     /**
@@ -230,6 +319,38 @@ public class LocalItemStateManager
         return sharedStateMgr.hasNodeReferences(id);
     }
 
+    /**
+     * Prefetches the shared states of the given nodes, so that subsequent
+     * calls to {@link #getItemState(ItemId)} for these nodes do not need to
+     * access the persistence manager one by one. Nodes that are already
+     * cached by this item state manager are ignored.
+     *
+     * @param ids the ids of the nodes that are about to be accessed
+     * @see SharedItemStateManager#prefetch(Collection)
+     */
+    public void prefetch(Collection<NodeId> ids) {
+        List<NodeId> missing = new ArrayList<NodeId>(ids.size());
+        for (NodeId id : ids) {
+            if (!cache.isCached(id)) {
+                missing.add(id);
+            }
+        }
+        sharedStateMgr.prefetch(missing);
+    }
+
+
+    /**
+     * Returns whether the states seen through this manager may currently
+     * differ from the ones of the underlying shared item state manager,
+     * because of local changes that have not been persisted yet or because
+     * a read snapshot is open.
+     *
+     * @return <code>true</code> if there are local changes;
+     *         <code>false</code> otherwise
+     */
+    public boolean hasLocalChanges() {
+        return editMode || snapshot != -1;
+    }
 
     //--------------------------------------------< UpdatableItemStateManager >
     /**
@@ -370,6 +491,10 @@ public class LocalItemStateManager
         if (!editMode) {
             throw new IllegalStateException("Not in edit mode");
         }
+        if (snapshot != -1 && changeLog.hasUpdates()) {
+            throw new ItemStateException(
+                    "Unable to save changes of a read snapshot");
+        }
         // JCR-1813: Only execute the update when there are some changes
         if (changeLog.hasUpdates()) {
             update(changeLog);
@@ -406,6 +531,9 @@ public class LocalItemStateManager
      */
     public void dispose() {
         sharedStateMgr.removeListener(this);
+        if (snapshot != -1) {
+            sharedStateMgr.closeSnapshot(snapshot);
+        }
 
         // this LocalItemStateManager instance is no longer needed;
         // cached item states can now be safely discarded
@@ -20,7 +20,7 @@ import java.util.List;
 
 import org.apache.commons.collections.map.LinkedMap;
 import org.apache.jackrabbit.core.cache.CacheManager;
-import org.apache.jackrabbit.core.cache.ConcurrentCache;
+import org.apache.jackrabbit.core.cache.AbstractMapCache;
 import org.apache.jackrabbit.core.id.ItemId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,6 +32,18 @@ import org.slf4j.LoggerFactory;
  * states for calculating the maximum number of entries. The oldest entries
  * are flushed once the cache size has exceeded a certain limit.
  * <p>
+ * The eviction policy is selected with the
+ * <code>org.apache.jackrabbit.core.state.MLRUItemStateCache.cacheType</code>
+ * system property: <code>lru</code> (the default) or <code>clock</code>.
+ * Either policy is {@link AbstractMapCache#setSizeAware(boolean) size-aware},
+ * unless the
+ * <code>org.apache.jackrabbit.core.state.MLRUItemStateCache.disableSizeAwareEviction</code>
+ * system property is set. Item states whose estimated size exceeds the
+ * <code>org.apache.jackrabbit.core.state.MLRUItemStateCache.maxStateSize</code>
+ * system property (in bytes, no limit by default) are not cached at all:
+ * they are only kept by the {@link ItemStateReferenceCache} as long as they
+ * are in use.
+ * <p>
  * TODO rename class to something more appropriate, e.g. FIFOItemSateCache since
  * it doesn't use a LRU eviction policy anymore.
  */
@@ -46,11 +58,41 @@ public class MLRUItemStateCache implements ItemStateCache {
     /** the number of writes */
     private volatile long numWrites = 0;
 
-    private final ConcurrentCache<ItemId, ItemState> cache =
-        new ConcurrentCache<ItemId, ItemState>(MLRUItemStateCache.class.getSimpleName());
+    /** the eviction policy, as selected by a system property */
+    private static final String CACHE_TYPE = System.getProperty(
+            "org.apache.jackrabbit.core.state.MLRUItemStateCache.cacheType",
+            AbstractMapCache.LRU);
+
+    /** whether the eviction policy takes the state sizes into account */
+    private static final boolean SIZE_AWARE = !Boolean.getBoolean(
+            "org.apache.jackrabbit.core.state.MLRUItemStateCache.disableSizeAwareEviction");
+
+    /** the maximum estimated size of a cached state, or 0 for no limit */
+    static final long MAX_STATE_SIZE = Long.getLong(
+            "org.apache.jackrabbit.core.state.MLRUItemStateCache.maxStateSize", 0);
+
+    private final AbstractMapCache<ItemId, ItemState> cache =
+        AbstractMapCache.newInstance(
+                MLRUItemStateCache.class.getSimpleName(), CACHE_TYPE);
+
+    /** the size statistics, or <code>null</code> */
+    private final ItemStateCacheStatistics statistics;
 
     public MLRUItemStateCache(CacheManager cacheMgr) {
+        this(cacheMgr, null);
+    }
+
+    /**
+     * Creates a cache that records the sizes of the cached states.
+     *
+     * @param cacheMgr the cache manager
+     * @param statistics the size statistics, or <code>null</code>
+     */
+    public MLRUItemStateCache(
+            CacheManager cacheMgr, ItemStateCacheStatistics statistics) {
+        this.statistics = statistics;
         cache.setMaxMemorySize(DEFAULT_MAX_MEM);
+        cache.setSizeAware(SIZE_AWARE);
         cache.setAccessListener(cacheMgr);
         cacheMgr.add(cache);
     }
@@ -83,7 +125,20 @@ public class MLRUItemStateCache implements ItemStateCache {
      * {@inheritDoc}
      */
     public void cache(ItemState state) {
-        cache.put(state.getId(), state, state.calculateMemoryFootprint());
+        long size = state.calculateMemoryFootprint();
+        if (MAX_STATE_SIZE > 0 && size > MAX_STATE_SIZE) {
+            // too large, drop a smaller copy that may have been cached before
+            cache.remove(state.getId());
+            if (statistics != null) {
+                statistics.recordRejected(size);
+            }
+            return;
+        }
+
+        cache.put(state.getId(), state, size);
+        if (statistics != null) {
+            statistics.recordCached(size);
+        }
 
         if (numWrites++ % 10000 == 0 && log.isDebugEnabled()) {
             log.debug("Item state cache size: {}% of {} bytes",
@@ -99,6 +154,13 @@ public class MLRUItemStateCache implements ItemStateCache {
         cache.remove(id);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    public void recordMissDuration(long nanos) {
+        cache.recordMissDuration(nanos);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -28,20 +28,46 @@ public class ManagedMLRUItemStateCacheFactory implements ItemStateCacheFactory {
     /** The cache manager. */
     private CacheManager cacheMgr;
 
+    /** The size statistics of the created caches, or <code>null</code>. */
+    private ItemStateCacheStatistics statistics;
+
     /**
      * Construct a new factory using a cache manager.
      *
      * @param cacheMgr the cache manager
      */
     public ManagedMLRUItemStateCacheFactory(CacheManager cacheMgr) {
+        this(cacheMgr, null);
+    }
+
+    /**
+     * Construct a new factory for caches that record the sizes of the
+     * cached states.
+     *
+     * @param cacheMgr the cache manager
+     * @param statistics the size statistics, or <code>null</code>
+     */
+    public ManagedMLRUItemStateCacheFactory(
+            CacheManager cacheMgr, ItemStateCacheStatistics statistics) {
         this.cacheMgr = cacheMgr;
+        this.statistics = statistics;
+    }
+
+    /**
+     * Returns the size statistics of the created caches.
+     *
+     * @return the size statistics, or <code>null</code> if the caches do
+     *         not record them
+     */
+    public ItemStateCacheStatistics getStatistics() {
+        return statistics;
     }
 
     /**
      * Create a new cache instance and link it to the cache manager.
      */
     public ItemStateCache newItemStateCache() {
-        return new MLRUItemStateCache(cacheMgr);
+        return new MLRUItemStateCache(cacheMgr, statistics);
     }
 
 }
@@ -403,7 +403,7 @@ public class NodeState extends ItemState {
 
             ChildNodeEntries entries = new ChildNodeEntries();
             for (ChildNodeEntry entry : childNodeEntries.list()) {
-                if (entry.getId() == oldId) {
+                if (entry.getId().equals(oldId)) {
                     entries.add(newName, newId);
                 } else {
                     entries.add(entry.getName(), entry.getId());
@@ -476,6 +476,20 @@ public class NodeState extends ItemState {
         notifyNodesReplaced();
     }
 
+    /**
+     * Sets the loader of the <code>ChildNodeEntry</code> objects denoting
+     * the child nodes of this node. The entries are only loaded when they
+     * are accessed for the first time.
+     *
+     * @param loader loader of the child node entries
+     */
+    public void setChildNodeEntryLoader(ChildNodeEntryLoader loader) {
+        synchronized (this) {
+            childNodeEntries.setLoader(loader);
+        }
+        notifyNodesReplaced();
+    }
+
     /**
      * Returns the names of this node's properties as a set of
      * <code>QNames</code> objects.
@@ -0,0 +1,385 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.state;
+
+import static org.apache.jackrabbit.data.core.TransactionContext.getCurrentThreadId;
+import static org.apache.jackrabbit.data.core.TransactionContext.isSameThreadId;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.jackrabbit.core.id.ItemId;
+
+/**
+ * Item state locking strategy for optimistic multi-writer commits.
+ * <p>
+ * Unlike {@link DefaultISMLocking} and {@link FineGrainedISMLocking} this
+ * strategy does not serialize all writers of a workspace. A write lock only
+ * covers the items of its change log: the added, modified and removed items
+ * plus the targets of the node references that are added or removed by the
+ * change log. Change logs with disjoint item sets are therefore validated and
+ * persisted concurrently by the {@link SharedItemStateManager}, provided the
+ * persistence manager accepts concurrent stores (see the
+ * <code>concurrentStore</code> parameter of the bundle persistence managers).
+ * <p>
+ * Change logs that do intersect are still committed one after the other.
+ * Once the second one gets its lock, its states are connected to the
+ * shared states just written by the first and the modification count check
+ * of the {@link SharedItemStateManager} either merges the changes or fails
+ * the update with a {@link StaleItemStateException}, exactly like with the
+ * default strategy.
+ * <p>
+ * Readers are only blocked while they access an item that is covered by an
+ * active (not yet downgraded) write lock of another thread, or by a pending
+ * write lock so that writers of frequently read items do not starve. A
+ * thread that holds a write lock can read the items of its own change log
+ * and is not blocked by pending write locks. It does wait for the active
+ * write locks of other threads that cover the item it reads, unless that
+ * would deadlock: when the owner of the blocking lock is itself (directly
+ * or indirectly) waiting to read an item of the reading thread, the read
+ * lock is granted immediately. This can only happen between concurrent
+ * writers that read each others ancestors while preparing their
+ * observation events.
+ */
+public class OptimisticISMLocking implements ISMLocking {
+
+    /**
+     * Number of stripes used to count read locks.
+     */
+    private static final int STRIPES = 256;
+
+    /**
+     * Number of read locks held per stripe of item ids. Writers wait until
+     * the stripes of all items of their change log are free, which may
+     * occasionally make them wait for a reader of an unrelated item.
+     */
+    private final int[] readerCounts = new int[STRIPES];
+
+    /**
+     * Number of read locks held without an item id. These conflict with
+     * all writers.
+     */
+    private int anonymousReaderCount = 0;
+
+    /**
+     * The granted write locks, including downgraded ones.
+     */
+    private final List<WriteLockImpl> writers = new ArrayList<WriteLockImpl>();
+
+    /**
+     * The write locks that are waiting to be granted.
+     */
+    private final List<WriteLockImpl> waitingWriters =
+        new ArrayList<WriteLockImpl>();
+
+    /**
+     * The write locks for which the owners of other write locks are waiting
+     * to acquire a read lock, by thread (or transaction) identifier of the
+     * waiting owner. Used to detect deadlocks between writers.
+     */
+    private final Map<Object, WriteLockImpl> blockedWriters =
+        new HashMap<Object, WriteLockImpl>();
+
+    /**
+     * Returns the number of currently granted (possibly downgraded) write
+     * locks.
+     *
+     * @return number of granted write locks
+     */
+    public synchronized int getWriterCount() {
+        return writers.size();
+    }
+
+    /**
+     * Increments the reader count of the stripe of the given item and returns
+     * the acquired read lock once no other thread holds or waits for a write
+     * lock covering the item. A thread that holds a write lock itself only
+     * waits for active write locks of other threads, and not at all for the
+     * items of its own change log.
+     */
+    public synchronized ReadLock acquireReadLock(ItemId id)
+            throws InterruptedException {
+        Object currentId = getCurrentThreadId();
+        if (!isWriter(currentId)) {
+            while (isReadBlocked(id)) {
+                wait();
+            }
+        } else if (!isOwnItem(currentId, id)) {
+            WriteLockImpl blocker;
+            while ((blocker = getActiveWriter(currentId, id)) != null
+                    && !isWaitingFor(blocker.threadId, currentId)) {
+                blockedWriters.put(currentId, blocker);
+                try {
+                    wait();
+                } finally {
+                    blockedWriters.remove(currentId);
+                }
+            }
+        }
+
+        if (id != null) {
+            readerCounts[stripe(id)]++;
+        } else {
+            anonymousReaderCount++;
+        }
+        return new ReadLockImpl(id);
+    }
+
+    /**
+     * Returns the acquired write lock once no other thread holds a write lock
+     * for an intersecting change log and no read locks are held for the items
+     * of the given change log.
+     */
+    public WriteLock acquireWriteLock(ChangeLog changeLog)
+            throws InterruptedException {
+        WriteLockImpl lock = new WriteLockImpl(getCurrentThreadId(),
+                changeLog != null ? changeLog.getAffectedIds() : null);
+
+        synchronized (this) {
+            waitingWriters.add(lock);
+            boolean granted = false;
+            try {
+                while (isWriteBlocked(lock)) {
+                    wait();
+                }
+                writers.add(lock);
+                granted = true;
+            } finally {
+                waitingWriters.remove(lock);
+                if (!granted) {
+                    // readers may have been waiting for this writer
+                    notifyAll();
+                }
+            }
+        }
+        return lock;
+    }
+
+    //----------------------------< internal >----------------------------------
+
+    /**
+     * Checks whether the given thread holds a granted write lock.
+     */
+    private boolean isWriter(Object currentId) {
+        for (WriteLockImpl writer : writers) {
+            if (isSameThreadId(writer.threadId, currentId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether a write lock of the given thread covers the given item.
+     * Must be called while holding the monitor of this instance.
+     */
+    private boolean isOwnItem(Object currentId, ItemId id) {
+        for (WriteLockImpl writer : writers) {
+            if (isSameThreadId(writer.threadId, currentId)
+                    && (writer.items == null
+                            || (id != null && writer.items.contains(id)))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns an active write lock of another thread that covers the given
+     * item, or <code>null</code> if there is none. Must be called while
+     * holding the monitor of this instance.
+     */
+    private WriteLockImpl getActiveWriter(Object currentId, ItemId id) {
+        for (WriteLockImpl writer : writers) {
+            if (!writer.downgraded && writer.covers(id)
+                    && !isSameThreadId(writer.threadId, currentId)) {
+                return writer;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks whether the owner of a write lock is waiting, directly or
+     * through the owners of other write locks, for a write lock of the
+     * given thread. Must be called while holding the monitor of this
+     * instance.
+     */
+    private boolean isWaitingFor(Object ownerId, Object currentId) {
+        WriteLockImpl blocker = blockedWriters.get(ownerId);
+        while (blocker != null) {
+            if (isSameThreadId(blocker.threadId, currentId)) {
+                return true;
+            }
+            blocker = blockedWriters.get(blocker.threadId);
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether an active or pending write lock covers the given item.
+     * Must be called while holding the monitor of this instance.
+     */
+    private boolean isReadBlocked(ItemId id) {
+        for (WriteLockImpl writer : writers) {
+            if (!writer.downgraded && writer.covers(id)) {
+                return true;
+            }
+        }
+        for (WriteLockImpl writer : waitingWriters) {
+            if (writer.covers(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether the given write lock conflicts with a granted write lock
+     * of another thread or with a held read lock. Must be called while
+     * holding the monitor of this instance.
+     */
+    private boolean isWriteBlocked(WriteLockImpl lock) {
+        for (WriteLockImpl writer : writers) {
+            if (!isSameThreadId(writer.threadId, lock.threadId)
+                    && writer.intersects(lock)) {
+                return true;
+            }
+        }
+        if (anonymousReaderCount > 0) {
+            return true;
+        }
+        if (lock.items == null) {
+            for (int i = 0; i < STRIPES; i++) {
+                if (readerCounts[i] > 0) {
+                    return true;
+                }
+            }
+        } else {
+            for (ItemId id : lock.items) {
+                if (readerCounts[stripe(id)] > 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private synchronized void releaseReadLock(ItemId id) {
+        if (id != null) {
+            readerCounts[stripe(id)]--;
+        } else {
+            anonymousReaderCount--;
+        }
+        if (!waitingWriters.isEmpty()) {
+            notifyAll();
+        }
+    }
+
+    private synchronized void releaseWriteLock(WriteLockImpl lock) {
+        writers.remove(lock);
+        notifyAll();
+    }
+
+    private synchronized void downgradeWriteLock(WriteLockImpl lock) {
+        lock.downgraded = true;
+        notifyAll();
+    }
+
+    private static int stripe(ItemId id) {
+        return id.hashCode() & (STRIPES - 1);
+    }
+
+    private final class WriteLockImpl implements WriteLock {
+
+        /**
+         * Thread (or transaction) identifier of the owner of this lock.
+         */
+        private final Object threadId;
+
+        /**
+         * The covered items, or <code>null</code> for all items.
+         */
+        private final Set<ItemId> items;
+
+        /**
+         * Set once this lock has been downgraded. A downgraded lock no longer
+         * blocks readers but still keeps intersecting writers out until the
+         * observation events of the update have been dispatched.
+         */
+        private boolean downgraded = false;
+
+        WriteLockImpl(Object threadId, Set<ItemId> items) {
+            this.threadId = threadId;
+            this.items = items;
+        }
+
+        boolean covers(ItemId id) {
+            return items == null || id == null || items.contains(id);
+        }
+
+        boolean intersects(WriteLockImpl other) {
+            if (items == null || other.items == null) {
+                return true;
+            }
+            Set<ItemId> small = items;
+            Set<ItemId> large = other.items;
+            if (small.size() > large.size()) {
+                small = other.items;
+                large = items;
+            }
+            for (ItemId id : small) {
+                if (large.contains(id)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public void release() {
+            releaseWriteLock(this);
+        }
+
+        public ReadLock downgrade() {
+            downgradeWriteLock(this);
+            return new ReadLock() {
+                public void release() {
+                    releaseWriteLock(WriteLockImpl.this);
+                }
+            };
+        }
+
+    }
+
+    private final class ReadLockImpl implements ReadLock {
+
+        private final ItemId id;
+
+        ReadLockImpl(ItemId id) {
+            this.id = id;
+        }
+
+        public void release() {
+            releaseReadLock(id);
+        }
+
+    }
+
+}
@@ -50,6 +50,12 @@ public class SessionItemStateManager
 
     private static Logger log = LoggerFactory.getLogger(SessionItemStateManager.class);
 
+    /**
+     * Flag for disabling the path cache shared by the sessions of a workspace.
+     */
+    private static final boolean SHARED_PATH_CACHE = !Boolean.getBoolean(
+            "org.apache.jackrabbit.core.state.disableSharedPathCache");
+
     /**
      * State manager that allows updates
      */
@@ -93,8 +99,16 @@ public class SessionItemStateManager
             NodeId rootNodeId, LocalItemStateManager stateMgr) {
         this.stateMgr = stateMgr;
 
-        // create hierarchy manager that uses both transient and persistent state
-        hierMgr = new CachingHierarchyManager(rootNodeId, this);
+        // create hierarchy manager that uses both transient and persistent
+        // state, backed by the path cache of the workspace shared by all
+        // sessions
+        if (SHARED_PATH_CACHE) {
+            hierMgr = new CachingHierarchyManager(
+                    rootNodeId, this, stateMgr.sharedStateMgr.getHierarchyMgr());
+        } else {
+            hierMgr = new CachingHierarchyManager(rootNodeId, this,
+                    stateMgr.sharedStateMgr.getHierarchyCacheStatistics());
+        }
         addListener(hierMgr);
     }
 
@@ -331,6 +345,19 @@ public class SessionItemStateManager
         return !transientStore.isEmpty();
     }
 
+    /**
+     * Returns whether the states seen through this manager may currently
+     * differ from the persisted states of the workspace, because of transient
+     * changes or changes that have not been persisted yet by the underlying
+     * local item state manager.
+     *
+     * @return <code>true</code> if there are unsaved changes;
+     *         <code>false</code> otherwise
+     */
+    public boolean hasLocalChanges() {
+        return hasAnyTransientItemStates() || stateMgr.hasLocalChanges();
+    }
+
     /**
      * Returns a collection of those transient item state instances that are
      * direct or indirect descendants of the item state with the given parent.
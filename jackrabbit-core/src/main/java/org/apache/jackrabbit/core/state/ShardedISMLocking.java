@@ -0,0 +1,603 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.state;
+
+import static org.apache.jackrabbit.data.core.TransactionContext.getCurrentThreadId;
+import static org.apache.jackrabbit.data.core.TransactionContext.isSameThreadId;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.jackrabbit.core.id.ItemId;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.id.PropertyId;
+
+/**
+ * Item state locking strategy that splits the workspace into hash stripes
+ * of node ids, each guarded by its own read-write lock. Properties belong to
+ * the stripe of their parent node.
+ * <p>
+ * A write lock for a change log locks the stripes of all the items in the
+ * change log, of the parents of the nodes in the change log and of the
+ * targets of the node references it updates. The stripes are acquired in
+ * ascending order, so writers of intersecting change logs cannot deadlock
+ * each other, while writers of change logs that map to disjoint stripes
+ * proceed concurrently. Downgrading a write lock turns the stripe write
+ * locks into read locks: other readers can then proceed, but intersecting
+ * writers remain blocked until the observation events have been dispatched.
+ * <p>
+ * Just like with the {@link DefaultISMLocking}, the thread (or transaction)
+ * that holds a write lock can re-acquire read and write locks on its own
+ * stripes. It is not blocked by writers waiting for other stripes, but
+ * does wait while another thread holds the write lock of a stripe it reads.
+ * A writer preparing its observation events reads the ancestors of the
+ * changed items, so two writers may end up waiting for each other. Such a
+ * deadlock is detected, and broken without letting a writer read a stripe
+ * that another writer holds for write:
+ * <ul>
+ * <li>if one of the writers is still acquiring the stripes of its change
+ * log, it releases the stripes it got so far and starts over once the
+ * other writer is done;</li>
+ * <li>otherwise the writer that would complete the deadlock fails with an
+ * {@link ISMLockingDeadlockException}, so that its update is cancelled and
+ * can be retried.</li>
+ * </ul>
+ * <p>
+ * The time spent waiting for read and write locks is recorded in the
+ * {@link #getStatistics() statistics} of this instance, which are exposed
+ * over JMX for each workspace using this strategy. Configuration:
+ * <pre>
+ *   &lt;ISMLocking class="org.apache.jackrabbit.core.state.ShardedISMLocking"&gt;
+ *     &lt;param name="stripes" value="1024"/&gt;
+ *     &lt;param name="writerPreference" value="true"/&gt;
+ *   &lt;/ISMLocking&gt;
+ * </pre>
+ */
+public class ShardedISMLocking implements ISMLocking {
+
+    /**
+     * Default number of stripes.
+     */
+    public static final int DEFAULT_STRIPES = 1024;
+
+    /**
+     * Number of milliseconds after which a writer waiting for a lock checks
+     * again whether it is part of a deadlock.
+     */
+    private static final long DEADLOCK_CHECK_INTERVAL = 10;
+
+    /**
+     * Results of {@link #startWaiting(Object, Object, boolean)}.
+     */
+    private static final int NO_DEADLOCK = 0;
+
+    private static final int DEADLOCK = 1;
+
+    private static final int DEADLOCK_WITH_ACQUIRING_WRITER = 2;
+
+    /**
+     * The stripe locks.
+     */
+    private Stripe[] stripes = createStripes(DEFAULT_STRIPES);
+
+    /**
+     * Flag for determining whether this locking strategy should give
+     * preference to writers or not. If writers are preferred (which is the
+     * default setting), then readers of a stripe get blocked whenever there
+     * is a writer waiting for that stripe.
+     */
+    private boolean writerPreference = true;
+
+    /**
+     * Thread identifiers of the current holders of (possibly downgraded)
+     * write locks, mapped to the number of write locks they hold.
+     */
+    private final Map<Object, Integer> writers =
+        new ConcurrentHashMap<Object, Integer>();
+
+    /**
+     * Thread identifiers of threads waiting for a stripe, mapped to the
+     * thread identifier of the write lock owner of that stripe. Used to
+     * detect deadlocks between writers.
+     */
+    private final Map<Object, Object> blockedWriters =
+        new HashMap<Object, Object>();
+
+    /**
+     * Thread identifiers of the blocked writers that are still acquiring the
+     * stripes of their change log, and can therefore back off.
+     */
+    private final Set<Object> acquiringWriters = new HashSet<Object>();
+
+    /**
+     * Lock wait statistics.
+     */
+    private final ISMLockingStatistics statistics = new ISMLockingStatistics();
+
+    /**
+     * Returns the number of stripes.
+     *
+     * @return number of stripes
+     */
+    public int getStripes() {
+        return stripes.length;
+    }
+
+    /**
+     * Sets the number of stripes. Must be called before the first lock is
+     * acquired.
+     *
+     * @param count number of stripes
+     */
+    public void setStripes(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException(
+                    "Invalid number of stripes: " + count);
+        }
+        this.stripes = createStripes(count);
+    }
+
+    /**
+     * Returns the writer preference status of this locking strategy.
+     *
+     * @return writer preference
+     */
+    public boolean isWriterPreference() {
+        return writerPreference;
+    }
+
+    /**
+     * Sets the writer preference status of this locking strategy.
+     *
+     * @param preference writer preference
+     */
+    public void setWriterPreference(boolean preference) {
+        this.writerPreference = preference;
+    }
+
+    /**
+     * Returns the lock wait statistics of this locking strategy.
+     *
+     * @return lock wait statistics
+     */
+    public ISMLockingStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Acquires a read lock on the stripe of the given item. A <code>null</code>
+     * id acquires a read lock on all stripes.
+     */
+    public ReadLock acquireReadLock(ItemId id) throws InterruptedException {
+        Object currentId = getCurrentThreadId();
+        boolean writer = !writers.isEmpty() && writers.containsKey(currentId);
+        if (id == null) {
+            BitSet all = new BitSet(stripes.length);
+            all.set(0, stripes.length);
+            return acquireReadLocks(all, currentId, writer);
+        }
+
+        final Stripe stripe = stripes[getStripe(id)];
+        stripe.acquireRead(currentId, writer);
+        return new ReadLock() {
+            public void release() {
+                stripe.releaseRead();
+            }
+        };
+    }
+
+    /**
+     * Acquires write locks on the stripes of the given change log, in
+     * ascending order. A <code>null</code> change log locks all stripes.
+     */
+    public WriteLock acquireWriteLock(ChangeLog changeLog)
+            throws InterruptedException {
+        Object currentId = getCurrentThreadId();
+        BitSet set = getStripes(changeLog);
+
+        long start = System.nanoTime();
+        boolean waited = false;
+        int acquired = -1;
+        try {
+            int i = set.nextSetBit(0);
+            while (i >= 0) {
+                int result = stripes[i].acquireWrite(currentId, acquired >= 0);
+                if (result == Stripe.BACK_OFF) {
+                    // release the stripes we got so far, and start over once
+                    // the other writer is done so that we don't take them
+                    // away from it again
+                    for (int j = set.nextSetBit(0);
+                            j >= 0 && j <= acquired; j = set.nextSetBit(j + 1)) {
+                        stripes[j].releaseWrite(false);
+                    }
+                    acquired = -1;
+                    stripes[i].awaitRelease(currentId);
+                    i = set.nextSetBit(0);
+                } else {
+                    acquired = i;
+                    i = set.nextSetBit(i + 1);
+                }
+                waited |= result != Stripe.ACQUIRED;
+            }
+        } finally {
+            if (acquired != set.length() - 1) {
+                // interrupted, release the stripes we got so far
+                for (int i = set.nextSetBit(0);
+                        i >= 0 && i <= acquired; i = set.nextSetBit(i + 1)) {
+                    stripes[i].releaseWrite(false);
+                }
+            }
+        }
+        statistics.recordWriteWait(waited ? System.nanoTime() - start : 0);
+
+        addWriter(currentId);
+        return new WriteLockImpl(set, currentId);
+    }
+
+    //----------------------------< internal >----------------------------------
+
+    private ReadLock acquireReadLocks(
+            final BitSet set, Object currentId, boolean writer)
+            throws InterruptedException {
+        int acquired = -1;
+        try {
+            for (int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i + 1)) {
+                stripes[i].acquireRead(currentId, writer);
+                acquired = i;
+            }
+        } finally {
+            if (acquired != set.length() - 1) {
+                for (int i = set.nextSetBit(0);
+                        i >= 0 && i <= acquired; i = set.nextSetBit(i + 1)) {
+                    stripes[i].releaseRead();
+                }
+            }
+        }
+        return new ReadLock() {
+            public void release() {
+                for (int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i + 1)) {
+                    stripes[i].releaseRead();
+                }
+            }
+        };
+    }
+
+    private synchronized void addWriter(Object threadId) {
+        Integer count = writers.get(threadId);
+        writers.put(threadId, count == null ? 1 : count + 1);
+    }
+
+    private synchronized void removeWriter(Object threadId) {
+        Integer count = writers.get(threadId);
+        if (count == null || count == 1) {
+            writers.remove(threadId);
+        } else {
+            writers.put(threadId, count - 1);
+        }
+    }
+
+    /**
+     * Registers the current thread as waiting for the owner of a stripe
+     * write lock, unless the owner is waiting, directly or through other
+     * threads, for the current thread and the current thread has to give
+     * up. The check and the registration are atomic, so only one of the
+     * threads of a deadlock can detect it.
+     *
+     * @param currentId thread identifier of the current thread
+     * @param ownerId thread identifier of the owner
+     * @param acquiring whether the current thread is acquiring the stripes
+     *                  of its change log and backs off from any deadlock
+     * @return {@link #NO_DEADLOCK}, {@link #DEADLOCK} if waiting for the
+     *         owner would deadlock, or {@link #DEADLOCK_WITH_ACQUIRING_WRITER}
+     *         if one of the other threads of the deadlock backs off
+     */
+    private synchronized int startWaiting(
+            Object currentId, Object ownerId, boolean acquiring) {
+        boolean backOff = false;
+        int deadlock = NO_DEADLOCK;
+        Object id = ownerId;
+        for (int i = 0; id != null && i <= blockedWriters.size(); i++) {
+            if (isSameThreadId(id, currentId)) {
+                deadlock = backOff ? DEADLOCK_WITH_ACQUIRING_WRITER : DEADLOCK;
+                break;
+            }
+            backOff |= acquiringWriters.contains(id);
+            id = blockedWriters.get(id);
+        }
+        if (deadlock == NO_DEADLOCK
+                || (deadlock == DEADLOCK_WITH_ACQUIRING_WRITER && !acquiring)) {
+            blockedWriters.put(currentId, ownerId);
+            if (acquiring) {
+                acquiringWriters.add(currentId);
+            }
+        }
+        return deadlock;
+    }
+
+    private synchronized void stopWaiting(Object currentId) {
+        blockedWriters.remove(currentId);
+        acquiringWriters.remove(currentId);
+    }
+
+    /**
+     * Returns the stripe of the given item.
+     *
+     * @param id item id
+     * @return stripe index
+     */
+    int getStripe(ItemId id) {
+        NodeId nodeId;
+        if (id.denotesNode()) {
+            nodeId = (NodeId) id;
+        } else {
+            nodeId = ((PropertyId) id).getParentId();
+        }
+        return (nodeId.hashCode() & Integer.MAX_VALUE) % stripes.length;
+    }
+
+    /**
+     * Returns the stripes to lock for the given change log.
+     *
+     * @param changeLog change log, or <code>null</code> for all stripes
+     * @return stripe indexes
+     */
+    BitSet getStripes(ChangeLog changeLog) {
+        BitSet set = new BitSet(stripes.length);
+        if (changeLog == null) {
+            set.set(0, stripes.length);
+            return set;
+        }
+
+        for (ItemId id : changeLog.getAffectedIds()) {
+            set.set(getStripe(id));
+        }
+        addParents(set, changeLog.addedStates());
+        addParents(set, changeLog.modifiedStates());
+        addParents(set, changeLog.deletedStates());
+        return set;
+    }
+
+    private void addParents(BitSet set, Iterable<ItemState> states) {
+        for (ItemState state : states) {
+            if (state.isNode()) {
+                NodeId parentId = state.getParentId();
+                if (parentId != null) {
+                    set.set(getStripe(parentId));
+                }
+            }
+        }
+    }
+
+    private Stripe[] createStripes(int count) {
+        Stripe[] stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Stripe();
+        }
+        return stripes;
+    }
+
+    private final class WriteLockImpl implements WriteLock {
+
+        private final BitSet set;
+
+        private final Object threadId;
+
+        WriteLockImpl(BitSet set, Object threadId) {
+            this.set = set;
+            this.threadId = threadId;
+        }
+
+        public void release() {
+            for (int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i + 1)) {
+                stripes[i].releaseWrite(false);
+            }
+            removeWriter(threadId);
+        }
+
+        public ReadLock downgrade() {
+            for (int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i + 1)) {
+                stripes[i].releaseWrite(true);
+            }
+            return new ReadLock() {
+                public void release() {
+                    for (int i = set.nextSetBit(0);
+                            i >= 0; i = set.nextSetBit(i + 1)) {
+                        stripes[i].releaseRead();
+                    }
+                    removeWriter(threadId);
+                }
+            };
+        }
+
+    }
+
+    /**
+     * A read-write lock of a single stripe, with the same semantics as the
+     * {@link DefaultISMLocking}.
+     */
+    private final class Stripe {
+
+        /**
+         * Results of {@link #acquireWrite(Object, boolean)}.
+         */
+        static final int ACQUIRED = 0;
+
+        static final int ACQUIRED_AFTER_WAIT = 1;
+
+        static final int BACK_OFF = 2;
+
+        /**
+         * Number of writer threads waiting.
+         */
+        private int writersWaiting = 0;
+
+        /**
+         * The thread identifier of the current writer, retained while the
+         * downgraded lock is held.
+         */
+        private Object writerId = null;
+
+        /**
+         * Number of acquired write locks.
+         */
+        private int writerCount = 0;
+
+        /**
+         * Number of acquired read locks.
+         */
+        private int readerCount = 0;
+
+        /**
+         * Acquires a read lock. Readers that hold a write lock on some other
+         * stripe do not wait for pending writers. They fail once the owner
+         * of the write lock of this stripe waits for them, unless a writer
+         * that is still acquiring its stripes can back off instead.
+         *
+         * @throws ISMLockingDeadlockException if a reader that holds a
+         *         write lock would deadlock with the owner of this stripe
+         */
+        synchronized void acquireRead(Object currentId, boolean writer)
+                throws InterruptedException {
+            if (isReadBlocked(currentId, writer)) {
+                long start = System.nanoTime();
+                if (writer) {
+                    // the owner may start waiting for us while we wait,
+                    // so check for a deadlock at regular intervals
+                    while (isReadBlocked(currentId, true)) {
+                        if (startWaiting(currentId, writerId, false)
+                                == DEADLOCK) {
+                            statistics.recordReadWait(System.nanoTime() - start);
+                            throw new ISMLockingDeadlockException(
+                                    "Deadlock between writers of intersecting"
+                                    + " stripes");
+                        }
+                        try {
+                            wait(DEADLOCK_CHECK_INTERVAL);
+                        } finally {
+                            stopWaiting(currentId);
+                        }
+                    }
+                } else {
+                    do {
+                        wait();
+                    } while (isReadBlocked(currentId, false));
+                }
+                statistics.recordReadWait(System.nanoTime() - start);
+            } else {
+                statistics.recordReadWait(0);
+            }
+            readerCount++;
+        }
+
+        private boolean isReadBlocked(Object currentId, boolean writer) {
+            return writerId != null
+                ? (writerCount > 0 && !isSameThreadId(writerId, currentId))
+                : (!writer && writerPreference && writersWaiting > 0);
+        }
+
+        synchronized void releaseRead() {
+            readerCount--;
+            if (readerCount == 0 && writerCount == 0) {
+                writerId = null;
+                notifyAll();
+            }
+        }
+
+        /**
+         * Acquires a write lock. A thread that holds the write locks of other
+         * stripes backs off instead of completing a deadlock with the owner
+         * of this stripe.
+         *
+         * @param holding whether the calling thread holds the write locks of
+         *                other stripes of its change log
+         * @return {@link #ACQUIRED}, {@link #ACQUIRED_AFTER_WAIT}, or
+         *         {@link #BACK_OFF} if the lock was not acquired and the
+         *         calling thread has to release its other stripes
+         */
+        synchronized int acquireWrite(Object currentId, boolean holding)
+                throws InterruptedException {
+            boolean waited = false;
+            writersWaiting++;
+            try {
+                while (writerId != null
+                        ? !isSameThreadId(writerId, currentId)
+                        : readerCount > 0) {
+                    waited = true;
+                    if (writerId == null) {
+                        // readers hold their lock only while reading
+                        wait();
+                        continue;
+                    }
+                    if (startWaiting(currentId, writerId, holding)
+                            != NO_DEADLOCK && holding) {
+                        return BACK_OFF;
+                    }
+                    try {
+                        if (holding) {
+                            wait(DEADLOCK_CHECK_INTERVAL);
+                        } else {
+                            wait();
+                        }
+                    } finally {
+                        stopWaiting(currentId);
+                    }
+                }
+            } finally {
+                writersWaiting--;
+                if (writersWaiting == 0 && writerCount == 0) {
+                    // readers may be waiting for us (writer preference)
+                    notifyAll();
+                }
+            }
+
+            if (writerCount++ == 0) {
+                writerId = currentId;
+            }
+            return waited ? ACQUIRED_AFTER_WAIT : ACQUIRED;
+        }
+
+        /**
+         * Waits until the owner of the write lock of this stripe has
+         * released its (possibly downgraded) lock.
+         */
+        synchronized void awaitRelease(Object currentId)
+                throws InterruptedException {
+            while (writerId != null && !isSameThreadId(writerId, currentId)) {
+                wait();
+            }
+        }
+
+        synchronized void releaseWrite(boolean downgrade) {
+            writerCount--;
+            if (downgrade) {
+                readerCount++;
+            }
+            if (writerCount == 0) {
+                if (readerCount == 0) {
+                    writerId = null;
+                }
+                notifyAll();
+            }
+        }
+
+    }
+
+}
@@ -16,6 +16,8 @@
  */
 package org.apache.jackrabbit.core.state;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -27,6 +29,8 @@ import javax.jcr.ReferentialIntegrityException;
 import javax.jcr.RepositoryException;
 import javax.jcr.nodetype.NoSuchNodeTypeException;
 
+import org.apache.jackrabbit.core.CachingHierarchyManager;
+import org.apache.jackrabbit.core.HierarchyCacheStatistics;
 import org.apache.jackrabbit.core.RepositoryImpl;
 import org.apache.jackrabbit.core.cluster.ClusterException;
 import org.apache.jackrabbit.core.cluster.UpdateEventChannel;
@@ -42,6 +46,7 @@ import org.apache.jackrabbit.core.observation.EventStateCollection;
 import org.apache.jackrabbit.core.observation.EventStateCollectionFactory;
 import org.apache.jackrabbit.core.persistence.CachingPersistenceManager;
 import org.apache.jackrabbit.core.persistence.PersistenceManager;
+import org.apache.jackrabbit.core.persistence.PrefetchingPersistenceManager;
 import org.apache.jackrabbit.core.value.InternalValue;
 import org.apache.jackrabbit.core.virtual.VirtualItemStateProvider;
 import org.apache.jackrabbit.spi.Name;
@@ -126,12 +131,24 @@ public class SharedItemStateManager
     private static final boolean VALIDATE_HIERARCHY =
         Boolean.getBoolean("org.apache.jackrabbit.core.state.validatehierarchy");
 
+    /**
+     * Maximum number of superseded states retained for the open read
+     * snapshots. Once exceeded, the oldest snapshots expire.
+     */
+    private static final int MAX_SNAPSHOT_VERSIONS = Integer.getInteger(
+            "org.apache.jackrabbit.core.state.maxSnapshotVersions", 100000);
+
     /**
      * cache of weak references to ItemState objects issued by this
      * ItemStateManager
      */
     private final ItemStateCache cache;
 
+    /**
+     * The factory of the caches that back the {@link #cache}.
+     */
+    private final ItemStateCacheFactory cacheFactory;
+
     /**
      * Persistence Manager used for loading and storing items
      */
@@ -190,6 +207,24 @@ public class SharedItemStateManager
 
     private final NodeIdFactory nodeIdFactory;
 
+    /**
+     * Hierarchy manager shared by all sessions of this workspace; lazily
+     * instantiated in {@link #getHierarchyMgr()}
+     */
+    private volatile CachingHierarchyManager hierMgr;
+
+    /**
+     * Path cache statistics of the hierarchy managers of this workspace
+     */
+    private volatile HierarchyCacheStatistics hierarchyCacheStatistics =
+        new HierarchyCacheStatistics();
+
+    /**
+     * Superseded states retained for the open read snapshots.
+     */
+    private final ItemStateHistory history =
+        new ItemStateHistory(MAX_SNAPSHOT_VERSIONS);
+
     /**
      * Creates a new <code>SharedItemStateManager</code> instance.
      *
@@ -206,6 +241,7 @@ public class SharedItemStateManager
                                   NodeIdFactory nodeIdFactory)
             throws ItemStateException {
         cache = new ItemStateReferenceCache(cacheFactory);
+        this.cacheFactory = cacheFactory;
         this.persistMgr = persistMgr;
         this.ntReg = ntReg;
         this.usesReferences = usesReferences;
@@ -251,6 +287,42 @@ public class SharedItemStateManager
         this.ismLocking = ismLocking;
     }
 
+    /**
+     * Sets the path cache statistics that the hierarchy managers of this
+     * workspace record their cache hits and misses in. Must be called
+     * before the {@link #getHierarchyMgr() shared hierarchy manager} is
+     * first used.
+     *
+     * @param statistics path cache statistics
+     */
+    public void setHierarchyCacheStatistics(
+            HierarchyCacheStatistics statistics) {
+        if (statistics == null) {
+            throw new NullPointerException();
+        }
+        this.hierarchyCacheStatistics = statistics;
+    }
+
+    /**
+     * Returns the path cache statistics of the hierarchy managers of this
+     * workspace.
+     *
+     * @return path cache statistics
+     */
+    public HierarchyCacheStatistics getHierarchyCacheStatistics() {
+        return hierarchyCacheStatistics;
+    }
+
+    /**
+     * Returns the factory of the caches in which this item state manager
+     * keeps its item states.
+     *
+     * @return item state cache factory
+     */
+    public ItemStateCacheFactory getItemStateCacheFactory() {
+        return cacheFactory;
+    }
+
     //-----------------------------------------------------< ItemStateManager >
     /**
      * {@inheritDoc}
@@ -473,6 +545,195 @@ public class SharedItemStateManager
         cache.evictAll();
     }
 
+    /**
+     * Returns a caching hierarchy manager over the persisted states of this
+     * item state manager. Its path cache is kept up to date by the change
+     * notifications of this item state manager, so it can be shared by all
+     * the sessions of the workspace to resolve the paths of items they have
+     * not modified.
+     *
+     * @return the shared hierarchy manager
+     */
+    public CachingHierarchyManager getHierarchyMgr() {
+        CachingHierarchyManager hierMgr = this.hierMgr;
+        if (hierMgr == null) {
+            synchronized (this) {
+                hierMgr = this.hierMgr;
+                if (hierMgr == null) {
+                    hierMgr = new CachingHierarchyManager(
+                            rootNodeId, this, getHierarchyCacheStatistics());
+                    addListener(hierMgr);
+                    this.hierMgr = hierMgr;
+                }
+            }
+        }
+        return hierMgr;
+    }
+
+    /**
+     * Opens a read snapshot of the persisted states. Until the snapshot is
+     * {@link #closeSnapshot(long) closed}, {@link #getItemState(ItemId, long)}
+     * returns the states as they were when the snapshot was opened: the
+     * states superseded by later updates are retained by this item state
+     * manager. Readers of a snapshot neither block nor get invalidated by
+     * writers.
+     * <p>
+     * Only the states of this item state manager are versioned, the states
+     * of virtual item state providers, node references and changes made
+     * by other cluster nodes are not isolated. At most
+     * <code>org.apache.jackrabbit.core.state.maxSnapshotVersions</code>
+     * (by default 100000) superseded states are retained. When more would
+     * be needed the oldest snapshots expire, and reading from them fails.
+     *
+     * @return revision of the snapshot
+     * @throws ItemStateException if the snapshot could not be opened
+     */
+    public long openSnapshot() throws ItemStateException {
+        // wait for the updates in progress, so that the snapshot
+        // contains each update either completely or not at all
+        ISMLocking.ReadLock readLock = acquireReadLock(null);
+        try {
+            return history.openSnapshot();
+        } finally {
+            readLock.release();
+        }
+    }
+
+    /**
+     * Closes a read snapshot, discarding the superseded states that are no
+     * longer needed.
+     *
+     * @param snapshot revision of the snapshot
+     */
+    public void closeSnapshot(long snapshot) {
+        history.closeSnapshot(snapshot);
+    }
+
+    /**
+     * Returns the state of an item as seen by an open read snapshot. The
+     * returned state is detached from the shared states and must not be
+     * modified.
+     *
+     * @param id item id
+     * @param snapshot revision of the snapshot
+     * @return item state
+     * @throws NoSuchItemStateException if the item did not exist
+     * @throws ItemStateException if the snapshot has expired, or if another
+     *                            error occurs
+     * @see #openSnapshot()
+     */
+    public ItemState getItemState(ItemId id, long snapshot)
+            throws NoSuchItemStateException, ItemStateException {
+        for (VirtualItemStateProvider virtualProvider : virtualProviders) {
+            if (virtualProvider.isVirtualRoot(id)) {
+                return virtualProvider.getItemState(id);
+            }
+        }
+
+        NoSuchItemStateException ex;
+        ISMLocking.ReadLock readLock = acquireReadLock(id);
+        try {
+            ItemStateHistory.Version version = history.getVersion(id, snapshot);
+            if (version != null) {
+                if (version.state == null) {
+                    throw new NoSuchItemStateException(id.toString());
+                }
+                return version.state;
+            }
+            // copy while holding the lock, later updates of the
+            // shared state are recorded in the history
+            return ItemStateHistory.copyOf(getNonVirtualItemState(id));
+        } catch (NoSuchItemStateException e) {
+            ex = e;
+        } finally {
+            readLock.release();
+        }
+
+        for (VirtualItemStateProvider virtualProvider : virtualProviders) {
+            if (virtualProvider.hasItemState(id)) {
+                return virtualProvider.getItemState(id);
+            }
+        }
+        throw ex;
+    }
+
+    /**
+     * Returns whether an item existed when the given read snapshot was
+     * opened.
+     *
+     * @param id item id
+     * @param snapshot revision of the snapshot
+     * @return <code>true</code> if the item exists in the snapshot;
+     *         <code>false</code> otherwise or if the snapshot has expired
+     * @see #openSnapshot()
+     */
+    public boolean hasItemState(ItemId id, long snapshot) {
+        for (VirtualItemStateProvider virtualProvider : virtualProviders) {
+            if (virtualProvider.isVirtualRoot(id)) {
+                return true;
+            }
+        }
+
+        ISMLocking.ReadLock readLock;
+        try {
+            readLock = acquireReadLock(id);
+        } catch (ItemStateException e) {
+            return false;
+        }
+        try {
+            ItemStateHistory.Version version = history.getVersion(id, snapshot);
+            if (version != null) {
+                return version.state != null;
+            }
+            // check the current state while still holding the lock, so
+            // that an update can not slip in between
+            if (hasNonVirtualItemState(id)) {
+                return true;
+            }
+        } catch (ItemStateException e) {
+            log.debug("Unable to check item " + id + " in snapshot", e);
+            return false;
+        } finally {
+            readLock.release();
+        }
+
+        for (VirtualItemStateProvider virtualProvider : virtualProviders) {
+            if (virtualProvider.hasItemState(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Prefetches the states of the given nodes, so that they can be loaded
+     * without accessing the underlying storage for each node. This is a
+     * no-op unless the persistence manager implements
+     * {@link PrefetchingPersistenceManager}. Nodes that are already cached
+     * are ignored, and since prefetching is only an optimization, failures
+     * are logged and otherwise ignored.
+     *
+     * @param ids the ids of the nodes that are about to be accessed
+     */
+    public void prefetch(Collection<NodeId> ids) {
+        if (!(persistMgr instanceof PrefetchingPersistenceManager)) {
+            return;
+        }
+        List<NodeId> missing = new ArrayList<NodeId>(ids.size());
+        for (NodeId id : ids) {
+            if (!cache.isCached(id)) {
+                missing.add(id);
+            }
+        }
+        if (missing.size() > 1) {
+            try {
+                ((PrefetchingPersistenceManager) persistMgr).prefetch(missing);
+            } catch (ItemStateException e) {
+                log.warn("Unable to prefetch " + missing.size() + " nodes", e);
+            }
+        }
+    }
+
     /**
      * Adds a new virtual item state provider.<p/>
      * NOTE: This method is not synchronized, because it is called right after
@@ -565,6 +826,12 @@ public class SharedItemStateManager
          * If this method succeeds, a write lock will have been acquired on the
          * item state manager and either {@link #end()} or {@link #cancel()} has
          * to be called in order to release it.
+         * <p>
+         * Depending on the locking strategy, updates of change logs that
+         * touch disjoint sets of items may run concurrently (see
+         * {@link OptimisticISMLocking}). Conflicting changes are detected
+         * by comparing the modification counts of the local and shared
+         * states once the write lock has been acquired.
          */
         public void begin() throws ItemStateException, ReferentialIntegrityException {
             shared = new ChangeLog();
@@ -767,11 +1034,19 @@ public class SharedItemStateManager
                     }
                 }
 
+                // retain the current states for open read snapshots
+                history.record(shared);
+
                 /* Push all changes from the local items to the shared items */
                 local.push();
 
                 succeeded = true;
 
+            } catch (ISMLockingDeadlockException e) {
+                // cancelling releases the write lock another writer waits for
+                String msg = "Concurrent update of intersecting items, please retry";
+                log.debug(msg, e);
+                throw new StaleItemStateException(msg, e);
             } finally {
                 if (!succeeded) {
                     cancel();
@@ -1793,12 +2068,14 @@ public class SharedItemStateManager
         try {
             // Load the item state from persistent storage
             // NOTE: This needs to happen outside a synchronized block!
+            long time = System.nanoTime();
             state = loadItemState(id);
             state.setStatus(ItemState.STATUS_EXISTING);
             state.setContainer(this);
 
             // put it in cache
             cache.cache(state);
+            cache.recordMissDuration(System.nanoTime() - time);
 
             return state;
         } finally {
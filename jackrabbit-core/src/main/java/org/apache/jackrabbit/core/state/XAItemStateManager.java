@@ -220,6 +220,17 @@ public class XAItemStateManager extends LocalItemStateManager implements Interna
         return changeLog;
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Changes made within a transaction are not visible to other sessions
+     * until the transaction is committed, so this method returns
+     * <code>true</code> while this manager is associated to a transaction.
+     */
+    public boolean hasLocalChanges() {
+        return getChangeLog() != null || super.hasLocalChanges();
+    }
+
     /**
      * @throws UnsupportedOperationException always.
      */
@@ -299,7 +310,7 @@ public class XAItemStateManager extends LocalItemStateManager implements Interna
             }
         }
         // 3) fallback to shared ism
-        return sharedStateMgr.hasItemState(id);
+        return hasSharedItemState(id);
     }
 
     /**
@@ -0,0 +1,193 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.util;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Thread-safe map with hard referenced keys and weakly referenced values,
+ * backed by a {@link ConcurrentHashMap}. Lookups never block. Entries whose
+ * values have been garbage collected are removed on the next update.
+ * <p>
+ * Values are compared by identity.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class ConcurrentWeakValueMap<K, V> {
+
+    private final ConcurrentMap<K, WeakValue<K, V>> map =
+        new ConcurrentHashMap<K, WeakValue<K, V>>();
+
+    private final ReferenceQueue<V> queue = new ReferenceQueue<V>();
+
+    /**
+     * Returns the value mapped to the given key.
+     *
+     * @param key key
+     * @return value, or <code>null</code> if there is none or it has been
+     *         garbage collected
+     */
+    public V get(K key) {
+        WeakValue<K, V> ref = map.get(key);
+        if (ref != null) {
+            return ref.get();
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Maps the given key to the given value.
+     *
+     * @param key key
+     * @param value value
+     * @return the value previously mapped to the key, or <code>null</code>
+     */
+    public V put(K key, V value) {
+        purge();
+        WeakValue<K, V> old = map.put(key, new WeakValue<K, V>(key, value, queue));
+        if (old != null) {
+            return old.get();
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Maps the given key to the given value unless it is already mapped to
+     * a value that has not been garbage collected.
+     *
+     * @param key key
+     * @param value value
+     * @return the value the key is mapped to, or <code>null</code> if the
+     *         given value has been added
+     */
+    public V putIfAbsent(K key, V value) {
+        purge();
+        WeakValue<K, V> ref = new WeakValue<K, V>(key, value, queue);
+        while (true) {
+            WeakValue<K, V> old = map.putIfAbsent(key, ref);
+            if (old == null) {
+                return null;
+            }
+            V current = old.get();
+            if (current != null) {
+                return current;
+            }
+            if (map.replace(key, old, ref)) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Removes the value mapped to the given key.
+     *
+     * @param key key
+     * @return the removed value, or <code>null</code>
+     */
+    public V remove(K key) {
+        purge();
+        WeakValue<K, V> old = map.remove(key);
+        if (old != null) {
+            return old.get();
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Removes the mapping of the given key if it maps to the given value.
+     *
+     * @param key key
+     * @param value value
+     * @return whether the mapping was removed
+     */
+    public boolean remove(K key, V value) {
+        purge();
+        WeakValue<K, V> ref = map.get(key);
+        return ref != null && ref.get() == value && map.remove(key, ref);
+    }
+
+    /**
+     * Removes all mappings.
+     */
+    public void clear() {
+        map.clear();
+        while (queue.poll() != null) {
+            // discard, the map is already empty
+        }
+    }
+
+    /**
+     * Returns the number of mappings, including those whose values have
+     * been garbage collected but not yet been removed.
+     *
+     * @return number of mappings
+     */
+    public int size() {
+        purge();
+        return map.size();
+    }
+
+    /**
+     * Returns a snapshot of the values that have not been garbage collected.
+     *
+     * @return values
+     */
+    public List<V> values() {
+        List<V> values = new ArrayList<V>(map.size());
+        for (WeakValue<K, V> ref : map.values()) {
+            V value = ref.get();
+            if (value != null) {
+                values.add(value);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Removes the entries whose values have been garbage collected.
+     */
+    @SuppressWarnings("unchecked")
+    private void purge() {
+        Reference<? extends V> ref;
+        while ((ref = queue.poll()) != null) {
+            WeakValue<K, V> value = (WeakValue<K, V>) ref;
+            map.remove(value.key, value);
+        }
+    }
+
+    private static class WeakValue<K, V> extends WeakReference<V> {
+
+        private final K key;
+
+        public WeakValue(K key, V value, ReferenceQueue<V> queue) {
+            super(value, queue);
+            this.key = key;
+        }
+
+    }
+
+}
@@ -49,6 +49,14 @@ import org.slf4j.LoggerFactory;
  * <p>
  * All read operations must acquire the read lock before reading, all write
  * operations must acquire the write lock.
+ * <p>
+ * Note that write operations on unrelated version histories are serialized
+ * as well: all of them are edited through the single
+ * {@link LocalItemStateManager} of the version storage, which keeps the
+ * changes of one operation at a time and is not thread-safe, and the
+ * version items cached by this manager share its item states. Locking per
+ * version history would need a change log and local item state manager per
+ * operation.
  */
 abstract class InternalVersionManagerBase implements InternalVersionManager {
 
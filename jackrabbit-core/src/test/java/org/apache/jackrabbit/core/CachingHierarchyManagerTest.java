@@ -18,6 +18,7 @@ package org.apache.jackrabbit.core;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
 
 import junit.framework.TestCase;
 
@@ -314,6 +315,107 @@ public class CachingHierarchyManagerTest extends TestCase {
         assertEquals(toPath("/a1/b1"), path);
     }
 
+    /**
+     * Verify that path lookups are counted in the cache statistics.
+     */
+    public void testStatistics() throws Exception {
+        StaticItemStateManager ism = new StaticItemStateManager();
+        cache = new CachingHierarchyManager(ism.getRootNodeId(), ism);
+        ism.setContainer(cache);
+        NodeState a = ism.addNode(ism.getRoot(), "a");
+        NodeState b = ism.addNode(a, "b");
+
+        HierarchyCacheStatistics statistics = cache.getStatistics();
+        Path path = toPath("/a/b");
+        assertEquals(b.getNodeId(), cache.resolveNodePath(path));
+        long misses = statistics.getMissCount();
+        assertTrue(misses > 0);
+        assertEquals(b.getNodeId(), cache.resolveNodePath(path));
+        assertEquals(path, cache.getPath(b.getNodeId()));
+        assertTrue(statistics.getHitCount() >= 2);
+        assertTrue(statistics.getHitRatio() > 0);
+
+        long invalidations = statistics.getInvalidationCount();
+        ism.renameNode(b, "c");
+        assertTrue(statistics.getInvalidationCount() > invalidations);
+        assertEquals(toPath("/a/c"), cache.getPath(b.getNodeId()));
+        assertEquals(CachingHierarchyManager.DEFAULT_UPPER_LIMIT,
+                statistics.getSizeLimit());
+
+        // other instances record their lookups in their own statistics
+        CachingHierarchyManager other =
+            new CachingHierarchyManager(ism.getRootNodeId(), ism);
+        long hits = statistics.getHitCount();
+        other.resolveNodePath(path);
+        assertEquals(hits, statistics.getHitCount());
+        assertTrue(other.getStatistics().getMissCount() > 0);
+    }
+
+    /**
+     * Verify that lookups bypass the cache while another thread holds its
+     * lock, and that the notifications received in the meantime are queued
+     * and applied in one batch by the next thread that gets the lock.
+     */
+    public void testBypassAndQueuedInvalidations() throws Exception {
+        StaticItemStateManager ism = new StaticItemStateManager();
+        HierarchyCacheStatistics statistics = new HierarchyCacheStatistics();
+        cache = new CachingHierarchyManager(
+                ism.getRootNodeId(), ism, statistics);
+        ism.setContainer(cache);
+        NodeState a = ism.addNode(ism.getRoot(), "a");
+        NodeState b = ism.addNode(a, "b");
+        NodeState c = ism.addNode(a, "c");
+        assertEquals(toPath("/a/b"), cache.getPath(b.getNodeId()));
+        assertEquals(toPath("/a/c"), cache.getPath(c.getNodeId()));
+
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch unlock = new CountDownLatch(1);
+        Thread writer = new Thread() {
+            public void run() {
+                cache.getCacheLock().writeLock().lock();
+                try {
+                    locked.countDown();
+                    unlock.await();
+                } catch (InterruptedException e) {
+                    exception = e;
+                } finally {
+                    cache.getCacheLock().writeLock().unlock();
+                }
+            }
+        };
+        writer.start();
+        locked.await();
+        try {
+            long bypassed = statistics.getBypassCount();
+            assertEquals(b.getNodeId(), cache.resolveNodePath(toPath("/a/b")));
+            assertTrue(statistics.getBypassCount() > bypassed);
+
+            long batches = statistics.getInvalidationBatchCount();
+            ism.renameNode(b, "b1");
+            ism.renameNode(c, "c1");
+            assertEquals(batches, statistics.getInvalidationBatchCount());
+
+            // the pending invalidations must not be bypassed by stale paths
+            bypassed = statistics.getBypassCount();
+            assertEquals(toPath("/a/b1"), cache.getPath(b.getNodeId()));
+            assertEquals(c.getNodeId(), cache.resolveNodePath(toPath("/a/c1")));
+            assertNull(cache.resolveNodePath(toPath("/a/b")));
+            assertTrue(statistics.getBypassCount() > bypassed);
+        } finally {
+            unlock.countDown();
+            writer.join();
+        }
+        assertNull(exception);
+
+        long batches = statistics.getInvalidationBatchCount();
+        long bypassed = statistics.getBypassCount();
+        assertEquals(toPath("/a/c1"), cache.getPath(c.getNodeId()));
+        assertEquals(batches + 1, statistics.getInvalidationBatchCount());
+        assertEquals(bypassed, statistics.getBypassCount());
+        assertEquals(b.getNodeId(), cache.resolveNodePath(toPath("/a/b1")));
+        assertNull(cache.resolveNodePath(toPath("/a/c")));
+    }
+
     /**
      * Static item state manager, that can be filled programmatically and that
      * keeps a hash map of item states. <code>ItemId</code>s generated by
@@ -0,0 +1,119 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core;
+
+import javax.jcr.NamespaceException;
+import javax.jcr.NamespaceRegistry;
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.jackrabbit.spi.Name;
+import org.apache.jackrabbit.spi.Path;
+import org.apache.jackrabbit.test.AbstractJCRTest;
+
+/**
+ * Checks that the names and paths cached by the name and path resolver
+ * shared by the sessions follow changes of the namespace mappings.
+ */
+public class NamespaceRemappingTest extends AbstractJCRTest {
+
+    public void testRegistryRemapping() throws Exception {
+        String suffix = Long.toString(System.currentTimeMillis());
+        String uri = "http://jackrabbit.apache.org/test/remap/" + suffix;
+        String oldPrefix = "old" + suffix;
+        String newPrefix = "new" + suffix;
+
+        NamespaceRegistry registry =
+            superuser.getWorkspace().getNamespaceRegistry();
+        registry.registerNamespace(oldPrefix, uri);
+
+        SessionImpl session = (SessionImpl) superuser;
+        Name name = session.getQName(oldPrefix + ":a");
+        assertEquals(uri, name.getNamespaceURI());
+        Path path = session.getQPath("/" + oldPrefix + ":a/" + oldPrefix + ":b");
+        assertEquals(name, path.getElements()[1].getName());
+
+        registry.registerNamespace(newPrefix, uri);
+
+        Session other = getHelper().getSuperuserSession();
+        try {
+            SessionImpl otherImpl = (SessionImpl) other;
+            assertEquals(name, otherImpl.getQName(newPrefix + ":a"));
+            assertEquals(newPrefix + ":a", otherImpl.getJCRName(name));
+            try {
+                otherImpl.getQPath("/" + oldPrefix + ":a/" + oldPrefix + ":b");
+                fail("Old prefix must not be resolved after remapping");
+            } catch (NamespaceException expected) {
+            }
+        } finally {
+            other.logout();
+        }
+    }
+
+    public void testSessionRemapping() throws Exception {
+        Session session = getHelper().getSuperuserSession();
+        try {
+            SessionImpl impl = (SessionImpl) session;
+            Name name = impl.getQName("jcr:content");
+
+            session.setNamespacePrefix("foo", Name.NS_JCR_URI);
+            assertEquals(name, impl.getQName("foo:content"));
+            assertEquals("foo:content", impl.getJCRName(name));
+            assertEquals(name, impl.getQPath("/foo:content").getName());
+
+            // other sessions are not affected
+            assertEquals("jcr:content", ((SessionImpl) superuser).getJCRName(name));
+        } finally {
+            session.logout();
+        }
+    }
+
+    public void testSessionRemappedPrefixResolution() throws Exception {
+        String suffix = Long.toString(System.currentTimeMillis());
+        String uri = "http://jackrabbit.apache.org/test/remap/" + suffix;
+        String prefix = "ns" + suffix;
+        String remapped = "remapped" + suffix;
+        superuser.getWorkspace().getNamespaceRegistry().registerNamespace(
+                prefix, uri);
+        Node child = testRootNode.addNode(prefix + ":child");
+        superuser.save();
+
+        Session session = getHelper().getSuperuserSession();
+        try {
+            SessionImpl impl = (SessionImpl) session;
+            session.setNamespacePrefix(remapped, uri);
+
+            Node node = session.getNode(testRoot + "/" + remapped + ":child");
+            assertEquals(child.getIdentifier(), node.getIdentifier());
+            assertEquals(testRoot + "/" + remapped + ":child", node.getPath());
+            try {
+                session.getNode(testRoot + "/" + prefix + ":child");
+                fail("Old prefix must not be resolved after remapping");
+            } catch (RepositoryException expected) {
+            }
+
+            // identifier-based paths are still resolved by the session
+            Path path = impl.getQPath("[" + node.getIdentifier() + "]", true);
+            assertEquals(impl.getQPath(node.getPath()), path);
+            assertEquals(node.getPath(), impl.getJCRPath(path));
+        } finally {
+            session.logout();
+        }
+    }
+
+}
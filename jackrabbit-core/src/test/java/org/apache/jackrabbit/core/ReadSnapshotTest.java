@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+
+import org.apache.jackrabbit.test.AbstractJCRTest;
+
+/**
+ * Checks that sessions opened with the {@link SessionImpl#READ_SNAPSHOT}
+ * attribute do not see the changes saved after they logged in.
+ */
+public class ReadSnapshotTest extends AbstractJCRTest {
+
+    private Session openSnapshot() throws RepositoryException {
+        SimpleCredentials sc =
+            (SimpleCredentials) getHelper().getSuperuserCredentials();
+        SimpleCredentials credentials =
+            new SimpleCredentials(sc.getUserID(), sc.getPassword());
+        credentials.setAttribute(SessionImpl.READ_SNAPSHOT, Boolean.TRUE);
+        return getHelper().getRepository().login(
+                credentials, superuser.getWorkspace().getName());
+    }
+
+    public void testSnapshot() throws Exception {
+        Node a = testRootNode.addNode("a");
+        a.setProperty("p", "old");
+        testRootNode.addNode("b");
+        superuser.save();
+
+        Session snapshot = openSnapshot();
+        try {
+            superuser.getNode(testRoot + "/a").setProperty("p", "new");
+            superuser.getNode(testRoot + "/a").addNode("c");
+            superuser.getNode(testRoot + "/b").remove();
+            superuser.save();
+
+            Node node = snapshot.getNode(testRoot + "/a");
+            assertEquals("old", node.getProperty("p").getString());
+            assertFalse(node.hasNode("c"));
+            assertFalse(snapshot.nodeExists(testRoot + "/a/c"));
+            assertTrue(snapshot.nodeExists(testRoot + "/b"));
+
+            // refresh does not move the snapshot forward
+            snapshot.refresh(false);
+            assertEquals("old", snapshot.getProperty(testRoot + "/a/p").getString());
+
+            // while other sessions see the changes
+            Session other = getHelper().getSuperuserSession();
+            try {
+                assertEquals("new", other.getProperty(testRoot + "/a/p").getString());
+                assertTrue(other.nodeExists(testRoot + "/a/c"));
+                assertFalse(other.nodeExists(testRoot + "/b"));
+            } finally {
+                other.logout();
+            }
+        } finally {
+            snapshot.logout();
+        }
+    }
+
+    public void testMultipleSnapshots() throws Exception {
+        Node a = testRootNode.addNode("a");
+        a.setProperty("p", 1);
+        superuser.save();
+
+        Session first = openSnapshot();
+        try {
+            a.setProperty("p", 2);
+            superuser.save();
+
+            Session second = openSnapshot();
+            try {
+                a.setProperty("p", 3);
+                superuser.save();
+
+                assertEquals(1, first.getProperty(testRoot + "/a/p").getLong());
+                assertEquals(2, second.getProperty(testRoot + "/a/p").getLong());
+            } finally {
+                second.logout();
+            }
+
+            a.setProperty("p", 4);
+            superuser.save();
+            assertEquals(1, first.getProperty(testRoot + "/a/p").getLong());
+        } finally {
+            first.logout();
+        }
+    }
+
+    public void testReadOnly() throws Exception {
+        Session snapshot = openSnapshot();
+        try {
+            snapshot.getNode(testRoot).addNode("a");
+            try {
+                snapshot.save();
+                fail("Read snapshots must not save changes");
+            } catch (RepositoryException expected) {
+            }
+        } finally {
+            snapshot.logout();
+        }
+        assertFalse(superuser.nodeExists(testRoot + "/a"));
+    }
+
+}
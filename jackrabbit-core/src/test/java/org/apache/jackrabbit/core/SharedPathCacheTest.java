@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+
+import org.apache.jackrabbit.test.AbstractJCRTest;
+
+/**
+ * Checks that sessions resolving paths through the path cache shared by the
+ * sessions of a workspace see moves, reorders and their own transient
+ * changes.
+ */
+public class SharedPathCacheTest extends AbstractJCRTest {
+
+    private Session other;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        other = getHelper().getSuperuserSession();
+    }
+
+    protected void tearDown() throws Exception {
+        try {
+            other.logout();
+        } finally {
+            other = null;
+            super.tearDown();
+        }
+    }
+
+    public void testMove() throws Exception {
+        Node a = testRootNode.addNode("a");
+        Node b = a.addNode("b");
+        testRootNode.addNode("c");
+        superuser.save();
+        String id = b.getIdentifier();
+
+        // populate the caches
+        assertEquals(id, other.getNode(testRoot + "/a/b").getIdentifier());
+        assertEquals(id, superuser.getNode(testRoot + "/a/b").getIdentifier());
+
+        superuser.move(testRoot + "/a/b", testRoot + "/c/b");
+        superuser.save();
+
+        assertFalse(other.nodeExists(testRoot + "/a/b"));
+        assertEquals(id, other.getNode(testRoot + "/c/b").getIdentifier());
+        assertEquals(testRoot + "/c/b", other.getNodeByIdentifier(id).getPath());
+    }
+
+    public void testOrderBefore() throws Exception {
+        Node n1 = testRootNode.addNode("n");
+        Node n2 = testRootNode.addNode("n");
+        superuser.save();
+        String id1 = n1.getIdentifier();
+        String id2 = n2.getIdentifier();
+
+        assertEquals(id1, other.getNode(testRoot + "/n").getIdentifier());
+        assertEquals(id2, other.getNode(testRoot + "/n[2]").getIdentifier());
+
+        testRootNode.orderBefore("n[2]", "n");
+        superuser.save();
+
+        assertEquals(id2, other.getNode(testRoot + "/n").getIdentifier());
+        assertEquals(id1, other.getNode(testRoot + "/n[2]").getIdentifier());
+        assertEquals(testRoot + "/n[2]", other.getNodeByIdentifier(id1).getPath());
+    }
+
+    public void testTransientChanges() throws Exception {
+        Node a = testRootNode.addNode("a");
+        Node b = a.addNode("b");
+        superuser.save();
+        String id = b.getIdentifier();
+
+        assertEquals(id, other.getNode(testRoot + "/a/b").getIdentifier());
+
+        // transient move in the other session
+        other.move(testRoot + "/a", testRoot + "/x");
+        assertFalse(other.nodeExists(testRoot + "/a/b"));
+        assertEquals(id, other.getNode(testRoot + "/x/b").getIdentifier());
+        assertEquals(testRoot + "/x/b", other.getNodeByIdentifier(id).getPath());
+
+        // not visible to this session
+        assertEquals(id, superuser.getNode(testRoot + "/a/b").getIdentifier());
+        assertFalse(superuser.nodeExists(testRoot + "/x"));
+
+        other.refresh(false);
+        assertEquals(id, other.getNode(testRoot + "/a/b").getIdentifier());
+        assertEquals(testRoot + "/a/b", other.getNodeByIdentifier(id).getPath());
+    }
+
+}
@@ -36,6 +36,9 @@ public class TestAll extends TestCase {
 
         suite.addTestSuite(ReplacePropertyWhileOthersReadTest.class);
         suite.addTestSuite(CachingHierarchyManagerTest.class);
+        suite.addTestSuite(SharedPathCacheTest.class);
+        suite.addTestSuite(NamespaceRemappingTest.class);
+        suite.addTestSuite(ReadSnapshotTest.class);
         suite.addTestSuite(ShareableNodeTest.class);
         suite.addTestSuite(MultiWorkspaceShareableNodeTest.class);
         suite.addTestSuite(TransientRepositoryTest.class);
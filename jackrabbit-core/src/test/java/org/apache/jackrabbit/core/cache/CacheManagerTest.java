@@ -0,0 +1,116 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.cache;
+
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the {@link CacheManager} class.
+ */
+public class CacheManagerTest extends TestCase {
+
+    /**
+     * Tests that the cost based strategy gives more memory to the cache
+     * whose misses take more time, even if both caches are accessed
+     * equally often. The sizes of all caches stay within the budget.
+     */
+    public void testResizeByCost() throws Exception {
+        CacheManager manager = new CacheManager();
+        manager.setResizeStrategy(CacheManager.RESIZE_BY_COST);
+        manager.setMaxMemory(4 * 1024 * 1024);
+        manager.setMinMemoryPerCache(128 * 1024);
+
+        ConcurrentCache<Integer, Object> expensive =
+            new ConcurrentCache<Integer, Object>("expensive");
+        ConcurrentCache<Integer, Object> cheap =
+            new ConcurrentCache<Integer, Object>("cheap");
+        for (ConcurrentCache<Integer, Object> cache
+                : new ConcurrentCache[] { expensive, cheap }) {
+            cache.setMaxMemorySize(1024 * 1024);
+            manager.add(cache);
+            for (int i = 0; i < 1100; i++) {
+                cache.put(i, new Object(), 1000);
+            }
+        }
+
+        // wait for the first resize interval to pass
+        Thread.sleep(1100);
+        manager.setMinResizeInterval(0);
+
+        for (int i = 0; i < 100; i++) {
+            assertNull(expensive.get(-1));
+            expensive.recordMissDuration(1000 * 1000);
+            assertNull(cheap.get(-1));
+            cheap.recordMissDuration(1000);
+        }
+        manager.cacheAccessed(CacheAccessListener.ACCESS_INTERVAL);
+
+        assertTrue(expensive.getMaxMemorySize() > 2 * cheap.getMaxMemorySize());
+        assertTrue(cheap.getMaxMemorySize() >= 128 * 1024);
+        // the caches shrink slowly, but never exceed the budget
+        assertTrue(expensive.getMaxMemorySize() + cheap.getMaxMemorySize()
+                <= 4 * 1024 * 1024);
+
+        TabularData data = manager.getCaches();
+        assertEquals(2, data.size());
+        double expensiveUtility = 0;
+        double cheapUtility = 0;
+        for (Object row : data.values()) {
+            CompositeData cache = (CompositeData) row;
+            double utility = (Double) cache.get("marginalUtility");
+            if (cache.get("name").equals(expensive.toString())) {
+                expensiveUtility = utility;
+                assertEquals(expensive.getMaxMemorySize(), cache.get("budget"));
+                assertEquals(1000000.0, (Double) cache.get("missLatency"), 1.0);
+            } else {
+                cheapUtility = utility;
+            }
+        }
+        assertTrue(expensiveUtility > cheapUtility);
+        assertTrue(cheapUtility > 0);
+    }
+
+    /**
+     * Tests that the memory budget can be defined as a percentage of the
+     * maximum heap size.
+     */
+    public void testMemoryBudget() {
+        CacheManager manager = new CacheManager();
+        manager.setMaxMemory(1234);
+        assertEquals(1234, manager.getMemoryBudget());
+
+        manager.setMaxMemoryPercent(10);
+        assertEquals(
+                Runtime.getRuntime().maxMemory() / 100 * 10,
+                manager.getMemoryBudget());
+
+        try {
+            manager.setMaxMemoryPercent(101);
+            fail("Invalid percentage accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            manager.setResizeStrategy("unknown");
+            fail("Unknown strategy accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+}
@@ -0,0 +1,197 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.cache;
+
+import org.apache.jackrabbit.core.id.NodeId;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the {@link ClockCache} class.
+ */
+public class ClockCacheTest extends TestCase {
+
+    /**
+     * Tests that entries can be read back, replaced and removed, and that
+     * the memory used is tracked accordingly.
+     */
+    public void testPutGetRemove() {
+        ClockCache<NodeId, String> cache = new ClockCache<NodeId, String>("test");
+        cache.setMaxMemorySize(100);
+        NodeId id = NodeId.randomId();
+        assertNull(cache.get(id));
+
+        assertNull(cache.put(id, "a", 10));
+        assertEquals("a", cache.get(id));
+        assertEquals(10, cache.getMemoryUsed());
+
+        assertEquals("a", cache.put(id, "b", 20));
+        assertEquals("b", cache.get(id));
+        assertEquals(20, cache.getMemoryUsed());
+        assertEquals(1, cache.getElementCount());
+        assertEquals(1, cache.values().size());
+
+        assertEquals("b", cache.remove(id));
+        assertNull(cache.remove(id));
+        assertFalse(cache.containsKey(id));
+        assertTrue(cache.isEmpty());
+
+        for (int i = 0; i < 10; i++) {
+            cache.put(NodeId.randomId(), "c", 5);
+        }
+        cache.clear();
+        assertEquals(0, cache.getElementCount());
+        assertTrue(cache.isEmpty());
+    }
+
+    /**
+     * Tests a clock cache by adding lots of random items to it
+     * and checking that the excess items have automatically been evicted
+     * while frequently accessed items are still present.
+     */
+    public void testClockCache() {
+        NodeId[] ids = new NodeId[1000];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = NodeId.randomId();
+        }
+
+        ClockCache<NodeId, NodeId> cache = new ClockCache<NodeId, NodeId>("test");
+        cache.setMaxMemorySize(ids.length / 2);
+
+        for (int i = 0; i < ids.length; i++) {
+            for (int j = 0; j < i; j += 3) {
+                cache.get(ids[j]);
+            }
+            cache.put(ids[i], ids[i], 1);
+        }
+
+        assertTrue(cache.getMemoryUsed() <= ids.length / 2);
+        assertTrue(cache.getMemoryUsed() > ids.length / 4);
+
+        int n = 0;
+        for (int i = 0; i < ids.length; i += 3) {
+            if (cache.containsKey(ids[i])) {
+                n++;
+            }
+        }
+        assertTrue(n > ids.length / 6);
+
+        cache.setMaxMemorySize(ids.length / 10);
+        assertTrue(cache.getMemoryUsed() <= ids.length / 10);
+        assertEquals(cache.getMemoryUsed(), cache.getElementCount());
+    }
+
+    /**
+     * Tests that a traversal of many entries that are each accessed only
+     * once does not evict the entries that are frequently accessed while
+     * the traversal is running.
+     */
+    public void testScanResistance() {
+        NodeId[] hot = new NodeId[100];
+        ClockCache<NodeId, NodeId> cache = new ClockCache<NodeId, NodeId>("test");
+        cache.setMaxMemorySize(hot.length * 2);
+        for (int i = 0; i < hot.length; i++) {
+            hot[i] = NodeId.randomId();
+            cache.put(hot[i], hot[i], 1);
+        }
+        for (int k = 0; k < 5; k++) {
+            for (int i = 0; i < hot.length; i++) {
+                cache.get(hot[i]);
+            }
+        }
+
+        for (int i = 0; i < hot.length * 20; i++) {
+            cache.get(hot[i % hot.length]);
+            NodeId id = NodeId.randomId();
+            if (cache.get(id) == null) {
+                cache.put(id, id, 1);
+            }
+        }
+
+        int n = 0;
+        for (int i = 0; i < hot.length; i++) {
+            if (cache.containsKey(hot[i])) {
+                n++;
+            }
+        }
+        assertTrue(n > hot.length * 9 / 10);
+        assertTrue(cache.getMemoryUsed() <= hot.length * 2);
+    }
+
+    /**
+     * Tests that a size-aware cache does not admit a large entry that is
+     * accessed as often as the small entries it would displace.
+     */
+    public void testSizeAwareAdmission() {
+        for (boolean sizeAware : new boolean[] { false, true }) {
+            ClockCache<NodeId, NodeId> cache =
+                new ClockCache<NodeId, NodeId>("test");
+            cache.setMaxMemorySize(100);
+            cache.setSizeAware(sizeAware);
+            for (int i = 0; i < 100; i++) {
+                NodeId id = NodeId.randomId();
+                cache.put(id, id, 1);
+            }
+
+            NodeId large = NodeId.randomId();
+            cache.put(large, large, 50);
+
+            assertTrue(cache.getMemoryUsed() <= 100);
+            assertEquals(!sizeAware, cache.containsKey(large));
+        }
+    }
+
+    /**
+     * Tests that the configured size is respected when several threads
+     * read and write the cache concurrently.
+     */
+    public void testConcurrentAccess() throws Exception {
+        final NodeId[] ids = new NodeId[500];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = NodeId.randomId();
+        }
+        final ClockCache<NodeId, NodeId> cache =
+            new ClockCache<NodeId, NodeId>("test");
+        cache.setMaxMemorySize(100);
+
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        NodeId id = ids[(i * 7 + offset) % ids.length];
+                        if (cache.get(id) == null) {
+                            cache.put(id, id, 1);
+                        } else if (i % 11 == 0) {
+                            cache.remove(id);
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertTrue(cache.getMemoryUsed() <= 100);
+        assertEquals(cache.getMemoryUsed(), cache.getElementCount());
+    }
+
+}
@@ -68,4 +68,30 @@ public class ConcurrentCacheTest extends TestCase {
         assertTrue(cache.getMemoryUsed() > ids.length / 4);
     }
 
+    /**
+     * Tests that a size-aware cache evicts a large entry instead of the
+     * least recently used small one.
+     */
+    public void testSizeAwareEviction() {
+        for (boolean sizeAware : new boolean[] { false, true }) {
+            ConcurrentCache<NodeId, NodeId> cache =
+                new ConcurrentCache<NodeId, NodeId>("test", 1);
+            cache.setMaxMemorySize(100);
+            cache.setSizeAware(sizeAware);
+
+            NodeId eldest = NodeId.randomId();
+            cache.put(eldest, eldest, 1);
+            NodeId large = NodeId.randomId();
+            cache.put(large, large, 50);
+            for (int i = 0; i < 50; i++) {
+                NodeId id = NodeId.randomId();
+                cache.put(id, id, 1);
+            }
+
+            assertTrue(cache.getMemoryUsed() <= 100);
+            assertEquals(!sizeAware, cache.containsKey(large));
+            assertEquals(sizeAware, cache.containsKey(eldest));
+        }
+    }
+
 }
@@ -0,0 +1,89 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.cache;
+
+import java.util.Arrays;
+
+import org.apache.jackrabbit.core.id.NodeId;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the {@link OffHeapCache} class.
+ */
+public class OffHeapCacheTest extends TestCase {
+
+    /**
+     * Tests that entries can be read back, replaced and removed.
+     */
+    public void testPutGetRemove() {
+        OffHeapCache<NodeId> cache = new OffHeapCache<NodeId>("test", 64 * 1024, 2);
+        NodeId id = NodeId.randomId();
+        assertNull(cache.get(id));
+
+        assertTrue(cache.put(id, new byte[] { 1, 2, 3 }));
+        assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, cache.get(id)));
+
+        assertTrue(cache.put(id, new byte[] { 4, 5 }));
+        assertTrue(Arrays.equals(new byte[] { 4, 5 }, cache.get(id)));
+        assertEquals(1, cache.getElementCount());
+
+        assertTrue(cache.remove(id));
+        assertNull(cache.get(id));
+        assertFalse(cache.remove(id));
+
+        assertFalse(cache.put(id, new byte[cache.getMaxEntrySize() + 1]));
+        assertNull(cache.get(id));
+    }
+
+    /**
+     * Tests that the allocated memory stays within the configured size
+     * when lots of entries are added, and that frequently read entries
+     * survive the eviction of slabs.
+     */
+    public void testEviction() {
+        int size = 64 * 1024;
+        OffHeapCache<NodeId> cache = new OffHeapCache<NodeId>("test", size, 1);
+        NodeId[] ids = new NodeId[1000];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = NodeId.randomId();
+        }
+
+        byte[] data = new byte[256];
+        for (int i = 0; i < ids.length; i++) {
+            Arrays.fill(data, (byte) i);
+            cache.put(ids[i], data);
+            assertNotNull(cache.get(ids[0]));
+        }
+
+        assertTrue(cache.getMemoryAllocated() <= size);
+        assertTrue(cache.getEvictionCount() > 0);
+        assertTrue(cache.getElementCount() < ids.length);
+        assertTrue(cache.getElementCount() > ids.length / 8);
+
+        Arrays.fill(data, (byte) 0);
+        assertTrue(Arrays.equals(data, cache.get(ids[0])));
+        Arrays.fill(data, (byte) (ids.length - 1));
+        assertTrue(Arrays.equals(data, cache.get(ids[ids.length - 1])));
+
+        cache.clear();
+        assertEquals(0, cache.getElementCount());
+        assertEquals(0, cache.getMemoryAllocated());
+        assertNull(cache.get(ids[0]));
+    }
+
+}
@@ -0,0 +1,181 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.integration.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.id.PropertyId;
+import org.apache.jackrabbit.core.persistence.util.BundleBinding;
+import org.apache.jackrabbit.core.persistence.util.NodePropBundle;
+import org.apache.jackrabbit.core.persistence.util.NodePropBundle.PropertyEntry;
+import org.apache.jackrabbit.core.util.StringIndex;
+import org.apache.jackrabbit.core.value.InternalValue;
+import org.apache.jackrabbit.spi.Name;
+import org.apache.jackrabbit.spi.NameFactory;
+import org.apache.jackrabbit.spi.commons.name.NameConstants;
+import org.apache.jackrabbit.spi.commons.name.NameFactoryImpl;
+
+import javax.jcr.PropertyType;
+
+/**
+ * A micro benchmark for bundle deserialization. Measures the latency and
+ * the number of bytes allocated per deserialized bundle, read from a
+ * stream or directly from a buffer, both when all property values are
+ * used and when only the child node entries are. The allocation rate is
+ * only available on JVMs that support
+ * <code>com.sun.management.ThreadMXBean</code>.
+ */
+public class BundleReadBench {
+
+    private static final int ITERATIONS = 100000;
+
+    private final BundleBinding binding;
+
+    private final NodePropBundle bundle;
+
+    private final byte[] data;
+
+    private long blackhole;
+
+    public static void main(String[] args) throws Exception {
+        BundleReadBench bench = new BundleReadBench();
+        for (int run = 0; run < 5; run++) {
+            bench.test(run);
+        }
+    }
+
+    BundleReadBench() throws Exception {
+        StringIndex index = new StringIndex() {
+            private final List<String> strings = new ArrayList<String>();
+            public synchronized int stringToIndex(String string) {
+                int i = strings.indexOf(string);
+                if (i == -1) {
+                    i = strings.size();
+                    strings.add(string);
+                }
+                return i;
+            }
+            public synchronized String indexToString(int i) {
+                return strings.get(i);
+            }
+        };
+        binding = new BundleBinding(null, null, index, index, null);
+
+        NameFactory factory = NameFactoryImpl.getInstance();
+        bundle = new NodePropBundle(NodeId.randomId());
+        bundle.setParentId(NodeId.randomId());
+        bundle.setNodeTypeName(NameConstants.NT_UNSTRUCTURED);
+        bundle.setMixinTypeNames(Collections.singleton(NameConstants.MIX_CREATED));
+        bundle.setSharedSet(Collections.<NodeId>emptySet());
+        for (int i = 0; i < 20; i++) {
+            Name name = factory.create("http://example.com/ns", "property" + i);
+            PropertyEntry entry =
+                new PropertyEntry(new PropertyId(bundle.getId(), name));
+            switch (i % 4) {
+            case 0:
+                entry.setType(PropertyType.STRING);
+                entry.setValues(new InternalValue[] {
+                        InternalValue.create("Some text value " + i) });
+                break;
+            case 1:
+                entry.setType(PropertyType.DATE);
+                entry.setValues(new InternalValue[] {
+                        InternalValue.create(Calendar.getInstance()) });
+                break;
+            case 2:
+                entry.setType(PropertyType.LONG);
+                entry.setValues(new InternalValue[] {
+                        InternalValue.create(i * 1000L) });
+                break;
+            default:
+                entry.setType(PropertyType.NAME);
+                entry.setMultiValued(true);
+                entry.setValues(new InternalValue[] {
+                        InternalValue.create(NameConstants.JCR_CONTENT),
+                        InternalValue.create(name) });
+            }
+            bundle.addProperty(entry);
+        }
+        for (int i = 0; i < 50; i++) {
+            bundle.addChildNodeEntry(
+                    factory.create("", "child" + i), NodeId.randomId());
+        }
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        binding.writeBundle(buffer, bundle);
+        data = buffer.toByteArray();
+    }
+
+    void test(int run) throws Exception {
+        measure(run, "stream, all values", false, true);
+        measure(run, "stream, child nodes", false, false);
+        measure(run, "buffer, all values", true, true);
+        measure(run, "buffer, child nodes", true, false);
+    }
+
+    private void measure(
+            int run, String message, boolean buffer, boolean values)
+            throws Exception {
+        long bytes = getAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            if (buffer) {
+                use(binding.readBundle(
+                        ByteBuffer.wrap(data), bundle.getId()), values);
+            } else {
+                use(binding.readBundle(
+                        new ByteArrayInputStream(data), bundle.getId()), values);
+            }
+        }
+        long time = System.nanoTime() - start;
+        bytes = getAllocatedBytes() - bytes;
+        if (run > 0) {
+            System.out.println("run: " + run
+                    + "; time: " + time / ITERATIONS + " ns/op"
+                    + "; allocated: " + bytes / ITERATIONS + " bytes/op"
+                    + "; task: " + message);
+        }
+    }
+
+    private void use(NodePropBundle bundle, boolean values) {
+        blackhole += bundle.getChildNodeEntries().size();
+        if (values) {
+            for (PropertyEntry entry : bundle.getPropertyEntries()) {
+                blackhole += entry.getValues().length;
+            }
+        }
+    }
+
+    private static long getAllocatedBytes() {
+        Object bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        } else {
+            return 0;
+        }
+    }
+
+}
@@ -17,23 +17,35 @@
 package org.apache.jackrabbit.core.persistence;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.jcr.PropertyType;
 
 import junit.framework.TestCase;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.jackrabbit.api.stats.RepositoryStatistics;
 import org.apache.jackrabbit.core.NamespaceRegistryImpl;
 import org.apache.jackrabbit.core.RepositoryImpl;
+import org.apache.jackrabbit.core.fs.FileSystem;
 import org.apache.jackrabbit.core.fs.mem.MemoryFileSystem;
 import org.apache.jackrabbit.core.id.NodeId;
 import org.apache.jackrabbit.core.id.PropertyId;
+import org.apache.jackrabbit.core.persistence.bundle.AbstractBundlePersistenceManager;
+import org.apache.jackrabbit.core.persistence.bundle.BundleFsPersistenceManager;
+import org.apache.jackrabbit.core.persistence.bundle.BundleSegmentPersistenceManager;
 import org.apache.jackrabbit.core.persistence.mem.InMemBundlePersistenceManager;
 import org.apache.jackrabbit.core.persistence.mem.InMemPersistenceManager;
 import org.apache.jackrabbit.core.persistence.obj.ObjectPersistenceManager;
+import org.apache.jackrabbit.core.persistence.pool.BundleDbPersistenceManager;
 import org.apache.jackrabbit.core.persistence.xml.XMLPersistenceManager;
 import org.apache.jackrabbit.core.state.ChangeLog;
+import org.apache.jackrabbit.core.state.ChildNodeEntry;
 import org.apache.jackrabbit.core.state.ItemState;
 import org.apache.jackrabbit.core.state.NoSuchItemStateException;
 import org.apache.jackrabbit.core.state.NodeReferences;
@@ -61,6 +73,10 @@ public class PersistenceManagerTest extends TestCase {
 
     private File database;
 
+    private String derbyUrl;
+
+    private String h2Url;
+
     protected void setUp() throws Exception {
         directory = File.createTempFile("jackrabbit-persistence-", "-test");
         directory.delete();
@@ -68,6 +84,9 @@ public class PersistenceManagerTest extends TestCase {
 
         database = File.createTempFile("jackrabbit-persistence-", "-derby");
         database.delete();
+
+        derbyUrl = "jdbc:derby:" + database.getPath() + ";create=true";
+        h2Url = "jdbc:h2:mem:" + database.getPath();
     }
 
     protected void tearDown() throws Exception {
@@ -83,6 +102,10 @@ public class PersistenceManagerTest extends TestCase {
         assertPersistenceManager(new InMemBundlePersistenceManager());
     }
 
+    public void testBundleSegmentPersistenceManager() throws Exception {
+        assertPersistenceManager(new BundleSegmentPersistenceManager());
+    }
+
     public void testXMLPersistenceManager() throws Exception {
         assertPersistenceManager(new XMLPersistenceManager());
     }
@@ -101,33 +124,143 @@ public class PersistenceManagerTest extends TestCase {
     }
 
     public void testDerbyPoolPersistenceManager() throws Exception {
-        org.apache.jackrabbit.core.persistence.pool.DerbyPersistenceManager manager =
-            new org.apache.jackrabbit.core.persistence.pool.DerbyPersistenceManager();
-        manager.setDriver("org.apache.derby.jdbc.EmbeddedDriver");
-        manager.setUrl("jdbc:derby:" + database.getPath() + ";create=true");
-        manager.setConnectionFactory(new ConnectionFactory());
-        assertPersistenceManager(manager);
+        assertPersistenceManager(createPoolPersistenceManager(derbyUrl));
     }
 
     public void testH2PoolPersistenceManager() throws Exception {
-        org.apache.jackrabbit.core.persistence.pool.H2PersistenceManager manager =
-            new org.apache.jackrabbit.core.persistence.pool.H2PersistenceManager();
-        manager.setDriver("org.h2.Driver");
-        manager.setUrl("jdbc:h2:mem:" + database.getPath());
-        manager.setConnectionFactory(new ConnectionFactory());
+        assertPersistenceManager(createPoolPersistenceManager(h2Url));
+    }
+
+    public void testDerbyPoolPersistenceManagerConcurrentStore() throws Exception {
+        BundleDbPersistenceManager manager =
+            createPoolPersistenceManager(derbyUrl);
+        manager.setConcurrentStore("true");
         assertPersistenceManager(manager);
+        assertConcurrentStore(manager);
     }
 
-    private void assertPersistenceManager(PersistenceManager manager)
+    public void testH2PoolPersistenceManagerConcurrentStore() throws Exception {
+        BundleDbPersistenceManager manager = createPoolPersistenceManager(h2Url);
+        manager.setConcurrentStore("true");
+        assertPersistenceManager(manager);
+        assertConcurrentStore(manager);
+    }
+
+    public void testH2PoolPersistenceManagerClockBundleCache() throws Exception {
+        BundleDbPersistenceManager manager = createPoolPersistenceManager(h2Url);
+        manager.setBundleCacheType("clock");
+        manager.setConcurrentStore("true");
+        assertPersistenceManager(manager);
+        assertConcurrentStore(manager);
+    }
+
+    public void testDerbyPoolPersistenceManagerBatchedWrites() throws Exception {
+        BundleDbPersistenceManager manager =
+            createPoolPersistenceManager(derbyUrl);
+        manager.setWriteBatchSize("2");
+        assertPersistenceManager(manager);
+        assertBatchedWrites(manager, 2);
+    }
+
+    public void testH2PoolPersistenceManagerBatchedWrites() throws Exception {
+        BundleDbPersistenceManager manager = createPoolPersistenceManager(h2Url);
+        manager.setWriteBatchSize("100");
+        manager.setConcurrentStore("true");
+        assertPersistenceManager(manager);
+        assertConcurrentStore(manager);
+        assertBatchedWrites(manager, 100);
+    }
+
+    public void testH2PoolPersistenceManagerGroupCommit() throws Exception {
+        BundleDbPersistenceManager manager = createPoolPersistenceManager(h2Url);
+        manager.setConcurrentStore("true");
+        manager.setGroupCommit("true");
+        manager.setGroupCommitWindow("5");
+        assertPersistenceManager(manager);
+        assertConcurrentStore(manager);
+        assertGroupCommitFailure(manager);
+    }
+
+    public void testDerbyPoolPersistenceManagerPrefetch() throws Exception {
+        assertPrefetch(
+                createPoolPersistenceManager(derbyUrl),
+                createPoolPersistenceManager(derbyUrl));
+    }
+
+    public void testBundleFsPersistenceManagerPrefetch() throws Exception {
+        BundleFsPersistenceManager reader = new BundleFsPersistenceManager();
+        reader.setPrefetchThreads("4");
+        assertPrefetch(new BundleFsPersistenceManager(), reader);
+    }
+
+    public void testH2PoolPersistenceManagerOffHeapBundleCache() throws Exception {
+        String url = "jdbc:h2:" + new File(directory, "db").getPath();
+        BundleDbPersistenceManager reader = createPoolPersistenceManager(url);
+        reader.setBundleCacheSize("0");
+        reader.setOffHeapBundleCacheSize("1");
+        assertOffHeapBundleCache(createPoolPersistenceManager(url), reader);
+    }
+
+    public void testInMemBundlePersistenceManagerChildNodePages()
+            throws Exception {
+        assertChildNodePages(new InMemBundlePersistenceManager());
+    }
+
+    public void testBundleSegmentPersistenceManagerChildNodePages()
             throws Exception {
-        manager.init(new PMContext(
+        assertChildNodePages(new BundleSegmentPersistenceManager());
+    }
+
+    public void testH2PoolPersistenceManagerChildNodePages() throws Exception {
+        assertChildNodePages(createPoolPersistenceManager(
+                "jdbc:h2:" + new File(directory, "db").getPath()));
+    }
+
+    /**
+     * Creates a bundle persistence manager of the pool package for the
+     * given Derby or H2 database.
+     *
+     * @param url the JDBC URL of the database
+     * @return the persistence manager, not yet initialized
+     */
+    private BundleDbPersistenceManager createPoolPersistenceManager(String url) {
+        BundleDbPersistenceManager manager;
+        if (url.startsWith("jdbc:derby:")) {
+            manager = new org.apache.jackrabbit.core.persistence.pool.DerbyPersistenceManager();
+            manager.setDriver("org.apache.derby.jdbc.EmbeddedDriver");
+        } else {
+            manager = new org.apache.jackrabbit.core.persistence.pool.H2PersistenceManager();
+            manager.setDriver("org.h2.Driver");
+        }
+        manager.setUrl(url);
+        manager.setConnectionFactory(new ConnectionFactory());
+        return manager;
+    }
+
+    /**
+     * Creates the context to initialize a persistence manager with.
+     *
+     * @param fs the file system of the workspace
+     * @param statistics the repository statistics to record into
+     * @return the context
+     */
+    private PMContext createContext(
+            FileSystem fs, RepositoryStatisticsImpl statistics)
+            throws Exception {
+        return new PMContext(
                 directory,
-                new MemoryFileSystem(),
+                fs,
                 RepositoryImpl.ROOT_NODE_ID,
                 new NamespaceRegistryImpl(new MemoryFileSystem()),
                 null,
                 null,
-                new RepositoryStatisticsImpl()));
+                statistics);
+    }
+
+    private void assertPersistenceManager(PersistenceManager manager)
+            throws Exception {
+        manager.init(createContext(
+                new MemoryFileSystem(), new RepositoryStatisticsImpl()));
         try {
             assertCreateNewNode(manager);
             assertCreateNewProperty(manager);
@@ -138,6 +271,375 @@ public class PersistenceManagerTest extends TestCase {
         }
     }
 
+    /**
+     * Stores change logs from several threads at once, each of them
+     * creating and updating its own nodes, and checks that all of the
+     * changes are persisted. The threads also look up the same new names
+     * in the name index of the manager, which must map each of them to a
+     * single index.
+     */
+    private void assertConcurrentStore(final PersistenceManager manager)
+            throws Exception {
+        manager.init(createContext(
+                new MemoryFileSystem(), new RepositoryStatisticsImpl()));
+        try {
+            final List<NodeId> ids =
+                Collections.synchronizedList(new ArrayList<NodeId>());
+            final List<Exception> exceptions =
+                Collections.synchronizedList(new ArrayList<Exception>());
+            final ConcurrentMap<String, Integer> names =
+                new ConcurrentHashMap<String, Integer>();
+            final List<String> conflicts =
+                Collections.synchronizedList(new ArrayList<String>());
+            Thread[] writers = new Thread[8];
+            for (int i = 0; i < writers.length; i++) {
+                writers[i] = new Thread() {
+                    public void run() {
+                        try {
+                            for (int j = 0; j < 20; j++) {
+                                NodeId id = NodeId.randomId();
+                                NodeState node = new NodeState(
+                                        id, TEST, RepositoryImpl.ROOT_NODE_ID,
+                                        ItemState.STATUS_NEW, true);
+                                node.addPropertyName(NameConstants.JCR_PRIMARYTYPE);
+                                ChangeLog create = new ChangeLog();
+                                create.added(node);
+                                manager.store(create);
+
+                                node.setStatus(ItemState.STATUS_EXISTING);
+                                node.addChildNodeEntry(TEST, CHILD_ID);
+                                ChangeLog update = new ChangeLog();
+                                update.modified(node);
+                                manager.store(update);
+                                ids.add(id);
+
+                                if (manager instanceof AbstractBundlePersistenceManager) {
+                                    String name = "concurrent" + j;
+                                    Integer index = Integer.valueOf(
+                                            ((AbstractBundlePersistenceManager) manager)
+                                            .getNameIndex().stringToIndex(name));
+                                    Integer other = names.putIfAbsent(name, index);
+                                    if (other != null && !other.equals(index)) {
+                                        conflicts.add(name);
+                                    }
+                                }
+                            }
+                        } catch (Exception e) {
+                            exceptions.add(e);
+                        }
+                    }
+                };
+            }
+            for (Thread writer : writers) {
+                writer.start();
+            }
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            assertEquals(Collections.emptyList(), exceptions);
+            assertEquals(Collections.emptyList(), conflicts);
+            assertEquals(writers.length * 20, ids.size());
+            for (NodeId id : ids) {
+                NodeState state = manager.load(id);
+                assertEquals(1, state.getChildNodeEntries().size());
+            }
+        } finally {
+            manager.close();
+        }
+    }
+
+    /**
+     * Stores valid and invalid change logs from several threads at once and
+     * checks that only the invalid ones fail, even if they are written
+     * together with valid ones.
+     */
+    private void assertGroupCommitFailure(final PersistenceManager manager)
+            throws Exception {
+        manager.init(createContext(
+                new MemoryFileSystem(), new RepositoryStatisticsImpl()));
+        try {
+            final List<NodeId> ids =
+                Collections.synchronizedList(new ArrayList<NodeId>());
+            final List<Exception> exceptions =
+                Collections.synchronizedList(new ArrayList<Exception>());
+            final List<Exception> failures =
+                Collections.synchronizedList(new ArrayList<Exception>());
+            Thread[] writers = new Thread[4];
+            for (int i = 0; i < writers.length; i++) {
+                final boolean valid = i % 2 == 0;
+                writers[i] = new Thread() {
+                    public void run() {
+                        for (int j = 0; j < 5; j++) {
+                            NodeId id = NodeId.randomId();
+                            NodeState node = new NodeState(
+                                    id, TEST, RepositoryImpl.ROOT_NODE_ID,
+                                    ItemState.STATUS_NEW, true);
+                            ChangeLog changeLog = new ChangeLog();
+                            if (valid) {
+                                changeLog.added(node);
+                            } else {
+                                // deleting a missing node fails
+                                changeLog.deleted(node);
+                            }
+                            try {
+                                manager.store(changeLog);
+                                ids.add(id);
+                            } catch (Exception e) {
+                                if (valid) {
+                                    exceptions.add(e);
+                                } else {
+                                    failures.add(e);
+                                }
+                            }
+                        }
+                    }
+                };
+            }
+            for (Thread writer : writers) {
+                writer.start();
+            }
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            assertEquals(Collections.emptyList(), exceptions);
+            assertEquals(writers.length / 2 * 5, failures.size());
+            assertEquals(writers.length / 2 * 5, ids.size());
+            for (NodeId id : ids) {
+                assertTrue(manager.exists(id));
+            }
+        } finally {
+            manager.close();
+        }
+    }
+
+    /**
+     * Stores a number of nodes with the first manager, prefetches them
+     * with the second one and checks that they are then loaded from the
+     * bundle cache of the second manager without further cache misses.
+     */
+    private void assertPrefetch(
+            PersistenceManager writer, PersistenceManager reader)
+            throws Exception {
+        FileSystem fs = new MemoryFileSystem();
+        List<NodeId> ids = storeNodes(writer, fs);
+
+        RepositoryStatisticsImpl statistics = new RepositoryStatisticsImpl();
+        reader.init(createContext(fs, statistics));
+        try {
+            List<NodeId> prefetch = new ArrayList<NodeId>(ids);
+            prefetch.add(NODE_ID);
+            ((PrefetchingPersistenceManager) reader).prefetch(prefetch);
+
+            long misses = statistics.getCounter(
+                    RepositoryStatistics.Type.BUNDLE_CACHE_MISS_COUNTER).get();
+            assertEquals(prefetch.size(), misses);
+            for (NodeId id : ids) {
+                NodeState state = reader.load(id);
+                assertEquals(RepositoryImpl.ROOT_NODE_ID, state.getParentId());
+                assertEquals(1, state.getChildNodeEntries().size());
+            }
+            assertFalse(reader.exists(NODE_ID));
+            assertEquals(misses, statistics.getCounter(
+                    RepositoryStatistics.Type.BUNDLE_CACHE_MISS_COUNTER).get());
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Stores a number of nodes with the first manager and loads them twice
+     * with the second one, which has no room in its bundle cache. The second
+     * round of loads must be served by the off-heap bundle cache, and
+     * updated nodes must not be served from it.
+     */
+    private void assertOffHeapBundleCache(
+            PersistenceManager writer, PersistenceManager reader)
+            throws Exception {
+        FileSystem fs = new MemoryFileSystem();
+        List<NodeId> ids = storeNodes(writer, fs);
+
+        RepositoryStatisticsImpl statistics = new RepositoryStatisticsImpl();
+        reader.init(createContext(fs, statistics));
+        try {
+            for (int i = 0; i < 2; i++) {
+                for (NodeId id : ids) {
+                    NodeState state = reader.load(id);
+                    assertEquals(RepositoryImpl.ROOT_NODE_ID, state.getParentId());
+                    assertEquals(1, state.getChildNodeEntries().size());
+                }
+            }
+            assertEquals(ids.size(), statistics.getCounter(
+                    RepositoryStatistics.Type.BUNDLE_CACHE_MISS_COUNTER).get());
+            assertEquals(ids.size(), statistics.getCounter(
+                    RepositoryStatistics.Type.BUNDLE_OFF_HEAP_CACHE_MISS_COUNTER).get());
+            assertEquals(ids.size(), statistics.getCounter(
+                    RepositoryStatistics.Type.BUNDLE_OFF_HEAP_CACHE_HIT_COUNTER).get());
+
+            NodeState node = reader.load(ids.get(0));
+            node.addChildNodeEntry(TEST, NodeId.randomId());
+            ChangeLog changeLog = new ChangeLog();
+            changeLog.modified(node);
+            reader.store(changeLog);
+            assertEquals(2, reader.load(ids.get(0)).getChildNodeEntries().size());
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Stores a node with a large number of child nodes with a manager
+     * that splits child node lists into pages, and checks that the
+     * child node entries survive updates and reloads without the pages
+     * showing up as nodes. A state loaded before an update must still be
+     * able to read its old child node list from the superseded pages.
+     */
+    private void assertChildNodePages(AbstractBundlePersistenceManager manager)
+            throws Exception {
+        manager.setChildNodePageSize("10");
+        manager.setBundleCacheSize("0");
+        manager.init(createContext(
+                new MemoryFileSystem(), new RepositoryStatisticsImpl()));
+        try {
+            NodeState node = new NodeState(
+                    NODE_ID, TEST, RepositoryImpl.ROOT_NODE_ID,
+                    ItemState.STATUS_NEW, true);
+            node.addPropertyName(NameConstants.JCR_PRIMARYTYPE);
+            List<NodeId> children = new ArrayList<NodeId>();
+            for (int i = 0; i < 500; i++) {
+                NodeId id = NodeId.randomId();
+                node.addChildNodeEntry(TEST, id);
+                children.add(id);
+            }
+            ChangeLog changeLog = new ChangeLog();
+            changeLog.added(node);
+            manager.store(changeLog);
+            assertEquals(
+                    Collections.singletonList(NODE_ID),
+                    manager.getAllNodeIds(null, 0));
+
+            // a second session that has not read its child node list yet
+            final NodeState old = manager.load(NODE_ID);
+            final List<NodeId> oldChildren = new ArrayList<NodeId>(children);
+
+            node = manager.load(NODE_ID);
+            assertEquals(500, node.getChildNodeEntries().size());
+            assertEquals(children.get(250),
+                    node.getChildNodeEntry(TEST, 251).getId());
+            node.removeChildNodeEntry(children.remove(0));
+            NodeId id = NodeId.randomId();
+            node.addChildNodeEntry(TEST, id);
+            children.add(id);
+            changeLog = new ChangeLog();
+            changeLog.modified(node);
+            manager.store(changeLog);
+
+            // the superseded pages must still be readable by that session
+            final List<Object> errors =
+                Collections.synchronizedList(new ArrayList<Object>());
+            Thread reader = new Thread() {
+                public void run() {
+                    try {
+                        List<NodeId> ids = new ArrayList<NodeId>();
+                        for (ChildNodeEntry entry : old.getChildNodeEntries()) {
+                            ids.add(entry.getId());
+                        }
+                        if (!oldChildren.equals(ids)) {
+                            errors.add("Old child node list has changed");
+                        }
+                    } catch (Throwable t) {
+                        errors.add(t);
+                    }
+                }
+            };
+            reader.start();
+            reader.join();
+            assertEquals(Collections.emptyList(), errors);
+
+            node = manager.load(NODE_ID);
+            List<NodeId> ids = new ArrayList<NodeId>();
+            for (ChildNodeEntry entry : node.getChildNodeEntries()) {
+                ids.add(entry.getId());
+            }
+            assertEquals(children, ids);
+            assertEquals(
+                    Collections.singletonList(NODE_ID),
+                    manager.getAllNodeIds(null, 0));
+
+            changeLog = new ChangeLog();
+            changeLog.deleted(node);
+            manager.store(changeLog);
+            assertFalse(manager.exists(NODE_ID));
+            assertEquals(
+                    Collections.emptyList(), manager.getAllNodeIds(null, 0));
+        } finally {
+            manager.close();
+        }
+    }
+
+    /**
+     * Stores a change log of new nodes with a manager that writes in JDBC
+     * batches, and checks that their bundles are inserted in as few batches
+     * of at most the given size as possible.
+     */
+    private void assertBatchedWrites(PersistenceManager manager, int size)
+            throws Exception {
+        RepositoryStatisticsImpl statistics = new RepositoryStatisticsImpl();
+        manager.init(createContext(new MemoryFileSystem(), statistics));
+        try {
+            int count = 5;
+            List<NodeId> ids = new ArrayList<NodeId>();
+            ChangeLog changeLog = new ChangeLog();
+            for (int i = 0; i < count; i++) {
+                NodeId id = NodeId.randomId();
+                NodeState node = new NodeState(
+                        id, TEST, RepositoryImpl.ROOT_NODE_ID,
+                        ItemState.STATUS_NEW, true);
+                node.addPropertyName(NameConstants.JCR_PRIMARYTYPE);
+                changeLog.added(node);
+                ids.add(id);
+            }
+            manager.store(changeLog);
+
+            assertEquals((count + size - 1) / size, statistics.getCounter(
+                    RepositoryStatistics.Type.BUNDLE_WRITE_BATCH_COUNTER).get());
+            assertEquals(count, statistics.getCounter(
+                    RepositoryStatistics.Type.BUNDLE_WRITE_BATCH_STATEMENT_COUNTER).get());
+            for (NodeId id : ids) {
+                assertTrue(manager.exists(id));
+            }
+        } finally {
+            manager.close();
+        }
+    }
+
+    /**
+     * Stores 250 new nodes with the given manager and closes it.
+     *
+     * @return the ids of the stored nodes
+     */
+    private List<NodeId> storeNodes(PersistenceManager writer, FileSystem fs)
+            throws Exception {
+        List<NodeId> ids = new ArrayList<NodeId>();
+        writer.init(createContext(fs, new RepositoryStatisticsImpl()));
+        try {
+            ChangeLog changeLog = new ChangeLog();
+            for (int i = 0; i < 250; i++) {
+                NodeId id = NodeId.randomId();
+                NodeState node = new NodeState(
+                        id, TEST, RepositoryImpl.ROOT_NODE_ID,
+                        ItemState.STATUS_NEW, true);
+                node.addPropertyName(NameConstants.JCR_PRIMARYTYPE);
+                node.addChildNodeEntry(TEST, CHILD_ID);
+                changeLog.added(node);
+                ids.add(id);
+            }
+            writer.store(changeLog);
+        } finally {
+            writer.close();
+        }
+        return ids;
+    }
+
     private void assertCreateNewNode(PersistenceManager manager) {
         NodeState state = manager.createNew(NODE_ID);
         assertNotNull(state);
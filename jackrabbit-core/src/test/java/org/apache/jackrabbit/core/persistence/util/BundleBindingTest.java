@@ -18,13 +18,19 @@ package org.apache.jackrabbit.core.persistence.util;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.math.BigDecimal;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 import javax.jcr.PropertyType;
 
@@ -443,6 +449,202 @@ public class BundleBindingTest extends TestCase {
         }
     }
 
+    /**
+     * Tests that large child node lists are split into pages, that only
+     * the changed pages are written again, and that the pages are removed
+     * when the child node list gets small again.
+     */
+    public void testChildPages() throws Exception {
+        MapChildPageStore store = new MapChildPageStore();
+        Map<NodeId, byte[]> pages = store.pages;
+        int[] writes = store.writes;
+        binding.setChildPageStore(store, 40);
+
+        NodePropBundle bundle = createPagedBundle();
+        NodePropBundle result = writeAndReadBundle(bundle);
+        assertFalse(pages.isEmpty());
+        assertEquals(pages.size(), writes[0]);
+        assertFalse(result.isChildNodeEntriesLoaded());
+        assertEquals(1000, result.getChildNodeEntryCount());
+        assertEquals(bundle.getChildNodeEntries(), result.getChildNodeEntries());
+
+        // a bundle that was not changed does not write any pages
+        writes[0] = 0;
+        result = writeAndReadBundle(result);
+        assertEquals(0, writes[0]);
+        assertEquals(bundle, result);
+
+        // adding or removing a child node only writes the affected pages
+        List<NodePropBundle.ChildNodeEntry> entries = result.getChildNodeEntries();
+        entries.remove(500);
+        result = writeAndReadBundle(result);
+        result.addChildNodeEntry(factory.create("", "child"), NodeId.randomId());
+        result = writeAndReadBundle(result);
+        assertTrue(writes[0] >= 2 && writes[0] < pages.size() / 4);
+        assertEquals(1000, result.getChildNodeEntryCount());
+        assertEquals(
+                factory.create("", "child"),
+                result.getChildNodeEntries().get(999).getName());
+
+        // small child node lists are written inline again
+        entries = result.getChildNodeEntries();
+        entries.subList(10, entries.size()).clear();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        binding.writeBundle(buffer, result);
+        assertEquals(BundleBinding.VERSION_3, buffer.toByteArray()[0]);
+        // the pages read by the bundle are removed once they are no longer
+        // reachable, or when the binding is no longer used
+        binding.reclaimChildPages();
+        assertTrue(pages.isEmpty());
+        assertEquals(result, binding.readBundle(
+                new ByteArrayInputStream(buffer.toByteArray()), result.getId()));
+    }
+
+    /**
+     * Tests that the child node pages of a bundle only change once the
+     * store transaction that wrote them is committed, and that the pages
+     * written by a transaction that is rolled back are removed again.
+     */
+    public void testChildPageTransaction() throws Exception {
+        MapChildPageStore store = new MapChildPageStore();
+        binding.setChildPageStore(store, 40);
+        NodePropBundle bundle = createPagedBundle();
+
+        assertTrue(binding.beginChildPageChanges());
+        assertFalse(binding.beginChildPageChanges());
+        binding.writeBundle(new ByteArrayOutputStream(), bundle);
+        assertTrue(bundle.getChildPageIds().isEmpty());
+        binding.endChildPageChanges(true);
+        List<NodeId> committed = bundle.getChildPageIds();
+        assertFalse(committed.isEmpty());
+        assertEquals(new HashSet<NodeId>(committed), store.pages.keySet());
+
+        // a rolled back change keeps the committed pages
+        bundle.getChildNodeEntries().remove(500);
+        assertTrue(binding.beginChildPageChanges());
+        binding.writeBundle(new ByteArrayOutputStream(), bundle);
+        assertTrue(store.pages.size() > committed.size());
+        binding.endChildPageChanges(false);
+        assertEquals(committed, bundle.getChildPageIds());
+        assertEquals(new HashSet<NodeId>(committed), store.pages.keySet());
+
+        // a committed change releases the superseded page
+        assertTrue(binding.beginChildPageChanges());
+        binding.writeBundle(new ByteArrayOutputStream(), bundle);
+        binding.endChildPageChanges(true);
+        assertFalse(committed.equals(bundle.getChildPageIds()));
+        assertEquals(new HashSet<NodeId>(bundle.getChildPageIds()),
+                store.pages.keySet());
+        assertEquals(0, binding.getPendingChildPageCount());
+    }
+
+    /**
+     * Tests that a bundle written as it is keeps referencing the pages it
+     * was read with, and that neither the bundle nor the child page store
+     * is changed by it.
+     */
+    public void testWriteBundleAsIs() throws Exception {
+        MapChildPageStore store = new MapChildPageStore();
+        binding.setChildPageStore(store, 40);
+        NodePropBundle bundle = writeAndReadBundle(createPagedBundle());
+        List<NodeId> pages = bundle.getChildPageIds();
+        long size = bundle.getSize();
+        store.writes[0] = 0;
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        binding.writeBundleAsIs(buffer, bundle);
+        byte[] bytes = buffer.toByteArray();
+        assertEquals(BundleBinding.VERSION_4, bytes[0]);
+        assertEquals(0, store.writes[0]);
+        assertEquals(pages, bundle.getChildPageIds());
+        assertEquals(size, bundle.getSize());
+        assertFalse(bundle.isChildNodeEntriesLoaded());
+        assertEquals(bundle, binding.readBundle(
+                new ByteArrayInputStream(bytes), bundle.getId()));
+
+        // changed child node entries are written inline, the pages are
+        // neither rewritten nor released
+        bundle.getChildNodeEntries().remove(500);
+        buffer = new ByteArrayOutputStream();
+        binding.writeBundleAsIs(buffer, bundle);
+        bytes = buffer.toByteArray();
+        assertEquals(BundleBinding.VERSION_3, bytes[0]);
+        assertEquals(0, store.writes[0]);
+        assertEquals(pages, bundle.getChildPageIds());
+        assertEquals(0, binding.getPendingChildPageCount());
+        assertEquals(new HashSet<NodeId>(pages), store.pages.keySet());
+        assertEquals(bundle, binding.readBundle(
+                new ByteArrayInputStream(bytes), bundle.getId()));
+    }
+
+    /**
+     * Tests that property values are only decoded when accessed, and that
+     * namespaces first used by skipped name values are still resolved.
+     */
+    public void testLazyPropertyValues() throws Exception {
+        NodePropBundle bundle = new NodePropBundle(NodeId.randomId());
+        bundle.setParentId(NodeId.randomId());
+        bundle.setNodeTypeName(NameConstants.NT_UNSTRUCTURED);
+        bundle.setMixinTypeNames(Collections.<Name>emptySet());
+        bundle.setSharedSet(Collections.<NodeId>emptySet());
+        Name a = factory.create("http://example.com/a", "a");
+        Name b = factory.create("http://example.com/b", "b");
+        setProperty(bundle, factory.create("", "name"), InternalValue.create(
+                new Name[] { a, b, NameConstants.JCR_CONTENT }));
+        setProperty(bundle, factory.create("", "string"),
+                InternalValue.create("value"));
+        setProperty(bundle, factory.create("", "date"),
+                InternalValue.create(Calendar.getInstance()));
+        bundle.addChildNodeEntry(
+                factory.create("http://example.com/b", "child"),
+                NodeId.randomId());
+        bundle.addChildNodeEntry(a, NodeId.randomId());
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        binding.writeBundle(buffer, bundle);
+        byte[] bytes = buffer.toByteArray();
+        NodePropBundle result = binding.readBundle(
+                ByteBuffer.wrap(bytes), bundle.getId());
+        for (PropertyEntry entry : result.getPropertyEntries()) {
+            assertFalse(entry.isDecoded());
+        }
+        assertEquals(bundle.getChildNodeEntries(), result.getChildNodeEntries());
+
+        PropertyEntry entry =
+            result.getPropertyEntry(factory.create("", "name"));
+        assertEquals(b, entry.getValues()[1].getName());
+        assertTrue(entry.isDecoded());
+        assertEquals(bundle, result);
+
+        // truncated bundles are detected
+        byte[] truncated = new byte[bytes.length - 20];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+        try {
+            binding.readBundle(ByteBuffer.wrap(truncated), bundle.getId());
+            fail("Truncated bundle should not be readable");
+        } catch (IOException expected) {
+        }
+    }
+
+    private void setProperty(
+            NodePropBundle bundle, Name name, InternalValue... values) {
+        PropertyEntry entry =
+            new PropertyEntry(new PropertyId(bundle.getId(), name));
+        entry.setType(values[0].getType());
+        entry.setMultiValued(values.length > 1);
+        entry.setValues(values);
+        bundle.addProperty(entry);
+    }
+
+    private NodePropBundle writeAndReadBundle(NodePropBundle bundle)
+            throws Exception {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        binding.writeBundle(buffer, bundle);
+        byte[] bytes = buffer.toByteArray();
+        assertEquals(BundleBinding.VERSION_4, bytes[0]);
+        return binding.readBundle(new ByteArrayInputStream(bytes), bundle.getId());
+    }
+
     private void assertDateSerialization(String date) throws Exception {
         assertValueSerialization(
                 InternalValue.valueOf(date, PropertyType.DATE));
@@ -482,6 +684,8 @@ public class BundleBindingTest extends TestCase {
 
         assertEquals(bundle, binding.readBundle(
                 new ByteArrayInputStream(bytes), bundle.getId()));
+        assertEquals(bundle, binding.readBundle(
+                ByteBuffer.wrap(bytes), bundle.getId()));
     }
 
     private void assertBundleSerialization(NodePropBundle bundle, byte[] data)
@@ -490,4 +694,46 @@ public class BundleBindingTest extends TestCase {
                 new ByteArrayInputStream(data), bundle.getId()));
     }
 
+    private NodePropBundle createPagedBundle() {
+        NodePropBundle bundle = new NodePropBundle(NodeId.randomId());
+        bundle.setParentId(NodeId.randomId());
+        bundle.setNodeTypeName(NameConstants.NT_UNSTRUCTURED);
+        bundle.setMixinTypeNames(Collections.<Name>emptySet());
+        bundle.setSharedSet(Collections.<NodeId>emptySet());
+        for (int i = 0; i < 1000; i++) {
+            bundle.addChildNodeEntry(
+                    factory.create("", "child" + i), NodeId.randomId());
+        }
+        return bundle;
+    }
+
+    /**
+     * Child page store that keeps the pages in a map.
+     */
+    private static class MapChildPageStore implements ChildPageStore {
+
+        private final Map<NodeId, byte[]> pages = new HashMap<NodeId, byte[]>();
+
+        private final int[] writes = new int[1];
+
+        public byte[] get(NodeId pageId) {
+            return pages.get(pageId);
+        }
+
+        public void put(NodeId pageId, byte[] data) {
+            assertTrue(BundleBinding.isChildPageId(pageId));
+            assertNull(pages.put(pageId, data));
+            writes[0]++;
+        }
+
+        public void remove(NodeId pageId) {
+            assertNotNull(pages.remove(pageId));
+        }
+
+        public List<NodeId> getAllPageIds() {
+            return new ArrayList<NodeId>(pages.keySet());
+        }
+
+    }
+
 }
@@ -0,0 +1,192 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.persistence.util;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.jackrabbit.core.id.NodeId;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the {@link SegmentStore} class.
+ */
+public class SegmentStoreTest extends TestCase {
+
+    private File directory;
+
+    protected void setUp() throws Exception {
+        directory = File.createTempFile("jackrabbit-segments-", "-test");
+        directory.delete();
+    }
+
+    protected void tearDown() throws Exception {
+        FileUtils.deleteQuietly(directory);
+    }
+
+    /**
+     * Tests that records can be read back, replaced and removed, and that
+     * the index is rebuilt when the store is opened again.
+     */
+    public void testPutGetRemove() throws Exception {
+        NodeId a = NodeId.randomId();
+        NodeId b = NodeId.randomId();
+        SegmentStore store = new SegmentStore(directory, 1024, 2);
+        store.open();
+        assertNull(store.get(0, a));
+        store.put(0, a, new byte[] { 1, 2, 3 });
+        store.put(1, a, new byte[] { 4 });
+        store.put(0, b, new byte[] { 5, 6 });
+        store.put(0, a, new byte[] { 7 });
+        store.remove(0, b);
+        assertFalse(store.remove(0, b));
+        assertData(new byte[] { 7 }, store.get(0, a));
+        assertData(new byte[] { 4 }, store.get(1, a));
+        assertNull(store.get(0, b));
+        store.close();
+
+        store = new SegmentStore(directory, 1024, 2);
+        store.open();
+        assertData(new byte[] { 7 }, store.get(0, a));
+        assertData(new byte[] { 4 }, store.get(1, a));
+        assertNull(store.get(0, b));
+        assertTrue(store.contains(1, a));
+        assertFalse(store.contains(1, b));
+        store.close();
+    }
+
+    /**
+     * Tests that records that do not fit into a segment are stored in a
+     * new one, and that records larger than the segment size get a
+     * segment of their own.
+     */
+    public void testLargeRecords() throws Exception {
+        SegmentStore store = new SegmentStore(directory, 1024, 1);
+        store.open();
+        NodeId[] ids = new NodeId[10];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = NodeId.randomId();
+            byte[] data = new byte[i * 300];
+            Arrays.fill(data, (byte) i);
+            store.put(0, ids[i], data);
+        }
+        assertTrue(store.getSegmentCount() > 5);
+        store.close();
+
+        store = new SegmentStore(directory, 1024, 1);
+        store.open();
+        for (int i = 0; i < ids.length; i++) {
+            byte[] data = new byte[i * 300];
+            Arrays.fill(data, (byte) i);
+            assertData(data, store.get(0, ids[i]));
+        }
+        store.close();
+    }
+
+    /**
+     * Tests that compaction removes the dead records without losing live
+     * records or resurrecting removed ones.
+     */
+    public void testCompaction() throws Exception {
+        SegmentStore store = new SegmentStore(directory, 4096, 1);
+        store.open();
+        List<NodeId> ids = new ArrayList<NodeId>();
+        for (int i = 0; i < 100; i++) {
+            NodeId id = NodeId.randomId();
+            store.put(0, id, new byte[100]);
+            ids.add(id);
+        }
+        for (int i = 0; i < 100; i++) {
+            if (i % 3 == 0) {
+                store.remove(0, ids.get(i));
+            } else {
+                store.put(0, ids.get(i), new byte[] { (byte) i });
+            }
+        }
+        int segments = store.getSegmentCount();
+        assertTrue(store.getDeadBytes() > 0);
+        ByteBuffer buffer = store.get(0, ids.get(1));
+
+        assertTrue(store.compact(50) > 0);
+        assertTrue(store.getSegmentCount() < segments);
+        assertData(new byte[] { 1 }, buffer);
+        assertEquals(0, store.compact(50));
+        store.close();
+
+        store = new SegmentStore(directory, 4096, 1);
+        store.open();
+        int count = 0;
+        for (NodeId id : store.getIds(0, null)) {
+            int i = ids.indexOf(id);
+            assertTrue(i % 3 != 0);
+            assertData(new byte[] { (byte) i }, store.get(0, id));
+            count++;
+        }
+        assertEquals(66, count);
+        store.close();
+    }
+
+    /**
+     * Tests that an incomplete record at the end of a segment is ignored
+     * and overwritten by the next record.
+     */
+    public void testIncompleteRecord() throws Exception {
+        NodeId a = NodeId.randomId();
+        NodeId b = NodeId.randomId();
+        SegmentStore store = new SegmentStore(directory, 1024, 1);
+        store.open();
+        store.put(0, a, new byte[] { 1 });
+        store.put(0, b, new byte[] { 2, 3, 4 });
+        store.close();
+
+        // damage the last byte of the second record
+        RandomAccessFile file =
+            new RandomAccessFile(new File(directory, "00000001.seg"), "rw");
+        try {
+            file.seek(25 + 1 + 25 + 2);
+            file.write(0);
+        } finally {
+            file.close();
+        }
+
+        store = new SegmentStore(directory, 1024, 1);
+        store.open();
+        assertData(new byte[] { 1 }, store.get(0, a));
+        assertNull(store.get(0, b));
+        store.put(0, b, new byte[] { 5 });
+        store.close();
+
+        store = new SegmentStore(directory, 1024, 1);
+        store.open();
+        assertData(new byte[] { 5 }, store.get(0, b));
+        store.close();
+    }
+
+    private void assertData(byte[] expected, ByteBuffer buffer) {
+        assertNotNull(buffer);
+        byte[] data = new byte[buffer.remaining()];
+        buffer.duplicate().get(data);
+        assertTrue(Arrays.equals(expected, data));
+    }
+
+}
@@ -29,6 +29,7 @@ public class TestAll extends TestCase {
         suite.addTestSuite(BundleBindingTest.class);
         suite.addTestSuite(NodeCorruptionTest.class);
         suite.addTestSuite(BundleBindingRandomizedTest.class);
+        suite.addTestSuite(SegmentStoreTest.class);
 
         return suite;
     }
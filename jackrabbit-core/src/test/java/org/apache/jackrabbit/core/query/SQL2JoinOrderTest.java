@@ -0,0 +1,152 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.query;
+
+import static javax.jcr.query.qom.QueryObjectModelConstants.JCR_JOIN_TYPE_INNER;
+import static javax.jcr.query.qom.QueryObjectModelConstants.JCR_JOIN_TYPE_LEFT_OUTER;
+import static javax.jcr.query.qom.QueryObjectModelConstants.JCR_OPERATOR_EQUAL_TO;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.PropertyType;
+import javax.jcr.Value;
+import javax.jcr.nodetype.NodeType;
+import javax.jcr.query.QueryResult;
+import javax.jcr.query.Row;
+import javax.jcr.query.RowIterator;
+import javax.jcr.query.qom.Constraint;
+import javax.jcr.query.qom.Join;
+import javax.jcr.query.qom.QueryObjectModelFactory;
+
+import org.apache.jackrabbit.core.SessionImpl;
+import org.apache.jackrabbit.core.query.lucene.LuceneQueryFactory;
+import org.apache.jackrabbit.core.query.lucene.join.QueryEngine;
+
+/**
+ * Test case for the order in which the sides of JCR_SQL2 joins are executed.
+ */
+public class SQL2JoinOrderTest extends AbstractIndexingTest {
+
+    private static final int CHILDREN = 25;
+
+    private QueryObjectModelFactory qf;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        for (int i = 0; i < 2; i++) {
+            Node parent = testRootNode.addNode("parent" + i, "nt:unstructured");
+            parent.addMixin(NodeType.MIX_REFERENCEABLE);
+            parent.setProperty("joinOrder", i == 0 ? "selected" : "other");
+            for (int j = 0; j < CHILDREN; j++) {
+                Node child = testRootNode.addNode(
+                        "child" + i + "_" + j, "nt:unstructured");
+                child.setProperty("testref", parent.getIdentifier(),
+                        PropertyType.REFERENCE);
+            }
+        }
+        session.save();
+        qf = qm.getQOMFactory();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        qf = null;
+        super.tearDown();
+    }
+
+    public void testSelectiveRightSide() throws Exception {
+        QueryEngine engine = createQueryEngine();
+        QueryResult result = engine.execute(null,
+                createJoin(JCR_JOIN_TYPE_INNER), createConstraint(), null, 0, -1);
+
+        // the selector order of the query is kept
+        assertEquals(Arrays.asList("c", "p"),
+                Arrays.asList(result.getSelectorNames()));
+        assertEquals(CHILDREN, checkRows(result, "selected"));
+        assertTrue(engine.getPlan(), engine.getPlan().contains("sides swapped"));
+    }
+
+    public void testOuterJoinIsNotReordered() throws Exception {
+        QueryEngine engine = createQueryEngine();
+        QueryResult result = engine.execute(null,
+                createJoin(JCR_JOIN_TYPE_LEFT_OUTER),
+                qf.and(qf.childNode("c", testRoot),
+                        qf.propertyExistence("c", "testref")), null, 0, -1);
+
+        assertEquals(Arrays.asList("c", "p"),
+                Arrays.asList(result.getSelectorNames()));
+        assertEquals(2 * CHILDREN, checkRows(result, null));
+        assertFalse(engine.getPlan(), engine.getPlan().contains("sides swapped"));
+    }
+
+    public void testSQL2() throws Exception {
+        String join = "SELECT * FROM [nt:unstructured] AS c"
+                + " INNER JOIN [nt:unstructured] AS p ON c.testref = p.[jcr:uuid]"
+                + " WHERE ISCHILDNODE(c, [" + testRoot + "])"
+                + " AND p.joinOrder = 'selected'";
+        QueryResult result = executeSQL2Query(join);
+        assertEquals(Arrays.asList("c", "p"),
+                Arrays.asList(result.getSelectorNames()));
+        assertEquals(CHILDREN, checkRows(result, "selected"));
+    }
+
+    private QueryEngine createQueryEngine() throws Exception {
+        SessionImpl s = (SessionImpl) session;
+        Map<String, Value> variables = Collections.emptyMap();
+        return new QueryEngine(s,
+                new LuceneQueryFactory(s, getSearchIndex(), variables),
+                variables);
+    }
+
+    private Join createJoin(String type) throws Exception {
+        return qf.join(
+                qf.selector("nt:unstructured", "c"),
+                qf.selector("nt:unstructured", "p"), type,
+                qf.equiJoinCondition("c", "testref", "p", "jcr:uuid"));
+    }
+
+    private Constraint createConstraint() throws Exception {
+        Value selected = session.getValueFactory().createValue("selected");
+        return qf.and(
+                qf.childNode("c", testRoot),
+                qf.comparison(qf.propertyValue("p", "joinOrder"),
+                        JCR_OPERATOR_EQUAL_TO, qf.literal(selected)));
+    }
+
+    private int checkRows(QueryResult result, String joinOrder)
+            throws Exception {
+        int count = 0;
+        for (RowIterator rows = result.getRows(); rows.hasNext(); ) {
+            Row row = rows.nextRow();
+            Node parent = row.getNode("p");
+            assertNotNull(parent);
+            if (joinOrder != null) {
+                assertEquals(joinOrder,
+                        parent.getProperty("joinOrder").getString());
+            }
+            assertEquals(parent.getIdentifier(),
+                    row.getNode("c").getProperty("testref").getString());
+            count++;
+        }
+        return count;
+    }
+
+}
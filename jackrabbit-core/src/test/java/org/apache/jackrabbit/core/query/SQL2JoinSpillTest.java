@@ -0,0 +1,161 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.query;
+
+import javax.jcr.Node;
+import javax.jcr.PropertyType;
+import javax.jcr.nodetype.NodeType;
+import javax.jcr.query.Query;
+import javax.jcr.query.Row;
+import javax.jcr.query.RowIterator;
+
+import org.apache.jackrabbit.core.query.lucene.SearchIndex;
+
+/**
+ * Test case for JCR_SQL2 joins whose row sets do not fit into the number of
+ * rows a join may keep in memory.
+ */
+public class SQL2JoinSpillTest extends AbstractIndexingTest {
+
+    private static final int PARENTS = 20;
+
+    private int joinMemoryRows;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        for (int i = 0; i < PARENTS; i++) {
+            Node parent = testRootNode.addNode("parent" + i, "nt:unstructured");
+            parent.addMixin(NodeType.MIX_REFERENCEABLE);
+            parent.setProperty("type", "parent");
+            parent.setProperty("order", i);
+            // every other parent has two children
+            if (i % 2 == 0) {
+                for (int j = 0; j < 2; j++) {
+                    Node child = testRootNode.addNode(
+                            "child" + i + "_" + j, "nt:unstructured");
+                    child.setProperty("type", "child");
+                    child.setProperty("testref", parent.getIdentifier(),
+                            PropertyType.REFERENCE);
+                    child.addNode("grandchild", "nt:unstructured");
+                }
+            }
+        }
+        session.save();
+
+        SearchIndex index = getSearchIndex();
+        joinMemoryRows = index.getJoinMemoryRows();
+        index.setJoinMemoryRows(2);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        getSearchIndex().setJoinMemoryRows(joinMemoryRows);
+        super.tearDown();
+    }
+
+    public void testInnerJoin() throws Exception {
+        String join = "SELECT * FROM [nt:unstructured] AS a"
+                + " INNER JOIN [nt:unstructured] AS b ON a.[jcr:uuid] = b.testref"
+                + " WHERE ISCHILDNODE(a, [" + testRoot + "])";
+        checkResult(executeSQL2Query(join), PARENTS);
+    }
+
+    public void testLeftOuterJoin() throws Exception {
+        String join = "SELECT * FROM [nt:unstructured] AS a"
+                + " LEFT OUTER JOIN [nt:unstructured] AS b ON a.[jcr:uuid] = b.testref"
+                + " WHERE ISCHILDNODE(a, [" + testRoot + "])"
+                + " AND a.type = 'parent'";
+        // PARENTS / 2 parents with two children, PARENTS / 2 without
+        checkResult(executeSQL2Query(join), PARENTS + PARENTS / 2);
+    }
+
+    public void testThreeWayJoin() throws Exception {
+        String join = "SELECT * FROM [nt:unstructured] AS a"
+                + " INNER JOIN [nt:unstructured] AS b ON a.[jcr:uuid] = b.testref"
+                + " INNER JOIN [nt:unstructured] AS c ON ISCHILDNODE(c, b)"
+                + " WHERE ISCHILDNODE(a, [" + testRoot + "])";
+        checkResult(executeSQL2Query(join), PARENTS);
+    }
+
+    public void testDistinctRows() throws Exception {
+        // both branches of the split constraint match every row, the
+        // duplicates are spilled and removed when the rows are read
+        String join = "SELECT * FROM [nt:unstructured] AS a"
+                + " INNER JOIN [nt:unstructured] AS b ON a.[jcr:uuid] = b.testref"
+                + " WHERE ISCHILDNODE(a, [" + testRoot + "])"
+                + " AND (a.type = 'parent' OR b.type = 'child')";
+        checkResult(executeSQL2Query(join), PARENTS);
+    }
+
+    public void testOrderByWithLimit() throws Exception {
+        String join = "SELECT * FROM [nt:unstructured] AS a"
+                + " INNER JOIN [nt:unstructured] AS b ON a.[jcr:uuid] = b.testref"
+                + " WHERE ISCHILDNODE(a, [" + testRoot + "])"
+                + " ORDER BY a.order DESC";
+        Query query = qm.createQuery(join, Query.JCR_SQL2);
+        query.setOffset(2);
+        query.setLimit(3);
+        RowIterator rows = query.execute().getRows();
+        long[] expected = new long[] { 16, 16, 14 };
+        for (long order : expected) {
+            assertTrue(rows.hasNext());
+            Row row = rows.nextRow();
+            assertEquals(order,
+                    row.getNode("a").getProperty("order").getLong());
+        }
+        assertFalse(rows.hasNext());
+    }
+
+    public void testLimitWithoutOrderBy() throws Exception {
+        String join = "SELECT * FROM [nt:unstructured] AS a"
+                + " INNER JOIN [nt:unstructured] AS b ON a.[jcr:uuid] = b.testref"
+                + " WHERE ISCHILDNODE(a, [" + testRoot + "])";
+        Query query = qm.createQuery(join, Query.JCR_SQL2);
+        query.setOffset(PARENTS - 3);
+        query.setLimit(5);
+        checkResult(query.execute(), 3);
+    }
+
+    public void testMovedNodes() throws Exception {
+        String join = "SELECT * FROM [nt:unstructured] AS a"
+                + " INNER JOIN [nt:unstructured] AS b ON a.[jcr:uuid] = b.testref"
+                + " WHERE ISCHILDNODE(a, [" + testRoot + "])";
+        RowIterator rows = executeSQL2Query(join).getRows();
+        // the spilled rows are resolved again while they are read
+        for (int i = 0; i < PARENTS; i++) {
+            session.move(testRoot + "/parent" + i, testRoot + "/moved" + i);
+        }
+        session.save();
+        int count = 0;
+        while (rows.hasNext()) {
+            Row row = rows.nextRow();
+            assertTrue(row.getNode("a").getName().startsWith("moved"));
+            count++;
+        }
+        assertEquals(PARENTS, count);
+    }
+
+    public void testSizeInMemory() throws Exception {
+        getSearchIndex().setJoinMemoryRows(joinMemoryRows);
+        String join = "SELECT * FROM [nt:unstructured] AS a"
+                + " INNER JOIN [nt:unstructured] AS b ON a.[jcr:uuid] = b.testref"
+                + " WHERE ISCHILDNODE(a, [" + testRoot + "])";
+        assertEquals(PARENTS, executeSQL2Query(join).getRows().getSize());
+    }
+
+}
@@ -62,6 +62,8 @@ public class TestAll extends TestCase {
         suite.addTestSuite(LimitAndOffsetTest.class);
         suite.addTestSuite(SQL2NodeLocalNameTest.class);
         suite.addTestSuite(SQL2OuterJoinTest.class);
+        suite.addTestSuite(SQL2JoinSpillTest.class);
+        suite.addTestSuite(SQL2JoinOrderTest.class);
         suite.addTestSuite(SQL2PathEscapingTest.class);
         suite.addTestSuite(SQL2QueryResultTest.class);
         suite.addTestSuite(LimitedAccessQueryTest.class);
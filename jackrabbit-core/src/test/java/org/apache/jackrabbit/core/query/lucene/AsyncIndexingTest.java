@@ -0,0 +1,191 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.query.lucene;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jcr.Node;
+import javax.jcr.query.Query;
+
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.query.AbstractIndexingTest;
+import org.apache.jackrabbit.core.query.QueryImpl;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.RAMDirectory;
+
+/**
+ * <code>AsyncIndexingTest</code> checks the asynchronous indexing mode of
+ * the workspace async-indexing-test.
+ * <p>
+ * See src/test/repository/workspaces/async-indexing-test/workspace.xml
+ */
+public class AsyncIndexingTest extends AbstractIndexingTest {
+
+    protected static final String WORKSPACE_NAME = "async-indexing-test";
+
+    @Override
+    protected String getWorkspaceName() {
+        return WORKSPACE_NAME;
+    }
+
+    /**
+     * Checks that a query waiting for the revision of a save finds the
+     * saved nodes.
+     */
+    public void testWaitForRevision() throws Exception {
+        SearchIndex index = getSearchIndex();
+        long revision = index.getIndexRevision();
+
+        Node node = testRootNode.addNode(nodeName1);
+        node.setProperty(propertyName1, "asyncIndexingTest");
+        session.save();
+        assertTrue(index.getIndexRevision() > revision);
+        revision = index.getIndexRevision();
+
+        Query query = qm.createQuery(
+                testPath + "/*[@" + propertyName1 + " = 'asyncIndexingTest']",
+                Query.XPATH);
+        ((QueryImpl) query).setIndexRevision(revision);
+        checkResult(query.execute(), new Node[]{node});
+        assertTrue(index.getIndexedRevision() >= revision);
+    }
+
+    /**
+     * Checks that a query waiting for all queued changes sees removed
+     * nodes disappear.
+     */
+    public void testWaitForCurrentRevision() throws Exception {
+        Node node = testRootNode.addNode(nodeName1);
+        node.setProperty(propertyName1, "asyncIndexingTest");
+        session.save();
+
+        String sql2 = "SELECT * FROM [nt:base] WHERE ISCHILDNODE(["
+                + testRoot + "]) AND [" + propertyName1
+                + "] = 'asyncIndexingTest'";
+        Query query = qm.createQuery(sql2, Query.JCR_SQL2);
+        ((QueryImpl) query).setIndexRevision(Long.MAX_VALUE);
+        checkResult(query.execute(), new Node[]{node});
+
+        node.remove();
+        session.save();
+
+        query = qm.createQuery(sql2, Query.JCR_SQL2);
+        ((QueryImpl) query).setIndexRevision(Long.MAX_VALUE);
+        checkResult(query.execute(), new Node[0]);
+    }
+
+    /**
+     * Checks that nodes which were queued but not indexed are pending again
+     * when the queue store is reopened.
+     */
+    public void testQueueStore() throws Exception {
+        RAMDirectory dir = new RAMDirectory();
+        AsyncIndexingQueueStore store = new AsyncIndexingQueueStore(dir);
+        store.addUUIDs(Arrays.asList("a", "b", "c"));
+        store.removeUUIDs(Arrays.asList("b"));
+        store.addUUIDs(Arrays.asList("d"));
+        // no close, as after a crash
+
+        store = new AsyncIndexingQueueStore(dir);
+        Set<String> pending = new HashSet<String>(
+                Arrays.asList(store.getPending()));
+        assertEquals(new HashSet<String>(Arrays.asList("a", "c", "d")), pending);
+
+        store.removeUUIDs(Arrays.asList("a", "c", "d"));
+        assertTrue(store.isEmpty());
+        store.close();
+        assertEquals(0, dir.listAll().length);
+    }
+
+    /**
+     * Checks that the log of the previous generation is kept when the
+     * compacted log was only partially written before a crash.
+     */
+    public void testQueueStoreCompaction() throws Exception {
+        RAMDirectory dir = new RAMDirectory();
+        AsyncIndexingQueueStore store = new AsyncIndexingQueueStore(dir);
+        store.addUUIDs(Arrays.asList("a", "b"));
+
+        byte[] partial = "ADD a\nADD".getBytes("UTF-8");
+        IndexOutput out = dir.createOutput(
+                AsyncIndexingQueueStore.ASYNC_INDEXING_QUEUE_FILE + "_1");
+        out.writeBytes(partial, partial.length);
+        out.close();
+
+        store = new AsyncIndexingQueueStore(dir);
+        Set<String> pending = new HashSet<String>(
+                Arrays.asList(store.getPending()));
+        assertEquals(new HashSet<String>(Arrays.asList("a", "b")), pending);
+        assertEquals(Arrays.asList(
+                AsyncIndexingQueueStore.ASYNC_INDEXING_QUEUE_FILE + "_2"),
+                Arrays.asList(dir.listAll()));
+        store.close();
+    }
+
+    /**
+     * Checks that a batch that fails to be indexed is retried, and that
+     * waiting for it reports the failure meanwhile.
+     */
+    public void testRetryAfterFailure() throws Exception {
+        final AtomicInteger failures = new AtomicInteger(3);
+        final Set<NodeId> indexed =
+            Collections.synchronizedSet(new HashSet<NodeId>());
+        SearchIndex handler = new SearchIndex() {
+            @Override
+            void indexNodes(Collection<NodeId> ids) throws IOException {
+                if (failures.getAndDecrement() > 0) {
+                    throw new IOException("test failure");
+                }
+                indexed.addAll(ids);
+            }
+        };
+        ScheduledExecutorService executor =
+            Executors.newSingleThreadScheduledExecutor();
+        try {
+            AsyncIndexer indexer = new AsyncIndexer(
+                    handler, new RAMDirectory(), executor, 10);
+            NodeId id = NodeId.randomId();
+            long revision = indexer.enqueue(Collections.singleton(id));
+            try {
+                indexer.waitForRevision(revision, 0);
+                fail("Waiting for nodes that failed to be indexed must fail");
+            } catch (IOException expected) {
+            }
+            assertTrue(indexer.getIndexedRevision() < revision);
+
+            long end = System.currentTimeMillis() + 10000;
+            while (indexer.getIndexedRevision() < revision
+                    && System.currentTimeMillis() < end) {
+                Thread.sleep(10);
+            }
+            assertTrue(indexer.waitForRevision(revision, 0));
+            assertTrue(indexed.contains(id));
+            indexer.close();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+}
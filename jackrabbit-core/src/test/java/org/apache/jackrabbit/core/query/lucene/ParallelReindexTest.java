@@ -0,0 +1,133 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.query.lucene;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jcr.Node;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.jackrabbit.core.TestHelper;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.query.lucene.hits.AbstractHitCollector;
+import org.apache.jackrabbit.test.AbstractJCRTest;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+
+/**
+ * Test cases for the initial index creation with multiple threads.
+ */
+public class ParallelReindexTest extends AbstractJCRTest {
+
+    private static final int NODE_COUNT = 500;
+
+    private final List<NodeId> ids = new ArrayList<NodeId>();
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        directory = new File("target", "parallel-reindex-" + System.nanoTime());
+        for (int i = 0; i < NODE_COUNT; i++) {
+            Node node = testRootNode.addNode("node" + i);
+            node.setProperty("text", "node " + i);
+            ids.add(new NodeId(node.getIdentifier()));
+        }
+        superuser.save();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        ids.clear();
+        FileUtils.deleteQuietly(directory);
+        super.tearDown();
+    }
+
+    /**
+     * Checks that an index created with several threads contains the same
+     * documents as one created by traversing the workspace.
+     */
+    public void testParallelReindex() throws Exception {
+        SearchIndex workspaceIndex = (SearchIndex)
+                TestHelper.getSearchManager(superuser).getQueryHandler();
+
+        SearchIndex sequential = createIndex(workspaceIndex, "sequential", 1);
+        try {
+            SearchIndex parallel = createIndex(workspaceIndex, "parallel", 4);
+            try {
+                ReindexStatistics statistics =
+                    parallel.getIndex().getReindexStatistics();
+                assertFalse(statistics.isRunning());
+                assertEquals(4, statistics.getThreads());
+                assertEquals(statistics.getTotalNodes(),
+                        statistics.getIndexedNodes());
+                assertEquals(100.0, statistics.getProgress());
+
+                assertEquals(sequential.getIndex().numDocs(),
+                        parallel.getIndex().numDocs());
+                for (NodeId id : ids) {
+                    assertTrue("Missing node " + id, containsNode(parallel, id));
+                }
+            } finally {
+                parallel.close();
+            }
+        } finally {
+            sequential.close();
+        }
+    }
+
+    private SearchIndex createIndex(
+            SearchIndex workspaceIndex, String name, int threads)
+            throws IOException {
+        SearchIndex index = new SearchIndex();
+        index.setPath(new File(directory, name).getAbsolutePath());
+        index.setReindexThreads(threads);
+        index.init(null, workspaceIndex.getContext());
+        return index;
+    }
+
+    private boolean containsNode(SearchIndex index, NodeId id)
+            throws IOException {
+        final List<Integer> docs = new ArrayList<Integer>(1);
+        IndexReader reader = index.getIndexReader();
+        try {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            try {
+                searcher.search(
+                        new TermQuery(new Term(FieldNames.UUID, id.toString())),
+                        new AbstractHitCollector() {
+                            @Override
+                            protected void collect(int doc, float score) {
+                                docs.add(doc);
+                            }
+                        });
+            } finally {
+                searcher.close();
+            }
+        } finally {
+            Util.closeOrRelease(reader);
+        }
+        return !docs.isEmpty();
+    }
+
+}
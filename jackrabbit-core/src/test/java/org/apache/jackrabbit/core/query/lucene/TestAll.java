@@ -53,6 +53,8 @@ public class TestAll extends TestCase {
         suite.addTestSuite(ArrayHitsTest.class);
         suite.addTestSuite(IndexFormatVersionTest.class);
         suite.addTestSuite(SynonymProviderTest.class);
+        suite.addTestSuite(ParallelReindexTest.class);
+        suite.addTestSuite(AsyncIndexingTest.class);
 
         return suite;
     }
@@ -0,0 +1,170 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.security.authorization.acl;
+
+import java.security.Principal;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.AccessDeniedException;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.query.Query;
+import javax.jcr.security.AccessControlManager;
+import javax.jcr.security.Privilege;
+
+import org.apache.jackrabbit.api.security.JackrabbitAccessControlList;
+import org.apache.jackrabbit.core.SessionImpl;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.security.authorization.AbstractEvaluationTest;
+import org.apache.jackrabbit.core.security.authorization.SubtreeReadPermissions;
+import org.apache.jackrabbit.test.NotExecutableException;
+
+/**
+ * <code>QueryReadAccessTest</code> checks that query results of a session
+ * with restricted read access only contain readable nodes, also when the
+ * matches of denied subtrees are removed inside the search index.
+ */
+public class QueryReadAccessTest extends AbstractEvaluationTest {
+
+    private String path;
+    private String childNPath;
+    private String siblingPath;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        Node node = testRootNode.addNode(nodeName1, testNodeType);
+        Node cn1 = node.addNode(nodeName2, testNodeType);
+        cn1.addNode(nodeName3, testNodeType);
+        Node sibling = testRootNode.addNode(nodeName4, testNodeType);
+        superuser.save();
+
+        path = node.getPath();
+        childNPath = cn1.getPath();
+        siblingPath = sibling.getPath();
+    }
+
+    @Override
+    protected boolean isExecutable() {
+        return EvaluationUtil.isExecutable(acMgr);
+    }
+
+    @Override
+    protected JackrabbitAccessControlList getPolicy(AccessControlManager acM, String path, Principal principal) throws RepositoryException, AccessDeniedException, NotExecutableException {
+        return EvaluationUtil.getPolicy(acM, path, principal);
+    }
+
+    @Override
+    protected Map<String, Value> getRestrictions(Session s, String path) {
+        return Collections.emptyMap();
+    }
+
+    public void testDeniedSubtree() throws Exception {
+        withdrawPrivileges(path, privilegesFromName(Privilege.JCR_READ),
+                getRestrictions(superuser, path));
+
+        Set<String> paths = executeQuery(getTestSession());
+        assertTrue(paths.contains(siblingPath));
+        assertFalse(paths.contains(path));
+        assertFalse(paths.contains(childNPath));
+        assertFalse(paths.contains(childNPath + "/" + nodeName3));
+    }
+
+    public void testAllowedBelowDeniedSubtree() throws Exception {
+        Privilege[] privileges = privilegesFromName(Privilege.JCR_READ);
+        withdrawPrivileges(path, privileges, getRestrictions(superuser, path));
+        givePrivileges(childNPath, privileges, getRestrictions(superuser, childNPath));
+
+        Set<String> paths = executeQuery(getTestSession());
+        assertTrue(paths.contains(siblingPath));
+        assertFalse(paths.contains(path));
+        assertTrue(paths.contains(childNPath));
+        assertTrue(paths.contains(childNPath + "/" + nodeName3));
+    }
+
+    public void testModifiedPolicy() throws Exception {
+        Privilege[] privileges = privilegesFromName(Privilege.JCR_READ);
+        withdrawPrivileges(path, privileges, getRestrictions(superuser, path));
+
+        Session testSession = getTestSession();
+        assertFalse(executeQuery(testSession).contains(childNPath));
+
+        givePrivileges(childNPath, privileges, getRestrictions(superuser, childNPath));
+        assertTrue(executeQuery(testSession).contains(childNPath));
+    }
+
+    public void testSharedSubtreeReadPermissions() throws Exception {
+        Privilege[] privileges = privilegesFromName(Privilege.JCR_READ);
+        withdrawPrivileges(path, privileges, getRestrictions(superuser, path));
+        NodeId id = new NodeId(superuser.getNode(path).getIdentifier());
+        NodeId childId = new NodeId(superuser.getNode(childNPath).getIdentifier());
+
+        Session s = getHelper().getRepository().login(creds);
+        try {
+            Map<NodeId, Boolean> permissions =
+                getSubtreeReadPermissions(getTestSession());
+            assertEquals(Boolean.FALSE, permissions.get(id));
+            assertFalse(permissions.containsKey(childId));
+            // shared by the sessions of the same principals
+            assertSame(permissions, getSubtreeReadPermissions(s));
+
+            // access controlled nodes added later are tracked as well
+            givePrivileges(childNPath, privileges,
+                    getRestrictions(superuser, childNPath));
+            permissions = getSubtreeReadPermissions(s);
+            assertEquals(Boolean.FALSE, permissions.get(id));
+            assertEquals(Boolean.TRUE, permissions.get(childId));
+        } finally {
+            s.logout();
+        }
+    }
+
+    /**
+     * Returns the subtree read permissions of the given session, waiting
+     * until the access controlled nodes have been collected.
+     */
+    private Map<NodeId, Boolean> getSubtreeReadPermissions(Session s)
+            throws Exception {
+        SubtreeReadPermissions am = (SubtreeReadPermissions)
+                ((SessionImpl) s).getAccessManager();
+        long end = System.currentTimeMillis() + 10000;
+        Map<NodeId, Boolean> permissions = am.getSubtreeReadPermissions();
+        while (permissions == null && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+            permissions = am.getSubtreeReadPermissions();
+        }
+        assertNotNull(permissions);
+        return permissions;
+    }
+
+    private Set<String> executeQuery(Session s) throws RepositoryException {
+        String stmt = "/jcr:root" + testRoot + "//*";
+        Query q = s.getWorkspace().getQueryManager().createQuery(stmt, Query.XPATH);
+        Set<String> paths = new HashSet<String>();
+        for (NodeIterator it = q.execute().getNodes(); it.hasNext(); ) {
+            paths.add(it.nextNode().getPath());
+        }
+        return paths;
+    }
+}
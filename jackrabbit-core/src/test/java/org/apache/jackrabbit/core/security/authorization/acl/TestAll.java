@@ -53,6 +53,7 @@ public class TestAll extends TestCase {
         suite.addTestSuite(RepositoryOperationTest.class);
         suite.addTestSuite(MoveTest.class);
         suite.addTestSuite(RestrictionTest.class);
+        suite.addTestSuite(QueryReadAccessTest.class);
 
         return suite;
     }
@@ -210,6 +210,37 @@ public abstract class AbstractISMLockingTest extends TestCase {
         return t;
     }
 
+    /**
+     * Creates and starts a thread that acquires the write lock for the given
+     * change log, then acquires and releases the read lock for the given id
+     * and finally releases the write lock. The thread's interrupted status
+     * is set if it was interrupted during this sequence.
+     *
+     * @param lock the <code>ISMLocking</code> to use
+     * @param changeLog the <code>ChangeLog</code> to use
+     * @param id the id to use
+     * @return a thread that has been started
+     */
+    protected final Thread startWriterReaderThread(
+            final ISMLocking lock, final ChangeLog changeLog, final ItemId id) {
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    WriteLock wLock = lock.acquireWriteLock(changeLog);
+                    try {
+                        lock.acquireReadLock(id).release();
+                    } finally {
+                        wLock.release();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        t.start();
+        return t;
+    }
+
     /**
      * Verifies that the given thread is blocked. Then it interrupts the thread and waits a certain amount of
      * time for it to complete. (If it doesn't complete within that time then the test that calls this method
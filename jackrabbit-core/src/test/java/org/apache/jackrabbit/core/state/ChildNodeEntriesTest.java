@@ -0,0 +1,229 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.state;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.spi.Name;
+import org.apache.jackrabbit.spi.NameFactory;
+import org.apache.jackrabbit.spi.commons.name.NameFactoryImpl;
+
+import junit.framework.TestCase;
+
+/**
+ * <code>ChildNodeEntriesTest</code> checks the lookup, ordering and
+ * same-name sibling semantics of {@link ChildNodeEntries}.
+ */
+public class ChildNodeEntriesTest extends TestCase {
+
+    private static final NameFactory FACTORY = NameFactoryImpl.getInstance();
+
+    private static final Name A = FACTORY.create("", "a");
+
+    private static final Name B = FACTORY.create("", "b");
+
+    public void testSameNameSiblings() {
+        ChildNodeEntries entries = new ChildNodeEntries();
+        NodeId a1 = NodeId.randomId();
+        NodeId b1 = NodeId.randomId();
+        NodeId a2 = NodeId.randomId();
+        NodeId a3 = NodeId.randomId();
+        assertEquals(1, entries.add(A, a1).getIndex());
+        assertEquals(1, entries.add(B, b1).getIndex());
+        assertEquals(2, entries.add(FACTORY.create("", "a"), a2).getIndex());
+        assertEquals(3, entries.add(A, a3).getIndex());
+        assertEquals(4, entries.size());
+
+        // the name instance of the first sibling is reused
+        assertSame(A, entries.get(a2).getName());
+        assertEquals(3, entries.get(A).size());
+        assertEquals(a3, entries.get(A, 3).getId());
+        assertNull(entries.get(A, 4));
+        assertEquals(b1, entries.get(B, 1).getId());
+        assertNull(entries.get(B, 2));
+
+        // removing a sibling updates the indexes of the subsequent ones
+        ChildNodeEntry removed = entries.remove(a1);
+        assertEquals(new ChildNodeEntry(A, a1, 1), removed);
+        assertEquals(new ChildNodeEntry(A, a2, 1), entries.get(a2));
+        assertEquals(new ChildNodeEntry(A, a3, 2), entries.get(A, 2));
+        assertEquals(a2, entries.remove(A, 1).getId());
+        assertEquals(new ChildNodeEntry(A, a3, 1), entries.get(a3));
+        assertEquals(1, entries.get(A).size());
+        assertNull(entries.remove(a1));
+
+        List<ChildNodeEntry> list = entries.list();
+        assertEquals(2, list.size());
+        assertEquals(b1, list.get(0).getId());
+        assertEquals(a3, list.get(1).getId());
+    }
+
+    /**
+     * Compares the entries with a simple model while lots of entries are
+     * added and removed, so that the slots get compacted and the hash
+     * tables grow.
+     */
+    public void testRandomOperations() {
+        Random random = new Random(1);
+        Name[] names = new Name[50];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = FACTORY.create("", "n" + i);
+        }
+        Map<NodeId, Name> model = new LinkedHashMap<NodeId, Name>();
+        List<NodeId> ids = new ArrayList<NodeId>();
+        ChildNodeEntries entries = new ChildNodeEntries();
+        for (int i = 0; i < 20000; i++) {
+            if (ids.isEmpty() || random.nextInt(3) > 0) {
+                NodeId id = NodeId.randomId();
+                Name name = names[random.nextInt(names.length)];
+                entries.add(name, id);
+                model.put(id, name);
+                ids.add(id);
+            } else {
+                NodeId id = ids.remove(random.nextInt(ids.size()));
+                assertEquals(model.remove(id), entries.remove(id).getName());
+            }
+            if (i % 1000 == 0) {
+                assertModel(model, entries);
+            }
+        }
+        assertModel(model, entries);
+
+        while (!ids.isEmpty()) {
+            NodeId id = ids.remove(ids.size() - 1);
+            model.remove(id);
+            assertNotNull(entries.remove(id));
+        }
+        assertTrue(entries.isEmpty());
+        assertTrue(entries.list().isEmpty());
+    }
+
+    public void testCopyOnWrite() {
+        ChildNodeEntries entries = new ChildNodeEntries();
+        NodeId a1 = NodeId.randomId();
+        NodeId a2 = NodeId.randomId();
+        entries.add(A, a1);
+        entries.add(A, a2);
+
+        List<ChildNodeEntry> list = entries.list();
+        ChildNodeEntries clone = (ChildNodeEntries) entries.clone();
+        assertEquals(entries, clone);
+
+        entries.remove(a1);
+        entries.add(B, NodeId.randomId());
+        assertEquals(2, list.size());
+        assertEquals(new ChildNodeEntry(A, a1, 1), list.get(0));
+        assertEquals(new ChildNodeEntry(A, a2, 2), list.get(1));
+        assertEquals(2, clone.size());
+        assertEquals(new ChildNodeEntry(A, a2, 2), clone.get(a2));
+        assertFalse(entries.equals(clone));
+
+        List<ChildNodeEntry> removed = clone.removeAll(entries);
+        assertEquals(1, removed.size());
+        assertEquals(a1, removed.get(0).getId());
+        assertEquals(1, clone.retainAll(entries).size());
+
+        ChildNodeEntries renamed = (ChildNodeEntries) clone.clone();
+        renamed.remove(a2);
+        renamed.add(B, a2);
+        assertEquals(1, renamed.getRenamedEntries(clone).size());
+        assertEquals(B, renamed.getRenamedEntries(clone).get(0).getName());
+    }
+
+    public void testLargeFlatFolder() {
+        ChildNodeEntries entries = new ChildNodeEntries();
+        NodeId[] ids = new NodeId[100000];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = NodeId.randomId();
+            entries.add(FACTORY.create("", "node" + i), ids[i]);
+        }
+        for (int i = 0; i < ids.length; i += 997) {
+            assertEquals(ids[i], entries.get(FACTORY.create("", "node" + i), 1).getId());
+            assertEquals("node" + i, entries.get(ids[i]).getName().getLocalName());
+        }
+        List<ChildNodeEntry> list = entries.list();
+        assertEquals(ids.length, list.size());
+        assertEquals(ids[ids.length - 1], list.get(ids.length - 1).getId());
+    }
+
+    public void testLoader() {
+        final NodeId[] ids = new NodeId[100];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = NodeId.randomId();
+        }
+        final int[] loads = new int[1];
+        ChildNodeEntries entries = new ChildNodeEntries();
+        entries.add(A, NodeId.randomId());
+        entries.setLoader(new ChildNodeEntryLoader() {
+            public int getChildNodeEntryCount() {
+                return ids.length;
+            }
+            public void loadChildNodeEntries(List<Name> names, List<NodeId> list) {
+                loads[0]++;
+                for (int i = 0; i < ids.length; i++) {
+                    names.add(i % 2 == 0 ? A : B);
+                    list.add(ids[i]);
+                }
+            }
+        });
+
+        // the size is known without loading the entries
+        assertEquals(ids.length, entries.size());
+        assertFalse(entries.isEmpty());
+        ChildNodeEntries clone = (ChildNodeEntries) entries.clone();
+        assertEquals(0, loads[0]);
+
+        assertEquals(new ChildNodeEntry(B, ids[99], 50), entries.get(ids[99]));
+        assertEquals(ids[2], entries.get(A, 2).getId());
+        assertEquals(1, loads[0]);
+        entries.add(A, NodeId.randomId());
+        assertEquals(ids.length + 1, entries.size());
+
+        // the clone loads the entries on its own
+        assertEquals(ids.length, clone.size());
+        assertEquals(ids[0], clone.list().get(0).getId());
+        assertEquals(2, loads[0]);
+    }
+
+    private void assertModel(Map<NodeId, Name> model, ChildNodeEntries entries) {
+        assertEquals(model.size(), entries.size());
+        Map<Name, Integer> counts = new LinkedHashMap<Name, Integer>();
+        List<ChildNodeEntry> list = entries.list();
+        int i = 0;
+        for (Map.Entry<NodeId, Name> expected : model.entrySet()) {
+            Integer count = counts.get(expected.getValue());
+            int index = count == null ? 1 : count + 1;
+            counts.put(expected.getValue(), index);
+
+            ChildNodeEntry entry = new ChildNodeEntry(
+                    expected.getValue(), expected.getKey(), index);
+            assertEquals(entry, list.get(i++));
+            assertEquals(entry, entries.get(expected.getKey()));
+            assertEquals(entry, entries.get(expected.getValue(), index));
+        }
+        for (Map.Entry<Name, Integer> count : counts.entrySet()) {
+            assertEquals(count.getValue().intValue(),
+                    entries.get(count.getKey()).size());
+        }
+    }
+
+}
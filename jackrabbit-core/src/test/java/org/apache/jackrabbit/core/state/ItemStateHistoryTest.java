@@ -0,0 +1,97 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.state;
+
+import junit.framework.TestCase;
+
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.spi.commons.name.NameConstants;
+
+/**
+ * <code>ItemStateHistoryTest</code> checks that the {@link ItemStateHistory}
+ * retains the superseded states of open snapshots within its limit.
+ */
+public class ItemStateHistoryTest extends TestCase {
+
+    private ChangeLog modify(NodeState state) {
+        ChangeLog changeLog = new ChangeLog();
+        changeLog.modified(state);
+        return changeLog;
+    }
+
+    private NodeState createState() {
+        return new NodeState(
+                NodeId.randomId(), NameConstants.NT_BASE, null,
+                ItemState.STATUS_EXISTING, false);
+    }
+
+    /**
+     * Checks that the versions are retained for open snapshots only.
+     */
+    public void testVersions() throws ItemStateException {
+        ItemStateHistory history = new ItemStateHistory(10);
+        NodeState state = createState();
+
+        history.record(modify(state));
+        long snapshot = history.openSnapshot();
+        assertNull(history.getVersion(state.getId(), snapshot));
+
+        history.record(modify(state));
+        ItemStateHistory.Version version =
+            history.getVersion(state.getId(), snapshot);
+        assertNotNull(version);
+        assertEquals(state.getId(), version.state.getId());
+
+        history.closeSnapshot(snapshot);
+        assertFalse(history.hasSnapshots());
+        assertNull(history.getVersion(state.getId(), snapshot));
+    }
+
+    /**
+     * Checks that the oldest snapshots expire once more versions than the
+     * limit would have to be retained, and that reading from an expired
+     * snapshot fails.
+     */
+    public void testExpiredSnapshot() throws ItemStateException {
+        ItemStateHistory history = new ItemStateHistory(3);
+        NodeState state = createState();
+
+        long oldest = history.openSnapshot();
+        history.record(modify(createState()));
+        history.record(modify(createState()));
+        long newer = history.openSnapshot();
+        history.record(modify(state));
+        assertNotNull(history.getVersion(state.getId(), newer));
+        assertNotNull(history.getVersion(state.getId(), oldest));
+
+        // a fourth version exceeds the limit and expires the oldest snapshot
+        history.record(modify(state));
+        try {
+            history.getVersion(state.getId(), oldest);
+            fail("Reading from an expired snapshot must fail");
+        } catch (ItemStateException expected) {
+        }
+        assertNotNull(history.getVersion(state.getId(), newer));
+        assertTrue(history.hasSnapshots());
+
+        // closing an expired snapshot is harmless
+        history.closeSnapshot(oldest);
+        history.closeSnapshot(newer);
+        assertFalse(history.hasSnapshots());
+    }
+
+}
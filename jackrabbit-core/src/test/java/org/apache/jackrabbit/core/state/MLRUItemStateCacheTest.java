@@ -0,0 +1,83 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.state;
+
+import junit.framework.TestCase;
+
+import org.apache.jackrabbit.core.cache.CacheManager;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.spi.commons.name.NameConstants;
+
+/**
+ * Test cases for the size statistics of the {@link MLRUItemStateCache}.
+ */
+public class MLRUItemStateCacheTest extends TestCase {
+
+    private NodeState createNodeState() {
+        return new NodeState(
+                NodeId.randomId(), NameConstants.NT_UNSTRUCTURED, null,
+                ItemState.STATUS_EXISTING, false);
+    }
+
+    /**
+     * Checks that the sizes of the cached states are recorded.
+     */
+    public void testStatistics() {
+        ItemStateCacheStatistics statistics = new ItemStateCacheStatistics();
+        MLRUItemStateCache cache =
+            new MLRUItemStateCache(new CacheManager(), statistics);
+        try {
+            NodeState state = createNodeState();
+            cache.cache(state);
+            cache.cache(createNodeState());
+            assertSame(state, cache.retrieve(state.getId()));
+
+            long size = state.calculateMemoryFootprint();
+            assertEquals(2, statistics.getCachedStateCount());
+            assertEquals(2 * size, statistics.getCachedStateSize());
+            assertEquals(0, statistics.getRejectedStateCount());
+            long[] histogram = statistics.getCachedStateSizeHistogram();
+            assertEquals(2, histogram[ItemStateCacheStatistics.bucket(size)]);
+            assertEquals(statistics.getHistogramBuckets().length, histogram.length);
+
+            statistics.reset();
+            assertEquals(0, statistics.getCachedStateCount());
+            assertEquals(0, statistics.getCachedStateSize());
+        } finally {
+            cache.dispose();
+        }
+    }
+
+    /**
+     * Checks the size buckets of the statistics.
+     */
+    public void testHistogramBuckets() {
+        assertEquals(0, ItemStateCacheStatistics.bucket(0));
+        assertEquals(0, ItemStateCacheStatistics.bucket(63));
+        assertEquals(1, ItemStateCacheStatistics.bucket(64));
+        assertEquals(2, ItemStateCacheStatistics.bucket(128));
+        assertEquals(2, ItemStateCacheStatistics.bucket(255));
+        assertEquals(ItemStateCacheStatistics.BUCKETS - 1,
+                ItemStateCacheStatistics.bucket(Long.MAX_VALUE));
+
+        String[] buckets = new ItemStateCacheStatistics(0).getHistogramBuckets();
+        assertEquals("<64B", buckets[0]);
+        assertEquals("<256B", buckets[2]);
+        assertEquals(">=16777216B", buckets[ItemStateCacheStatistics.BUCKETS - 1]);
+    }
+
+}
@@ -0,0 +1,131 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.state;
+
+import javax.jcr.PropertyType;
+
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.id.PropertyId;
+import org.apache.jackrabbit.core.state.ISMLocking.ReadLock;
+import org.apache.jackrabbit.core.state.ISMLocking.WriteLock;
+import org.apache.jackrabbit.core.value.InternalValue;
+import org.apache.jackrabbit.spi.commons.name.NameConstants;
+
+/**
+ * <code>OptimisticISMLockingTest</code> executes the test cases implemented in
+ * {@link AbstractISMLockingTest} and checks that change logs touching
+ * disjoint items get their write locks concurrently.
+ */
+public class OptimisticISMLockingTest extends AbstractISMLockingTest {
+
+    public ISMLocking createISMLocking() {
+        return new OptimisticISMLocking();
+    }
+
+    /**
+     * Checks that writers of unrelated items do not block each other nor
+     * readers of other items.
+     */
+    public void testDisjointWrites() throws InterruptedException {
+        NodeState other = new NodeState(
+                NodeId.randomId(), NameConstants.NT_BASE, null,
+                ItemState.STATUS_EXISTING, true);
+        ChangeLog otherLog = new ChangeLog();
+        otherLog.modified(other);
+
+        for (ChangeLog changeLog : logs) {
+            WriteLock wLock = locking.acquireWriteLock(changeLog);
+            verifyNotBlocked(startWriterThread(locking, otherLog));
+            verifyNotBlocked(startReaderThread(locking, other.getId()));
+            verifyBlocked(startWriterThread(locking, changeLog));
+            wLock.release();
+        }
+
+        WriteLock wLock = locking.acquireWriteLock(otherLog);
+        ReadLock rLock = locking.acquireReadLock(state.getId());
+        assertEquals(1, ((OptimisticISMLocking) locking).getWriterCount());
+        rLock.release();
+        wLock.release();
+        assertEquals(0, ((OptimisticISMLocking) locking).getWriterCount());
+    }
+
+    /**
+     * Checks that a thread holding a write lock is blocked when it reads
+     * an item of the active write lock of another thread, and that a read
+     * that would deadlock two writers is granted.
+     */
+    public void testWriterReadsOtherWriterItem() throws InterruptedException {
+        NodeState other = new NodeState(
+                NodeId.randomId(), NameConstants.NT_BASE, null,
+                ItemState.STATUS_EXISTING, true);
+        ChangeLog otherLog = new ChangeLog();
+        otherLog.modified(other);
+        ChangeLog changeLog = new ChangeLog();
+        changeLog.modified(state);
+
+        WriteLock wLock = locking.acquireWriteLock(changeLog);
+        verifyBlocked(startWriterReaderThread(locking, otherLog, state.getId()));
+        verifyNotBlocked(startWriterReaderThread(locking, otherLog, other.getId()));
+
+        Thread writer = startWriterReaderThread(locking, otherLog, state.getId());
+        Thread.sleep(100);
+        assertTrue(writer.isAlive());
+        // the other writer waits for this one, so this read must not block
+        ReadLock rLock = locking.acquireReadLock(other.getId());
+        rLock.release();
+        wLock.release();
+        verifyNotBlocked(writer);
+    }
+
+    /**
+     * Checks that a downgraded write lock keeps intersecting writers out
+     * until it is released.
+     */
+    public void testDowngradeBlocksIntersectingWrite()
+            throws InterruptedException {
+        for (ChangeLog changeLog : logs) {
+            WriteLock wLock = locking.acquireWriteLock(changeLog);
+            ReadLock rLock = wLock.downgrade();
+            verifyBlocked(startWriterThread(locking, changeLog));
+            rLock.release();
+            verifyNotBlocked(startWriterThread(locking, changeLog));
+        }
+    }
+
+    /**
+     * Checks that a change log adding a reference to a node intersects with
+     * a change log that modifies or removes the target node.
+     */
+    public void testReferenceTargets() throws InterruptedException {
+        NodeId parentId = NodeId.randomId();
+        PropertyState property = new PropertyState(
+                new PropertyId(parentId, NameConstants.JCR_UUID),
+                ItemState.STATUS_NEW, true);
+        property.setType(PropertyType.REFERENCE);
+        property.setValues(new InternalValue[] {
+                InternalValue.create(state.getNodeId()) });
+        ChangeLog changeLog = new ChangeLog();
+        changeLog.added(property);
+
+        WriteLock wLock = locking.acquireWriteLock(changeLog);
+        for (ChangeLog log : logs) {
+            verifyBlocked(startWriterThread(locking, log));
+        }
+        wLock.release();
+    }
+
+}
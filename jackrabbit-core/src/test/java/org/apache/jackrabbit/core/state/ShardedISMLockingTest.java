@@ -0,0 +1,199 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.state;
+
+import java.util.BitSet;
+
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.id.PropertyId;
+import org.apache.jackrabbit.core.state.ISMLocking.ReadLock;
+import org.apache.jackrabbit.core.state.ISMLocking.WriteLock;
+import org.apache.jackrabbit.spi.commons.name.NameConstants;
+
+/**
+ * <code>ShardedISMLockingTest</code> executes the test cases implemented in
+ * {@link AbstractISMLockingTest} and checks the striping and the lock wait
+ * statistics of the {@link ShardedISMLocking}.
+ */
+public class ShardedISMLockingTest extends AbstractISMLockingTest {
+
+    public ISMLocking createISMLocking() {
+        return new ShardedISMLocking();
+    }
+
+    /**
+     * Checks that a change log locks the stripes of its items and of the
+     * parents of its nodes, and that properties share the stripe of their
+     * parent node.
+     */
+    public void testStripes() {
+        ShardedISMLocking sharded = (ShardedISMLocking) locking;
+        NodeId parentId = NodeId.randomId();
+        NodeState child = new NodeState(
+                NodeId.randomId(), NameConstants.NT_BASE, parentId,
+                ItemState.STATUS_EXISTING, true);
+        ChangeLog changeLog = new ChangeLog();
+        changeLog.modified(child);
+
+        BitSet set = sharded.getStripes(changeLog);
+        assertTrue(set.get(sharded.getStripe(child.getNodeId())));
+        assertTrue(set.get(sharded.getStripe(parentId)));
+        assertTrue(set.cardinality() <= 2);
+
+        PropertyId propertyId =
+            new PropertyId(child.getNodeId(), NameConstants.JCR_UUID);
+        assertEquals(
+                sharded.getStripe(child.getNodeId()),
+                sharded.getStripe(propertyId));
+
+        assertEquals(sharded.getStripes(), sharded.getStripes(null).cardinality());
+    }
+
+    /**
+     * Checks that writers of change logs on different stripes do not block
+     * each other, and that the waits are recorded in the statistics.
+     */
+    public void testDisjointWrites() throws InterruptedException {
+        ShardedISMLocking sharded = (ShardedISMLocking) locking;
+        NodeState other;
+        do {
+            other = new NodeState(
+                    NodeId.randomId(), NameConstants.NT_BASE, null,
+                    ItemState.STATUS_EXISTING, true);
+        } while (sharded.getStripe(other.getId())
+                == sharded.getStripe(state.getId()));
+        ChangeLog otherLog = new ChangeLog();
+        otherLog.modified(other);
+
+        ISMLockingStatistics statistics = sharded.getStatistics();
+        statistics.reset();
+
+        WriteLock wLock = locking.acquireWriteLock(logs.get(2));
+        verifyNotBlocked(startWriterThread(locking, otherLog));
+        verifyNotBlocked(startReaderThread(locking, other.getId()));
+        Thread reader = startReaderThread(locking, state.getId());
+        Thread.sleep(100);
+        assertTrue(reader.isAlive());
+        ReadLock rLock = wLock.downgrade();
+        verifyNotBlocked(reader);
+        verifyBlocked(startWriterThread(locking, logs.get(2)));
+        rLock.release();
+
+        assertEquals(2, statistics.getWriteLockCount());
+        assertEquals(2, statistics.getReadLockCount());
+        long[] histogram = statistics.getReadLockWaitHistogram();
+        assertEquals(1, histogram[0]);
+        assertEquals(statistics.getHistogramBuckets().length, histogram.length);
+        assertTrue(statistics.getReadLockWaitTime() >= 50000);
+    }
+
+    /**
+     * Checks that a thread holding a write lock is blocked when it reads
+     * a stripe write locked by another thread, and that a read that would
+     * deadlock two writers fails instead of being granted.
+     */
+    public void testWriterReadsOtherWriterStripe() throws InterruptedException {
+        ShardedISMLocking sharded = (ShardedISMLocking) locking;
+        ChangeLog changeLog = new ChangeLog();
+        changeLog.modified(state);
+        BitSet set = sharded.getStripes(changeLog);
+        NodeState other;
+        do {
+            other = new NodeState(
+                    NodeId.randomId(), NameConstants.NT_BASE, null,
+                    ItemState.STATUS_EXISTING, true);
+        } while (set.get(sharded.getStripe(other.getId())));
+        ChangeLog otherLog = new ChangeLog();
+        otherLog.modified(other);
+
+        WriteLock wLock = locking.acquireWriteLock(changeLog);
+        verifyBlocked(startWriterReaderThread(locking, otherLog, state.getId()));
+        verifyNotBlocked(startWriterReaderThread(locking, otherLog, other.getId()));
+
+        Thread writer = startWriterReaderThread(locking, otherLog, state.getId());
+        Thread.sleep(100);
+        assertTrue(writer.isAlive());
+        // the other writer waits for this one, so one of the two reads
+        // fails and its writer has to release the write lock
+        try {
+            locking.acquireReadLock(other.getId()).release();
+            // the other writer detected the deadlock first
+            writer.join(1000);
+            assertFalse(writer.isAlive());
+        } catch (ISMLockingDeadlockException e) {
+            // expected
+        }
+        wLock.release();
+        verifyNotBlocked(writer);
+    }
+
+    /**
+     * Checks that a writer still acquiring the stripes of its change log
+     * releases them when another writer reads one of them, instead of
+     * deadlocking with that writer or failing its read.
+     */
+    public void testAcquiringWriterBacksOff() throws InterruptedException {
+        ShardedISMLocking sharded = (ShardedISMLocking) locking;
+        NodeState low = new NodeState(
+                NodeId.randomId(), NameConstants.NT_BASE, null,
+                ItemState.STATUS_EXISTING, true);
+        NodeState high;
+        do {
+            high = new NodeState(
+                    NodeId.randomId(), NameConstants.NT_BASE, null,
+                    ItemState.STATUS_EXISTING, true);
+        } while (sharded.getStripe(high.getId())
+                == sharded.getStripe(low.getId()));
+        if (sharded.getStripe(high.getId()) < sharded.getStripe(low.getId())) {
+            NodeState tmp = low;
+            low = high;
+            high = tmp;
+        }
+        ChangeLog highLog = new ChangeLog();
+        highLog.modified(high);
+        ChangeLog bothLog = new ChangeLog();
+        bothLog.modified(low);
+        bothLog.modified(high);
+
+        WriteLock wLock = locking.acquireWriteLock(highLog);
+        // locks the lower stripe and waits for the higher one
+        Thread writer = startWriterThread(locking, bothLog);
+        Thread.sleep(100);
+        assertTrue(writer.isAlive());
+        locking.acquireReadLock(low.getId()).release();
+        wLock.release();
+        verifyNotBlocked(writer);
+    }
+
+    /**
+     * Checks the wait time buckets of the statistics.
+     */
+    public void testHistogramBuckets() {
+        assertEquals(0, ISMLockingStatistics.bucket(0));
+        assertEquals(0, ISMLockingStatistics.bucket(999));
+        assertEquals(1, ISMLockingStatistics.bucket(1000));
+        assertEquals(2, ISMLockingStatistics.bucket(2000));
+        assertEquals(2, ISMLockingStatistics.bucket(3999));
+        assertEquals(ISMLockingStatistics.BUCKETS - 1,
+                ISMLockingStatistics.bucket(Long.MAX_VALUE));
+
+        String[] buckets = new ISMLockingStatistics().getHistogramBuckets();
+        assertEquals("<1us", buckets[0]);
+        assertEquals("<4us", buckets[2]);
+    }
+
+}
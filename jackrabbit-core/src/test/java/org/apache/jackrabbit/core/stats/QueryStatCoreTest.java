@@ -20,7 +20,9 @@ import static javax.jcr.query.Query.JCR_SQL2;
 
 import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.jackrabbit.api.stats.QueryStatDto;
 import org.apache.jackrabbit.stats.QueryStatCore;
+import org.apache.jackrabbit.stats.QueryStatDtoImpl;
 import org.apache.jackrabbit.stats.QueryStatImpl;
 import org.apache.jackrabbit.test.AbstractJCRTest;
 
@@ -76,4 +78,21 @@ public class QueryStatCoreTest extends AbstractJCRTest {
         queryStat.setPopularQueriesQueueSize(newSize);
         assertEquals(newSize, queryStat.getPopularQueries().length);
     }
+
+    public void testPlan() throws Exception {
+        queryStat.clearSlowQueriesQueue();
+        String sql = "SELECT * FROM [nt:unstructured] as t";
+        ((QueryStatImpl) queryStat).logQuery(
+                JCR_SQL2, sql, 5, "SELECT [nt:unstructured] AS t");
+        QueryStatDto[] slow = queryStat.getSlowQueries();
+        assertEquals(1, slow.length);
+        assertEquals(sql, slow[0].getStatement());
+        assertEquals("SELECT [nt:unstructured] AS t",
+                ((QueryStatDtoImpl) slow[0]).getPlan());
+
+        // queries logged without a plan
+        queryStat.clearSlowQueriesQueue();
+        runRandomQuery();
+        assertNull(((QueryStatDtoImpl) queryStat.getSlowQueries()[0]).getPlan());
+    }
 }
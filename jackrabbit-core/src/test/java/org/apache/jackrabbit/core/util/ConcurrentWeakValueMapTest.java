@@ -0,0 +1,71 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.util;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for the {@link ConcurrentWeakValueMap} class.
+ */
+public class ConcurrentWeakValueMapTest extends TestCase {
+
+    public void testPutIfAbsent() {
+        ConcurrentWeakValueMap<String, Object> map =
+            new ConcurrentWeakValueMap<String, Object>();
+        Object a = new Object();
+        Object b = new Object();
+        assertNull(map.putIfAbsent("key", a));
+        assertSame(a, map.putIfAbsent("key", b));
+        assertSame(a, map.get("key"));
+        assertSame(a, map.put("key", b));
+        assertSame(b, map.get("key"));
+    }
+
+    public void testConditionalRemove() {
+        ConcurrentWeakValueMap<String, Object> map =
+            new ConcurrentWeakValueMap<String, Object>();
+        Object a = new Object();
+        Object b = new Object();
+        map.put("key", a);
+        assertFalse(map.remove("key", b));
+        assertSame(a, map.get("key"));
+        assertTrue(map.remove("key", a));
+        assertNull(map.get("key"));
+        assertEquals(0, map.size());
+    }
+
+    public void testGarbageCollectedValues() throws InterruptedException {
+        ConcurrentWeakValueMap<String, Object> map =
+            new ConcurrentWeakValueMap<String, Object>();
+        Object strong = new Object();
+        map.put("strong", strong);
+        map.put("weak", new Object());
+        for (int i = 0; i < 100 && map.get("weak") != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(map.get("weak"));
+        assertEquals(1, map.values().size());
+        assertSame(strong, map.get("strong"));
+
+        // a collected value does not prevent a new one from being added
+        Object value = new Object();
+        assertNull(map.putIfAbsent("weak", value));
+        assertSame(value, map.get("weak"));
+    }
+
+}
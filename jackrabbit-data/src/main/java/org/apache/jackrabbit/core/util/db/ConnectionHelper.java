@@ -22,8 +22,11 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import javax.sql.DataSource;
@@ -48,6 +51,7 @@ import org.slf4j.LoggerFactory;
  * <ul>
  * <li>{@link #exec(String, Object...)}</li>
  * <li>{@link #update(String, Object[])}</li>
+ * <li>{@link #updateBatch(String, List)}</li>
  * <li>{@link #exec(String, Object[], boolean, int)}</li>
  * </ul>
  *
@@ -347,6 +351,55 @@ public class ConnectionHelper {
         }
     }
 
+    /**
+     * Executes an insert, update or delete statement once for each of the given parameter sets. The
+     * parameter sets are added to a single {@link PreparedStatement} with
+     * {@link PreparedStatement#addBatch()} and sent to the database in one round trip. This is mostly
+     * useful in batch mode, where all statements of a transaction share one connection.
+     *
+     * @param sql an SQL statement string
+     * @param paramsList the parameter sets for the SQL statement
+     * @return the update counts, one per parameter set
+     * @throws SQLException on error
+     */
+    public final int[] updateBatch(final String sql, final List<Object[]> paramsList) throws SQLException {
+        if (paramsList.isEmpty()) {
+            return new int[0];
+        }
+        List<Object> allParams = new ArrayList<Object>();
+        for (Object[] params : paramsList) {
+            allParams.addAll(Arrays.asList(params));
+        }
+        return new RetryManager<int[]>(allParams.toArray()) {
+
+            @Override
+            protected int[] call() throws SQLException {
+                return reallyUpdateBatch(sql, paramsList);
+            }
+
+        }.doTry();
+    }
+
+    int[] reallyUpdateBatch(String sql, List<Object[]> paramsList) throws SQLException {
+        Connection con = null;
+        PreparedStatement stmt = null;
+        boolean inBatchMode = inBatchMode();
+        try {
+            con = getConnection(inBatchMode);
+            stmt = con.prepareStatement(sql);
+            try {
+                for (Object[] params : paramsList) {
+                    addBatch(stmt, params);
+                }
+                return stmt.executeBatch();
+            } finally {
+                releaseBatch(stmt);
+            }
+        } finally {
+            closeResources(con, stmt, null, inBatchMode);
+        }
+    }
+
     /**
      * Executes a SQL query and returns the {@link ResultSet}. The
      * returned {@link ResultSet} should be closed by clients.
@@ -516,6 +569,39 @@ public class ConnectionHelper {
         return stmt;
     }
 
+    /**
+     * This method is used by {@link #updateBatch(String, List)} to add a parameter set to a batch. This
+     * default implementation sets all parameters and unwraps {@link StreamWrapper} instances like
+     * {@link #execute(PreparedStatement, Object[])} does. Subclasses may override this method to do
+     * something special with the parameters.
+     *
+     * @param stmt the {@link PreparedStatement} to add the parameters to
+     * @param params the parameters
+     * @throws SQLException on error
+     */
+    protected void addBatch(PreparedStatement stmt, Object[] params) throws SQLException {
+        for (int i = 0; params != null && i < params.length; i++) {
+            Object p = params[i];
+            if (p instanceof StreamWrapper) {
+                StreamWrapper wrapper = (StreamWrapper) p;
+                stmt.setBinaryStream(i + 1, wrapper.getStream(), (int) wrapper.getSize());
+            } else {
+                stmt.setObject(i + 1, p);
+            }
+        }
+        stmt.addBatch();
+    }
+
+    /**
+     * This method is called by {@link #updateBatch(String, List)} after a batch has been executed or has
+     * failed, before the statement is closed. This default implementation does nothing. Subclasses that
+     * allocate resources in {@link #addBatch(PreparedStatement, Object[])} release them here.
+     *
+     * @param stmt the {@link PreparedStatement} of the batch
+     */
+    protected void releaseBatch(PreparedStatement stmt) {
+    }
+
     /**
      * This class encapsulates the logic to retry a method invocation if it threw an SQLException.
      * The RetryManager must cleanup the Params it will get.
@@ -25,7 +25,10 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.sql.DataSource;
 
@@ -49,6 +52,13 @@ public final class Oracle10R1ConnectionHelper extends OracleConnectionHelper {
 
     private Integer modeReadWriteConstant;
 
+    /**
+     * The temporary blobs of the batches that are being built, freed again after the batch has been
+     * executed.
+     */
+    private final Map<PreparedStatement, List<Blob>> batchBlobs =
+        Collections.synchronizedMap(new IdentityHashMap<PreparedStatement, List<Blob>>());
+
     /**
      * @param dataSrc the {@code DataSource} on which this helper acts
      * @param block whether to block on connection loss until the db is up again
@@ -94,32 +104,80 @@ public final class Oracle10R1ConnectionHelper extends OracleConnectionHelper {
     protected PreparedStatement execute(PreparedStatement stmt, Object[] params) throws SQLException {
         List<Blob> tmpBlobs = new ArrayList<Blob>();
         try {
-            for (int i = 0; params != null && i < params.length; i++) {
-                Object p = params[i];
-                if (p instanceof StreamWrapper) {
-                    StreamWrapper wrapper = (StreamWrapper) p;
-                    Blob tmp = createTemporaryBlob(stmt.getConnection(), wrapper.getStream());
-                    tmpBlobs.add(tmp);
-                    stmt.setBlob(i + 1, tmp);
-                } else if (p instanceof InputStream) {
-                    Blob tmp = createTemporaryBlob(stmt.getConnection(), (InputStream) p);
-                    tmpBlobs.add(tmp);
-                    stmt.setBlob(i + 1, tmp);
-                } else {
-                    stmt.setObject(i + 1, p);
-                }
-            }
+            setParameters(stmt, params, tmpBlobs);
             stmt.execute();
             return stmt;
         } catch (Exception e) {
             throw new SQLException(e.getMessage());
         } finally {
-            for (Blob blob : tmpBlobs) {
-                try {
-                    freeTemporaryBlob(blob);
-                } catch (Exception e) {
-                    log.warn("Could not close temporary blob", e);
-                }
+            freeTemporaryBlobs(tmpBlobs);
+        }
+    }
+
+    /**
+     * Wraps any input-stream parameters in temporary blobs, like
+     * {@link #execute(PreparedStatement, Object[])} does. The blobs are freed again in
+     * {@link #releaseBatch(PreparedStatement)} once the whole batch has been executed.
+     * 
+     * {@inheritDoc}
+     */
+    @Override
+    protected void addBatch(PreparedStatement stmt, Object[] params) throws SQLException {
+        List<Blob> tmpBlobs = batchBlobs.get(stmt);
+        if (tmpBlobs == null) {
+            tmpBlobs = new ArrayList<Blob>();
+            batchBlobs.put(stmt, tmpBlobs);
+        }
+        try {
+            setParameters(stmt, params, tmpBlobs);
+            stmt.addBatch();
+        } catch (Exception e) {
+            throw new SQLException(e.getMessage());
+        }
+    }
+
+    /**
+     * Frees the temporary blobs of the batch.
+     * 
+     * {@inheritDoc}
+     */
+    @Override
+    protected void releaseBatch(PreparedStatement stmt) {
+        List<Blob> tmpBlobs = batchBlobs.remove(stmt);
+        if (tmpBlobs != null) {
+            freeTemporaryBlobs(tmpBlobs);
+        }
+    }
+
+    /**
+     * Sets the parameters of the statement and wraps input-stream parameters in temporary blobs, which
+     * are added to the given list.
+     */
+    private void setParameters(PreparedStatement stmt, Object[] params, List<Blob> tmpBlobs)
+            throws Exception {
+        for (int i = 0; params != null && i < params.length; i++) {
+            Object p = params[i];
+            if (p instanceof StreamWrapper) {
+                StreamWrapper wrapper = (StreamWrapper) p;
+                Blob tmp = createTemporaryBlob(stmt.getConnection(), wrapper.getStream());
+                tmpBlobs.add(tmp);
+                stmt.setBlob(i + 1, tmp);
+            } else if (p instanceof InputStream) {
+                Blob tmp = createTemporaryBlob(stmt.getConnection(), (InputStream) p);
+                tmpBlobs.add(tmp);
+                stmt.setBlob(i + 1, tmp);
+            } else {
+                stmt.setObject(i + 1, p);
+            }
+        }
+    }
+
+    private void freeTemporaryBlobs(List<Blob> tmpBlobs) {
+        for (Blob blob : tmpBlobs) {
+            try {
+                freeTemporaryBlob(blob);
+            } catch (Exception e) {
+                log.warn("Could not close temporary blob", e);
             }
         }
     }
@@ -59,11 +59,22 @@ public class QueryStatDtoImpl implements QueryStatDto {
      */
     private int occurrenceCount = 1;
 
+    /**
+     * execution plan, may be <code>null</code>
+     */
+    private final String plan;
+
     public QueryStatDtoImpl(final String language, final String statement,
             long durationMs) {
+        this(language, statement, durationMs, null);
+    }
+
+    public QueryStatDtoImpl(final String language, final String statement,
+            long durationMs, final String plan) {
         this.durationMs = durationMs;
         this.language = language;
         this.statement = statement;
+        this.plan = plan;
 
         Calendar c = Calendar.getInstance();
         c.setTimeInMillis(System.currentTimeMillis() - durationMs);
@@ -86,6 +97,14 @@ public class QueryStatDtoImpl implements QueryStatDto {
         return creationTime.toString();
     }
 
+    /**
+     * @return a description of how the query was executed, or
+     *         <code>null</code> if the query engine does not provide one
+     */
+    public String getPlan() {
+        return plan;
+    }
+
     public long getPosition() {
         return position;
     }
@@ -112,11 +112,31 @@ public class QueryStatImpl implements QueryStatCore {
 
     public void logQuery(final String language, final String statement,
             long durationMs) {
+        logQuery(language, statement, durationMs, null);
+    }
+
+    /**
+     * Logs the call of each query ran on the repository, together with a
+     * description of how the query was executed. The plan is available
+     * from {@link QueryStatDtoImpl#getPlan()}.
+     * 
+     * @param language
+     *            the query language, see
+     *            {@link org.apache.jackrabbit.spi.commons.name.NameConstants#JCR_LANGUAGE}
+     * @param statement
+     *            the query
+     * @param durationMs
+     *            time in ms
+     * @param plan
+     *            the execution plan, or <code>null</code>
+     */
+    public void logQuery(final String language, final String statement,
+            long durationMs, String plan) {
         if (!enabled) {
             return;
         }
         final QueryStatDtoImpl qs = new QueryStatDtoImpl(language, statement,
-                durationMs);
+                durationMs, plan);
         slowQueries.offer(qs);
 
         synchronized (popularQueries) {
@@ -28,6 +28,7 @@ import javax.management.openmbean.TabularType;
 import org.apache.jackrabbit.api.jmx.QueryStatManagerMBean;
 import org.apache.jackrabbit.api.stats.QueryStat;
 import org.apache.jackrabbit.api.stats.QueryStatDto;
+import org.apache.jackrabbit.stats.QueryStatDtoImpl;
 
 /**
  * The QueryStatManagerMBean default implementation
@@ -115,14 +116,16 @@ public class QueryStatManager implements QueryStatManagerMBean {
         private final static String[] index = { "position" };
 
         private final static String[] names = { "position", "duration",
-                "occurrenceCount", "language", "statement", "creationTime" };
+                "occurrenceCount", "language", "statement", "creationTime",
+                "plan" };
 
         private final static String[] descriptions = { "position", "duration",
-                "occurrenceCount", "language", "statement", "creationTime" };
+                "occurrenceCount", "language", "statement", "creationTime",
+                "plan" };
 
         private final static OpenType[] types = { SimpleType.LONG,
                 SimpleType.LONG, SimpleType.INTEGER, SimpleType.STRING,
-                SimpleType.STRING, SimpleType.STRING };
+                SimpleType.STRING, SimpleType.STRING, SimpleType.STRING };
 
         public static CompositeType getCompositeType() throws OpenDataException {
             return new CompositeType(QueryStat.class.getName(),
@@ -132,7 +135,9 @@ public class QueryStatManager implements QueryStatManagerMBean {
         public static Object[] getValues(QueryStatDto q) {
             return new Object[] { q.getPosition(), q.getDuration(),
                     q.getOccurrenceCount(), q.getLanguage(), q.getStatement(),
-                    q.getCreationTime() };
+                    q.getCreationTime(),
+                    (q instanceof QueryStatDtoImpl)
+                            ? ((QueryStatDtoImpl) q).getPlan() : null };
         }
     }
 
@@ -58,6 +58,17 @@ public class CachingNameResolver implements NameResolver {
         this(resolver, new GenerationalCache());
     }
 
+    /**
+     * Creates a caching decorator for the given name resolver that caches
+     * up to the given number of names.
+     *
+     * @param resolver name resolver
+     * @param cacheSize maximum size of the cache
+     */
+    public CachingNameResolver(NameResolver resolver, int cacheSize) {
+        this(resolver, new GenerationalCache(cacheSize));
+    }
+
     //-------------------------------------------------------< NameResolver >---
     /**
      * Returns a <code>Name</code> for the given prefixed JCR name. The name
@@ -58,6 +58,17 @@ public class CachingPathResolver implements PathResolver {
         this(resolver, new GenerationalCache());
     }
 
+    /**
+     * Creates a caching decorator for the given path resolver that caches
+     * up to the given number of paths.
+     *
+     * @param resolver path resolver
+     * @param cacheSize maximum size of the cache
+     */
+    public CachingPathResolver(PathResolver resolver, int cacheSize) {
+        this(resolver, new GenerationalCache(cacheSize));
+    }
+
     //--------------------------------------------------------< PathResolver >
 
     /**
@@ -27,6 +27,9 @@ import java.util.Iterator;
  * are used within two successive generations get promoted to the long term
  * cache. The entries within the long term cache are discarded only when the
  * size of the cache exceeds the given maximum cache size.
+ * <p>
+ * Lookups are not synchronized, so a single instance can be shared by
+ * concurrent threads.
  */
 class GenerationalCache {
 
@@ -54,12 +57,12 @@ class GenerationalCache {
     /**
      * Long term cache. Read only.
      */
-    private Map cache = new HashMap();
+    private volatile Map cache = new HashMap();
 
     /**
-     * Old cache generation.
+     * Old cache generation. Read only.
      */
-    private Map old = new HashMap();
+    private volatile Map old = new HashMap();
 
     /**
      * Young cache generation.
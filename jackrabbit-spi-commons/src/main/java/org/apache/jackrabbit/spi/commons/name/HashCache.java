@@ -27,6 +27,14 @@ package org.apache.jackrabbit.spi.commons.name;
  */
 public class HashCache<T> {
 
+    /**
+     * Default exponent of the number of slots, can be raised with the
+     * <code>org.apache.jackrabbit.spi.commons.name.HashCache.exponent</code>
+     * system property for repositories with many distinct names.
+     */
+    static final int DEFAULT_EXPONENT = Integer.getInteger(
+            "org.apache.jackrabbit.spi.commons.name.HashCache.exponent", 10);
+
     /**
      * Array of cached objects, indexed by their hash codes
      * (module size of the array).
@@ -34,10 +42,10 @@ public class HashCache<T> {
     private final T[] array;
 
     /**
-     * Creates a hash cache with 1024 slots.
+     * Creates a hash cache with 2^(<code>DEFAULT_EXPONENT</code> + 1) slots.
      */
     public HashCache() {
-        this(10);
+        this(DEFAULT_EXPONENT);
     }
 
     /**
@@ -38,6 +38,34 @@ final class NamePath extends RelativePath {
      */
     private final int index;
 
+    /**
+     * Cache of flyweight path elements, indexed by the hash codes of their
+     * names and indexes. If more than one element hashes to the same slot,
+     * only the most recently created element is kept.
+     */
+    private static final NamePath[] ELEMENTS =
+        new NamePath[2 << HashCache.DEFAULT_EXPONENT];
+
+    /**
+     * Returns a path element with the given name and index. Elements are
+     * shared, so that parsing paths and iterating over their elements does
+     * not create a new instance for every name in the path.
+     *
+     * @param name name of the element
+     * @param index index of the element
+     * @return path element
+     */
+    static NamePath createElement(Name name, int index) {
+        int position = (name.hashCode() * 37 + index) & (ELEMENTS.length - 1);
+        NamePath element = ELEMENTS[position];
+        if (element == null
+                || element.index != index || !element.name.equals(name)) {
+            element = new NamePath(null, name, index);
+            ELEMENTS[position] = element;
+        }
+        return element;
+    }
+
     public NamePath(Path parent, Name name, int index) {
         super(parent);
         assert name != null;
@@ -136,7 +164,7 @@ final class NamePath extends RelativePath {
     @Override
     public AbstractPath getLastElement() {
         if (parent != null) {
-            return new NamePath(null, name, index);
+            return createElement(name, index);
         } else {
             return this;
         }
@@ -117,7 +117,7 @@ public class PathFactoryImpl implements PathFactory {
                 throw new IllegalArgumentException();
             }
         } else {
-            return new NamePath(null, name, index);
+            return NamePath.createElement(name, index);
         }
     }
 
@@ -127,7 +127,7 @@ public class PathFactoryImpl implements PathFactory {
         } else if (element.denotesIdentifier()) {
             return new IdentifierPath(element.getIdentifier());
         } else if (element.denotesName()) {
-            return new NamePath(null, element.getName(), element.getIndex());
+            return NamePath.createElement(element.getName(), element.getIndex());
         } else if (element.denotesParent()) {
             return ParentPath.PARENT_PATH;
         } else if (element.denotesRoot()) {
@@ -207,7 +207,7 @@ public class PathFactoryImpl implements PathFactory {
         } else if (name.equals(RootPath.NAME)) {
             return RootPath.ROOT_PATH;
         } else {
-            return new NamePath(null, name, Path.INDEX_UNDEFINED);
+            return NamePath.createElement(name, Path.INDEX_UNDEFINED);
         }
     }
 
@@ -227,7 +227,7 @@ public class PathFactoryImpl implements PathFactory {
                     "Special path elements (root, '.' and '..') can not have an explicit index: "
                     + name + "[" + index + "]");
         } else {
-            return new NamePath(null, name, index);
+            return NamePath.createElement(name, index);
         }
     }
 
@@ -261,7 +261,7 @@ public class PathFactoryImpl implements PathFactory {
         int pos = elementString.indexOf('[');
         if (pos == -1) {
             Name name = factory.create(elementString);
-            return new NamePath(null, name, Path.INDEX_UNDEFINED);
+            return NamePath.createElement(name, Path.INDEX_UNDEFINED);
         }
         Name name = factory.create(elementString.substring(0, pos));
         int pos1 = elementString.indexOf(']');
@@ -273,7 +273,7 @@ public class PathFactoryImpl implements PathFactory {
             if (index < 1) {
                 throw new IllegalArgumentException("invalid PathElement literal: " + elementString + " (index is 1-based)");
             }
-            return new NamePath(null, name, index);
+            return NamePath.createElement(name, index);
         } catch (NumberFormatException e) {
             throw new IllegalArgumentException("invalid PathElement literal: " + elementString + " (" + e.getMessage() + ")");
         }
@@ -0,0 +1,153 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.spi.commons.conversion;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.jackrabbit.spi.Path;
+import org.apache.jackrabbit.spi.commons.name.NameFactoryImpl;
+import org.apache.jackrabbit.spi.commons.name.PathFactoryImpl;
+
+/**
+ * Measures the throughput of parsing the JCR paths passed to
+ * <code>Session.getNode(String)</code> and <code>Session.getProperty(String)</code>,
+ * with and without caching resolvers. Not run as part of the test suite,
+ * start it with:
+ * <pre>
+ *   java -cp ... org.apache.jackrabbit.spi.commons.conversion.PathResolverBenchmark [threads] [seconds]
+ * </pre>
+ */
+public class PathResolverBenchmark {
+
+    private static final int PATHS = 5000;
+
+    private final String[] paths;
+
+    private final int threads;
+
+    private final long millis;
+
+    public PathResolverBenchmark(int threads, long millis) {
+        this.threads = threads;
+        this.millis = millis;
+        this.paths = new String[PATHS];
+        for (int i = 0; i < PATHS; i++) {
+            String page = "/content/site/en/section" + (i % 50)
+                + "/page" + i + "/jcr:content";
+            if (i % 2 == 0) {
+                paths[i] = page;
+            } else {
+                paths[i] = page + "/jcr:title";
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = 4;
+        long seconds = 5;
+        if (args.length > 0) {
+            threads = Integer.parseInt(args[0]);
+        }
+        if (args.length > 1) {
+            seconds = Long.parseLong(args[1]);
+        }
+        new PathResolverBenchmark(threads, seconds * 1000).run();
+    }
+
+    public void run() throws Exception {
+        System.out.format(
+                "# %-30s %10s %12s%n", "Resolver", "Threads", "Paths/ms");
+
+        // warm up
+        run("parsing", false, false);
+        run("session cache", true, false);
+        run("shared cache", true, true);
+
+        System.out.format(
+                "%-32s %10d %12d%n", "parsing", threads,
+                run("parsing", false, false));
+        System.out.format(
+                "%-32s %10d %12d%n", "session cache", threads,
+                run("session cache", true, false));
+        System.out.format(
+                "%-32s %10d %12d%n", "shared cache", threads,
+                run("shared cache", true, true));
+    }
+
+    /**
+     * Parses the paths in the given number of threads for the configured
+     * time and returns the number of paths parsed per millisecond.
+     *
+     * @param name name of the run
+     * @param caching whether caching resolvers are used
+     * @param shared whether all threads share a single resolver
+     * @return paths parsed per millisecond
+     */
+    private long run(String name, final boolean caching, boolean shared)
+            throws Exception {
+        final AtomicLong count = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(threads);
+        final long end = System.currentTimeMillis() + millis;
+        final PathResolver sharedResolver = createResolver(caching);
+        for (int i = 0; i < threads; i++) {
+            final PathResolver resolver =
+                shared ? sharedResolver : createResolver(caching);
+            final int offset = i * (PATHS / threads);
+            new Thread(name + "-" + i) {
+                public void run() {
+                    try {
+                        long n = 0;
+                        int k = offset;
+                        int hash = 0;
+                        while (System.currentTimeMillis() < end) {
+                            for (int j = 0; j < 1000; j++) {
+                                String path = paths[k++ % PATHS];
+                                Path p = resolver.getQPath(path);
+                                hash += p.getLength();
+                            }
+                            n += 1000;
+                        }
+                        if (hash == 42) {
+                            System.out.println(hash);
+                        }
+                        count.addAndGet(n);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        done.await();
+        return count.get() / millis;
+    }
+
+    private PathResolver createResolver(boolean caching) {
+        NameResolver nr = new ParsingNameResolver(
+                NameFactoryImpl.getInstance(), new DummyNamespaceResolver());
+        PathResolver pr =
+            new ParsingPathResolver(PathFactoryImpl.getInstance(), nr);
+        if (caching) {
+            return new CachingPathResolver(pr, 10000);
+        } else {
+            return pr;
+        }
+    }
+
+}
@@ -110,4 +110,26 @@ public class ElementTest extends TestCase {
         assertEquals("{}", element.getString());
     }
 
+    public void testSharedNameElements() throws Exception {
+        PathFactoryImpl factory = (PathFactoryImpl) PathFactoryImpl.getInstance();
+        Name a = createName("a");
+        Name b = createName("b");
+        Element element = factory.createElement(a);
+        assertSame(element, factory.createElement(a));
+        assertSame(element, factory.createElement(a, Path.INDEX_UNDEFINED));
+        assertNotSame(element, factory.createElement(a, 2));
+        assertEquals(2, factory.createElement(a, 2).getIndex());
+        assertFalse(element.equals(factory.createElement(b)));
+
+        Path path = factory.create(
+                factory.getRootPath(), factory.create(new Element[] {
+                        element, factory.createElement(b, 2) }), false);
+        Element[] elements = path.getElements();
+        assertSame(element, elements[1]);
+        assertSame(elements[2], path.getNameElement());
+        assertSame(elements[2], path.getElements()[2]);
+        assertEquals(b, elements[2].getName());
+        assertEquals(2, elements[2].getIndex());
+    }
+
 }
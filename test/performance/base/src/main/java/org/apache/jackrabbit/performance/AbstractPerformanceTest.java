@@ -93,7 +93,12 @@ public abstract class AbstractPerformanceTest {
         runTest(new BigFileReadTest(), name, conf);
         runTest(new BigFileWriteTest(), name, conf);
         runTest(new ConcurrentReadTest(), name, conf);
+        runTest(new ConcurrentSharedSessionReadTest(), name, conf);
+        runTest(new ConcurrentReadScanTest(), name, conf);
         runTest(new ConcurrentReadWriteTest(), name, conf);
+        runTest(new ConcurrentWriteTest(), name, conf);
+        runTest(new ConcurrentMultiWriterTest(), name, conf);
+        runTest(new ConcurrentCheckinTest(), name, conf);
         runTest(new SimpleSearchTest(), name, conf);
         runTest(new SQL2SearchTest(), name, conf);
         runTest(new DescendantSearchTest(), name, conf);
@@ -127,9 +132,11 @@ public abstract class AbstractPerformanceTest {
             try {
                 // Copy the configuration file into the repository directory
                 File xml = new File(dir, "repository.xml");
+                byte[] data = test.getRepositoryConfig(
+                        new String(conf, "UTF-8")).getBytes("UTF-8");
                 OutputStream output = FileUtils.openOutputStream(xml);
                 try {
-                    output.write(conf, 0, conf.length);
+                    output.write(data, 0, data.length);
                 } finally {
                     output.close();
                 }
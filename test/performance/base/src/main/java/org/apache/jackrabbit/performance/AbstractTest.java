@@ -133,6 +133,43 @@ public abstract class AbstractTest {
     protected void afterSuite() throws Exception {
     }
 
+    /**
+     * Returns the repository configuration that this test is run with.
+     * By default the given configuration is used as is. Subclasses can
+     * override this method to adjust it, for example to select a different
+     * item state locking strategy.
+     *
+     * @param xml repository configuration
+     * @return repository configuration of this test
+     */
+    public String getRepositoryConfig(String xml) {
+        return xml;
+    }
+
+    /**
+     * Inserts the given configuration snippet before the first occurrence
+     * of the given end tag that follows the given start tag.
+     *
+     * @param xml repository configuration
+     * @param start start tag, for example <code>&lt;Workspace </code>
+     * @param end end tag, for example <code>&lt;/PersistenceManager></code>
+     * @param snippet the configuration snippet to insert
+     * @return modified repository configuration
+     * @throws IllegalArgumentException if the tags are not found
+     */
+    protected static String insertConfig(
+            String xml, String start, String end, String snippet) {
+        int index = xml.indexOf(start);
+        if (index != -1) {
+            index = xml.indexOf(end, index);
+        }
+        if (index == -1) {
+            throw new IllegalArgumentException(
+                    "No " + end + " found after " + start);
+        }
+        return xml.substring(0, index) + snippet + xml.substring(index);
+    }
+
     protected void failOnRepositoryVersions(String... versions)
             throws RepositoryException {
         String repositoryVersion =
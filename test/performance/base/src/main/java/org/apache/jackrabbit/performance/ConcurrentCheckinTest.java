@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.performance;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * Test case that measures the time it takes for one writer thread per
+ * processor to each check in 50 new versions of its own versionable node.
+ * The nodes have unrelated version histories, so this shows how much the
+ * checkins are slowed down by the writes of the other threads to the
+ * version storage.
+ */
+public class ConcurrentCheckinTest extends AbstractTest {
+
+    private static final int WRITER_COUNT =
+        getScale(Runtime.getRuntime().availableProcessors());
+
+    private static final int CHECKIN_COUNT = 50;
+
+    private Session session;
+
+    private Node root;
+
+    private Writer[] writers;
+
+    public void beforeSuite() throws Exception {
+        session = loginWriter();
+        root = session.getRootNode().addNode("testroot", "nt:unstructured");
+        for (int i = 0; i < WRITER_COUNT; i++) {
+            Node node = root.addNode("node" + i, "nt:unstructured");
+            node.addMixin("mix:versionable");
+        }
+        session.save();
+
+        writers = new Writer[WRITER_COUNT];
+        for (int i = 0; i < WRITER_COUNT; i++) {
+            writers[i] = new Writer(i);
+        }
+    }
+
+    private class Writer implements Runnable {
+
+        private final Session session = loginWriter();
+
+        private final String path;
+
+        private long count = 0;
+
+        private RepositoryException exception;
+
+        public Writer(int index) {
+            this.path = "testroot/node" + index;
+        }
+
+        public void run() {
+            try {
+                Node node = session.getRootNode().getNode(path);
+                for (int i = 0; i < CHECKIN_COUNT; i++) {
+                    node.checkout();
+                    node.setProperty("count", count++);
+                    session.save();
+                    node.checkin();
+                }
+            } catch (RepositoryException e) {
+                exception = e;
+            }
+        }
+
+    }
+
+    public void runTest() throws Exception {
+        Thread[] threads = new Thread[writers.length];
+        for (int i = 0; i < writers.length; i++) {
+            threads[i] = new Thread(writers[i]);
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+            if (writers[i].exception != null) {
+                throw writers[i].exception;
+            }
+        }
+    }
+
+    public void afterSuite() throws Exception {
+        root.remove();
+        session.save();
+    }
+
+}
@@ -0,0 +1,133 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.performance;
+
+import java.util.Random;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * A {@link ConcurrentReadWriteTest} that measures the time it takes for one
+ * writer thread per processor to each save 100 small changes while the
+ * readers and the background writer keep running. Every writer updates the
+ * nodes of its own subtree, and the workspace is configured with the
+ * {@code OptimisticISMLocking} strategy that lets disjoint change logs
+ * commit concurrently and with a persistence manager that stores them
+ * concurrently, so the number of saves per second should grow with the
+ * number of cores instead of staying flat.
+ */
+public class ConcurrentMultiWriterTest extends ConcurrentReadWriteTest {
+
+    private static final int WRITER_COUNT =
+        getScale(Runtime.getRuntime().availableProcessors());
+
+    private static final int SAVE_COUNT = 100;
+
+    private Writer[] writers;
+
+    @Override
+    public String getRepositoryConfig(String xml) {
+        xml = insertConfig(
+                xml, "<Workspace ", "</PersistenceManager>",
+                "<param name=\"concurrentStore\" value=\"true\"/>\n");
+        return insertConfig(
+                xml, "<Workspace ", "</Workspace>",
+                "<ISMLocking class=\"org.apache.jackrabbit.core.state."
+                + "OptimisticISMLocking\"/>\n");
+    }
+
+    public void beforeSuite() throws Exception {
+        super.beforeSuite();
+
+        for (int i = 0; i < WRITER_COUNT; i++) {
+            Node node = root.addNode("writer" + i, "nt:unstructured");
+            for (int j = 0; j < NODE_COUNT; j++) {
+                node.addNode("node" + j, "nt:unstructured");
+            }
+            root.getSession().save();
+        }
+
+        writers = new Writer[WRITER_COUNT];
+        for (int i = 0; i < WRITER_COUNT; i++) {
+            writers[i] = new Writer(i);
+        }
+    }
+
+    private class Writer implements Runnable {
+
+        private final Session session = loginWriter();
+
+        private final Random random = new Random();
+
+        private final String path;
+
+        private final String name;
+
+        private long count = 0;
+
+        private RepositoryException exception;
+
+        public Writer(int index) {
+            this.path = "testroot/writer" + index + "/node";
+            this.name = "writer" + index;
+        }
+
+        public void run() {
+            try {
+                for (int i = 0; i < SAVE_COUNT; i++) {
+                    Node node = session.getRootNode().getNode(
+                            path + random.nextInt(NODE_COUNT));
+                    node.setProperty(name, count++);
+                    session.save();
+                }
+            } catch (RepositoryException e) {
+                exception = e;
+            }
+        }
+
+    }
+
+    public void runTest() throws Exception {
+        Thread[] threads = new Thread[writers.length];
+        for (int i = 0; i < writers.length; i++) {
+            threads[i] = new Thread(writers[i]);
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+            if (writers[i].exception != null) {
+                throw writers[i].exception;
+            }
+        }
+    }
+
+    public void afterSuite() throws Exception {
+        for (Writer writer : writers) {
+            writer.session.logout();
+        }
+        writers = null;
+
+        for (int i = 0; i < WRITER_COUNT; i++) {
+            root.getNode("writer" + i).remove();
+            root.getSession().save();
+        }
+        super.afterSuite();
+    }
+
+}
@@ -0,0 +1,125 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.performance;
+
+import java.util.Random;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * Test case that measures concurrent reads of a small set of frequently
+ * accessed nodes while background jobs repeatedly traverse a tree of 10k
+ * unstructured nodes (100x100). The traversals touch many nodes only
+ * once, so this test shows how well the item state and bundle caches
+ * protect the frequently accessed nodes from such scans, and how much
+ * the readers contend on the caches.
+ */
+public class ConcurrentReadScanTest extends AbstractTest {
+
+    private static final int NODE_COUNT = 100;
+
+    private static final int HOT_NODE_COUNT = 10;
+
+    private static final int READER_COUNT = getScale(20);
+
+    private static final int SCANNER_COUNT = getScale(2);
+
+    private Session session;
+
+    private Node root;
+
+    public void beforeSuite() throws Exception {
+        session = loginWriter();
+        root = session.getRootNode().addNode("testroot", "nt:unstructured");
+        for (int i = 0; i < NODE_COUNT; i++) {
+            Node node = root.addNode("node" + i, "nt:unstructured");
+            for (int j = 0; j < NODE_COUNT; j++) {
+                node.addNode("node" + j, "nt:unstructured");
+            }
+            session.save();
+        }
+
+        for (int i = 0; i < READER_COUNT; i++) {
+            addBackgroundJob(new Reader());
+        }
+        for (int i = 0; i < SCANNER_COUNT; i++) {
+            addBackgroundJob(new Scanner());
+        }
+    }
+
+    private class Reader implements Runnable {
+
+        private final Session session = loginReader();
+
+        private final Random random = new Random();
+
+        public void run() {
+            try {
+                int i = random.nextInt(HOT_NODE_COUNT);
+                int j = random.nextInt(HOT_NODE_COUNT);
+                session.getRootNode().getNode(
+                        "testroot/node" + i + "/node" + j);
+            } catch (RepositoryException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+    }
+
+    private class Scanner implements Runnable {
+
+        private final Session session = loginReader();
+
+        public void run() {
+            try {
+                session.refresh(false);
+                NodeIterator nodes =
+                    session.getRootNode().getNode("testroot").getNodes();
+                while (nodes.hasNext()) {
+                    NodeIterator children = nodes.nextNode().getNodes();
+                    while (children.hasNext()) {
+                        children.nextNode();
+                    }
+                }
+            } catch (RepositoryException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+    }
+
+    public void runTest() throws Exception {
+        Reader reader = new Reader();
+        for (int i = 0; i < 1000; i++) {
+            reader.run();
+        }
+    }
+
+    public void afterSuite() throws Exception {
+        for (int i = 0; i < NODE_COUNT; i++) {
+            root.getNode("node" + i).remove();
+            session.save();
+        }
+
+        root.remove();
+        session.save();
+    }
+
+}
@@ -52,9 +52,19 @@ public class ConcurrentReadTest extends AbstractTest {
         }
     }
 
+    /**
+     * Returns the session used by a new reader. By default each reader
+     * logs in its own session.
+     *
+     * @return reader session
+     */
+    protected Session getReaderSession() {
+        return loginReader();
+    }
+
     private class Reader implements Runnable {
 
-        private final Session session = loginReader();
+        private final Session session = getReaderSession();
 
         private final Random random = new Random();
 
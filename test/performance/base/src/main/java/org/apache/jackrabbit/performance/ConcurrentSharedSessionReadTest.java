@@ -0,0 +1,41 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.performance;
+
+import javax.jcr.Session;
+
+/**
+ * Variant of the {@link ConcurrentReadTest} where all the readers share
+ * a single session, which shows how much concurrent readers contend on
+ * the item manager and the other per session components.
+ */
+public class ConcurrentSharedSessionReadTest extends ConcurrentReadTest {
+
+    private Session shared;
+
+    @Override
+    public void beforeSuite() throws Exception {
+        shared = loginReader();
+        super.beforeSuite();
+    }
+
+    @Override
+    protected Session getReaderSession() {
+        return shared;
+    }
+
+}
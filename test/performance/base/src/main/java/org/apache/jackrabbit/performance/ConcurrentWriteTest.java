@@ -0,0 +1,101 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.performance;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * Test case that measures the time it takes for a number of concurrent
+ * writers to each save 100 small changes in a separate subtree. With a
+ * persistence manager that stores change logs concurrently the time per
+ * iteration should stay flat as more writer threads are added.
+ */
+public class ConcurrentWriteTest extends AbstractTest {
+
+    private static final int WRITER_COUNT = getScale(8);
+
+    private static final int SAVE_COUNT = 100;
+
+    private Session session;
+
+    private Node root;
+
+    private Writer[] writers;
+
+    public void beforeSuite() throws Exception {
+        session = loginWriter();
+        root = session.getRootNode().addNode("testroot", "nt:unstructured");
+        session.save();
+
+        writers = new Writer[WRITER_COUNT];
+        for (int i = 0; i < WRITER_COUNT; i++) {
+            root.addNode("writer" + i, "nt:unstructured");
+            session.save();
+            writers[i] = new Writer("testroot/writer" + i);
+        }
+    }
+
+    private class Writer implements Runnable {
+
+        private final Session session = loginWriter();
+
+        private final String path;
+
+        private long count = 0;
+
+        private RepositoryException exception;
+
+        public Writer(String path) {
+            this.path = path;
+        }
+
+        public void run() {
+            try {
+                Node node = session.getRootNode().getNode(path);
+                for (int i = 0; i < SAVE_COUNT; i++) {
+                    node.setProperty("count", count++);
+                    session.save();
+                }
+            } catch (RepositoryException e) {
+                exception = e;
+            }
+        }
+
+    }
+
+    public void runTest() throws Exception {
+        Thread[] threads = new Thread[writers.length];
+        for (int i = 0; i < writers.length; i++) {
+            threads[i] = new Thread(writers[i]);
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+            if (writers[i].exception != null) {
+                throw writers[i].exception;
+            }
+        }
+    }
+
+    public void afterSuite() throws Exception {
+        root.remove();
+        session.save();
+    }
+
+}